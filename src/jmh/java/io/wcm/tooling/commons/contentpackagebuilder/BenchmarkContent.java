@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+
+/**
+ * Sample content shared by the benchmarks.
+ */
+final class BenchmarkContent {
+
+  static final Date DATE = new Date(1283692220000L);
+
+  private BenchmarkContent() {
+    // static methods only
+  }
+
+  /**
+   * @param components Number of components in the page paragraph system
+   * @return Page content map with a typical mix of property types
+   */
+  static Map<String, Object> page(int components) {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("jcr:primaryType", "cq:PageContent");
+    content.put("jcr:title", "Sample Page & <Title>");
+    content.put("sling:resourceType", "app/components/page/content");
+    content.put("cq:template", "/apps/app/templates/content");
+    content.put("cq:lastModified", DATE);
+    content.put("hideInNav", false);
+    content.put("cq:tags", new String[] { "app:topic/one", "app:topic/two", "app:region/emea" });
+
+    Map<String, Object> parsys = new LinkedHashMap<>();
+    parsys.put("sling:resourceType", "foundation/components/parsys");
+    for (int i = 0; i < components; i++) {
+      parsys.put("component" + i, component(i));
+    }
+    content.put("parsys", parsys);
+    return content;
+  }
+
+  /**
+   * @param components Number of components in the page paragraph system
+   * @return Page content as element hierarchy
+   */
+  static ContentElement pageElement(int components) {
+    return toElement(null, page(components));
+  }
+
+  /**
+   * @param folders Number of sub folders, each containing a page
+   * @return Content map with folder nodes that are split into separate files
+   */
+  static Map<String, Object> folderTree(int folders) {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("jcr:primaryType", "sling:Folder");
+    for (int i = 0; i < folders; i++) {
+      Map<String, Object> folder = new LinkedHashMap<>();
+      folder.put("jcr:primaryType", "sling:OrderedFolder");
+      folder.put("jcr:content", page(5));
+      content.put("folder" + i, folder);
+    }
+    return content;
+  }
+
+  private static Map<String, Object> component(int index) {
+    Map<String, Object> component = new LinkedHashMap<>();
+    component.put("sling:resourceType", "app/components/content/text");
+    component.put("text", "<p>Paragraph " + index + " with some text, a comma and a \\ backslash.</p>");
+    component.put("textIsRich", true);
+    component.put("index", index);
+    component.put("ratio", new BigDecimal("1.25"));
+    component.put("dimensions", new long[] { 800L, 600L });
+    return component;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ContentElement toElement(String name, Map<String, Object> map) {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    Map<String, ContentElement> children = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        children.put(entry.getKey(), toElement(entry.getKey(), (Map<String, Object>)entry.getValue()));
+      }
+      else {
+        properties.put(entry.getKey(), entry.getValue());
+      }
+    }
+    ContentElement element = new ContentElementImpl(name, properties);
+    element.getChildren().putAll(children);
+    return element;
+  }
+
+}
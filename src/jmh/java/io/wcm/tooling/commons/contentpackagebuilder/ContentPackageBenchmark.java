@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+
+/**
+ * End-to-end adding of pages and files to a content package that is written to a null sink.
+ * A new package is created for each iteration, each operation uses a new path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentPackageBenchmark {
+
+  @Param({ "false", "true" })
+  private boolean streamingXml;
+
+  @Param({ "0", "4" })
+  private int parallelCompressionThreads;
+
+  private Map<String, Object> page;
+  private ContentElement pageElement;
+  private byte[] fileData;
+
+  private ContentPackage contentPackage;
+  private int counter;
+
+  @Setup
+  public void setUp() {
+    page = BenchmarkContent.page(20);
+    pageElement = BenchmarkContent.pageElement(20);
+    fileData = new byte[32 * 1024];
+    new Random(0).nextBytes(fileData);
+  }
+
+  @Setup(Level.Iteration)
+  public void openPackage() throws IOException {
+    contentPackage = new ContentPackageBuilder()
+        .group("benchmark")
+        .name("benchmark")
+        .rootPath("/content/benchmark")
+        .streamingXml(streamingXml)
+        .parallelCompressionThreads(parallelCompressionThreads)
+        .build(OutputStream.nullOutputStream());
+    counter = 0;
+  }
+
+  @TearDown(Level.Iteration)
+  public void closePackage() throws IOException {
+    contentPackage.close();
+  }
+
+  @Benchmark
+  public void addPage() throws IOException {
+    contentPackage.addPage("/content/benchmark/page" + (counter++), page);
+  }
+
+  @Benchmark
+  public void addPageElement() throws IOException {
+    contentPackage.addPage("/content/benchmark/page" + (counter++), pageElement);
+  }
+
+  @Benchmark
+  public void addFile() throws IOException {
+    contentPackage.addFile("/content/dam/benchmark/file" + (counter++) + ".bin",
+        new ByteArrayInputStream(fileData), "application/octet-stream");
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing page XML from a pre-rendered page template compared to streaming the full page content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PageTemplateBenchmark {
+
+  @Param({ "10", "100" })
+  private int components;
+
+  private XmlContentBuilder xmlContentBuilder;
+  private Map<String, Object> page;
+  private PageTemplate template;
+  private Map<String, Object> values;
+  private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+  @Setup
+  public void setUp() {
+    xmlContentBuilder = new XmlContentBuilder(XmlNamespaces.DEFAULT_NAMESPACES);
+    page = BenchmarkContent.page(components);
+    Map<String, Object> templateContent = BenchmarkContent.page(components);
+    templateContent.put("jcr:title", PageTemplate.slot("title", String.class));
+    templateContent.put("cq:lastModified", PageTemplate.slot("lastModified", Date.class));
+    template = new PageTemplate(templateContent);
+    values = Map.of("title", page.get("jcr:title"), "lastModified", BenchmarkContent.DATE);
+  }
+
+  @Benchmark
+  public int writePage() throws IOException {
+    bos.reset();
+    xmlContentBuilder.writePage(page, bos);
+    return bos.size();
+  }
+
+  @Benchmark
+  public int writeTemplate() throws IOException {
+    bos.reset();
+    template.write(xmlContentBuilder, values, bos);
+    return bos.size();
+  }
+
+}
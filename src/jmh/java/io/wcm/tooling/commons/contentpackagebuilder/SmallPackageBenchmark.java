@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds a complete small content package with a single page per operation, written to a null sink.
+ * Shows the fixed per-package costs for metadata and setting up the writer resources.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SmallPackageBenchmark {
+
+  @Param({ "false", "true" })
+  private boolean sharedContext;
+
+  private Map<String, Object> page;
+  private WriterContext context;
+
+  @Setup
+  public void setUp() {
+    page = BenchmarkContent.page(5);
+    context = sharedContext ? new WriterContext() : null;
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (context != null) {
+      context.close();
+    }
+  }
+
+  @Benchmark
+  public void buildPackage() throws IOException {
+    ContentPackageBuilder builder = new ContentPackageBuilder()
+        .group("benchmark")
+        .name("benchmark")
+        .rootPath("/content/benchmark");
+    try (ContentPackage contentPackage = context != null
+        ? builder.build(OutputStream.nullOutputStream(), context)
+        : builder.build(OutputStream.nullOutputStream())) {
+      contentPackage.addPage("/content/benchmark/page", page);
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of single and multi-value properties.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueConverterBenchmark {
+
+  private final ValueConverter valueConverter = new ValueConverter();
+
+  private final String stringValue = "Sample text, with [brackets] and a \\ backslash";
+  private final String[] stringArray = { "app:topic/one", "app:topic/two", "app:region/emea" };
+  private final long[] longArray = { 800L, 600L, 400L };
+  private final BigDecimal decimalValue = new BigDecimal("1.25");
+
+  @Benchmark
+  public String string() {
+    return valueConverter.toString("prop", stringValue);
+  }
+
+  @Benchmark
+  public String stringArray() {
+    return valueConverter.toString("prop", stringArray);
+  }
+
+  @Benchmark
+  public String longValue() {
+    return valueConverter.toString("prop", 1234567890L);
+  }
+
+  @Benchmark
+  public String longArray() {
+    return valueConverter.toString("prop", longArray);
+  }
+
+  @Benchmark
+  public String decimal() {
+    return valueConverter.toString("prop", decimalValue);
+  }
+
+  @Benchmark
+  public String date() {
+    return valueConverter.toString("prop", BenchmarkContent.DATE);
+  }
+
+}
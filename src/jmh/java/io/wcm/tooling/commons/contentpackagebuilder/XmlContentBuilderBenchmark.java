@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+
+/**
+ * Building DOM documents for page and content XML files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class XmlContentBuilderBenchmark {
+
+  @Param({ "10", "100" })
+  private int components;
+
+  private XmlContentBuilder xmlContentBuilder;
+  private Map<String, Object> page;
+  private ContentElement pageElement;
+
+  @Setup
+  public void setUp() {
+    xmlContentBuilder = new XmlContentBuilder(XmlNamespaces.DEFAULT_NAMESPACES);
+    page = BenchmarkContent.page(components);
+    pageElement = BenchmarkContent.pageElement(components);
+  }
+
+  @Benchmark
+  public Document buildPage() {
+    return xmlContentBuilder.buildPage(page);
+  }
+
+  @Benchmark
+  public Document buildPageElement() {
+    return xmlContentBuilder.buildPage(pageElement);
+  }
+
+  @Benchmark
+  public Document buildContent() {
+    return xmlContentBuilder.buildContent(page);
+  }
+
+  @Benchmark
+  public Document buildContentElement() {
+    return xmlContentBuilder.buildContent(pageElement);
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Helper methods for reading binary data from NIO channels and buffers without copying it to Java arrays.
+ */
+final class ChannelUtil {
+
+  /**
+   * Files of this size or larger are memory-mapped for computing the CRC.
+   */
+  private static final long MAP_THRESHOLD = 64 * 1024;
+  private static final long MAP_CHUNK_SIZE = 256L * 1024 * 1024;
+  private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+  private ChannelUtil() {
+    // static methods only
+  }
+
+  /**
+   * Computes the CRC-32 of a file region, using memory-mapped reads for larger regions.
+   * The channel position is not changed.
+   * @param channel File channel
+   * @param position Start position
+   * @param size Number of bytes
+   * @return CRC-32
+   * @throws IOException I/O exception
+   */
+  static long crc(@NotNull FileChannel channel, long position, long size) throws IOException {
+    CRC32 crc = new CRC32();
+    if (size < MAP_THRESHOLD) {
+      ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      readFully(channel, buffer, position);
+      buffer.flip();
+      crc.update(buffer);
+    }
+    else {
+      for (long offset = 0; offset < size; offset += MAP_CHUNK_SIZE) {
+        long chunkSize = Math.min(MAP_CHUNK_SIZE, size - offset);
+        crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position + offset, chunkSize));
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Computes the CRC-32 of the remaining bytes of a buffer. The buffer position is not changed.
+   * @param buffer Buffer
+   * @return CRC-32
+   */
+  static long crc(@NotNull ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer.duplicate());
+    return crc.getValue();
+  }
+
+  /**
+   * Reads the first bytes of a file region. The channel position is not changed.
+   * @param channel File channel
+   * @param position Start position
+   * @param head Array to read the bytes into
+   * @return Number of bytes read
+   * @throws IOException I/O exception
+   */
+  static int readHead(@NotNull FileChannel channel, long position, byte[] head) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(head);
+    readFully(channel, buffer, position);
+    return buffer.position();
+  }
+
+  /**
+   * Reads the first remaining bytes of a buffer. The buffer position is not changed.
+   * @param buffer Buffer
+   * @param head Array to read the bytes into
+   * @return Number of bytes read
+   */
+  static int readHead(@NotNull ByteBuffer buffer, byte[] head) {
+    int length = Math.min(head.length, buffer.remaining());
+    buffer.duplicate().get(head, 0, length);
+    return length;
+  }
+
+  /**
+   * Transfers a file region to the target channel.
+   * @param channel File channel
+   * @param position Start position
+   * @param size Number of bytes
+   * @param target Target channel
+   * @throws IOException I/O exception
+   */
+  static void transferTo(@NotNull FileChannel channel, long position, long size, @NotNull WritableByteChannel target)
+      throws IOException {
+    long transferred = 0;
+    while (transferred < size) {
+      long count = channel.transferTo(position + transferred, size - transferred, target);
+      if (count <= 0) {
+        throw new IOException("Unexpected end of file channel after " + transferred + " of " + size + " bytes.");
+      }
+      transferred += count;
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer to the target channel. The buffer position is not changed.
+   * @param buffer Buffer
+   * @param target Target channel
+   * @throws IOException I/O exception
+   */
+  static void transferTo(@NotNull ByteBuffer buffer, @NotNull WritableByteChannel target) throws IOException {
+    ByteBuffer data = buffer.duplicate();
+    while (data.hasRemaining()) {
+      target.write(data);
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer to an output stream. The buffer position is not changed.
+   * @param buffer Buffer
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  static void copy(@NotNull ByteBuffer buffer, @NotNull OutputStream os) throws IOException {
+    if (buffer.hasArray()) {
+      os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      return;
+    }
+    ByteBuffer data = buffer.duplicate();
+    byte[] chunk = new byte[(int)Math.min(COPY_BUFFER_SIZE, data.remaining())];
+    while (data.hasRemaining()) {
+      int length = Math.min(chunk.length, data.remaining());
+      data.get(chunk, 0, length);
+      os.write(chunk, 0, length);
+    }
+  }
+
+  /**
+   * Wraps a channel to update a message digest with all bytes written to it.
+   * @param target Target channel, or null to discard the bytes
+   * @param digest Message digest
+   * @return Channel
+   */
+  static WritableByteChannel digesting(@Nullable WritableByteChannel target, @NotNull MessageDigest digest) {
+    return new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        if (target == null) {
+          int count = src.remaining();
+          digest.update(src);
+          return count;
+        }
+        ByteBuffer written = src.duplicate();
+        int count = target.write(src);
+        written.limit(written.position() + count);
+        digest.update(written);
+        return count;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return target == null || target.isOpen();
+      }
+
+      @Override
+      public void close() {
+        // the target channel is not closed
+      }
+    };
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    long offset = position;
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, offset);
+      if (count < 0) {
+        break;
+      }
+      offset += count;
+    }
+  }
+
+}
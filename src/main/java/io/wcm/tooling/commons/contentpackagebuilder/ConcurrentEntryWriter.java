@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Entry writer that can be used by multiple threads at the same time.
+ * <p>
+ * Each calling thread renders the entry data into its own buffer and compresses it with a {@link Deflater} from the writer context pool.
+ * Data of stored entries is spooled by the calling thread as well.
+ * Only appending the compressed entry to the ZIP archive is serialized. Entries larger than the buffer limit are
+ * deflated by the calling thread as well, into a spool that is kept in memory up to 1 MB of compressed data and in a
+ * temporary file beyond that. The archive lock is only held while the spooled data is appended.
+ * </p>
+ * <p>
+ * If an entry data cache is given, the compressed data of byte-identical entries up to
+ * {@link EntryDataCache#MAX_ENTRY_SIZE} bytes is reused from the cache.
+ * </p>
+ * The order of the entries in the archive is the order in which the threads finished compressing them.
+ */
+final class ConcurrentEntryWriter implements EntryWriter {
+
+  static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+  private final ZipWriter zip;
+  private final int maxBufferSize;
+  private final WriterContext context;
+  private final EntryDataCache cache;
+  private final Lock lock = new ReentrantLock();
+
+  /**
+   * @param zip ZIP writer
+   * @param maxBufferSize Max. number of uncompressed bytes buffered per entry
+   * @param context Writer context providing the deflaters
+   */
+  ConcurrentEntryWriter(@NotNull ZipWriter zip, int maxBufferSize, @NotNull WriterContext context) {
+    this(zip, maxBufferSize, context, null);
+  }
+
+  /**
+   * @param zip ZIP writer
+   * @param maxBufferSize Max. number of uncompressed bytes buffered per entry
+   * @param context Writer context providing the deflaters
+   * @param cache Cache for reusing the compressed data of identical entries, or null
+   */
+  ConcurrentEntryWriter(@NotNull ZipWriter zip, int maxBufferSize, @NotNull WriterContext context,
+      @Nullable EntryDataCache cache) {
+    if (maxBufferSize < 1) {
+      throw new IllegalArgumentException("Invalid max. buffer size: " + maxBufferSize);
+    }
+    this.zip = zip;
+    this.maxBufferSize = maxBufferSize;
+    this.context = context;
+    this.cache = cache;
+  }
+
+  @Override
+  public void writeDirectory(@NotNull String path) throws IOException {
+    lock.lock();
+    try {
+      zip.putDirectory(path);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void writeEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    Deflater deflater = context.borrowDeflater();
+    try {
+      EntryBuffer buffer = new EntryBuffer(path, deflater);
+      try {
+        content.writeTo(buffer);
+      }
+      catch (IOException | RuntimeException ex) {
+        buffer.discard(ex);
+        throw ex;
+      }
+      buffer.finish();
+    }
+    finally {
+      context.returnDeflater(deflater);
+    }
+  }
+
+  @Override
+  public void writeStoredEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    try (StoredEntrySpool spool = StoredEntrySpool.spool(content, StoredEntrySpool.DEFAULT_MEMORY_THRESHOLD)) {
+      lock.lock();
+      try {
+        zip.putStoredEntry(path, spool.getCrc(), spool.getSize(), spool::writeTo);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void transferStoredEntry(@NotNull String path, long crc, long size, @NotNull ChannelContent content) throws IOException {
+    lock.lock();
+    try {
+      zip.transferStoredEntry(path, crc, size, content);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      zip.close();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+
+  /**
+   * Buffers the uncompressed entry data of one thread. Switches to deflating into a spool
+   * if the data exceeds the buffer limit.
+   */
+  private final class EntryBuffer extends OutputStream {
+
+    private final String path;
+    private final Deflater deflater;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    private DeflatedEntrySpool spool;
+
+    EntryBuffer(String path, Deflater deflater) {
+      this.path = path;
+      this.deflater = deflater;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (spool == null && (long)count + len > maxBufferSize) {
+        switchToSpool();
+      }
+      if (spool != null) {
+        spool.write(b, off, len);
+        return;
+      }
+      if (count + len > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + len), maxBufferSize));
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    private void switchToSpool() throws IOException {
+      spool = new DeflatedEntrySpool(deflater, StoredEntrySpool.DEFAULT_MEMORY_THRESHOLD);
+      byte[] data = buffer;
+      buffer = null;
+      spool.write(data, 0, count);
+    }
+
+    void finish() throws IOException {
+      if (spool != null) {
+        try (DeflatedEntrySpool data = spool) {
+          data.finish();
+          lock.lock();
+          try {
+            zip.putCompressedEntry(path, ZipEntry.DEFLATED, data.getCrc(), data.getSize(), data.getCompressedSize(),
+                data::writeTo);
+          }
+          finally {
+            lock.unlock();
+          }
+        }
+        return;
+      }
+      ZipEntryData data = compress();
+      buffer = null;
+      lock.lock();
+      try {
+        zip.putEntry(path, data);
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Drops the buffered data and the spool, if any, after writing the content failed.
+     * Exceptions from deleting the spool are added to the original exception.
+     * @param cause Exception thrown while writing the content
+     */
+    void discard(Exception cause) {
+      buffer = null;
+      if (spool != null) {
+        try {
+          spool.close();
+        }
+        catch (IOException | RuntimeException ex) {
+          cause.addSuppressed(ex);
+        }
+      }
+    }
+
+    private ZipEntryData compress() throws IOException {
+      if (cache == null || !EntryDataCache.isCacheable(count)) {
+        return ZipEntryData.deflate(buffer, count, deflater);
+      }
+      EntryDataCache.Key key = EntryDataCache.key(buffer, count);
+      Future<ZipEntryData> cached = cache.get(key);
+      if (cached != null) {
+        return ParallelEntryWriter.await(cached);
+      }
+      ZipEntryData data = ZipEntryData.deflate(buffer, count, deflater);
+      cache.put(key, CompletableFuture.completedFuture(data));
+      cache.persist(key, data);
+      return data;
+    }
+
+  }
+
+}
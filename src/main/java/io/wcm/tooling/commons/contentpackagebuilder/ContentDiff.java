@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_MIXINTYPES;
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+
+/**
+ * Differences between two versions of a JCR content structure, on node and property level.
+ * <p>
+ * The changed content contains new nodes completely, and for existing nodes only new and changed properties.
+ * Unchanged nodes on the path to changed nodes are kept with their primary type and mixin types only.
+ * Removed properties and changed primary types cannot be expressed this way: such nodes are contained completely
+ * and are listed as replaced nodes. Removed nodes are listed as well.
+ * </p>
+ */
+final class ContentDiff {
+
+  private final List<String> removedPaths = new ArrayList<>();
+  private final List<String> replacedPaths = new ArrayList<>();
+  private boolean propertiesUpdated;
+  private ContentElement content;
+
+  private ContentDiff() {
+    // use static methods
+  }
+
+  /**
+   * @param previous Previous content
+   * @param current Current content
+   * @return Differences
+   */
+  static ContentDiff diff(@NotNull ContentElement previous, @NotNull ContentElement current) {
+    ContentDiff diff = new ContentDiff();
+    diff.content = diff.diffNode(previous, current, "");
+    return diff;
+  }
+
+  /**
+   * @param previous Previous content. Nested maps are child nodes.
+   * @param current Current content. Nested maps are child nodes.
+   * @return Differences
+   */
+  static ContentDiff diff(@NotNull Map<String, Object> previous, @NotNull Map<String, Object> current) {
+    return diff(toElement(null, previous), toElement(null, current));
+  }
+
+  /**
+   * @return Changed content, or null if there are no changes
+   */
+  @Nullable
+  ContentElement getContent() {
+    return content;
+  }
+
+  /**
+   * @return Paths of removed nodes, relative to the content root
+   */
+  List<String> getRemovedPaths() {
+    return Collections.unmodifiableList(removedPaths);
+  }
+
+  /**
+   * @return Paths of nodes with removed properties or a changed primary type that are contained completely,
+   *         relative to the content root ("" for the root node)
+   */
+  List<String> getReplacedPaths() {
+    return Collections.unmodifiableList(replacedPaths);
+  }
+
+  /**
+   * @return true if values of existing properties changed. Otherwise only nodes and properties were added.
+   */
+  boolean isPropertiesUpdated() {
+    return propertiesUpdated;
+  }
+
+  private ContentElement diffNode(ContentElement previous, ContentElement current, String path) {
+    Map<String, Object> previousProperties = previous.getProperties();
+    Map<String, Object> currentProperties = current.getProperties();
+    for (String name : previousProperties.keySet()) {
+      if (!currentProperties.containsKey(name)
+          || (JCR_PRIMARYTYPE.equals(name) && !Objects.equals(previousProperties.get(name), currentProperties.get(name)))) {
+        replacedPaths.add(path);
+        return current;
+      }
+    }
+
+    Map<String, Object> changedProperties = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : currentProperties.entrySet()) {
+      String name = entry.getKey();
+      if (!previousProperties.containsKey(name)) {
+        changedProperties.put(name, entry.getValue());
+      }
+      else if (!Objects.deepEquals(previousProperties.get(name), entry.getValue())) {
+        changedProperties.put(name, entry.getValue());
+        propertiesUpdated = true;
+      }
+    }
+
+    Map<String, ContentElement> changedChildren = new LinkedHashMap<>();
+    for (Map.Entry<String, ContentElement> entry : current.getChildren().entrySet()) {
+      ContentElement previousChild = previous.getChildren().get(entry.getKey());
+      if (previousChild == null) {
+        changedChildren.put(entry.getKey(), entry.getValue());
+      }
+      else {
+        ContentElement changedChild = diffNode(previousChild, entry.getValue(), path + "/" + entry.getKey());
+        if (changedChild != null) {
+          changedChildren.put(entry.getKey(), changedChild);
+        }
+      }
+    }
+    for (String name : previous.getChildren().keySet()) {
+      if (!current.getChildren().containsKey(name)) {
+        removedPaths.add(path + "/" + name);
+      }
+    }
+
+    if (changedProperties.isEmpty() && changedChildren.isEmpty()) {
+      return null;
+    }
+    // node types are always kept, otherwise the XML would declare the default type nt:unstructured
+    Map<String, Object> properties = new LinkedHashMap<>();
+    copyProperty(currentProperties, properties, JCR_PRIMARYTYPE);
+    copyProperty(currentProperties, properties, JCR_MIXINTYPES);
+    properties.putAll(changedProperties);
+    ContentElement result = new ContentElementImpl(current.getName(), properties);
+    result.getChildren().putAll(changedChildren);
+    return result;
+  }
+
+  private static void copyProperty(Map<String, Object> source, Map<String, Object> target, String name) {
+    Object value = source.get(name);
+    if (value != null) {
+      target.put(name, value);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ContentElement toElement(String name, Map<String, Object> content) {
+    ContentElement element = new ContentElementImpl(name, new LinkedHashMap<>());
+    for (Map.Entry<String, Object> entry : content.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        element.getChildren().put(entry.getKey(), toElement(entry.getKey(), (Map<String, Object>)entry.getValue()));
+      }
+      else {
+        element.getProperties().put(entry.getKey(), entry.getValue());
+      }
+    }
+    return element;
+  }
+
+}
@@ -19,80 +19,642 @@
  */
 package io.wcm.tooling.commons.contentpackagebuilder;
 
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.apache.commons.lang3.builder.ToStringBuilder;
-import org.apache.commons.lang3.builder.ToStringStyle;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree;
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree.NodeElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.LazyContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
 
 /**
  * Splits an arbitrary content fragment into separate chunks for each node type that requires it's own folder.
+ * <p>
+ * The content is not copied: each chunk references the original map or content element of its root node,
+ * and the child nodes that belong to other chunks are skipped when the chunk is rendered
+ * (see {@link ContentPart#getPlacement(Object, Map)}). The chunks are produced lazily in document order.
+ * The child nodes of a chunk that belong to other chunks are discovered while the chunk is rendered, or by
+ * scanning it if the next chunk is requested before the current one was rendered.
+ * </p>
+ * <p>
+ * Optionally the size of each chunk is limited by a max. number of nodes and a max. estimated XML size.
+ * If a chunk exceeds a limit, its largest child node subtrees are moved into chunks of their own until it fits.
+ * This requires a pass over the whole content before the first chunk is returned. In the parent chunk these
+ * nodes are rendered as empty element without any attributes - FileVault treats such elements as ordering hints
+ * for nodes defined in a sub-folder, so the sibling order is preserved. The subtrees of
+ * {@link SharedContentElement} instances are never split, as their XML is cached as a whole.
+ * The children of {@link LazyContentElement} instances are produced again for each pass, so nodes below them are
+ * identified by their path.
+ * </p>
+ * Content elements backed by a {@link CompactContentTree} are walked on the tree arrays directly,
+ * views are only created for the chunk roots.
  */
 final class ContentFolderSplitter {
 
+  // rough estimation of the XML markup per node and property
+  private static final int NODE_MARKUP_BYTES = 16;
+  private static final int PROPERTY_MARKUP_BYTES = 4;
+  private static final int ARRAY_ITEM_MARKUP_BYTES = 1;
+  private static final int OTHER_VALUE_BYTES = 8;
+
   private ContentFolderSplitter() {
     // static methods only
   }
 
-  public static List<ContentPart> split(Map<String, Object> content) {
-    List<ContentPart> result = new ArrayList<>();
-    collectRecursive("", content, result);
-    return result;
+  /**
+   * Splits the content into chunks for each node type that requires it's own folder.
+   * @param content Content
+   * @return Chunks in document order, the chunk for the given content first
+   */
+  public static Iterator<ContentPart> split(@NotNull Map<String, Object> content) {
+    return split(content, 0, 0);
   }
 
-  private static void collectRecursive(String path, Map<String, Object> content, List<ContentPart> result) {
-    Map<String, Object> resultContent = new HashMap<>();
-    result.add(new ContentPart(path, resultContent));
-    for (Map.Entry<String, Object> entry : content.entrySet()) {
-      if (entry.getValue() instanceof Map) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> childMap = (Map<String, Object>)entry.getValue();
-        if (NodeTypes.hasFolderNodeType(childMap)) {
-          collectRecursive(path + "/" + entry.getKey(), childMap, result);
-          continue;
-        }
-      }
-      resultContent.put(entry.getKey(), entry.getValue());
+  /**
+   * Splits the content into chunks for each node type that requires it's own folder,
+   * and additionally splits chunks that exceed the given limits.
+   * @param content Content
+   * @param maxNodes Max. number of nodes per chunk, 0 for no limit
+   * @param maxBytes Max. estimated XML size per chunk in bytes, 0 for no limit
+   * @return Chunks in document order, the chunk for the given content first
+   */
+  public static Iterator<ContentPart> split(@NotNull Map<String, Object> content, int maxNodes, long maxBytes) {
+    return new PartIterator(new ContentPart("", content, null, getSplitNodes(content, maxNodes, maxBytes)));
+  }
+
+  /**
+   * Splits the content into chunks for each node type that requires it's own folder,
+   * and additionally splits chunks that exceed the given limits.
+   * @param content Content
+   * @param maxNodes Max. number of nodes per chunk, 0 for no limit
+   * @param maxBytes Max. estimated XML size per chunk in bytes, 0 for no limit
+   * @return Chunks in document order, the chunk for the given content first
+   */
+  public static Iterator<ContentPart> split(@NotNull ContentElement content, int maxNodes, long maxBytes) {
+    return new PartIterator(new ContentPart("", null, content, getSplitNodes(content, maxNodes, maxBytes)));
+  }
+
+  private static SplitNodes getSplitNodes(Object content, int maxNodes, long maxBytes) {
+    if (maxNodes <= 0 && maxBytes <= 0) {
+      return null;
     }
+    SizeLimiter limiter = new SizeLimiter(maxNodes, maxBytes);
+    limiter.collect(content, null, "");
+    return limiter.splitNodes;
+  }
+
+  /**
+   * Where a child node is rendered.
+   */
+  enum Placement {
+    /**
+     * Child node is part of the current chunk.
+     */
+    INLINE,
+    /**
+     * Child node has a folder node type and is the root of a chunk of its own.
+     */
+    FOLDER,
+    /**
+     * Child node is moved to a chunk of its own because of the size limits, and rendered as empty element
+     * in the current chunk.
+     */
+    SPLIT
   }
 
-  static class ContentPart {
+  /**
+   * Chunk of content that is written to a .content.xml file of its own.
+   * <p>
+   * While the chunk is rendered, the renderer reports the path of the current node via {@link #enter(String)}
+   * and {@link #exit(int)} and each child that is not inlined via {@link #detach(String, Object)}.
+   * </p>
+   */
+  static final class ContentPart {
 
     private final String path;
     private final Map<String, Object> content;
+    private final ContentElement element;
+    private final SplitNodes splitNodes;
+    private final StringBuilder currentPath = new StringBuilder();
+    private final List<ContentPart> detachedParts = new ArrayList<>();
+    private boolean scanned;
 
-    ContentPart(String path, Map<String, Object> content) {
+    ContentPart(String path, Map<String, Object> content, ContentElement element, SplitNodes splitNodes) {
       this.path = path;
       this.content = content;
+      this.element = element;
+      this.splitNodes = splitNodes;
     }
 
+    /**
+     * @return Path of the chunk root relative to the content root
+     */
     public String getPath() {
       return this.path;
     }
 
-    public Map<String, Object> getContent() {
+    /**
+     * @return Content map of the chunk root, or null if the chunk is backed by a content element
+     */
+    public @Nullable Map<String, Object> getContent() {
       return this.content;
     }
 
+    /**
+     * @return Content element of the chunk root, or null if the chunk is backed by a map
+     */
+    public @Nullable ContentElement getElement() {
+      return this.element;
+    }
+
+    /**
+     * @param name Child node name
+     * @param child Child map or content element
+     * @param childProperties Properties of the child
+     * @return Where the child is rendered
+     */
+    public Placement getPlacement(String name, Object child, Map<String, Object> childProperties) {
+      if (NodeTypes.hasFolderNodeType(childProperties)) {
+        return Placement.FOLDER;
+      }
+      if (splitNodes != null && (splitNodes.contains(child)
+          || (splitNodes.hasPaths() && splitNodes.containsPath(path + currentPath + "/" + name)))) {
+        return Placement.SPLIT;
+      }
+      return Placement.INLINE;
+    }
+
+    /**
+     * @param tree Content tree
+     * @param child Child node
+     * @return Where the child is rendered
+     */
+    public Placement getPlacement(CompactContentTree tree, int child) {
+      if (NodeTypes.hasFolderNodeType(tree, child)) {
+        return Placement.FOLDER;
+      }
+      if (splitNodes != null && splitNodes.contains(tree, child)) {
+        return Placement.SPLIT;
+      }
+      return Placement.INLINE;
+    }
+
+    /**
+     * Appends a child node name to the path of the node that is currently rendered.
+     * @param name Child node name
+     * @return Previous path length, to be passed to {@link #exit(int)}
+     */
+    public int enter(String name) {
+      int length = currentPath.length();
+      currentPath.append('/').append(name);
+      return length;
+    }
+
+    /**
+     * Restores the path of the parent node after a child node was rendered.
+     * @param length Path length returned by {@link #enter(String)}
+     */
+    public void exit(int length) {
+      currentPath.setLength(length);
+    }
+
+    /**
+     * Records a child of the node that is currently rendered as root of a new chunk.
+     * @param name Child node name
+     * @param child Child map or content element
+     */
+    @SuppressWarnings("unchecked")
+    public void detach(String name, Object child) {
+      if (scanned) {
+        return;
+      }
+      String childPath = path + currentPath + "/" + name;
+      if (child instanceof ContentElement) {
+        detachedParts.add(new ContentPart(childPath, null, (ContentElement)child, splitNodes));
+      }
+      else {
+        detachedParts.add(new ContentPart(childPath, (Map<String, Object>)child, null, splitNodes));
+      }
+    }
+
+    /**
+     * Marks the chunk as rendered completely, all detached children are known.
+     */
+    public void rendered() {
+      scanned = true;
+      currentPath.setLength(0);
+    }
+
+    /**
+     * Discovers the detached children without rendering the chunk.
+     */
+    void scan() {
+      if (content != null) {
+        scan(content);
+      }
+      else {
+        scan(element);
+      }
+      rendered();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void scan(Map<String, Object> node) {
+      for (Map.Entry<String, Object> entry : node.entrySet()) {
+        if (entry.getValue() instanceof Map) {
+          Map<String, Object> childMap = (Map<String, Object>)entry.getValue();
+          if (getPlacement(entry.getKey(), childMap, childMap) != Placement.INLINE) {
+            detach(entry.getKey(), childMap);
+          }
+          else {
+            int length = enter(entry.getKey());
+            scan(childMap);
+            exit(length);
+          }
+        }
+      }
+    }
+
+    private void scan(ContentElement node) {
+      if (node instanceof NodeElement) {
+        NodeElement nodeElement = (NodeElement)node;
+        scan(nodeElement.getTree(), nodeElement.getNode());
+        return;
+      }
+      for (Map.Entry<String, ContentElement> entry : node.getChildren().entrySet()) {
+        ContentElement child = entry.getValue();
+        if (getPlacement(entry.getKey(), child, child.getProperties()) != Placement.INLINE) {
+          detach(entry.getKey(), child);
+        }
+        else {
+          int length = enter(entry.getKey());
+          scan(child);
+          exit(length);
+        }
+      }
+    }
+
+    private void scan(CompactContentTree tree, int node) {
+      for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+        String name = tree.getName(child);
+        if (getPlacement(tree, child) != Placement.INLINE) {
+          detach(name, tree.getElement(child));
+        }
+        else {
+          int length = enter(name);
+          scan(tree, child);
+          exit(length);
+        }
+      }
+    }
+
     @Override
-    public int hashCode() {
-      return HashCodeBuilder.reflectionHashCode(this);
+    public String toString() {
+      return "ContentPart[" + path + "]";
+    }
+
+  }
+
+  /**
+   * Returns the chunks in document order, discovering the detached children of each chunk when advancing to the next.
+   */
+  private static final class PartIterator implements Iterator<ContentPart> {
+
+    private final Deque<ContentPart> pending = new ArrayDeque<>();
+    private ContentPart current;
+
+    PartIterator(ContentPart root) {
+      pending.add(root);
     }
 
     @Override
-    public boolean equals(Object obj) {
-      return EqualsBuilder.reflectionEquals(this, obj);
+    public boolean hasNext() {
+      enqueueDetachedParts();
+      return !pending.isEmpty();
     }
 
     @Override
-    public String toString() {
-      return ToStringBuilder.reflectionToString(this, ToStringStyle.SIMPLE_STYLE);
+    public ContentPart next() {
+      enqueueDetachedParts();
+      if (pending.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      current = pending.removeFirst();
+      return current;
     }
 
+    private void enqueueDetachedParts() {
+      if (current == null) {
+        return;
+      }
+      if (!current.scanned) {
+        current.scan();
+      }
+      ListIterator<ContentPart> parts = current.detachedParts.listIterator(current.detachedParts.size());
+      while (parts.hasPrevious()) {
+        pending.addFirst(parts.previous());
+      }
+      current.detachedParts.clear();
+      current = null;
+    }
+
+  }
+
+  /**
+   * Nodes that are moved to chunks of their own because of the size limits. Maps and content elements are
+   * tracked by identity, nodes of a {@link CompactContentTree} by their index, as their views are not reused.
+   * Nodes below a {@link LazyContentElement} are tracked by their path relative to the content root, as the
+   * lazy element creates new child elements each time its children are iterated.
+   */
+  static final class SplitNodes {
+
+    private final Set<Object> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<CompactContentTree, BitSet> treeNodes = new IdentityHashMap<>();
+    private final Set<String> paths = new HashSet<>();
+
+    void add(Object node) {
+      if (node instanceof NodeElement) {
+        NodeElement nodeElement = (NodeElement)node;
+        add(nodeElement.getTree(), nodeElement.getNode());
+      }
+      else {
+        nodes.add(node);
+      }
+    }
+
+    void add(CompactContentTree tree, int node) {
+      treeNodes.computeIfAbsent(tree, key -> new BitSet()).set(node);
+    }
+
+    boolean contains(Object node) {
+      if (node instanceof NodeElement) {
+        NodeElement nodeElement = (NodeElement)node;
+        return contains(nodeElement.getTree(), nodeElement.getNode());
+      }
+      return nodes.contains(node);
+    }
+
+    boolean contains(CompactContentTree tree, int node) {
+      BitSet bits = treeNodes.get(tree);
+      return bits != null && bits.get(node);
+    }
+
+    void addPath(String path) {
+      paths.add(path);
+    }
+
+    boolean hasPaths() {
+      return !paths.isEmpty();
+    }
+
+    boolean containsPath(String path) {
+      return paths.contains(path);
+    }
+
+  }
+
+  /**
+   * Computes the size of each subtree bottom-up and decides which child nodes have to be moved to chunks
+   * of their own to keep all chunks within the limits.
+   */
+  private static final class SizeLimiter {
+
+    private final int maxNodes;
+    private final long maxBytes;
+    private final SplitNodes splitNodes = new SplitNodes();
+    private final Map<CompactContentTree, long[][]> treeSizes = new IdentityHashMap<>();
+    // path of the current node, relative to the content root
+    private final StringBuilder path = new StringBuilder();
+    // number of shared content elements the current node is nested in, their subtrees are never split
+    private int sharedDepth;
+    // number of lazy content elements the current node is nested in, their descendants are tracked by path
+    private int lazyDepth;
+
+    SizeLimiter(int maxNodes, long maxBytes) {
+      this.maxNodes = maxNodes;
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Collects the size of the part of the subtree that remains in the chunk of its parent.
+     * @param node Map or content element
+     * @param children Receives the child candidates, or null for the root
+     * @param name Node name
+     */
+    @SuppressWarnings("unchecked")
+    void collect(Object node, List<Candidate> children, String name) {
+      long subtreeNodes = 1;
+      long nodeBytes = maxBytes > 0 ? estimateNodeBytes(name) : 0;
+      long subtreeBytes = nodeBytes;
+      if (node instanceof NodeElement) {
+        CompactContentTree tree = ((NodeElement)node).getTree();
+        int treeNode = ((NodeElement)node).getNode();
+        long[][] sizes = treeSizes.computeIfAbsent(tree, key -> new long[2][key.getNodeCount()]);
+        collect(tree, treeNode, name, sizes);
+        if (children != null) {
+          children.add(new Candidate(node, getLazyPath(), sizes[0][treeNode], sizes[1][treeNode], nodeBytes));
+        }
+        return;
+      }
+      List<Candidate> candidates = new ArrayList<>();
+      boolean shared = node instanceof SharedContentElement;
+      if (shared) {
+        sharedDepth++;
+      }
+      if (node instanceof ContentElement) {
+        ContentElement element = (ContentElement)node;
+        if (maxBytes > 0) {
+          for (Map.Entry<String, Object> entry : element.getProperties().entrySet()) {
+            subtreeBytes += estimatePropertyBytes(entry.getKey(), entry.getValue());
+          }
+        }
+        boolean lazy = element instanceof LazyContentElement;
+        if (lazy) {
+          lazyDepth++;
+        }
+        for (Map.Entry<String, ContentElement> entry : element.getChildren().entrySet()) {
+          ContentElement child = entry.getValue();
+          int pathLength = path.length();
+          path.append('/').append(entry.getKey());
+          if (!NodeTypes.hasFolderNodeType(child.getProperties())) {
+            collect(child, candidates, entry.getKey());
+          }
+          else {
+            collect(child, null, entry.getKey());
+          }
+          path.setLength(pathLength);
+        }
+        if (lazy) {
+          lazyDepth--;
+        }
+      }
+      else {
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>)node).entrySet()) {
+          Object value = entry.getValue();
+          if (value instanceof Map) {
+            collect(value, NodeTypes.hasFolderNodeType((Map<String, Object>)value) ? null : candidates, entry.getKey());
+          }
+          else if (maxBytes > 0) {
+            subtreeBytes += estimatePropertyBytes(entry.getKey(), value);
+          }
+        }
+      }
+      for (Candidate candidate : candidates) {
+        subtreeNodes += candidate.nodes;
+        subtreeBytes += candidate.bytes;
+      }
+      if (shared) {
+        sharedDepth--;
+      }
+      if (sharedDepth == 0 && !shared && isExceeded(subtreeNodes, subtreeBytes)) {
+        // move largest children first; the placeholder remains in the parent,
+        // so moving a single node without properties does not help
+        Comparator<Candidate> bySize = maxNodes > 0 && subtreeNodes > maxNodes
+            ? Comparator.comparingLong(candidate -> candidate.nodes)
+            : Comparator.comparingLong(candidate -> candidate.bytes);
+        candidates.sort(bySize.reversed());
+        for (Candidate candidate : candidates) {
+          if (!isExceeded(subtreeNodes, subtreeBytes)) {
+            break;
+          }
+          if (candidate.nodes > 1 || candidate.bytes > candidate.nodeBytes) {
+            if (candidate.path != null) {
+              splitNodes.addPath(candidate.path);
+            }
+            else {
+              splitNodes.add(candidate.node);
+            }
+            subtreeNodes -= candidate.nodes - 1;
+            subtreeBytes -= candidate.bytes - candidate.nodeBytes;
+          }
+        }
+      }
+      if (children != null) {
+        children.add(new Candidate(node, getLazyPath(), subtreeNodes, subtreeBytes, nodeBytes));
+      }
+    }
+
+    /**
+     * @return Path of the current node if it is below a lazy content element, otherwise null
+     */
+    private String getLazyPath() {
+      return lazyDepth > 0 ? path.toString() : null;
+    }
+
+    /**
+     * Collects the size of a {@link CompactContentTree} subtree without creating objects per node.
+     * @param tree Content tree
+     * @param node Node
+     * @param name Node name
+     * @param sizes Receives the remaining number of nodes (index 0) and bytes (index 1) per node
+     */
+    private void collect(CompactContentTree tree, int node, String name, long[][] sizes) {
+      long subtreeNodes = 1;
+      long subtreeBytes = maxBytes > 0 ? estimateNodeBytes(name) : 0;
+      if (maxBytes > 0) {
+        for (int property = tree.getFirstProperty(node); property != CompactContentTree.NONE;
+            property = tree.getNextProperty(property)) {
+          subtreeBytes += estimatePropertyBytes(tree.getPropertyName(property), tree.getPropertyValue(property));
+        }
+      }
+      for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+        collect(tree, child, tree.getName(child), sizes);
+        if (!NodeTypes.hasFolderNodeType(tree, child)) {
+          subtreeNodes += sizes[0][child];
+          subtreeBytes += sizes[1][child];
+        }
+      }
+      if (isExceeded(subtreeNodes, subtreeBytes)) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+          if (!NodeTypes.hasFolderNodeType(tree, child)) {
+            candidates.add(child);
+          }
+        }
+        int sizeIndex = maxNodes > 0 && subtreeNodes > maxNodes ? 0 : 1;
+        candidates.sort(Comparator.comparingLong((Integer child) -> sizes[sizeIndex][child]).reversed());
+        for (int child : candidates) {
+          if (!isExceeded(subtreeNodes, subtreeBytes)) {
+            break;
+          }
+          long childNodeBytes = maxBytes > 0 ? estimateNodeBytes(tree.getName(child)) : 0;
+          if (sizes[0][child] > 1 || sizes[1][child] > childNodeBytes) {
+            splitNodes.add(tree, child);
+            subtreeNodes -= sizes[0][child] - 1;
+            subtreeBytes -= sizes[1][child] - childNodeBytes;
+          }
+        }
+      }
+      sizes[0][node] = subtreeNodes;
+      sizes[1][node] = subtreeBytes;
+    }
+
+    private boolean isExceeded(long subtreeNodes, long subtreeBytes) {
+      return (maxNodes > 0 && subtreeNodes > maxNodes)
+          || (maxBytes > 0 && subtreeBytes > maxBytes);
+    }
+
+  }
+
+  private static final class Candidate {
+
+    private final Object node;
+    private final String path;
+    private final long nodes;
+    private final long bytes;
+    private final long nodeBytes;
+
+    Candidate(Object node, String path, long nodes, long bytes, long nodeBytes) {
+      this.node = node;
+      this.path = path;
+      this.nodes = nodes;
+      this.bytes = bytes;
+      this.nodeBytes = nodeBytes;
+    }
+
+  }
+
+  private static long estimateNodeBytes(String name) {
+    return 2L * name.length() + NODE_MARKUP_BYTES;
+  }
+
+  private static long estimatePropertyBytes(String name, Object value) {
+    if (value == null) {
+      return 0;
+    }
+    long bytes = (long)name.length() + PROPERTY_MARKUP_BYTES;
+    if (value instanceof String) {
+      bytes += ((String)value).length();
+    }
+    else if (value instanceof Object[]) {
+      for (Object item : (Object[])value) {
+        bytes += (item instanceof String ? ((String)item).length() : OTHER_VALUE_BYTES) + ARRAY_ITEM_MARKUP_BYTES;
+      }
+    }
+    else if (value.getClass().isArray()) {
+      bytes += (long)Array.getLength(value) * (OTHER_VALUE_BYTES + ARRAY_ITEM_MARKUP_BYTES);
+    }
+    else {
+      bytes += OTHER_VALUE_BYTES;
+    }
+    return bytes;
   }
 
 }
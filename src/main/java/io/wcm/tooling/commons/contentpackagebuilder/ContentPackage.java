@@ -19,7 +19,6 @@
  */
 package io.wcm.tooling.commons.contentpackagebuilder;
 
-import static io.wcm.tooling.commons.contentpackagebuilder.NameUtil.ensureValidPath;
 import static org.apache.jackrabbit.vault.util.Constants.CONFIG_XML;
 import static org.apache.jackrabbit.vault.util.Constants.DOT_CONTENT_XML;
 import static org.apache.jackrabbit.vault.util.Constants.FILTER_XML;
@@ -29,96 +28,163 @@ import static org.apache.jackrabbit.vault.util.Constants.PROPERTIES_XML;
 import static org.apache.jackrabbit.vault.util.Constants.ROOT_DIR;
 import static org.apache.jackrabbit.vault.util.Constants.SETTINGS_XML;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Properties;
-import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
-import javax.xml.XMLConstants;
-import javax.xml.transform.OutputKeys;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.vault.packaging.PackageProperties;
-import org.apache.jackrabbit.vault.util.PlatformNameFormat;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.w3c.dom.Document;
 
 import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.ContentPart;
+import io.wcm.tooling.commons.contentpackagebuilder.EntryWriter.ChannelContent;
+import io.wcm.tooling.commons.contentpackagebuilder.EntryWriter.EntryContent;
 import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
 
 /**
  * Represents an AEM content package.
  * Content like structured JCR data and binary files can be added.
- * This class is not thread-safe.
+ * This class is not thread-safe, unless it was built with {@link ContentPackageBuilder#concurrent(boolean)}.
  */
 public final class ContentPackage implements Closeable {
 
   private final PackageMetadata metadata;
-  private final ZipOutputStream zip;
-  private final Transformer transformer;
-  private final XmlContentBuilder xmlContentBuilder;
-  private final Set<String> folderPaths = new HashSet<>();
+  private final ContentPackageOptions options;
+  private final WriterContext context;
+  private final boolean ownContext;
+  private final EntryWriter entryWriter;
+  private final EntryDataCache entryDataCache;
+  private final PackageManifest manifest;
+  private final PackageManifest previousManifest;
+  private final Queue<XmlRenderer> xmlRenderers = new ConcurrentLinkedQueue<>();
+  private final EntryRegistry entryRegistry = new EntryRegistry();
+  private final List<PackageFilter> contentFilters = Collections.synchronizedList(new ArrayList<>());
+  private final boolean deferFilter;
+  private int metadataFileCount;
 
   private static final String CONTENT_TYPE_CHARSET_EXTENSION = ";charset=";
   private static final String DOT_DIR_FOLDER = ".dir";
 
   /**
+   * @param metadata Package metadata
+   * @param options Options for writing the package
    * @param os Output stream
+   * @param context Shared writer context. If null, the package uses its own context.
    */
-  @SuppressWarnings("java:S1141") // nested try-catch
-  ContentPackage(PackageMetadata metadata, OutputStream os) throws IOException {
-    this.metadata = metadata;
-    this.zip = new ZipOutputStream(os);
+  ContentPackage(PackageMetadata metadata, ContentPackageOptions options, OutputStream os,
+      @Nullable WriterContext context) throws IOException {
+    this(metadata, options, os, context, false);
+  }
 
-    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-    transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
-    transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+  /**
+   * @param metadata Package metadata
+   * @param options Options for writing the package
+   * @param os Output stream
+   * @param context Shared writer context. If null, the package uses its own context.
+   * @param deferFilter Write the filter of the package metadata on close, allowing to change it until then
+   */
+  ContentPackage(PackageMetadata metadata, ContentPackageOptions options, OutputStream os,
+      @Nullable WriterContext context, boolean deferFilter) throws IOException {
+    this.deferFilter = deferFilter;
+    this.metadata = metadata;
+    this.options = options;
+    this.ownContext = context == null;
+    this.context = context != null ? context : new WriterContext();
+    Date created = metadata.getCreated();
+    ZipWriter zip = new ZipWriter(os, created != null ? created.getTime() : System.currentTimeMillis());
+    EntryWriter writer = null;
     try {
-      transformerFactory.setAttribute("indent-number", 2);
+      this.entryDataCache = createEntryDataCache(options);
+      this.previousManifest = options.getPreviousManifest() != null ? PackageManifest.read(options.getPreviousManifest()) : null;
+      this.manifest = options.getManifestFile() != null || previousManifest != null ? new PackageManifest() : null;
+      if (options.isConcurrent()) {
+        writer = new ConcurrentEntryWriter(zip, ConcurrentEntryWriter.DEFAULT_MAX_BUFFER_SIZE, this.context,
+            entryDataCache);
+      }
+      else if (options.isParallelCompression()) {
+        writer = new ParallelEntryWriter(zip, options.getParallelCompressionThreads(),
+            options.getParallelCompressionMaxInFlightBytes(), this.context, entryDataCache);
+      }
+      else {
+        writer = new SerialEntryWriter(zip, this.context, entryDataCache);
+      }
+      this.entryWriter = writer;
+
+      buildPackageMetadata();
     }
-    catch (IllegalArgumentException ex) {
-      // Implementation does not support configuration property. Ignore.
+    catch (IOException | RuntimeException ex) {
+      closeAfterFailure(writer != null ? writer : zip, ex);
+      throw ex;
     }
+  }
+
+  /**
+   * Releases the resources acquired by the constructor if it fails: the entry writer with its threads and
+   * deflaters, or the ZIP writer if the entry writer was not created yet, and an owned writer context.
+   * Exceptions are added to the original exception.
+   * @param writer Entry writer or ZIP writer
+   * @param cause Exception thrown by the constructor
+   */
+  private void closeAfterFailure(Closeable writer, Exception cause) {
     try {
-      this.transformer = transformerFactory.newTransformer();
-      try {
-        this.transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      }
-      catch (IllegalArgumentException ex) {
-        // Implementation does not support output property. Ignore.
-      }
+      writer.close();
+    }
+    catch (IOException | RuntimeException ex) {
+      cause.addSuppressed(ex);
+    }
+    if (ownContext) {
       try {
-        this.transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        context.close();
       }
-      catch (IllegalArgumentException ex) {
-        // Implementation does not support output property. Ignore.
+      catch (RuntimeException ex) {
+        cause.addSuppressed(ex);
       }
     }
-    catch (TransformerException ex) {
-      throw new IllegalStateException("Failed to set up XML transformer: " + ex.getMessage(), ex);
-    }
-
-    this.xmlContentBuilder = new XmlContentBuilder(metadata.getXmlNamespaces());
+  }
 
-    buildPackageMetadata();
+  private static EntryDataCache createEntryDataCache(ContentPackageOptions options) throws IOException {
+    long memoryMaxBytes = options.isDeduplicateEntries() ? EntryDataCache.DEFAULT_MAX_BYTES : 0;
+    if (options.getEntryCacheDirectory() != null) {
+      return new EntryDataCache(memoryMaxBytes,
+          new EntryDataStore(options.getEntryCacheDirectory(), options.getEntryCacheMaxBytes()));
+    }
+    if (options.isDeduplicateEntries()) {
+      return new EntryDataCache(memoryMaxBytes);
+    }
+    return null;
   }
 
   /**
@@ -129,8 +195,7 @@ public final class ContentPackage implements Closeable {
    */
   public void addPage(String path, ContentElement content) throws IOException {
     String fullPath = buildJcrPathForZip(path) + "/" + DOT_CONTENT_XML;
-    Document doc = xmlContentBuilder.buildPage(content);
-    writeXmlDocument(fullPath, doc);
+    writeXml(fullPath, builder -> builder.buildPage(content), (builder, os) -> builder.writePage(content, os));
   }
 
   /**
@@ -143,24 +208,37 @@ public final class ContentPackage implements Closeable {
    */
   public void addPage(String path, Map<String, Object> content) throws IOException {
     String fullPath = buildJcrPathForZip(path) + "/" + DOT_CONTENT_XML;
-    Document doc = xmlContentBuilder.buildPage(content);
-    writeXmlDocument(fullPath, doc);
+    writeXml(fullPath, builder -> builder.buildPage(content), (builder, os) -> builder.writePage(content, os));
+  }
+
+  /**
+   * Adds a page based on a page template. Only the slot values are formatted, the remaining XML
+   * is pre-rendered by the template.
+   * @param path Full content path of page.
+   * @param template Page template
+   * @param values Values for all slots of the template, by slot name
+   * @throws IOException I/O exception
+   */
+  public void addPage(String path, PageTemplate template, Map<String, Object> values) throws IOException {
+    template.validate(values);
+    String fullPath = buildJcrPathForZip(path) + "/" + DOT_CONTENT_XML;
+    writeXmlStreaming(fullPath, (builder, os) -> template.write(builder, values, os), false);
   }
 
   /**
    * Add some JCR content structure directly to the package.
+   * <p>
+   * The content elements are written to the package without copying them. If streaming XML is enabled,
+   * this allows to write lazily produced content that does not fit into the heap, e.g. with
+   * {@link io.wcm.tooling.commons.contentpackagebuilder.element.LazyContentElement}.
+   * </p>
    * @param path Full content path of content root node.
    * @param content Hierarchy of content elements.
    * @throws IOException I/O exception
    */
   public void addContent(String path, ContentElement content) throws IOException {
-    String basePath = buildJcrPathForZip(path);
-    List<ContentPart> parts = ContentFolderSplitter.split(ContentElementConverter.toMap(content));
-    for (ContentPart part : parts) {
-      String fullPath = basePath + part.getPath() + "/" + DOT_CONTENT_XML;
-      Document doc = xmlContentBuilder.buildContent(part.getContent());
-      writeXmlDocument(fullPath, doc);
-    }
+    writeContentParts(path, ContentFolderSplitter.split(content,
+        options.getMaxContentXmlNodes(), options.getMaxContentXmlBytes()));
   }
 
   /**
@@ -172,13 +250,68 @@ public final class ContentPackage implements Closeable {
    * @throws IOException I/O exception
    */
   public void addContent(String path, Map<String, Object> content) throws IOException {
-    String basePath = buildJcrPathForZip(path);
-    List<ContentPart> parts = ContentFolderSplitter.split(content);
-    for (ContentPart part : parts) {
-      String fullPath = basePath + part.getPath() + "/" + DOT_CONTENT_XML;
-      Document doc = xmlContentBuilder.buildContent(part.getContent());
-      writeXmlDocument(fullPath, doc);
+    writeContentParts(path, ContentFolderSplitter.split(content,
+        options.getMaxContentXmlNodes(), options.getMaxContentXmlBytes()));
+  }
+
+  /**
+   * Add only the differences between two versions of a JCR content structure to the package.
+   * <p>
+   * New nodes are added completely, for existing nodes only new and changed properties are added. The package
+   * filter for the content path is added with import mode {@link PackageFilterMode#MERGE_PROPERTIES}, or
+   * {@link PackageFilterMode#UPDATE_PROPERTIES} if values of existing properties changed, so properties that
+   * are not contained in the package are kept on import. Removed nodes, and nodes with removed properties or a
+   * changed primary type are covered by additional filters with mode {@link PackageFilterMode#REPLACE}.
+   * </p>
+   * <p>
+   * Requires {@link ContentPackageBuilder#contentDelta(boolean)}. The filters are written in addition to the filters
+   * defined for the package when the package is closed, and take precedence over them. Closing the package fails
+   * if none of the content deltas contains any changes.
+   * </p>
+   * @param path Full content path of content root node.
+   * @param previous Hierarchy of content elements as contained in the target instance.
+   * @param current Hierarchy of content elements to import.
+   * @throws IOException I/O exception
+   */
+  public void addContentDelta(String path, ContentElement previous, ContentElement current) throws IOException {
+    addContentDelta(path, ContentDiff.diff(previous, current));
+  }
+
+  /**
+   * Add only the differences between two versions of a JCR content structure to the package.
+   * See {@link #addContentDelta(String, ContentElement, ContentElement)} for details.
+   * @param path Full content path of content root node.
+   * @param previous Map with node properties as contained in the target instance.
+   *          If the map contains nested maps this builds a tree of JCR nodes.
+   * @param current Map with node properties to import.
+   *          If the map contains nested maps this builds a tree of JCR nodes.
+   * @throws IOException I/O exception
+   */
+  public void addContentDelta(String path, Map<String, Object> previous, Map<String, Object> current) throws IOException {
+    addContentDelta(path, ContentDiff.diff(previous, current));
+  }
+
+  private void addContentDelta(String path, ContentDiff diff) throws IOException {
+    if (!options.isContentDelta()) {
+      throw new IllegalStateException("Content deltas require ContentPackageBuilder.contentDelta(true).");
+    }
+    List<PackageFilter> filters = new ArrayList<>();
+    // more specific filters first, the first filter covering a path defines its import mode
+    for (String removedPath : diff.getRemovedPaths()) {
+      filters.add(new PackageFilter(path + removedPath));
+    }
+    for (String replacedPath : diff.getReplacedPaths()) {
+      filters.add(new PackageFilter(path + replacedPath));
+    }
+    ContentElement content = diff.getContent();
+    if (content != null) {
+      if (!diff.getReplacedPaths().contains("")) {
+        filters.add(new PackageFilter(path).setMode(diff.isPropertiesUpdated()
+            ? PackageFilterMode.UPDATE_PROPERTIES : PackageFilterMode.MERGE_PROPERTIES));
+      }
+      addContent(path, content);
     }
+    contentFilters.addAll(filters);
   }
 
   /**
@@ -230,16 +363,8 @@ public final class ContentPackage implements Closeable {
    */
   public void addFile(String path, InputStream inputStream, String contentType) throws IOException {
     String fullPath = buildJcrPathForZip(path);
-    writeBinaryFile(fullPath, inputStream);
-
-    if (StringUtils.isNotEmpty(contentType)) {
-      String mimeType = StringUtils.substringBefore(contentType, CONTENT_TYPE_CHARSET_EXTENSION);
-      String encoding = StringUtils.substringAfter(contentType, CONTENT_TYPE_CHARSET_EXTENSION);
-
-      String fullPathMetadata = fullPath + DOT_DIR_FOLDER + "/" + DOT_CONTENT_XML;
-      Document doc = xmlContentBuilder.buildNtFile(mimeType, encoding);
-      writeXmlDocument(fullPathMetadata, doc);
-    }
+    boolean written = writeBinaryFile(fullPath, inputStream, getMimeType(contentType), contentType);
+    writeFileMetadata(fullPath, contentType, written);
   }
 
   /**
@@ -254,8 +379,7 @@ public final class ContentPackage implements Closeable {
     if (!normalizedPath.startsWith("/")) {
       normalizedPath = "/" + normalizedPath;
     }
-    ensureValidPath(path);
-    return ROOT_DIR + PlatformNameFormat.getPlatformPath(normalizedPath);
+    return ROOT_DIR + NameUtil.getPlatformPath(normalizedPath);
   }
 
   /**
@@ -276,8 +400,165 @@ public final class ContentPackage implements Closeable {
    * @throws IOException I/O exception
    */
   public void addFile(String path, File file, String contentType) throws IOException {
-    try (InputStream is = new FileInputStream(file)) {
-      addFile(path, is, contentType);
+    addFile(path, file.toPath(), contentType);
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, Path file) throws IOException {
+    addFile(path, file, null);
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * If the file is stored uncompressed in the package, it is copied using {@link FileChannel#transferTo}
+   * without passing through the Java heap.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, Path file, String contentType) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      addFile(path, channel, contentType);
+    }
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param channel File channel with binary data, read from its current position to the end. It is not closed.
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, FileChannel channel) throws IOException {
+    addFile(path, channel, null);
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * If the file is stored uncompressed in the package, it is copied using {@link FileChannel#transferTo}
+   * without passing through the Java heap.
+   * @param path Full content path and file name of file
+   * @param channel File channel with binary data, read from its current position to the end. It is not closed.
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, FileChannel channel, String contentType) throws IOException {
+    String fullPath = buildJcrPathForZip(path);
+    String mimeType = getMimeType(contentType);
+    long position = channel.position();
+    long size = Math.max(channel.size() - position, 0);
+
+    byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+    int headLength = ChannelUtil.readHead(channel, position, head);
+    boolean written;
+    if (isStoredBinary(fullPath, mimeType, head, headLength)) {
+      long crc = ChannelUtil.crc(channel, position, size);
+      written = zipPutNextStoredFileEntry(fullPath, crc, size,
+          target -> ChannelUtil.transferTo(channel, position, size, target), contentType);
+      channel.position(position + size);
+    }
+    else {
+      written = zipPutNextFileEntry(fullPath, os -> copy(Channels.newInputStream(channel), os), contentType, false);
+    }
+    writeFileMetadata(fullPath, contentType, written);
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param channel Channel with binary data, read to the end. It is not closed.
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ReadableByteChannel channel) throws IOException {
+    addFile(path, channel, null);
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * Only for file channels the data can be copied without passing through the Java heap.
+   * @param path Full content path and file name of file
+   * @param channel Channel with binary data, read to the end. It is not closed.
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ReadableByteChannel channel, String contentType) throws IOException {
+    if (channel instanceof FileChannel) {
+      addFile(path, (FileChannel)channel, contentType);
+    }
+    else {
+      addFile(path, Channels.newInputStream(channel), contentType);
+    }
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param data Buffer with binary data between its position and limit. The buffer position is not changed.
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ByteBuffer data) throws IOException {
+    addFile(path, data, null);
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * If the file is stored uncompressed in the package, the buffer content is written directly to the channel
+   * of the package output stream, e.g. without copying a direct or memory-mapped buffer to the Java heap.
+   * @param path Full content path and file name of file
+   * @param data Buffer with binary data between its position and limit. The buffer position is not changed.
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ByteBuffer data, String contentType) throws IOException {
+    String fullPath = buildJcrPathForZip(path);
+    String mimeType = getMimeType(contentType);
+
+    byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+    int headLength = ChannelUtil.readHead(data, head);
+    boolean written;
+    if (isStoredBinary(fullPath, mimeType, head, headLength)) {
+      written = zipPutNextStoredFileEntry(fullPath, ChannelUtil.crc(data), data.remaining(),
+          target -> ChannelUtil.transferTo(data, target), contentType);
+    }
+    else {
+      written = zipPutNextFileEntry(fullPath, os -> ChannelUtil.copy(data, os), contentType, false);
+    }
+    writeFileMetadata(fullPath, contentType, written);
+  }
+
+  private static String getMimeType(String contentType) {
+    return StringUtils.substringBefore(contentType, CONTENT_TYPE_CHARSET_EXTENSION);
+  }
+
+  /**
+   * Writes the nt:file metadata with mime type and encoding, if a content type is given.
+   * In delta mode the metadata is written exactly if the binary file was written, the content type is part of the
+   * content hash of the binary file.
+   * @param fullPath ZIP path of binary file
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @param binaryWritten Whether the binary file was written
+   * @throws IOException I/O exception
+   */
+  private void writeFileMetadata(String fullPath, String contentType, boolean binaryWritten) throws IOException {
+    if (StringUtils.isNotEmpty(contentType)) {
+      String mimeType = getMimeType(contentType);
+      String encoding = StringUtils.substringAfter(contentType, CONTENT_TYPE_CHARSET_EXTENSION);
+
+      String fullPathMetadata = fullPath + DOT_DIR_FOLDER + "/" + DOT_CONTENT_XML;
+      if (!binaryWritten) {
+        String previousHash = previousManifest.get(fullPathMetadata);
+        if (previousHash != null) {
+          manifest.put(fullPathMetadata, previousHash);
+        }
+        return;
+      }
+      writeXml(fullPathMetadata, builder -> builder.buildNtFile(mimeType, encoding),
+          (builder, os) -> builder.writeNtFile(mimeType, encoding, os), true);
     }
   }
 
@@ -287,8 +568,52 @@ public final class ContentPackage implements Closeable {
    */
   @Override
   public void close() throws IOException {
-    zip.flush();
-    zip.close();
+    try {
+      try {
+        if (isFilterDeferred()) {
+          writeDeferredFilter();
+        }
+      }
+      finally {
+        entryWriter.close();
+      }
+      if (options.getManifestFile() != null) {
+        manifest.write(options.getManifestFile());
+      }
+    }
+    finally {
+      XmlRenderer renderer;
+      while ((renderer = xmlRenderers.poll()) != null) {
+        renderer.release(context);
+      }
+      if (ownContext) {
+        context.close();
+      }
+    }
+  }
+
+  private boolean isFilterDeferred() {
+    return deferFilter || options.isContentDelta() || previousManifest != null;
+  }
+
+  /**
+   * Writes the filter including the filters of content deltas and of delta packages. Fails if deltas are used
+   * and neither changes were found nor other content was added, as such a package would silently install nothing -
+   * or with the package filters, remove content.
+   */
+  private void writeDeferredFilter() throws IOException {
+    List<PackageFilter> filters = new ArrayList<>(contentFilters);
+    if (previousManifest != null) {
+      filters.addAll(manifest.getDeltaFilters(previousManifest));
+    }
+    boolean contentAdded = entryRegistry.getFileCount() > metadataFileCount;
+    if ((options.isContentDelta() || previousManifest != null) && filters.isEmpty() && !contentAdded) {
+      throw new IllegalStateException("No changes found for delta package - package filter would be empty.");
+    }
+    if (previousManifest == null) {
+      filters.addAll(metadata.getFilters());
+    }
+    writeXmlDocument(META_DIR + "/" + FILTER_XML, builder -> builder.buildFilter(filters), false);
   }
 
   /**
@@ -313,145 +638,402 @@ public final class ContentPackage implements Closeable {
     return metadata.getFilters();
   }
 
+  /**
+   * @return Number of folder and file entries written to the package so far
+   */
+  int getEntryCount() {
+    return entryRegistry.getFolderCount() + entryRegistry.getFileCount();
+  }
+
+  /**
+   * @return Cache of compressed entry data if entry deduplication is enabled, otherwise null
+   */
+  @Nullable
+  EntryDataCache getEntryDataCache() {
+    return entryDataCache;
+  }
+
   /**
    * Build all package metadata files based on templates.
    * @throws IOException I/O exception
    */
   private void buildPackageMetadata() throws IOException {
     metadata.validate();
-    buildTemplatedMetadataFile(META_DIR + "/" + CONFIG_XML);
-    buildPropertiesFile(META_DIR + "/" + PROPERTIES_XML);
-    buildTemplatedMetadataFile(META_DIR + "/" + SETTINGS_XML);
-    buildTemplatedMetadataFile(META_DIR + "/" + PACKAGE_DEFINITION_XML);
-    writeXmlDocument(META_DIR + "/" + FILTER_XML, xmlContentBuilder.buildFilter(metadata.getFilters()));
+    Map<String, Object> vars = metadata.getVars();
+    buildTemplatedMetadataFile(META_DIR + "/" + CONFIG_XML, vars);
+    buildPropertiesFile(META_DIR + "/" + PROPERTIES_XML, vars);
+    buildTemplatedMetadataFile(META_DIR + "/" + SETTINGS_XML, vars);
+    buildTemplatedMetadataFile(META_DIR + "/" + PACKAGE_DEFINITION_XML, vars);
+    // with deltas the filter is written on close, when the changed content is known
+    if (!isFilterDeferred()) {
+      writeXmlDocument(META_DIR + "/" + FILTER_XML, builder -> builder.buildFilter(metadata.getFilters()), false);
+    }
 
     // package thumbnail
     byte[] thumbnailImage = metadata.getThumbnailImage();
     if (thumbnailImage != null) {
-      zipPutNextFileEntry(META_DIR + "/definition/thumbnail.png");
-      try {
-        zip.write(thumbnailImage);
-      }
-      finally {
-        zip.closeEntry();
-      }
+      writeBinaryFile(META_DIR + "/definition/thumbnail.png", new ByteArrayInputStream(thumbnailImage), null, null);
     }
+    metadataFileCount = entryRegistry.getFileCount();
   }
 
   /**
-   * Read template file from classpath, replace variables and store it in the zip stream.
+   * Render compiled template file from classpath with the given variables and store it in the zip stream.
    * @param path Path
+   * @param vars Variables for placeholder replacement
    * @throws IOException I/O exception
    */
-  @SuppressWarnings("deprecation")
-  private void buildTemplatedMetadataFile(String path) throws IOException {
-    try (InputStream is = getClass().getResourceAsStream("/content-package-template/" + path)) {
-      String xmlContent = IOUtils.toString(is, StandardCharsets.UTF_8);
-      for (Map.Entry<String, Object> entry : metadata.getVars().entrySet()) {
-        xmlContent = StringUtils.replace(xmlContent, "{{" + entry.getKey() + "}}",
-            org.apache.commons.lang3.StringEscapeUtils.escapeXml10(entry.getValue().toString()));
-      }
-      zipPutNextFileEntry(path);
-      try {
-        zip.write(xmlContent.getBytes(StandardCharsets.UTF_8));
-      }
-      finally {
-        zip.closeEntry();
-      }
-    }
+  private void buildTemplatedMetadataFile(String path, Map<String, Object> vars) throws IOException {
+    byte[] data = MetadataTemplate.get(path).render(vars);
+    zipPutNextFileEntry(path, os -> os.write(data));
   }
 
   /**
    * Build java Properties XML file.
    * @param path Path
+   * @param vars Package metadata variables
    * @throws IOException I/O exception
    */
-  private void buildPropertiesFile(String path) throws IOException {
-    Properties properties = new Properties();
+  private void buildPropertiesFile(String path, Map<String, Object> vars) throws IOException {
+    Map<String, String> properties = new TreeMap<>();
     properties.put(PackageProperties.NAME_REQUIRES_ROOT, Boolean.toString(false));
     properties.put("allowIndexDefinitions", Boolean.toString(false));
 
-    for (Map.Entry<String, Object> entry : metadata.getVars().entrySet()) {
+    for (Map.Entry<String, Object> entry : vars.entrySet()) {
       String value = Objects.toString(entry.getValue());
       if (StringUtils.isNotEmpty(value)) {
         properties.put(entry.getKey(), value);
       }
     }
 
-    zipPutNextFileEntry(path);
+    zipPutNextFileEntry(path, os -> PropertiesXmlWriter.write(properties, os));
+  }
+
+  /**
+   * Writes JCR content XML as file entry to the ZIP output stream.
+   * @param path Content path
+   * @param document Builds the XML content as DOM document
+   * @param streamingContent Writes the XML content directly to the entry, used when streaming XML is enabled
+   * @throws IOException I/O exception
+   */
+  private void writeXml(String path, Function<XmlContentBuilder, Document> document,
+      XmlStreamingContent streamingContent) throws IOException {
+    writeXml(path, document, streamingContent, false);
+  }
+
+  /**
+   * Writes JCR content XML as file entry to the ZIP output stream.
+   * @param path Content path
+   * @param document Builds the XML content as DOM document
+   * @param streamingContent Writes the XML content directly to the entry, used when streaming XML is enabled
+   * @param force Write the entry in delta mode even if it is unchanged
+   * @throws IOException I/O exception
+   */
+  private void writeXml(String path, Function<XmlContentBuilder, Document> document,
+      XmlStreamingContent streamingContent, boolean force) throws IOException {
+    if (options.isStreamingXml()) {
+      writeXmlStreaming(path, streamingContent, force);
+    }
+    else {
+      writeXmlDocument(path, document, force);
+    }
+  }
+
+  /**
+   * Writes each content chunk as .content.xml file entry to the ZIP output stream.
+   * The chunks reference the original content, the child nodes of the next chunks are discovered while
+   * the current chunk is written.
+   * @param path Content path of the content root
+   * @param parts Content chunks
+   * @throws IOException I/O exception
+   */
+  private void writeContentParts(String path, Iterator<ContentPart> parts) throws IOException {
+    while (parts.hasNext()) {
+      ContentPart part = parts.next();
+      String fullPath = buildJcrPathForZip(path + part.getPath()) + "/" + DOT_CONTENT_XML;
+      writeXml(fullPath, builder -> builder.buildContent(part), (builder, os) -> builder.writeContent(part, os));
+    }
+  }
+
+  /**
+   * Writes JCR content XML directly to a file entry in the ZIP output stream.
+   * @param path Content path
+   * @param streamingContent Writes the XML content directly to the entry
+   * @param force Write the entry in delta mode even if it is unchanged
+   * @throws IOException I/O exception
+   */
+  private void writeXmlStreaming(String path, XmlStreamingContent streamingContent, boolean force) throws IOException {
+    XmlRenderer renderer = borrowXmlRenderer();
     try {
-      properties.storeToXML(zip, null);
+      zipPutNextFileEntry(path, os -> streamingContent.writeTo(renderer.xmlContentBuilder, os), null, force);
     }
     finally {
-      zip.closeEntry();
+      xmlRenderers.add(renderer);
     }
   }
 
   /**
    * Writes an XML document as binary file entry to the ZIP output stream.
    * @param path Content path
-   * @param doc XML content
+   * @param document Builds the XML content as DOM document
+   * @param force Write the entry in delta mode even if it is unchanged
    * @throws IOException I/O exception
    */
-  private void writeXmlDocument(String path, Document doc) throws IOException {
-    zipPutNextFileEntry(path);
+  private void writeXmlDocument(String path, Function<XmlContentBuilder, Document> document, boolean force)
+      throws IOException {
+    XmlRenderer renderer = borrowXmlRenderer();
     try {
-      DOMSource source = new DOMSource(doc);
-      StreamResult result = new StreamResult(zip);
-      transformer.transform(source, result);
-    }
-    catch (TransformerException ex) {
-      throw new IOException("Failed to generate XML: " + ex.getMessage(), ex);
+      Document doc = document.apply(renderer.xmlContentBuilder);
+      zipPutNextFileEntry(path, os -> {
+        try {
+          DOMSource source = new DOMSource(doc);
+          StreamResult result = new StreamResult(os);
+          renderer.transformer.transform(source, result);
+        }
+        catch (TransformerException ex) {
+          throw new IOException("Failed to generate XML: " + ex.getMessage(), ex);
+        }
+      }, null, force);
     }
     finally {
-      zip.closeEntry();
+      xmlRenderers.add(renderer);
+    }
+  }
+
+  /**
+   * Get an XML renderer that is not used by any other thread, or create a new one.
+   * The renderer has to be returned to the pool after usage.
+   * @return XML renderer
+   */
+  private XmlRenderer borrowXmlRenderer() {
+    XmlRenderer renderer = xmlRenderers.poll();
+    if (renderer == null) {
+      renderer = new XmlRenderer(metadata.getXmlNamespaces(), options, context);
     }
+    return renderer;
   }
 
   /**
    * Writes an binary file entry to the ZIP output stream.
    * @param path Content path
    * @param is Input stream with binary data
+   * @param mimeType Mime type (optional)
+   * @param contentType Content type that is part of the content hash in the package manifest (optional)
+   * @return true if the entry was written, false if it was skipped in delta mode
    * @throws IOException I/O exception
    */
-  private void writeBinaryFile(String path, InputStream is) throws IOException {
-    zipPutNextFileEntry(path);
-    try {
-      IOUtils.copy(is, zip);
+  private boolean writeBinaryFile(String path, InputStream is, String mimeType, String contentType) throws IOException {
+    if (!options.isStoreCompressedBinaries()) {
+      return zipPutNextFileEntry(path, os -> copy(is, os), contentType, false);
     }
-    finally {
-      zip.closeEntry();
+    if (StoragePolicy.isCompressed(path, mimeType)) {
+      return zipPutNextStoredFileEntry(path, os -> copy(is, os), contentType);
+    }
+
+    // detect compressed formats by their magic number
+    PushbackInputStream pushbackStream = new PushbackInputStream(is, StoragePolicy.SIGNATURE_LENGTH);
+    byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+    int headLength = IOUtils.read(pushbackStream, head);
+    pushbackStream.unread(head, 0, headLength);
+    if (StoragePolicy.hasCompressedSignature(head, headLength)) {
+      return zipPutNextStoredFileEntry(path, os -> copy(pushbackStream, os), contentType);
     }
+    return zipPutNextFileEntry(path, os -> copy(pushbackStream, os), contentType, false);
+  }
+
+  /**
+   * Checks if a binary file is stored uncompressed.
+   * @param path File path
+   * @param mimeType Mime type (optional)
+   * @param head First bytes of the file
+   * @param headLength Number of valid bytes in head
+   * @return true if the file content is already compressed and storing uncompressed is enabled
+   */
+  private boolean isStoredBinary(String path, String mimeType, byte[] head, int headLength) {
+    return options.isStoreCompressedBinaries()
+        && (StoragePolicy.isCompressed(path, mimeType) || StoragePolicy.hasCompressedSignature(head, headLength));
   }
 
   /**
    * Creates a new ZIP entry for a file with given paths.
    * Ensures that entries for the parent folders are created before.
    * @param path File path
+   * @param content Produces the entry data
    * @throws IOException I/O exception
    */
-  private void zipPutNextFileEntry(@NotNull String path) throws IOException {
-    String folderPath = FilenameUtils.getPath(path);
-    ensureFolderPaths(folderPath);
-    zip.putNextEntry(new ZipEntry(path));
+  private void zipPutNextFileEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    zipPutNextFileEntry(path, content, null, false);
   }
 
   /**
-   * Ensures that zip entries for the given folder and it's parend folders (if they do not exist already).
-   * @param folderPath Folder path
+   * Creates a new ZIP entry for a file with given paths.
+   * Ensures that entries for the parent folders are created before.
+   * @param path File path
+   * @param content Produces the entry data
+   * @param hashSalt Additional data for the content hash in the package manifest (optional)
+   * @param force Write the entry in delta mode even if it is unchanged
+   * @return true if the entry was written, false if it was skipped in delta mode
    * @throws IOException I/O exception
    */
-  private void ensureFolderPaths(@NotNull String folderPath) throws IOException {
-    if (folderPaths.contains(folderPath) || StringUtils.isEmpty(folderPath) || StringUtils.equals(folderPath, "/")) {
-      // skip paths already created and root folder
-      return;
+  private boolean zipPutNextFileEntry(@NotNull String path, @NotNull EntryContent content,
+      @Nullable String hashSalt, boolean force) throws IOException {
+    if (manifest != null && PackageManifest.isTracked(path)) {
+      return putTrackedEntry(path, content, hashSalt, force, false);
     }
-    // ensure parent folders
-    String parentFolderPath = FilenameUtils.getPath(StringUtils.removeEnd(folderPath, "/"));
-    ensureFolderPaths(parentFolderPath);
-    // create folder ZIP entry
-    zip.putNextEntry(new ZipEntry(folderPath));
-    folderPaths.add(folderPath);
+    entryRegistry.registerFile(path, entryWriter::writeDirectory);
+    entryWriter.writeEntry(path, content);
+    return true;
+  }
+
+  /**
+   * Creates a new uncompressed ZIP entry for a file with given paths.
+   * Ensures that entries for the parent folders are created before.
+   * @param path File path
+   * @param content Produces the entry data
+   * @param hashSalt Additional data for the content hash in the package manifest (optional)
+   * @return true if the entry was written, false if it was skipped in delta mode
+   * @throws IOException I/O exception
+   */
+  private boolean zipPutNextStoredFileEntry(@NotNull String path, @NotNull EntryContent content,
+      @Nullable String hashSalt) throws IOException {
+    if (manifest != null && PackageManifest.isTracked(path)) {
+      return putTrackedEntry(path, content, hashSalt, false, true);
+    }
+    entryRegistry.registerFile(path, entryWriter::writeDirectory);
+    entryWriter.writeStoredEntry(path, content);
+    return true;
+  }
+
+  /**
+   * Creates a new uncompressed ZIP entry for a file with given paths, with data transferred directly to the
+   * ZIP archive channel. Ensures that entries for the parent folders are created before.
+   * @param path File path
+   * @param crc CRC-32 of the data
+   * @param size Data size
+   * @param content Transfers the entry data. In delta mode it is called twice, to compute the content hash first.
+   * @param hashSalt Additional data for the content hash in the package manifest (optional)
+   * @return true if the entry was written, false if it was skipped in delta mode
+   * @throws IOException I/O exception
+   */
+  private boolean zipPutNextStoredFileEntry(@NotNull String path, long crc, long size, @NotNull ChannelContent content,
+      @Nullable String hashSalt) throws IOException {
+    if (manifest == null || !PackageManifest.isTracked(path)) {
+      entryRegistry.registerFile(path, entryWriter::writeDirectory);
+      entryWriter.transferStoredEntry(path, crc, size, content);
+      return true;
+    }
+    MessageDigest digest = EntryDataCache.newDigest();
+    if (previousManifest == null) {
+      entryRegistry.registerFile(path, entryWriter::writeDirectory);
+      entryWriter.transferStoredEntry(path, crc, size, target -> content.transferTo(ChannelUtil.digesting(target, digest)));
+      manifest.put(path, toHash(digest, hashSalt));
+      return true;
+    }
+    content.transferTo(ChannelUtil.digesting(null, digest));
+    if (!putManifestEntry(path, toHash(digest, hashSalt), false)) {
+      return false;
+    }
+    entryRegistry.registerFile(path, entryWriter::writeDirectory);
+    entryWriter.transferStoredEntry(path, crc, size, content);
+    return true;
+  }
+
+  /**
+   * Writes an entry that is tracked in the package manifest, computing the content hash while the data is written.
+   * In delta mode the data is spooled first, and only written if it is new or changed.
+   * @return true if the entry was written
+   */
+  private boolean putTrackedEntry(String path, EntryContent content, String hashSalt, boolean force, boolean stored)
+      throws IOException {
+    MessageDigest digest = EntryDataCache.newDigest();
+    EntryContent hashingContent = os -> content.writeTo(new DigestOutputStream(os, digest));
+    if (previousManifest == null) {
+      entryRegistry.registerFile(path, entryWriter::writeDirectory);
+      if (stored) {
+        entryWriter.writeStoredEntry(path, hashingContent);
+      }
+      else {
+        entryWriter.writeEntry(path, hashingContent);
+      }
+      manifest.put(path, toHash(digest, hashSalt));
+      return true;
+    }
+    try (StoredEntrySpool spool = StoredEntrySpool.spool(hashingContent, StoredEntrySpool.DEFAULT_MEMORY_THRESHOLD)) {
+      if (!putManifestEntry(path, toHash(digest, hashSalt), force)) {
+        return false;
+      }
+      entryRegistry.registerFile(path, entryWriter::writeDirectory);
+      if (stored) {
+        entryWriter.transferStoredEntry(path, spool.getCrc(), spool.getSize(),
+            target -> spool.writeTo(Channels.newOutputStream(target)));
+      }
+      else {
+        entryWriter.writeEntry(path, spool::writeTo);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Adds the content hash to the manifest and compares it with the previous build.
+   * @return true if the entry has to be written
+   */
+  private boolean putManifestEntry(String path, String hash, boolean force) throws IOException {
+    manifest.put(path, hash);
+    return force || !hash.equals(previousManifest.get(path));
+  }
+
+  private static String toHash(MessageDigest digest, @Nullable String hashSalt) {
+    if (hashSalt != null) {
+      digest.update(hashSalt.getBytes(StandardCharsets.UTF_8));
+    }
+    return EntryDataCache.toHex(digest.digest());
+  }
+
+  /**
+   * Copies the stream using a buffer from the writer context.
+   */
+  private void copy(InputStream is, OutputStream os) throws IOException {
+    byte[] buffer = context.borrowBuffer();
+    try {
+      IOUtils.copyLarge(is, os, buffer);
+    }
+    finally {
+      context.returnBuffer(buffer);
+    }
+  }
+
+  /**
+   * Writes XML content directly to an output stream using the given XML content builder.
+   */
+  @FunctionalInterface
+  private interface XmlStreamingContent {
+    void writeTo(XmlContentBuilder xmlContentBuilder, OutputStream os) throws IOException;
+  }
+
+  /**
+   * XML content builder and transformer borrowed from the writer context, used by one thread at a time.
+   */
+  private static final class XmlRenderer {
+
+    private final DocumentBuilder documentBuilder;
+    private final XmlContentBuilder xmlContentBuilder;
+    private final Transformer transformer;
+    private final boolean indent;
+
+    XmlRenderer(Map<String, String> xmlNamespaces, ContentPackageOptions options, WriterContext context) {
+      this.indent = !options.isCompactXml();
+      this.documentBuilder = context.borrowDocumentBuilder();
+      this.xmlContentBuilder = new XmlContentBuilder(documentBuilder, xmlNamespaces,
+          options.isDeclareUsedXmlNamespacesOnly(), options.isCompactXml(), context.getFragmentCache());
+      this.transformer = context.borrowTransformer(indent);
+    }
+
+    void release(WriterContext context) {
+      context.returnDocumentBuilder(documentBuilder);
+      context.returnTransformer(transformer, indent);
+    }
+
   }
 
 }
@@ -24,6 +24,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.Date;
 
 import org.apache.commons.io.IOUtils;
@@ -35,6 +36,7 @@ import org.apache.commons.io.IOUtils;
 public final class ContentPackageBuilder {
 
   private final PackageMetadata metadata = new PackageMetadata();
+  private final ContentPackageOptions options = new ContentPackageOptions();
 
   /**
    * Set content package name.
@@ -77,7 +79,8 @@ public final class ContentPackageBuilder {
   }
 
   /**
-   * Set timestamp for package creation.
+   * Set timestamp for package creation. It is also used as modification time of all entries in the package file,
+   * so building the same content with the same timestamp results in an identical file.
    * @param value Creation timestamp (default: now)
    * @return this
    */
@@ -204,6 +207,228 @@ public final class ContentPackageBuilder {
     return this;
   }
 
+  /**
+   * Compress the package entries in parallel on a pool of worker threads.
+   * The entries are appended to the package in the same order as in serial mode, so the resulting package
+   * contains the same entries as with serial compression.
+   * Ignored if {@link #concurrent(boolean)} is enabled, which always compresses the entries on the threads adding them.
+   * @param value Number of compression threads (default: 0 = compress serially on the calling thread)
+   * @return this
+   */
+  public ContentPackageBuilder parallelCompressionThreads(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid parallel compression threads: " + value);
+    }
+    options.setParallelCompressionThreads(value);
+    return this;
+  }
+
+  /**
+   * Set the maximum amount of uncompressed data that is buffered for entries waiting for parallel compression.
+   * The limit covers the entries waiting for compression or for being written to the package as well as the entry
+   * that is currently added, counting the full size of the allocated buffers. Adding content blocks when this limit is
+   * reached until the oldest entries are written to the package. Entries larger than the limit are compressed
+   * directly while they are added. The compression threads additionally hold the compressed output of the entries
+   * they are working on.
+   * Only used when parallel compression is enabled via {@link #parallelCompressionThreads(int)}.
+   * @param value Max. number of bytes (default: 64 MB)
+   * @return this
+   */
+  public ContentPackageBuilder parallelCompressionMaxInFlightBytes(long value) {
+    if (value < 1) {
+      throw new IllegalArgumentException("Invalid parallel compression max. in-flight bytes: " + value);
+    }
+    options.setParallelCompressionMaxInFlightBytes(value);
+    return this;
+  }
+
+  /**
+   * Write the JCR XML files (.content.xml) of pages and content directly to the package while walking the
+   * content hierarchy, instead of building a DOM document for each file first.
+   * Memory consumption then depends on the nesting depth of the content, not on the number of nodes.
+   * @param value Enable streaming XML serialization (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder streamingXml(boolean value) {
+    options.setStreamingXml(value);
+    return this;
+  }
+
+  /**
+   * Write the JCR XML files (.content.xml) and filter.xml without indentation and line breaks.
+   * This reduces the amount of data to compress and to parse on import, but the files are harder to read.
+   * @param value Write compact XML (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder compactXml(boolean value) {
+    options.setCompactXml(value);
+    return this;
+  }
+
+  /**
+   * Limit the number of nodes written to a single .content.xml file by {@link ContentPackage#addContent}.
+   * Larger content trees are split into sub-folders with .content.xml files of their own, moving the largest
+   * child node subtrees first. The moved nodes are kept as empty elements in the parent file to preserve
+   * the node order.
+   * @param value Max. number of nodes per file (default: 0 = no limit)
+   * @return this
+   */
+  public ContentPackageBuilder maxContentXmlNodes(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid max. content XML nodes: " + value);
+    }
+    options.setMaxContentXmlNodes(value);
+    return this;
+  }
+
+  /**
+   * Limit the estimated size of a single .content.xml file written by {@link ContentPackage#addContent}.
+   * Larger content trees are split into sub-folders in the same way as with {@link #maxContentXmlNodes(int)}.
+   * The size is estimated from the length of the node names, property names and values.
+   * @param value Max. estimated size per file in bytes (default: 0 = no limit)
+   * @return this
+   */
+  public ContentPackageBuilder maxContentXmlBytes(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid max. content XML bytes: " + value);
+    }
+    options.setMaxContentXmlBytes(value);
+    return this;
+  }
+
+  /**
+   * Compress byte-identical entries only once, e.g. the nt:file metadata of binary files with the same content type,
+   * the same page in several language copies or the same binary file added under several paths.
+   * Entries up to 1 MB are buffered and identified by a SHA-256 hash of their uncompressed data, the compressed data,
+   * CRC and sizes of the first entry are reused for all copies.
+   * @param value Deduplicate entries (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder deduplicateEntries(boolean value) {
+    options.setDeduplicateEntries(value);
+    return this;
+  }
+
+  /**
+   * Persist the compressed data of all entries up to 1 MB in a local cache directory, and reuse it in later builds
+   * for entries with identical data instead of compressing them again. The entries are identified by a SHA-256 hash
+   * of their uncompressed data, so any change of the content or of settings affecting the XML output leads to a
+   * cache miss. The directory can be shared by multiple builds. Set a fixed {@link #created(Date)} timestamp
+   * to get reproducible package files.
+   * @param value Cache directory (default: null = no persistent cache)
+   * @return this
+   */
+  public ContentPackageBuilder entryCacheDirectory(Path value) {
+    options.setEntryCacheDirectory(value);
+    return this;
+  }
+
+  /**
+   * Limit the total size of the files in the {@link #entryCacheDirectory(Path)}. When it is exceeded,
+   * the least recently used entries are deleted.
+   * @param value Max. cache size in bytes (default: 1 GB)
+   * @return this
+   */
+  public ContentPackageBuilder entryCacheMaxBytes(long value) {
+    if (value < 1) {
+      throw new IllegalArgumentException("Invalid max. entry cache bytes: " + value);
+    }
+    options.setEntryCacheMaxBytes(value);
+    return this;
+  }
+
+  /**
+   * Write a manifest file with the SHA-256 content hash of each entry below jcr_root when the package is closed.
+   * The hashes are computed while the entries are written. The manifest can be used as
+   * {@link #previousManifest(Path)} for building a delta package in the next build.
+   * @param value Manifest file (default: null = no manifest)
+   * @return this
+   */
+  public ContentPackageBuilder manifestFile(Path value) {
+    options.setManifestFile(value);
+    return this;
+  }
+
+  /**
+   * Build a delta package against the manifest of a previous build, written with {@link #manifestFile(Path)}.
+   * The package contains only the entries below jcr_root that are new or changed. The package filter is narrowed
+   * to the JCR nodes of these entries, and the nodes whose entries are removed since the previous build, so they
+   * are deleted on installation. The filters given with {@link #rootPath(String)} or {@link #filter(PackageFilter)}
+   * are not written to the package in this mode.
+   * <p>
+   * To compare the entries, their data is spooled to memory or a temporary file before it is written.
+   * Binary files are compared together with their content type.
+   * </p>
+   * @param value Manifest file of previous build (default: null = full package)
+   * @return this
+   */
+  public ContentPackageBuilder previousManifest(Path value) {
+    options.setPreviousManifest(value);
+    return this;
+  }
+
+  /**
+   * Allow adding content deltas with {@link ContentPackage#addContentDelta(String, java.util.Map, java.util.Map)}. The package filter
+   * is then written when the package is closed, at the end of the package file, to include the filters of the
+   * content deltas. Otherwise it is written at the start, together with the other package metadata.
+   * @param value Enable content deltas (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder contentDelta(boolean value) {
+    options.setContentDelta(value);
+    return this;
+  }
+
+  /**
+   * Declare only the XML namespaces in each JCR XML file (.content.xml) that are actually referenced by its
+   * node names, property names or name values (jcr:primaryType, jcr:mixinTypes, rep:privileges), instead of
+   * all registered namespaces. This makes the files smaller and faster to compress and to import.
+   * @param value Declare only used XML namespaces (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder declareUsedXmlNamespacesOnly(boolean value) {
+    options.setDeclareUsedXmlNamespacesOnly(value);
+    return this;
+  }
+
+  /**
+   * Store binary files uncompressed in the package if their content is already compressed, e.g. JPEG or PNG images,
+   * videos, ZIP archives or PDF files. This is detected by the content type, the file extension or the
+   * first bytes of the file. Deflating such files again costs CPU time without reducing their size.
+   * <p>
+   * Stored entries need their CRC and size before the data is written. Binary files from an input stream are
+   * therefore spooled to memory, or to a temporary file if they are larger than 1 MB. Files from a path or file
+   * channel are read twice instead.
+   * </p>
+   * @param value Store already compressed binary files uncompressed (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder storeCompressedBinaries(boolean value) {
+    options.setStoreCompressedBinaries(value);
+    return this;
+  }
+
+  /**
+   * Allow multiple threads to add content to the package at the same time.
+   * Each thread renders and compresses its entries itself, only appending them to the package is serialized.
+   * The order of the entries in the package depends on the order in which the threads finish them.
+   * If enabled, this takes precedence over {@link #parallelCompressionThreads(int)}, which is ignored.
+   * @param value Enable concurrent usage of the content package (default: false)
+   * @return this
+   */
+  public ContentPackageBuilder concurrent(boolean value) {
+    options.setConcurrent(value);
+    return this;
+  }
+
+  PackageMetadata getMetadata() {
+    return metadata;
+  }
+
+  ContentPackageOptions getOptions() {
+    return options;
+  }
+
   /**
    * Build {@link ContentPackage} to which additional content (Pages or binary files) can be added.
    * Please make sure you call the {@link ContentPackage#close()} method when all content was added.
@@ -212,7 +437,19 @@ public final class ContentPackageBuilder {
    * @throws IOException I/O exception
    */
   public ContentPackage build(OutputStream outputStream) throws IOException {
-    return new ContentPackage(metadata, outputStream);
+    return new ContentPackage(metadata, options, outputStream, null);
+  }
+
+  /**
+   * Build {@link ContentPackage} to which additional content (Pages or binary files) can be added.
+   * Please make sure you call the {@link ContentPackage#close()} method when all content was added.
+   * @param outputStream Output stream
+   * @param context Writer context shared with other packages
+   * @return Content package
+   * @throws IOException I/O exception
+   */
+  public ContentPackage build(OutputStream outputStream, WriterContext context) throws IOException {
+    return new ContentPackage(metadata, options, outputStream, context);
   }
 
   /**
@@ -226,4 +463,16 @@ public final class ContentPackageBuilder {
     return build(new FileOutputStream(file));
   }
 
+  /**
+   * Build {@link ContentPackage} to which additional content (Pages or binary files) can be added.
+   * Please make sure you call the {@link ContentPackage#close()} method when all content was added.
+   * @param file Output file
+   * @param context Writer context shared with other packages
+   * @return Content package
+   * @throws IOException I/O exception
+   */
+  public ContentPackage build(File file, WriterContext context) throws IOException {
+    return build(new FileOutputStream(file), context);
+  }
+
 }
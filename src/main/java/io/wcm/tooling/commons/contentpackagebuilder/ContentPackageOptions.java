@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.nio.file.Path;
+
+/**
+ * Options controlling how the content package is written.
+ */
+final class ContentPackageOptions {
+
+  static final long DEFAULT_PARALLEL_COMPRESSION_MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024;
+  static final long DEFAULT_ENTRY_CACHE_MAX_BYTES = 1024L * 1024 * 1024;
+
+  private int parallelCompressionThreads;
+  private long parallelCompressionMaxInFlightBytes = DEFAULT_PARALLEL_COMPRESSION_MAX_IN_FLIGHT_BYTES;
+  private boolean streamingXml;
+  private boolean concurrent;
+  private boolean storeCompressedBinaries;
+  private boolean declareUsedXmlNamespacesOnly;
+  private boolean compactXml;
+  private int maxContentXmlNodes;
+  private long maxContentXmlBytes;
+  private boolean deduplicateEntries;
+  private Path entryCacheDirectory;
+  private long entryCacheMaxBytes = DEFAULT_ENTRY_CACHE_MAX_BYTES;
+  private Path manifestFile;
+  private Path previousManifest;
+  private boolean contentDelta;
+
+  public int getParallelCompressionThreads() {
+    return this.parallelCompressionThreads;
+  }
+
+  public void setParallelCompressionThreads(int parallelCompressionThreads) {
+    this.parallelCompressionThreads = parallelCompressionThreads;
+  }
+
+  public long getParallelCompressionMaxInFlightBytes() {
+    return this.parallelCompressionMaxInFlightBytes;
+  }
+
+  public void setParallelCompressionMaxInFlightBytes(long parallelCompressionMaxInFlightBytes) {
+    this.parallelCompressionMaxInFlightBytes = parallelCompressionMaxInFlightBytes;
+  }
+
+  public boolean isStreamingXml() {
+    return this.streamingXml;
+  }
+
+  public void setStreamingXml(boolean streamingXml) {
+    this.streamingXml = streamingXml;
+  }
+
+  public boolean isConcurrent() {
+    return this.concurrent;
+  }
+
+  public void setConcurrent(boolean concurrent) {
+    this.concurrent = concurrent;
+  }
+
+  public boolean isStoreCompressedBinaries() {
+    return this.storeCompressedBinaries;
+  }
+
+  public void setStoreCompressedBinaries(boolean storeCompressedBinaries) {
+    this.storeCompressedBinaries = storeCompressedBinaries;
+  }
+
+  public boolean isDeclareUsedXmlNamespacesOnly() {
+    return this.declareUsedXmlNamespacesOnly;
+  }
+
+  public void setDeclareUsedXmlNamespacesOnly(boolean declareUsedXmlNamespacesOnly) {
+    this.declareUsedXmlNamespacesOnly = declareUsedXmlNamespacesOnly;
+  }
+
+  public boolean isCompactXml() {
+    return this.compactXml;
+  }
+
+  public void setCompactXml(boolean compactXml) {
+    this.compactXml = compactXml;
+  }
+
+  public int getMaxContentXmlNodes() {
+    return this.maxContentXmlNodes;
+  }
+
+  public void setMaxContentXmlNodes(int maxContentXmlNodes) {
+    this.maxContentXmlNodes = maxContentXmlNodes;
+  }
+
+  public long getMaxContentXmlBytes() {
+    return this.maxContentXmlBytes;
+  }
+
+  public void setMaxContentXmlBytes(long maxContentXmlBytes) {
+    this.maxContentXmlBytes = maxContentXmlBytes;
+  }
+
+  public boolean isDeduplicateEntries() {
+    return this.deduplicateEntries;
+  }
+
+  public void setDeduplicateEntries(boolean deduplicateEntries) {
+    this.deduplicateEntries = deduplicateEntries;
+  }
+
+  public Path getEntryCacheDirectory() {
+    return this.entryCacheDirectory;
+  }
+
+  public void setEntryCacheDirectory(Path entryCacheDirectory) {
+    this.entryCacheDirectory = entryCacheDirectory;
+  }
+
+  public long getEntryCacheMaxBytes() {
+    return this.entryCacheMaxBytes;
+  }
+
+  public void setEntryCacheMaxBytes(long entryCacheMaxBytes) {
+    this.entryCacheMaxBytes = entryCacheMaxBytes;
+  }
+
+  public Path getManifestFile() {
+    return this.manifestFile;
+  }
+
+  public void setManifestFile(Path manifestFile) {
+    this.manifestFile = manifestFile;
+  }
+
+  public Path getPreviousManifest() {
+    return this.previousManifest;
+  }
+
+  public void setPreviousManifest(Path previousManifest) {
+    this.previousManifest = previousManifest;
+  }
+
+  public boolean isContentDelta() {
+    return this.contentDelta;
+  }
+
+  public void setContentDelta(boolean contentDelta) {
+    this.contentDelta = contentDelta;
+  }
+
+  /**
+   * @return true if entries are compressed on a pool of worker threads
+   */
+  public boolean isParallelCompression() {
+    return parallelCompressionThreads > 0;
+  }
+
+}
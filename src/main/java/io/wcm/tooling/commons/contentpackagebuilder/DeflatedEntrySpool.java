@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Collects the compressed data of an entry that is deflated outside of the ZIP archive.
+ * <p>
+ * The data is deflated while it is written, CRC and sizes are computed on the way. The compressed data is kept
+ * in memory up to a threshold and written to a temporary file beyond that, so it can be appended to the ZIP
+ * archive in one step once the entry is complete.
+ * </p>
+ */
+final class DeflatedEntrySpool implements Closeable {
+
+  private static final String TEMP_FILE_PREFIX = "content-package-entry-";
+
+  private final Deflater deflater;
+  private final DeferredFileOutputStream data;
+  private final DeflaterOutputStream deflaterStream;
+  private final CRC32 crc = new CRC32();
+  private long size;
+  private boolean finished;
+
+  /**
+   * @param deflater Deflater instance (raw deflate without ZLIB header). It is reset when the spool is closed.
+   * @param memoryThreshold Max. number of compressed bytes held in memory
+   */
+  DeflatedEntrySpool(@NotNull Deflater deflater, int memoryThreshold) {
+    this.deflater = deflater;
+    this.data = new DeferredFileOutputStream(memoryThreshold, TEMP_FILE_PREFIX, null, null);
+    this.deflaterStream = new DeflaterOutputStream(data, deflater);
+  }
+
+  /**
+   * Deflates uncompressed entry data.
+   * @param b Data
+   * @param off Offset
+   * @param len Length
+   * @throws IOException I/O exception
+   */
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      throw new IOException("Entry data already finished.");
+    }
+    crc.update(b, off, len);
+    size += len;
+    deflaterStream.write(b, off, len);
+  }
+
+  /**
+   * Completes the compressed data.
+   * @throws IOException I/O exception
+   */
+  public void finish() throws IOException {
+    if (!finished) {
+      finished = true;
+      deflaterStream.close();
+    }
+  }
+
+  /**
+   * @return CRC-32 of the uncompressed data
+   */
+  public long getCrc() {
+    return crc.getValue();
+  }
+
+  /**
+   * @return Uncompressed size
+   */
+  public long getSize() {
+    return this.size;
+  }
+
+  /**
+   * @return Compressed size, available after {@link #finish()}
+   */
+  public long getCompressedSize() {
+    return data.getByteCount();
+  }
+
+  /**
+   * Writes the compressed data, after {@link #finish()}.
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeTo(@NotNull OutputStream os) throws IOException {
+    data.writeTo(os);
+  }
+
+  /**
+   * Resets the deflater and deletes the temporary file, if any.
+   * @throws IOException I/O exception
+   */
+  @Override
+  public void close() throws IOException {
+    deflater.reset();
+    data.close();
+    File file = data.getFile();
+    if (file != null) {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Streaming XML writer for JCR document view files that encodes directly to UTF-8 bytes.
+ * <p>
+ * The output format follows the JAXP identity transformation that is used for DOM documents: with indentation
+ * one element per line, indented by 2 spaces, or in compact mode all elements without any whitespace in between.
+ * Empty elements are closed with "/&gt;". Element and attribute names are written as given and have to be valid
+ * XML names already.
+ * </p>
+ * Only the names of the currently open elements are kept in memory.
+ * This class is not thread-safe.
+ */
+final class DocViewXmlWriter {
+
+  private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+      .getBytes(StandardCharsets.US_ASCII);
+  private static final int INDENT = 2;
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final OutputStream os;
+  private final boolean indent;
+  private final int baseDepth;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int count;
+  private final Deque<String> openElements = new ArrayDeque<>();
+  private boolean startTagOpen;
+
+  /**
+   * @param os Output stream. It is flushed but not closed by {@link #endDocument()}.
+   */
+  DocViewXmlWriter(@NotNull OutputStream os) {
+    this(os, true);
+  }
+
+  /**
+   * @param os Output stream. It is flushed but not closed by {@link #endDocument()}.
+   * @param indent Write one element per line with indentation. If false, the XML is written without any
+   *          whitespace between the elements.
+   */
+  DocViewXmlWriter(@NotNull OutputStream os, boolean indent) {
+    this(os, indent, 0);
+  }
+
+  /**
+   * @param os Output stream. It is flushed but not closed by {@link #endDocument()}.
+   * @param indent Write one element per line with indentation. If false, the XML is written without any
+   *          whitespace between the elements.
+   * @param baseDepth Depth of the first element, to write fragments that are inserted into other documents
+   */
+  DocViewXmlWriter(@NotNull OutputStream os, boolean indent, int baseDepth) {
+    this.os = os;
+    this.indent = indent;
+    this.baseDepth = baseDepth;
+  }
+
+  /**
+   * @return Depth of the next child element
+   */
+  public int getDepth() {
+    return baseDepth + openElements.size();
+  }
+
+  /**
+   * Writes the XML declaration.
+   * @throws IOException I/O exception
+   */
+  public void startDocument() throws IOException {
+    writeBytes(XML_DECLARATION);
+    writeNewLine();
+  }
+
+  /**
+   * Starts a new element. Attributes can be written until the first child element is started.
+   * @param name Element name
+   * @throws IOException I/O exception
+   */
+  public void startElement(@NotNull String name) throws IOException {
+    if (startTagOpen) {
+      write('>');
+      writeNewLine();
+    }
+    writeIndent(getDepth());
+    write('<');
+    writeText(name);
+    openElements.push(name);
+    startTagOpen = true;
+  }
+
+  /**
+   * Writes an attribute of the current element.
+   * @param name Attribute name
+   * @param value Attribute value (is escaped)
+   * @throws IOException I/O exception
+   */
+  public void attribute(@NotNull String name, @NotNull String value) throws IOException {
+    if (!startTagOpen) {
+      throw new IllegalStateException("Attribute outside of start tag: " + name);
+    }
+    write(' ');
+    writeText(name);
+    write('=');
+    write('"');
+    writeEscapedAttributeValue(value);
+    write('"');
+  }
+
+  /**
+   * Writes an escaped attribute value, without name and quotes. Used to fill the value slots between
+   * pre-rendered markup.
+   * @param value Attribute value (is escaped)
+   * @throws IOException I/O exception
+   */
+  public void attributeValue(@NotNull String value) throws IOException {
+    writeEscapedAttributeValue(value);
+  }
+
+  /**
+   * Writes pre-rendered markup as it is.
+   * @param bytes UTF-8 encoded markup
+   * @throws IOException I/O exception
+   */
+  public void raw(byte @NotNull [] bytes) throws IOException {
+    flushBuffer();
+    os.write(bytes);
+  }
+
+  /**
+   * Writes a complete child element pre-rendered by a writer with a base depth of {@link #getDepth()}.
+   * @param fragment UTF-8 encoded element including the line break after it
+   * @throws IOException I/O exception
+   */
+  public void fragment(byte @NotNull [] fragment) throws IOException {
+    if (startTagOpen) {
+      write('>');
+      writeNewLine();
+      startTagOpen = false;
+    }
+    raw(fragment);
+  }
+
+  /**
+   * Ends the current element.
+   * @throws IOException I/O exception
+   */
+  public void endElement() throws IOException {
+    String name = openElements.pop();
+    if (startTagOpen) {
+      write('/');
+      write('>');
+      startTagOpen = false;
+    }
+    else {
+      writeIndent(getDepth());
+      write('<');
+      write('/');
+      writeText(name);
+      write('>');
+    }
+    writeNewLine();
+  }
+
+  /**
+   * Flushes all buffered output.
+   * @throws IOException I/O exception
+   */
+  public void endDocument() throws IOException {
+    if (!openElements.isEmpty()) {
+      throw new IllegalStateException("Element not closed: " + openElements.peek());
+    }
+    flushBuffer();
+    os.flush();
+  }
+
+  private void writeNewLine() throws IOException {
+    if (indent) {
+      write('\n');
+    }
+  }
+
+  private void writeIndent(int depth) throws IOException {
+    if (!indent) {
+      return;
+    }
+    for (int i = 0; i < depth * INDENT; i++) {
+      write(' ');
+    }
+  }
+
+  private void writeEscapedAttributeValue(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          writeAscii("&amp;");
+          break;
+        case '<':
+          writeAscii("&lt;");
+          break;
+        case '>':
+          writeAscii("&gt;");
+          break;
+        case '"':
+          writeAscii("&quot;");
+          break;
+        default:
+          if (c < 0x20) {
+            writeAscii("&#");
+            writeAscii(Integer.toString(c));
+            write(';');
+          }
+          else {
+            i = writeChar(value, i, c);
+          }
+      }
+    }
+  }
+
+  private void writeText(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      i = writeChar(value, i, value.charAt(i));
+    }
+  }
+
+  /**
+   * Writes a single character as UTF-8.
+   * @return Index of the last character consumed (differs from index for surrogate pairs)
+   * @throws IOException if the character is an unpaired surrogate
+   */
+  private int writeChar(String value, int index, char c) throws IOException {
+    if (c < 0x80) {
+      write(c);
+    }
+    else if (c < 0x800) {
+      write(0xc0 | (c >> 6));
+      write(0x80 | (c & 0x3f));
+    }
+    else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+        && Character.isLowSurrogate(value.charAt(index + 1))) {
+      int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+      write(0xf0 | (codePoint >> 18));
+      write(0x80 | ((codePoint >> 12) & 0x3f));
+      write(0x80 | ((codePoint >> 6) & 0x3f));
+      write(0x80 | (codePoint & 0x3f));
+      return index + 1;
+    }
+    else if (Character.isSurrogate(c)) {
+      // unpaired surrogate cannot be represented in UTF-8, the transformer used for DOM documents fails as well
+      throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+    }
+    else {
+      write(0xe0 | (c >> 12));
+      write(0x80 | ((c >> 6) & 0x3f));
+      write(0x80 | (c & 0x3f));
+    }
+    return index;
+  }
+
+  private void writeAscii(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      write(value.charAt(i));
+    }
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    for (byte b : bytes) {
+      write(b);
+    }
+  }
+
+  private void write(int b) throws IOException {
+    if (count == buffer.length) {
+      flushBuffer();
+    }
+    buffer[count++] = (byte)b;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      os.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+}
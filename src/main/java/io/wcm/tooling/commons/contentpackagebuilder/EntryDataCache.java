@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the compressed data of entries by a hash of their uncompressed content, so that byte-identical
+ * entries - e.g. the nt:file metadata of binaries with the same content type, or the same page in several
+ * language copies - are compressed only once. The compressed data, CRC and sizes are reused for each copy.
+ * <p>
+ * Only entries up to {@link #MAX_ENTRY_SIZE} bytes are cached. The cache is bounded by the total uncompressed
+ * size of the cached entries: when the limit is reached it is cleared and filled again.
+ * </p>
+ * <p>
+ * Optionally the compressed data is persisted in an {@link EntryDataStore} as well, to reuse it in later builds.
+ * </p>
+ * This class is thread-safe.
+ */
+final class EntryDataCache {
+
+  static final int MAX_ENTRY_SIZE = 1024 * 1024;
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private final long maxBytes;
+  private final ConcurrentMap<Key, Future<ZipEntryData>> cache = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder storeHits = new LongAdder();
+  private final EntryDataStore store;
+
+  EntryDataCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxBytes Max. total uncompressed size of the cached entries
+   */
+  EntryDataCache(long maxBytes) {
+    this(maxBytes, null);
+  }
+
+  /**
+   * @param maxBytes Max. total uncompressed size of the entries cached in memory
+   * @param store Persistent store, or null
+   */
+  EntryDataCache(long maxBytes, @Nullable EntryDataStore store) {
+    this.maxBytes = maxBytes;
+    this.store = store;
+  }
+
+  /**
+   * @param key Content hash
+   * @return Compressed entry data, possibly still being compressed, or null if not cached
+   */
+  @Nullable
+  Future<ZipEntryData> get(@NotNull Key key) {
+    Future<ZipEntryData> data = cache.get(key);
+    if (data == null && store != null) {
+      ZipEntryData stored = store.load(key);
+      if (stored != null) {
+        storeHits.increment();
+        data = CompletableFuture.completedFuture(stored);
+        put(key, data);
+      }
+    }
+    if (data != null) {
+      hits.increment();
+    }
+    else {
+      misses.increment();
+    }
+    return data;
+  }
+
+  /**
+   * @param key Content hash
+   * @param data Compressed entry data, possibly still being compressed
+   */
+  void put(@NotNull Key key, @NotNull Future<ZipEntryData> data) {
+    if (key.size > maxBytes) {
+      return;
+    }
+    if (bytes.get() + key.size > maxBytes) {
+      cache.clear();
+      bytes.set(0);
+    }
+    if (cache.putIfAbsent(key, data) == null) {
+      bytes.addAndGet(key.size);
+    }
+  }
+
+  /**
+   * Persists the compressed data of an entry that was not found in the cache.
+   * @param key Content hash
+   * @param data Compressed entry data
+   * @throws IOException I/O exception
+   */
+  void persist(@NotNull Key key, @NotNull ZipEntryData data) throws IOException {
+    if (store != null) {
+      store.store(key, data);
+    }
+  }
+
+  /**
+   * @param length Uncompressed size
+   * @return true if entries of this size are cached
+   */
+  static boolean isCacheable(long length) {
+    return length <= MAX_ENTRY_SIZE;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return Number of hits that were loaded from the persistent store
+   */
+  long getStoreHitCount() {
+    return storeHits.sum();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  /**
+   * Computes the SHA-256 hash of the uncompressed entry data.
+   * @param data Data
+   * @param length Number of bytes in data array to use
+   * @return Cache key
+   */
+  static Key key(byte[] data, int length) {
+    MessageDigest digest = newDigest();
+    digest.update(data, 0, length);
+    return new Key(digest.digest(), length);
+  }
+
+  /**
+   * @return New message digest for computing content hashes
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 not supported.", ex);
+    }
+  }
+
+  /**
+   * @param hash Hash bytes
+   * @return Hash as lower-case hex string
+   */
+  static String toHex(byte[] hash) {
+    StringBuilder result = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return result.toString();
+  }
+
+
+  /**
+   * Content hash and size of the uncompressed entry data.
+   */
+  static final class Key {
+
+    private final byte[] hash;
+    private final long size;
+    private final int hashCode;
+
+    Key(byte[] hash, long size) {
+      this.hash = hash;
+      this.size = size;
+      this.hashCode = Arrays.hashCode(hash);
+    }
+
+    /**
+     * @return Uncompressed size
+     */
+    long getSize() {
+      return size;
+    }
+
+    /**
+     * @return Content hash as lower-case hex string
+     */
+    String getHashHex() {
+      return toHex(hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)obj;
+      return size == other.size && Arrays.equals(hash, other.hash);
+    }
+
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persistent store for compressed entry data in a local directory, to reuse it across builds.
+ * <p>
+ * Each entry is stored in a file named after the content hash and size of its uncompressed data, in
+ * sub-directories by the first two hex digits of the hash. Files are written to a temporary file first and moved
+ * into place, so concurrent builds can share the same directory. Reading an entry updates its modification time.
+ * When the total size of the files exceeds the limit, the least recently used files are deleted until the
+ * total size is below 3/4 of the limit.
+ * </p>
+ * This class is thread-safe.
+ */
+final class EntryDataStore {
+
+  private static final String FILE_EXTENSION = ".entry";
+  private static final int FORMAT_VERSION = 1;
+
+  private final Path directory;
+  private final long maxBytes;
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * @param directory Cache directory. It is created if it does not exist.
+   * @param maxBytes Max. total size of the cache files
+   * @throws IOException I/O exception
+   */
+  EntryDataStore(@NotNull Path directory, long maxBytes) throws IOException {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("Invalid max. entry cache bytes: " + maxBytes);
+    }
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+    long total = 0;
+    for (Path file : listFiles()) {
+      total += fileSize(file);
+    }
+    bytes.set(total);
+  }
+
+  /**
+   * @param key Content hash
+   * @return Compressed entry data or null if not stored
+   */
+  @Nullable
+  ZipEntryData load(@NotNull EntryDataCache.Key key) {
+    Path file = getFile(key);
+    try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (is.readInt() != FORMAT_VERSION) {
+        return null;
+      }
+      int method = is.readInt();
+      long crc = is.readLong();
+      long size = is.readLong();
+      byte[] data = new byte[is.readInt()];
+      is.readFully(data);
+      if (size != key.getSize()) {
+        return null;
+      }
+      touch(file);
+      return ZipEntryData.compressed(method, crc, size, data);
+    }
+    catch (IOException ex) {
+      // not stored, deleted concurrently or incomplete - compress again
+      return null;
+    }
+  }
+
+  /**
+   * @param key Content hash
+   * @param data Compressed entry data
+   * @throws IOException I/O exception
+   */
+  void store(@NotNull EntryDataCache.Key key, @NotNull ZipEntryData data) throws IOException {
+    Path file = getFile(key);
+    if (Files.exists(file)) {
+      return;
+    }
+    Files.createDirectories(file.getParent());
+    Path tempFile = Files.createTempFile(file.getParent(), "entry", ".tmp");
+    try {
+      try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        os.writeInt(FORMAT_VERSION);
+        os.writeInt(data.getMethod());
+        os.writeLong(data.getCrc());
+        os.writeLong(data.getSize());
+        os.writeInt((int)data.getCompressedSize());
+        data.writeTo(os);
+      }
+      long fileSize = Files.size(tempFile);
+      Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (bytes.addAndGet(fileSize) > maxBytes) {
+        evict();
+      }
+    }
+    finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Deletes the least recently used files until the total size is below 3/4 of the limit.
+   */
+  private synchronized void evict() throws IOException {
+    if (bytes.get() <= maxBytes) {
+      return;
+    }
+    Map<Path, FileTime> lastModified = new HashMap<>();
+    long total = 0;
+    for (Path file : listFiles()) {
+      lastModified.put(file, lastModified(file));
+      total += fileSize(file);
+    }
+    List<Path> files = new ArrayList<>(lastModified.keySet());
+    files.sort(Comparator.comparing(lastModified::get));
+    long target = maxBytes / 4 * 3;
+    for (Path file : files) {
+      if (total <= target) {
+        break;
+      }
+      long size = fileSize(file);
+      if (Files.deleteIfExists(file)) {
+        total -= size;
+      }
+    }
+    bytes.set(total);
+  }
+
+  long getSize() {
+    return bytes.get();
+  }
+
+  private Path getFile(EntryDataCache.Key key) {
+    String name = key.getHashHex();
+    return directory.resolve(name.substring(0, 2)).resolve(name + "-" + key.getSize() + FILE_EXTENSION);
+  }
+
+  private List<Path> listFiles() throws IOException {
+    try (Stream<Path> files = Files.walk(directory, 2)) {
+      return files
+          .filter(file -> file.getFileName().toString().endsWith(FILE_EXTENSION))
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static void touch(Path file) {
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+    catch (IOException ex) {
+      // ignore - file was evicted concurrently
+    }
+  }
+
+  private static long fileSize(Path file) {
+    try {
+      return Files.size(file);
+    }
+    catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    }
+    catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+}
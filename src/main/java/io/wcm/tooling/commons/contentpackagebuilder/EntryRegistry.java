@@ -0,0 +1,311 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps track of the folder and file entries written to a content package in a trie of path segments.
+ * <p>
+ * Each node stores only its own segment name, and equal segment names are shared by all nodes (up to a limited
+ * number of distinct names, as unique file names would only fill up the shared names). Child nodes are
+ * looked up by comparing character ranges of the given path, so registering a path whose folders already exist
+ * allocates nothing. Missing folder entries are created parent first, duplicate file entries are rejected before
+ * their content is rendered.
+ * </p>
+ * <p>
+ * This class is thread-safe without a registry-wide lock: child nodes are looked up without locking and inserted
+ * while holding only the lock of their parent node, file entries are claimed by a compare-and-set. Each folder
+ * entry is written exactly once by the first caller that needs it, outside of any lock; concurrent callers
+ * needing the same folder wait for that entry only.
+ * </p>
+ */
+final class EntryRegistry {
+
+  private static final int MAX_SHARED_SEGMENTS = 64 * 1024;
+
+  private final Node root = new Node("");
+  private final ConcurrentMap<String, String> segments = new ConcurrentHashMap<>();
+  private final LongAdder folderCount = new LongAdder();
+  private final LongAdder fileCount = new LongAdder();
+
+  /**
+   * Creates a folder entry in the ZIP archive.
+   */
+  @FunctionalInterface
+  interface FolderWriter {
+
+    /**
+     * @param folderPath Folder path with trailing slash
+     * @throws IOException I/O exception
+     */
+    void writeFolder(@NotNull String folderPath) throws IOException;
+
+  }
+
+  /**
+   * Registers a file entry and ensures entries for all its parent folders exist.
+   * @param path File path
+   * @param folderWriter Creates missing folder entries
+   * @throws ZipException if a file with this path was registered already
+   * @throws IOException I/O exception
+   */
+  void registerFile(@NotNull String path, @NotNull FolderWriter folderWriter) throws IOException {
+    int nameStart = path.lastIndexOf('/') + 1;
+    if (nameStart == path.length()) {
+      throw new IllegalArgumentException("Invalid file path: " + path);
+    }
+    Node parent = ensureFolders(path, nameStart, folderWriter);
+    Node file = parent.getOrAddChild(path, nameStart, path.length(), this);
+    if (!Node.FILE.compareAndSet(file, 0, 1)) {
+      throw new ZipException("duplicate entry: " + path);
+    }
+    fileCount.increment();
+  }
+
+  /**
+   * Ensures entries for the given folder and all its parent folders exist.
+   * @param folderPath Folder path (trailing slash is optional)
+   * @param folderWriter Creates missing folder entries
+   * @throws IOException I/O exception
+   */
+  void registerFolder(@NotNull String folderPath, @NotNull FolderWriter folderWriter) throws IOException {
+    ensureFolders(folderPath, folderPath.length(), folderWriter);
+  }
+
+  /**
+   * @return Number of folder entries created
+   */
+  int getFolderCount() {
+    return folderCount.intValue();
+  }
+
+  /**
+   * @return Number of file entries registered
+   */
+  int getFileCount() {
+    return fileCount.intValue();
+  }
+
+  /**
+   * Walks all folder segments within the given path range, creating missing folder entries.
+   * @return Node of the last folder
+   */
+  private Node ensureFolders(String path, int end, FolderWriter folderWriter) throws IOException {
+    Node node = root;
+    int start = 0;
+    while (start < end) {
+      int slash = path.indexOf('/', start);
+      int segmentEnd = slash < 0 || slash > end ? end : slash;
+      if (segmentEnd > start) {
+        node = node.getOrAddChild(path, start, segmentEnd, this);
+        ensureFolder(node, path, segmentEnd, folderWriter);
+      }
+      start = segmentEnd + 1;
+    }
+    return node;
+  }
+
+  /**
+   * Writes the folder entry of the given node once. The first caller claims the folder by installing a future,
+   * all other callers wait for it to complete. If writing fails, the claim is removed so a later call retries.
+   */
+  private void ensureFolder(Node node, String path, int segmentEnd, FolderWriter folderWriter) throws IOException {
+    CompletableFuture<Void> folder = node.folder;
+    if (folder == Node.WRITTEN) {
+      return;
+    }
+    if (folder == null) {
+      CompletableFuture<Void> claim = new CompletableFuture<>();
+      if (Node.FOLDER.compareAndSet(node, null, claim)) {
+        try {
+          folderWriter.writeFolder(path.substring(0, segmentEnd) + "/");
+        }
+        catch (IOException | RuntimeException ex) {
+          node.folder = null;
+          claim.completeExceptionally(ex);
+          throw ex;
+        }
+        folderCount.increment();
+        node.folder = Node.WRITTEN;
+        claim.complete(null);
+        return;
+      }
+      folder = node.folder;
+      if (folder == null || folder == Node.WRITTEN) {
+        // claim failed and was removed, or the folder was written in between
+        ensureFolder(node, path, segmentEnd, folderWriter);
+        return;
+      }
+    }
+    await(folder);
+  }
+
+  private static void await(CompletableFuture<Void> folder) throws IOException {
+    try {
+      folder.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for folder entry.");
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IOException("Writing folder entry failed: " + cause.getMessage(), cause);
+    }
+  }
+
+  private String intern(String segment) {
+    String existing = segments.get(segment);
+    if (existing != null) {
+      return existing;
+    }
+    if (segments.size() < MAX_SHARED_SEGMENTS) {
+      existing = segments.putIfAbsent(segment, segment);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return segment;
+  }
+
+  private static int hash(String path, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + path.charAt(i);
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+
+  /**
+   * Trie node with an open-addressing hash table of child nodes.
+   * <p>
+   * Lookups read the published table without locking. Children are inserted while holding the lock of this node
+   * only; a full table is replaced by a larger copy, so a lookup on an outdated table may miss a child and then
+   * repeats the lookup while holding the lock.
+   * </p>
+   */
+  private static final class Node {
+
+    private static final int INITIAL_CAPACITY = 4;
+    private static final CompletableFuture<Void> WRITTEN = CompletableFuture.completedFuture(null);
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, CompletableFuture> FOLDER =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, CompletableFuture.class, "folder");
+    private static final AtomicIntegerFieldUpdater<Node> FILE =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "file");
+
+    private final String name;
+    private volatile AtomicReferenceArray<Node> children;
+    private int childCount;
+    private volatile CompletableFuture<Void> folder;
+    private volatile int file;
+
+    Node(String name) {
+      this.name = name;
+    }
+
+    Node getOrAddChild(String path, int start, int end, EntryRegistry registry) {
+      int hash = hash(path, start, end);
+      Node child = find(children, path, start, end, hash);
+      if (child != null) {
+        return child;
+      }
+      synchronized (this) {
+        child = find(children, path, start, end, hash);
+        if (child == null) {
+          child = new Node(registry.intern(path.substring(start, end)));
+          addChild(child, hash);
+        }
+        return child;
+      }
+    }
+
+    private static Node find(AtomicReferenceArray<Node> table, String path, int start, int end, int hash) {
+      if (table == null) {
+        return null;
+      }
+      int mask = table.length() - 1;
+      for (int i = hash & mask;; i = (i + 1) & mask) {
+        Node child = table.get(i);
+        if (child == null) {
+          return null;
+        }
+        if (child.name.length() == end - start && path.regionMatches(start, child.name, 0, end - start)) {
+          return child;
+        }
+      }
+    }
+
+    private void addChild(Node child, int hash) {
+      AtomicReferenceArray<Node> table = children;
+      if (table == null) {
+        table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        insert(table, child, hash);
+        children = table;
+      }
+      else if ((childCount + 1) * 4 > table.length() * 3) {
+        AtomicReferenceArray<Node> newTable = new AtomicReferenceArray<>(table.length() * 2);
+        for (int i = 0; i < table.length(); i++) {
+          Node oldChild = table.get(i);
+          if (oldChild != null) {
+            insert(newTable, oldChild, hash(oldChild.name, 0, oldChild.name.length()));
+          }
+        }
+        insert(newTable, child, hash);
+        children = newTable;
+      }
+      else {
+        insert(table, child, hash);
+      }
+      childCount++;
+    }
+
+    private static void insert(AtomicReferenceArray<Node> table, Node child, int hash) {
+      int mask = table.length() - 1;
+      int i = hash & mask;
+      while (table.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      table.set(i, child);
+    }
+
+  }
+
+}
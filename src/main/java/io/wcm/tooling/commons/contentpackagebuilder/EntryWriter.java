@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes the entries of a content package to the ZIP archive.
+ * Implementations decide where and when entry data is compressed; entries always appear in the archive
+ * in the order they were added.
+ */
+interface EntryWriter extends Closeable {
+
+  /**
+   * Adds a directory entry.
+   * @param path Directory path, ending with "/"
+   * @throws IOException I/O exception
+   */
+  void writeDirectory(@NotNull String path) throws IOException;
+
+  /**
+   * Adds a file entry.
+   * @param path File path
+   * @param content Produces the uncompressed entry data
+   * @throws IOException I/O exception
+   */
+  void writeEntry(@NotNull String path, @NotNull EntryContent content) throws IOException;
+
+  /**
+   * Adds a file entry that is stored without compression, e.g. because its content is already compressed.
+   * @param path File path
+   * @param content Produces the entry data
+   * @throws IOException I/O exception
+   */
+  void writeStoredEntry(@NotNull String path, @NotNull EntryContent content) throws IOException;
+
+  /**
+   * Adds a file entry that is stored without compression, with data that is transferred directly to the
+   * channel of the ZIP archive (without copying it through Java arrays, if possible).
+   * @param path File path
+   * @param crc CRC-32 of the data
+   * @param size Data size
+   * @param content Transfers the entry data
+   * @throws IOException I/O exception
+   */
+  void transferStoredEntry(@NotNull String path, long crc, long size, @NotNull ChannelContent content) throws IOException;
+
+  /**
+   * Writes all pending entries and the ZIP central directory, and closes the output stream.
+   * @throws IOException I/O exception
+   */
+  @Override
+  void close() throws IOException;
+
+
+  /**
+   * Produces the uncompressed data of a ZIP entry.
+   */
+  @FunctionalInterface
+  interface EntryContent {
+
+    /**
+     * @param os Output stream to write the entry data to. Must not be closed.
+     * @throws IOException I/O exception
+     */
+    void writeTo(@NotNull OutputStream os) throws IOException;
+
+  }
+
+  /**
+   * Transfers the data of a stored ZIP entry to a channel.
+   */
+  @FunctionalInterface
+  interface ChannelContent {
+
+    /**
+     * @param target Channel to write the entry data to. Must not be closed.
+     * @throws IOException I/O exception
+     */
+    void transferTo(@NotNull WritableByteChannel target) throws IOException;
+
+  }
+
+}
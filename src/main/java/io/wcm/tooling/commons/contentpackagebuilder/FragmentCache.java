@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
+
+/**
+ * Caches the rendered XML fragments of {@link SharedContentElement} subtrees.
+ * <p>
+ * A fragment depends on the element instance, its node name, the indentation depth and the XML output options,
+ * all of them are part of the cache key. The cache is bounded by the number of fragments and their total size:
+ * when a limit is reached it is cleared and filled again with the fragments in use.
+ * </p>
+ * This class is thread-safe.
+ */
+final class FragmentCache {
+
+  static final int DEFAULT_MAX_ENTRIES = 1024;
+  static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+  /**
+   * Cached for subtrees that cannot be cached because of the way their children are placed.
+   */
+  static final byte[] NOT_CACHEABLE = new byte[0];
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final ConcurrentMap<Key, byte[]> cache = new ConcurrentHashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  FragmentCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxEntries Max. number of cached fragments
+   * @param maxBytes Max. total size of cached fragments
+   */
+  FragmentCache(int maxEntries, long maxBytes) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param key Cache key
+   * @param renderer Renders the fragment if it is not cached
+   * @return Fragment bytes or {@link #NOT_CACHEABLE}
+   * @throws IOException I/O exception
+   */
+  byte @NotNull [] get(@NotNull Key key, @NotNull FragmentRenderer renderer) throws IOException {
+    byte[] fragment = cache.get(key);
+    if (fragment != null) {
+      hits.increment();
+      return fragment;
+    }
+    misses.increment();
+    fragment = renderer.render();
+    if (fragment.length > maxBytes) {
+      return fragment;
+    }
+    if (cache.size() >= maxEntries || bytes.get() + fragment.length > maxBytes) {
+      cache.clear();
+      bytes.set(0);
+    }
+    if (cache.putIfAbsent(key, fragment) == null) {
+      bytes.addAndGet(fragment.length);
+    }
+    return fragment;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  void clear() {
+    cache.clear();
+    bytes.set(0);
+  }
+
+
+  /**
+   * Renders an XML fragment.
+   */
+  @FunctionalInterface
+  interface FragmentRenderer {
+
+    /**
+     * @return Fragment bytes or {@link FragmentCache#NOT_CACHEABLE}
+     * @throws IOException I/O exception
+     */
+    byte @NotNull [] render() throws IOException;
+
+  }
+
+  /**
+   * Cache key, compares the element by identity.
+   */
+  static final class Key {
+
+    private final SharedContentElement element;
+    private final String name;
+    private final int depth;
+    private final int flags;
+
+    /**
+     * @param element Shared element
+     * @param name Node name
+     * @param depth Indentation depth
+     * @param flags XML output options and placement mode affecting the fragment
+     */
+    Key(SharedContentElement element, String name, int depth, int flags) {
+      this.element = element;
+      this.name = name;
+      this.depth = depth;
+      this.flags = flags;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((System.identityHashCode(element) * 31 + name.hashCode()) * 31 + depth) * 31 + flags;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)obj;
+      return element == other.element && depth == other.depth && flags == other.flags
+          && name.equals(other.name);
+    }
+
+  }
+
+}
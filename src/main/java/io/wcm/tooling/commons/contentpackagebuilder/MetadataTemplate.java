@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Package metadata file template from the classpath, compiled into literal byte segments and
+ * <code>{{name}}</code> placeholder slots.
+ * <p>
+ * Templates are parsed only once and shared by all {@link ContentPackage} instances.
+ * Templates without placeholders always render to the same precomputed bytes.
+ * </p>
+ * Instances are immutable and thread-safe.
+ */
+final class MetadataTemplate {
+
+  static final String CLASSPATH_PREFIX = "/content-package-template/";
+
+  private static final String PLACEHOLDER_START = "{{";
+  private static final String PLACEHOLDER_END = "}}";
+
+  private static final ConcurrentMap<String, MetadataTemplate> CACHE = new ConcurrentHashMap<>();
+
+  private final byte[][] literals;
+  private final String[] slots;
+  private final byte[] staticContent;
+
+  /**
+   * @param template Template content
+   */
+  MetadataTemplate(@NotNull String template) {
+    List<byte[]> literalList = new ArrayList<>();
+    List<String> slotList = new ArrayList<>();
+    int pos = 0;
+    while (true) {
+      int start = template.indexOf(PLACEHOLDER_START, pos);
+      int end = start >= 0 ? template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length()) : -1;
+      if (end < 0) {
+        break;
+      }
+      literalList.add(template.substring(pos, start).getBytes(StandardCharsets.UTF_8));
+      slotList.add(template.substring(start + PLACEHOLDER_START.length(), end));
+      pos = end + PLACEHOLDER_END.length();
+    }
+    literalList.add(template.substring(pos).getBytes(StandardCharsets.UTF_8));
+    this.literals = literalList.toArray(new byte[0][]);
+    this.slots = slotList.toArray(new String[0]);
+    this.staticContent = slots.length == 0 ? literals[0] : null;
+  }
+
+  /**
+   * Gets the compiled template for a package metadata file.
+   * @param path Path of the metadata file in the package, e.g. <code>META-INF/vault/config.xml</code>
+   * @return Compiled template
+   */
+  static @NotNull MetadataTemplate get(@NotNull String path) {
+    return CACHE.computeIfAbsent(path, MetadataTemplate::load);
+  }
+
+  private static MetadataTemplate load(String path) {
+    try (InputStream is = MetadataTemplate.class.getResourceAsStream(CLASSPATH_PREFIX + path)) {
+      if (is == null) {
+        throw new IllegalArgumentException("Metadata template not found: " + path);
+      }
+      return new MetadataTemplate(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    catch (IOException ex) {
+      throw new UncheckedIOException("Unable to read metadata template: " + path, ex);
+    }
+  }
+
+  /**
+   * @return true if the template contains no placeholders
+   */
+  boolean isStatic() {
+    return staticContent != null;
+  }
+
+  /**
+   * Renders the template. Placeholders are replaced with the XML-escaped variable values,
+   * placeholders without a matching variable are kept as they are.
+   * @param vars Variables
+   * @return Rendered content. For static templates, the same shared array is returned each time - it must not
+   *         be modified.
+   */
+  byte[] render(@NotNull Map<String, Object> vars) {
+    if (staticContent != null) {
+      return staticContent;
+    }
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    for (int i = 0; i < slots.length; i++) {
+      bos.writeBytes(literals[i]);
+      Object value = vars.get(slots[i]);
+      String text = value != null
+          ? PropertiesXmlWriter.escape(value.toString(), true)
+          : PLACEHOLDER_START + slots[i] + PLACEHOLDER_END;
+      bos.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+    bos.writeBytes(literals[slots.length]);
+    return bos.toByteArray();
+  }
+
+}
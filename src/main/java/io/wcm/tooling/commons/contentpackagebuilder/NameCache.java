@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Caches the validation result, namespace prefix and the encoded forms of JCR names, shared by all content packages.
+ * Content usually uses a small vocabulary of property names, node types and namespaced node names over and over
+ * again. Unique names like page or asset names should not be looked up here, they would only displace the
+ * vocabulary.
+ * <p>
+ * The cache is a fixed-size table of slots addressed by the name hash code, like
+ * {@link io.wcm.tooling.commons.contentpackagebuilder.element.StringPool}: a name replaces the entry of its slot,
+ * so the memory used is bounded independently of the number of builds, and a rarely used name is eventually
+ * replaced by a frequently used one, without clearing the whole cache.
+ * </p>
+ * This class is thread-safe.
+ */
+final class NameCache {
+
+  private static final int INDEX_BITS = 12;
+  static final int MAX_SIZE = 1 << INDEX_BITS;
+
+  private static final AtomicReferenceArray<Name> CACHE = new AtomicReferenceArray<>(MAX_SIZE);
+
+  private NameCache() {
+    // static methods only
+  }
+
+  /**
+   * @param name JCR name
+   * @return Cached name information
+   */
+  static @NotNull Name get(@NotNull String name) {
+    // multiplicative hashing spreads similar names like "item1", "item2" over all slots
+    int index = (name.hashCode() * 0x9E3779B9) >>> (Integer.SIZE - INDEX_BITS);
+    Name result = CACHE.get(index);
+    if (result == null || !result.name.equals(name)) {
+      result = new Name(name);
+      CACHE.lazySet(index, result);
+    }
+    return result;
+  }
+
+  static int size() {
+    int size = 0;
+    for (int i = 0; i < MAX_SIZE; i++) {
+      if (CACHE.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+
+  /**
+   * Validation result and encoded forms of a JCR name.
+   */
+  static final class Name {
+
+    private final String name;
+    private final boolean valid;
+    private final String prefix;
+    private final String xmlName;
+    private final String platformName;
+
+    Name(@NotNull String name) {
+      this.name = name;
+      this.valid = NameUtil.isValidName(name);
+      int colon = name.indexOf(':');
+      this.prefix = colon > 0 ? name.substring(0, colon) : null;
+      this.xmlName = valid ? ISO9075.encode(name) : null;
+      this.platformName = valid ? PlatformNameFormat.getPlatformName(name) : null;
+    }
+
+    /**
+     * @return true if the name is a valid JCR name
+     */
+    boolean isValid() {
+      return valid;
+    }
+
+    /**
+     * @return Namespace prefix, or null if the name has no prefix
+     */
+    @Nullable
+    String getPrefix() {
+      return prefix;
+    }
+
+    /**
+     * @return Name encoded as XML name (ISO 9075), or null if the name is invalid
+     */
+    @Nullable
+    String getXmlName() {
+      return xmlName;
+    }
+
+    /**
+     * @return Name encoded for the file system of the content package, or null if the name is invalid
+     */
+    @Nullable
+    String getPlatformName() {
+      return platformName;
+    }
+
+  }
+
+}
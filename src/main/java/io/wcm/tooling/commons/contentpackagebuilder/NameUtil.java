@@ -19,9 +19,8 @@
  */
 package io.wcm.tooling.commons.contentpackagebuilder;
 
-import java.util.regex.Pattern;
-
-import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
@@ -35,20 +34,6 @@ final class NameUtil {
   // we allow a single colon (:) as it separates the namespace
   private static final char NAMESPACE_SEPARATOR = ':';
 
-  private static final Pattern ILLEGAL_CHARS_PATTERN;
-  static {
-    StringBuilder sb = new StringBuilder();
-    sb.append("(");
-    for (int i = 0; i < ILLEGAL_CHARS.length(); i++) {
-      if (i > 0) {
-        sb.append("|");
-      }
-      sb.append(Pattern.quote(ILLEGAL_CHARS.substring(i, i + 1)));
-    }
-    sb.append(")");
-    ILLEGAL_CHARS_PATTERN = Pattern.compile(sb.toString());
-  }
-
   private NameUtil() {
     // static methods only
   }
@@ -59,14 +44,34 @@ final class NameUtil {
    * @return true if valid
    */
   public static boolean isValidName(@Nullable String name) {
-    if (StringUtils.isEmpty(name)) {
+    return name != null && isValidName(name, 0, name.length());
+  }
+
+  /**
+   * Checks if the given range of the string is a valid JCR name.
+   * @param value String containing the name
+   * @param start Start index of name (inclusive)
+   * @param end End index of name (exclusive)
+   * @return true if valid
+   */
+  static boolean isValidName(@NotNull String value, int start, int end) {
+    if (start >= end) {
       return false;
     }
-    int numberOfColons = StringUtils.countMatches(name, NAMESPACE_SEPARATOR);
-    if (numberOfColons > 1) {
-      return false;
+    boolean colon = false;
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      if (c == NAMESPACE_SEPARATOR) {
+        if (colon) {
+          return false;
+        }
+        colon = true;
+      }
+      else if (ILLEGAL_CHARS.indexOf(c) >= 0) {
+        return false;
+      }
     }
-    return !ILLEGAL_CHARS_PATTERN.matcher(name).find();
+    return true;
   }
 
   /**
@@ -74,19 +79,70 @@ final class NameUtil {
    * @param path Path.
    */
   public static void ensureValidPath(String path) {
-    String relativePath;
-    if (StringUtils.startsWith(path, "/")) {
-      relativePath = path.substring(1);
+    int start = 0;
+    int length = path.length();
+    while (start < length) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      // empty path parts are ignored
+      if (end > start && !isValidName(path, start, end)) {
+        throw new IllegalArgumentException("Path contains illegal node names: " + path);
+      }
+      start = end + 1;
     }
-    else {
-      relativePath = path;
+  }
+
+  /**
+   * Validates all parts of the path and encodes each of them for the file system of the content package.
+   * Path segments are mostly unique page and asset names, so they are not cached; names consisting only of
+   * characters that are never escaped are copied without encoding them.
+   * @param path Absolute path
+   * @return Platform path
+   */
+  static String getPlatformPath(@NotNull String path) {
+    StringBuilder result = new StringBuilder(path.length() + 16);
+    int start = 0;
+    int length = path.length();
+    while (true) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        if (!isValidName(path, start, end)) {
+          throw new IllegalArgumentException("Path contains illegal node names: " + path);
+        }
+        if (isPlainName(path, start, end)) {
+          result.append(path, start, end);
+        }
+        else {
+          result.append(PlatformNameFormat.getPlatformName(path.substring(start, end)));
+        }
+      }
+      if (end == length) {
+        break;
+      }
+      result.append('/');
+      start = end + 1;
     }
-    String[] pathParts = StringUtils.split(relativePath, "/");
-    for (String pathPart : pathParts) {
-      if (!NameUtil.isValidName(pathPart)) {
-        throw new IllegalArgumentException("Path contains illegal node names: " + path);
+    return result.toString();
+  }
+
+  /**
+   * @return true if the name starts with a letter or digit and contains only letters, digits, '.', '-' and '_'
+   *         (ASCII), so its platform name is the same
+   */
+  static boolean isPlainName(@NotNull String value, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = value.charAt(i);
+      boolean alphanumeric = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+      if (!alphanumeric && (i == start || (c != '.' && c != '-' && c != '_'))) {
+        return false;
       }
     }
+    return true;
   }
 
 }
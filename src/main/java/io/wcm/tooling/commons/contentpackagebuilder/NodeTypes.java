@@ -24,6 +24,8 @@ import java.util.Set;
 
 import org.apache.jackrabbit.JcrConstants;
 
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree;
+
 /**
  * Node type helper methods.
  */
@@ -64,4 +66,18 @@ final class NodeTypes {
     return false;
   }
 
+  /**
+   * Check if a dedicated folder should be created for the given node type.
+   * @param tree Content tree
+   * @param node Node
+   * @return true if a folder should be created for this node type
+   */
+  public static boolean hasFolderNodeType(CompactContentTree tree, int node) {
+    Object nodeType = tree.getProperty(node, JcrConstants.JCR_PRIMARYTYPE);
+    if (nodeType instanceof String) {
+      return isFolderNodeType((String)nodeType);
+    }
+    return false;
+  }
+
 }
@@ -34,6 +34,7 @@ public final class PackageFilter {
 
   private final String rootPath;
   private final List<PackageFilterRule> rules = new ArrayList<>();
+  private PackageFilterMode mode = PackageFilterMode.REPLACE;
 
   /**
    * Create filter with root path.
@@ -72,6 +73,24 @@ public final class PackageFilter {
     return this;
   }
 
+  /**
+   * Set import mode.
+   * @param value Import mode (default: replace)
+   * @return this
+   */
+  public PackageFilter setMode(PackageFilterMode value) {
+    this.mode = value;
+    return this;
+  }
+
+  /**
+   * Get import mode.
+   * @return Import mode
+   */
+  public PackageFilterMode getMode() {
+    return this.mode;
+  }
+
   /**
    * Get defined rules.
    * @return Get include/exclude rules
@@ -0,0 +1,68 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+/**
+ * Import mode of a package filter, defining how content covered by the filter is imported.
+ */
+public enum PackageFilterMode {
+
+  /**
+   * Replaces the existing content with the content of the package. Content not contained in the package is removed.
+   */
+  REPLACE("replace"),
+
+  /**
+   * Adds content of the package that does not exist yet. Existing content is not changed.
+   */
+  MERGE("merge"),
+
+  /**
+   * Adds new content and replaces existing content with the content of the package. Content not contained in the
+   * package is not removed.
+   */
+  UPDATE("update"),
+
+  /**
+   * Adds new nodes and new properties of existing nodes. Existing properties are not changed, nothing is removed.
+   */
+  MERGE_PROPERTIES("merge_properties"),
+
+  /**
+   * Adds new nodes and properties, and updates existing properties with the values of the package.
+   * Properties and nodes not contained in the package are not removed.
+   */
+  UPDATE_PROPERTIES("update_properties");
+
+
+  private final String mode;
+
+  PackageFilterMode(String mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * @return Mode string for filter.xml
+   */
+  public String getMode() {
+    return mode;
+  }
+
+}
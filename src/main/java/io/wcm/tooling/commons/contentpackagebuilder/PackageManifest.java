@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.apache.jackrabbit.vault.util.Constants.DOT_CONTENT_XML;
+import static org.apache.jackrabbit.vault.util.Constants.ROOT_DIR;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.ZipException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Content hashes of all entries below jcr_root of a content package, used to build delta packages that contain
+ * only the entries that are new or changed compared to a previous build.
+ * <p>
+ * The manifest is written as a text file next to the package, with one line per entry: the SHA-256 hash of the
+ * uncompressed entry data in hex, a space and the path of the entry in the package. The lines are sorted by path.
+ * </p>
+ * This class is thread-safe.
+ */
+final class PackageManifest {
+
+  private static final String ROOT_PREFIX = ROOT_DIR + "/";
+  private static final String DOT_DIR_FOLDER = ".dir";
+
+  private final NavigableMap<String, String> entries = new ConcurrentSkipListMap<>();
+
+  /**
+   * @param path Entry path
+   * @return true if entries with this path are tracked in the manifest
+   */
+  static boolean isTracked(@NotNull String path) {
+    return path.startsWith(ROOT_PREFIX);
+  }
+
+  /**
+   * @param path Entry path
+   * @param hash Content hash
+   * @throws ZipException if the entry was added already
+   */
+  void put(@NotNull String path, @NotNull String hash) throws ZipException {
+    if (entries.putIfAbsent(path, hash) != null) {
+      throw new ZipException("duplicate entry: " + path);
+    }
+  }
+
+  /**
+   * @param path Entry path
+   * @return Content hash or null
+   */
+  @Nullable
+  String get(@NotNull String path) {
+    return entries.get(path);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Builds the package filters for a delta package: one filter for each JCR node with an entry that is new or
+   * changed compared to the previous manifest, and one filter for each node whose entries are removed, so it is
+   * deleted on installation. Filters of nodes stored in a .content.xml file exclude the child nodes that have
+   * entries of their own, so unchanged child nodes are not removed.
+   * @param previous Manifest of previous build
+   * @return Package filters
+   */
+  @NotNull
+  List<PackageFilter> getDeltaFilters(@NotNull PackageManifest previous) {
+    Map<String, PackageFilter> filters = new TreeMap<>();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      String path = entry.getKey();
+      if (!entry.getValue().equals(previous.get(path))) {
+        String nodePath = getNodePlatformPath(path);
+        filters.computeIfAbsent(nodePath, key -> {
+          PackageFilter filter = new PackageFilter(toRepositoryPath(key));
+          if (isNodeContentXml(path)) {
+            excludeChildEntries(filter, key);
+          }
+          return filter;
+        });
+      }
+    }
+    for (String path : previous.entries.keySet()) {
+      if (!entries.containsKey(path)) {
+        String nodePath = getNodePlatformPath(path);
+        if (!hasEntries(nodePath)) {
+          filters.computeIfAbsent(nodePath, key -> new PackageFilter(toRepositoryPath(key)));
+        }
+      }
+    }
+    return new ArrayList<>(filters.values());
+  }
+
+  /**
+   * Excludes all direct child nodes of the given node that have entries of their own.
+   */
+  private void excludeChildEntries(PackageFilter filter, String nodePath) {
+    String folder = ROOT_DIR + nodePath + "/";
+    Set<String> childNames = new TreeSet<>();
+    for (String path : entries.subMap(folder, true, folder + Character.MAX_VALUE, false).keySet()) {
+      String relativePath = path.substring(folder.length());
+      if (relativePath.equals(DOT_CONTENT_XML)) {
+        continue;
+      }
+      String childName = StringUtils.substringBefore(relativePath, "/");
+      childNames.add(StringUtils.removeEnd(childName, DOT_DIR_FOLDER));
+    }
+    String parentPath = StringUtils.removeEnd(filter.getRootPath(), "/");
+    for (String childName : childNames) {
+      filter.addExcludeRule(escapePattern(parentPath + "/" + PlatformNameFormat.getRepositoryName(childName)) + "(/.*)?");
+    }
+  }
+
+  /**
+   * @return true if there are entries for the node with the given platform path or below it
+   */
+  private boolean hasEntries(String nodePath) {
+    String path = ROOT_DIR + nodePath;
+    return entries.containsKey(path)
+        || hasEntriesWithPrefix(path + "/")
+        || hasEntriesWithPrefix(path + DOT_DIR_FOLDER + "/");
+  }
+
+  private boolean hasEntriesWithPrefix(String prefix) {
+    String next = entries.ceilingKey(prefix);
+    return next != null && next.startsWith(prefix);
+  }
+
+  /**
+   * @return true if the entry is the .content.xml of a folder node, not the metadata of a file node
+   */
+  private static boolean isNodeContentXml(String path) {
+    return path.endsWith("/" + DOT_CONTENT_XML)
+        && !StringUtils.removeEnd(path, "/" + DOT_CONTENT_XML).endsWith(DOT_DIR_FOLDER);
+  }
+
+  /**
+   * @param path Entry path
+   * @return Platform path of the JCR node the entry belongs to, without jcr_root prefix
+   */
+  static String getNodePlatformPath(String path) {
+    String nodePath = path.substring(ROOT_DIR.length());
+    if (nodePath.endsWith("/" + DOT_CONTENT_XML)) {
+      nodePath = StringUtils.removeEnd(nodePath, "/" + DOT_CONTENT_XML);
+      nodePath = StringUtils.removeEnd(nodePath, DOT_DIR_FOLDER);
+    }
+    return nodePath;
+  }
+
+  private static String toRepositoryPath(String platformPath) {
+    if (platformPath.isEmpty()) {
+      return "/";
+    }
+    return PlatformNameFormat.getRepositoryPath(platformPath);
+  }
+
+  /**
+   * Escapes regular expression characters in a path for a filter rule pattern.
+   */
+  private static String escapePattern(String path) {
+    StringBuilder result = new StringBuilder(path.length() + 8);
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if ("\\.[]{}()*+?^$|".indexOf(c) >= 0) {
+        result.append('\\');
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Reads a manifest file.
+   * @param file Manifest file
+   * @return Manifest
+   * @throws IOException I/O exception
+   */
+  static PackageManifest read(@NotNull Path file) throws IOException {
+    PackageManifest manifest = new PackageManifest();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int separator = line.indexOf(' ');
+        if (separator > 0) {
+          manifest.entries.put(line.substring(separator + 1), line.substring(0, separator));
+        }
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Writes the manifest file.
+   * @param file Manifest file
+   * @throws IOException I/O exception
+   */
+  void write(@NotNull Path file) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        writer.write(entry.getValue());
+        writer.write(' ');
+        writer.write(entry.getKey());
+        writer.write('\n');
+      }
+    }
+  }
+
+}
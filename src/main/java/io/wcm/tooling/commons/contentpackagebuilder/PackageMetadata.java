@@ -74,10 +74,41 @@ final class PackageMetadata {
     xmlNamespaces.putAll(XmlNamespaces.DEFAULT_NAMESPACES);
   }
 
+  /**
+   * @return Copy of this metadata, with its own lists of filters, XML namespaces and properties
+   */
+  PackageMetadata copy() {
+    PackageMetadata copy = new PackageMetadata();
+    copy.group = group;
+    copy.name = name;
+    copy.description = description;
+    copy.createdBy = createdBy;
+    copy.created = created;
+    copy.version = version;
+    copy.acHandling = acHandling;
+    copy.packageType = packageType;
+    copy.requiresRoot = requiresRoot;
+    copy.requiresRestart = requiresRestart;
+    copy.allowIndexDefinitions = allowIndexDefinitions;
+    copy.filters.addAll(filters);
+    copy.xmlNamespaces.putAll(xmlNamespaces);
+    copy.additionalProperties.putAll(additionalProperties);
+    copy.thumbnailImage = thumbnailImage;
+    return copy;
+  }
+
+  public String getGroup() {
+    return this.group;
+  }
+
   public void setGroup(String group) {
     this.group = group;
   }
 
+  public String getName() {
+    return this.name;
+  }
+
   public void setName(String name) {
     this.name = name;
   }
@@ -94,6 +125,10 @@ final class PackageMetadata {
     this.created = created;
   }
 
+  public Date getCreated() {
+    return this.created;
+  }
+
   public void setVersion(String version) {
     this.version = version;
   }
@@ -122,6 +157,11 @@ final class PackageMetadata {
     filters.add(filter);
   }
 
+  public void setFilters(List<PackageFilter> value) {
+    filters.clear();
+    filters.addAll(value);
+  }
+
   public List<PackageFilter> getFilters() {
     return Collections.unmodifiableList(filters);
   }
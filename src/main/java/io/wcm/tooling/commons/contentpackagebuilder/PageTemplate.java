@@ -0,0 +1,297 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+
+/**
+ * Page content that is rendered to XML once and reused for many pages that differ only in a few property values.
+ * <p>
+ * The page content is defined like for {@link ContentPackage#addPage(String, Map)}, with {@link Slot} instances
+ * created by {@link #slot(String, Class)} as values of the properties that differ from page to page.
+ * When a page is added with {@link ContentPackage#addPage(String, PageTemplate, Map)}, only the slot values are
+ * formatted, and written between the pre-rendered XML segments.
+ * </p>
+ * <p>
+ * The XML segments are rendered on first use for each combination of XML namespaces and XML output options,
+ * and always in streaming XML format, which is identical to the output of the DOM based serialization.
+ * Slots are not allowed for properties with JCR name values (e.g. <code>jcr:primaryType</code>), as their
+ * values may affect the namespace declarations.
+ * </p>
+ * This class is thread-safe.
+ */
+public final class PageTemplate {
+
+  // slot markers consist of characters that are neither escaped in XML nor in document view values
+  private static final char MARKER = '\uE000';
+  private static final byte[] MARKER_BYTES = String.valueOf(MARKER).getBytes(StandardCharsets.UTF_8);
+
+  private final Map<String, Object> content;
+  private final Map<String, Slot> slots = new LinkedHashMap<>();
+  private final List<SlotProperty> slotProperties = new ArrayList<>();
+  private final ConcurrentMap<String, Segments> segments = new ConcurrentHashMap<>();
+
+  /**
+   * @param content Page content with slots as property values. The "cq:Page/cq:PageContent envelope" is added
+   *          automatically.
+   */
+  public PageTemplate(@NotNull Map<String, Object> content) {
+    this.content = copyContent(content);
+  }
+
+  /**
+   * @param content Page content with slots as property values. The "cq:Page/cq:PageContent envelope" is added
+   *          automatically.
+   */
+  public PageTemplate(@NotNull ContentElement content) {
+    this.content = copyContent(content);
+  }
+
+  /**
+   * Creates a placeholder for a property value.
+   * @param name Slot name, used as key for the values when adding a page
+   * @param type Type of the values, e.g. String, Long, Date or String[]
+   * @return Slot
+   */
+  public static @NotNull Slot slot(@NotNull String name, @NotNull Class<?> type) {
+    return new Slot(name, type);
+  }
+
+  /**
+   * @return Page content with slot markers as property values
+   */
+  Map<String, Object> getContent() {
+    return content;
+  }
+
+  /**
+   * @return Slots in the order they appear in the content
+   */
+  public @NotNull Map<String, Slot> getSlots() {
+    return Collections.unmodifiableMap(slots);
+  }
+
+  /**
+   * Checks that there is a value of the right type for each slot, and no value for an unknown slot.
+   * @param values Slot values
+   */
+  void validate(Map<String, Object> values) {
+    for (Slot slot : slots.values()) {
+      Object value = values.get(slot.getName());
+      if (value == null) {
+        throw new IllegalArgumentException("Missing value for slot: " + slot.getName());
+      }
+      if (!slot.getType().isInstance(value)) {
+        throw new IllegalArgumentException("Invalid value for slot " + slot.getName() + ": expected "
+            + slot.getType().getName() + ", got " + value.getClass().getName());
+      }
+    }
+    for (String name : values.keySet()) {
+      if (!slots.containsKey(name)) {
+        throw new IllegalArgumentException("Unknown slot: " + name);
+      }
+    }
+  }
+
+  /**
+   * Writes the page XML with the given slot values.
+   * @param builder XML content builder, defines the XML output options
+   * @param values Slot values, validated by {@link #validate(Map)}
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  void write(XmlContentBuilder builder, Map<String, Object> values, OutputStream os) throws IOException {
+    Segments compiled = segments.computeIfAbsent(builder.getOutputKey(), key -> compile(builder));
+    DocViewXmlWriter writer = new DocViewXmlWriter(os);
+    for (int i = 0; i < compiled.slotProperties.length; i++) {
+      writer.raw(compiled.bytes[i]);
+      SlotProperty slotProperty = compiled.slotProperties[i];
+      writer.attributeValue(builder.formatValue(slotProperty.propertyName, values.get(slotProperty.slot.getName())));
+    }
+    writer.raw(compiled.bytes[compiled.slotProperties.length]);
+    writer.endDocument();
+  }
+
+  /**
+   * Renders the page with markers as slot values, and splits the XML at the markers.
+   */
+  private Segments compile(XmlContentBuilder builder) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try {
+      builder.writePage(content, bos);
+    }
+    catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    byte[] xml = bos.toByteArray();
+    List<byte[]> bytes = new ArrayList<>();
+    List<SlotProperty> order = new ArrayList<>();
+    int start = 0;
+    int markerStart = indexOf(xml, MARKER_BYTES, start);
+    while (markerStart >= 0) {
+      int indexStart = markerStart + MARKER_BYTES.length;
+      int markerEnd = indexOf(xml, MARKER_BYTES, indexStart);
+      int index = Integer.parseInt(new String(xml, indexStart, markerEnd - indexStart, StandardCharsets.US_ASCII));
+      bytes.add(Arrays.copyOfRange(xml, start, markerStart));
+      order.add(slotProperties.get(index));
+      start = markerEnd + MARKER_BYTES.length;
+      markerStart = indexOf(xml, MARKER_BYTES, start);
+    }
+    bytes.add(Arrays.copyOfRange(xml, start, xml.length));
+    return new Segments(bytes.toArray(new byte[0][]), order.toArray(new SlotProperty[0]));
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern, int fromIndex) {
+    for (int i = fromIndex; i <= data.length - pattern.length; i++) {
+      int j = 0;
+      while (j < pattern.length && data[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> copyContent(Map<String, Object> source) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Map) {
+        result.put(entry.getKey(), copyContent((Map<String, Object>)value));
+      }
+      else {
+        result.put(entry.getKey(), toMarker(entry.getKey(), value));
+      }
+    }
+    return result;
+  }
+
+  private Map<String, Object> copyContent(ContentElement source) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : source.getProperties().entrySet()) {
+      result.put(entry.getKey(), toMarker(entry.getKey(), entry.getValue()));
+    }
+    for (Map.Entry<String, ContentElement> entry : source.getChildren().entrySet()) {
+      result.put(entry.getKey(), copyContent(entry.getValue()));
+    }
+    return result;
+  }
+
+  private Object toMarker(String propertyName, Object value) {
+    if (!(value instanceof Slot)) {
+      return value;
+    }
+    Slot slot = (Slot)value;
+    if (XmlContentBuilder.NAME_PROPERTIES.contains(propertyName)) {
+      throw new IllegalArgumentException("Slot not allowed for property " + propertyName + ": " + slot.getName());
+    }
+    Slot existing = slots.putIfAbsent(slot.getName(), slot);
+    if (existing != null && existing.getType() != slot.getType()) {
+      throw new IllegalArgumentException("Slot " + slot.getName() + " used with different types.");
+    }
+    slotProperties.add(new SlotProperty(slot, propertyName));
+    return MARKER + Integer.toString(slotProperties.size() - 1) + MARKER;
+  }
+
+
+  /**
+   * Placeholder for a property value that is given when a page is added.
+   */
+  public static final class Slot {
+
+    private final String name;
+    private final Class<?> type;
+
+    Slot(String name, Class<?> type) {
+      this.name = name;
+      this.type = type;
+    }
+
+    /**
+     * @return Slot name
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * @return Type of the values
+     */
+    public Class<?> getType() {
+      return this.type;
+    }
+
+    @Override
+    public String toString() {
+      return "Slot[" + name + ", " + type.getSimpleName() + "]";
+    }
+
+  }
+
+  /**
+   * Property whose value is given by a slot.
+   */
+  private static final class SlotProperty {
+
+    private final Slot slot;
+    private final String propertyName;
+
+    SlotProperty(Slot slot, String propertyName) {
+      this.slot = slot;
+      this.propertyName = propertyName;
+    }
+
+  }
+
+  /**
+   * Pre-rendered XML segments, and the slot property between each two of them.
+   */
+  private static final class Segments {
+
+    private final byte[][] bytes;
+    private final SlotProperty[] slotProperties;
+
+    Segments(byte[][] bytes, SlotProperty[] slotProperties) {
+      this.bytes = bytes;
+      this.slotProperties = slotProperties;
+    }
+
+  }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compresses entries on a pool of worker threads, each using its own {@link Deflater}.
+ * <p>
+ * The entry data is rendered into a buffer on the calling thread and handed over to the worker pool.
+ * The compressed entries are appended to the ZIP archive strictly in the order they were added,
+ * always by the calling thread. The amount of uncompressed data waiting for compression or for being appended
+ * is limited, including the buffer of the entry that is currently rendered. The buffer sizes are counted, not only
+ * the data in it. When the limit is reached the calling thread blocks until the oldest entries are written.
+ * Entries larger than this limit are not buffered but streamed directly into the archive, after all pending
+ * entries are written.
+ * </p>
+ * <p>
+ * If an entry data cache is given, byte-identical entries up to {@link EntryDataCache#MAX_ENTRY_SIZE} bytes
+ * are compressed only once, reusing the pending compression of an earlier entry if it is not finished yet.
+ * </p>
+ * This class is not thread-safe.
+ */
+final class ParallelEntryWriter implements EntryWriter {
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+  private final ZipWriter zip;
+  private final long maxInFlightBytes;
+  private final ExecutorService executor;
+  private final WriterContext context;
+  private final BlockingQueue<Deflater> deflaters;
+  private final Deflater directDeflater;
+  private final EntryDataCache cache;
+  private final Deque<PendingEntry> pending = new ArrayDeque<>();
+  private long pendingBytes;
+  private long bufferBytes;
+
+  /**
+   * @param zip ZIP writer
+   * @param threads Number of compression worker threads
+   * @param maxInFlightBytes Max. number of uncompressed bytes buffered for pending entries and the current entry
+   * @param context Writer context providing the deflaters
+   */
+  ParallelEntryWriter(@NotNull ZipWriter zip, int threads, long maxInFlightBytes, @NotNull WriterContext context) {
+    this(zip, threads, maxInFlightBytes, context, null);
+  }
+
+  /**
+   * @param zip ZIP writer
+   * @param threads Number of compression worker threads
+   * @param maxInFlightBytes Max. number of uncompressed bytes buffered for pending entries and the current entry
+   * @param context Writer context providing the deflaters
+   * @param cache Cache for reusing the compressed data of identical entries, or null
+   */
+  ParallelEntryWriter(@NotNull ZipWriter zip, int threads, long maxInFlightBytes, @NotNull WriterContext context,
+      @Nullable EntryDataCache cache) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid number of compression threads: " + threads);
+    }
+    if (maxInFlightBytes < 1) {
+      throw new IllegalArgumentException("Invalid max. in-flight bytes: " + maxInFlightBytes);
+    }
+    this.zip = zip;
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.context = context;
+    this.cache = cache;
+    this.executor = Executors.newFixedThreadPool(threads, new CompressionThreadFactory());
+    this.deflaters = new ArrayBlockingQueue<>(threads);
+    for (int i = 0; i < threads; i++) {
+      deflaters.add(context.borrowDeflater());
+    }
+    this.directDeflater = context.borrowDeflater();
+  }
+
+  @Override
+  public void writeDirectory(@NotNull String path) throws IOException {
+    if (pending.isEmpty()) {
+      zip.putDirectory(path);
+    }
+    else {
+      pending.add(new PendingEntry(path, CompletableFuture.completedFuture(ZipEntryData.EMPTY), 0));
+    }
+  }
+
+  @Override
+  public void writeEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    EntryBuffer buffer = new EntryBuffer(path);
+    try {
+      content.writeTo(buffer);
+    }
+    catch (IOException | RuntimeException ex) {
+      buffer.discard(ex);
+      throw ex;
+    }
+    buffer.finish();
+  }
+
+  @Override
+  public void writeStoredEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    int memoryThreshold = (int)Math.min(maxInFlightBytes, StoredEntrySpool.DEFAULT_MEMORY_THRESHOLD);
+    makeRoom(memoryThreshold);
+    try (StoredEntrySpool spool = StoredEntrySpool.spool(content, memoryThreshold)) {
+      if (spool.isInMemory()) {
+        ZipEntryData data = spool.toEntryData();
+        enqueue(path, CompletableFuture.completedFuture(data), data.getSize());
+      }
+      else {
+        drain();
+        zip.putStoredEntry(path, spool.getCrc(), spool.getSize(), spool::writeTo);
+      }
+    }
+  }
+
+  @Override
+  public void transferStoredEntry(@NotNull String path, long crc, long size, @NotNull ChannelContent content) throws IOException {
+    drain();
+    zip.transferStoredEntry(path, crc, size, content);
+  }
+
+  /**
+   * Submits the entry data for compression. The buffer was already reserved against the in-flight limit
+   * with its full size by {@link EntryBuffer}.
+   */
+  private void submit(String path, byte[] data, int length) throws IOException {
+    if (cache == null || !EntryDataCache.isCacheable(length)) {
+      enqueue(path, executor.submit(() -> compress(data, length)), data.length);
+      return;
+    }
+    EntryDataCache.Key key = EntryDataCache.key(data, length);
+    Future<ZipEntryData> cached = cache.get(key);
+    if (cached != null) {
+      enqueue(path, cached, 0);
+      return;
+    }
+    Future<ZipEntryData> future = executor.submit(() -> {
+      ZipEntryData entryData = compress(data, length);
+      cache.persist(key, entryData);
+      return entryData;
+    });
+    cache.put(key, future);
+    enqueue(path, future, data.length);
+  }
+
+  private void enqueue(String path, Future<ZipEntryData> future, long size) throws IOException {
+    makeRoom(size);
+    pending.add(new PendingEntry(path, future, size));
+    pendingBytes += size;
+    appendCompleted();
+  }
+
+  /**
+   * Appends the oldest pending entries until the given number of bytes fits into the in-flight limit.
+   */
+  private void makeRoom(long size) throws IOException {
+    while (!pending.isEmpty() && pendingBytes + size > maxInFlightBytes) {
+      appendNext();
+    }
+  }
+
+  /**
+   * @return Number of uncompressed bytes buffered for pending entries and the current entry
+   */
+  long getInFlightBytes() {
+    return pendingBytes + bufferBytes;
+  }
+
+  private ZipEntryData compress(byte[] data, int length) throws InterruptedException {
+    Deflater deflater = deflaters.take();
+    try {
+      return ZipEntryData.deflate(data, length, deflater);
+    }
+    finally {
+      deflaters.add(deflater);
+    }
+  }
+
+  /**
+   * Appends all entries at the head of the queue whose compression is already finished.
+   */
+  private void appendCompleted() throws IOException {
+    while (!pending.isEmpty() && pending.peekFirst().future.isDone()) {
+      appendNext();
+    }
+  }
+
+  /**
+   * Appends all pending entries, waiting for their compression to finish.
+   */
+  private void drain() throws IOException {
+    while (!pending.isEmpty()) {
+      appendNext();
+    }
+  }
+
+  private void appendNext() throws IOException {
+    PendingEntry entry = pending.removeFirst();
+    pendingBytes -= entry.size;
+    zip.putEntry(entry.path, await(entry.future));
+  }
+
+  static ZipEntryData await(Future<ZipEntryData> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for entry compression.");
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IOException("Entry compression failed: " + cause.getMessage(), cause);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+    }
+    finally {
+      try {
+        zip.close();
+      }
+      finally {
+        shutdown();
+      }
+    }
+  }
+
+  private void shutdown() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    deflaters.forEach(context::returnDeflater);
+    context.returnDeflater(directDeflater);
+  }
+
+
+  private static final class PendingEntry {
+
+    private final String path;
+    private final Future<ZipEntryData> future;
+    private final long size;
+
+    PendingEntry(String path, Future<ZipEntryData> future, long size) {
+      this.path = path;
+      this.future = future;
+      this.size = size;
+    }
+
+  }
+
+  /**
+   * Buffers the uncompressed entry data. Switches to streaming directly into the ZIP archive
+   * if the data exceeds the in-flight limit. Before the buffer is allocated or grown, the oldest pending entries
+   * are appended until pending entries and the new buffer fit into the in-flight limit together.
+   */
+  private final class EntryBuffer extends OutputStream {
+
+    private final String path;
+    private final int maxBufferSize = (int)Math.min(maxInFlightBytes, MAX_BUFFER_SIZE);
+    private byte[] buffer;
+    private int count;
+    private OutputStream direct;
+
+    EntryBuffer(String path) throws IOException {
+      this.path = path;
+      int initialSize = Math.min(INITIAL_BUFFER_SIZE, maxBufferSize);
+      makeRoom(initialSize);
+      this.buffer = new byte[initialSize];
+      bufferBytes = initialSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (direct == null && (long)count + len > maxBufferSize) {
+        switchToDirect();
+      }
+      if (direct != null) {
+        direct.write(b, off, len);
+        return;
+      }
+      if (count + len > buffer.length) {
+        int size = (int)Math.min(Math.max((long)buffer.length * 2, (long)count + len), maxBufferSize);
+        makeRoom(size);
+        buffer = Arrays.copyOf(buffer, size);
+        bufferBytes = size;
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    private void switchToDirect() throws IOException {
+      drain();
+      direct = zip.putDeflatedEntry(path, directDeflater);
+      direct.write(buffer, 0, count);
+      buffer = null;
+      bufferBytes = 0;
+    }
+
+    void finish() throws IOException {
+      if (direct != null) {
+        direct.close();
+      }
+      else {
+        bufferBytes = 0;
+        submit(path, buffer, count);
+        buffer = null;
+      }
+    }
+
+    /**
+     * Drops the buffered data after writing the content failed. An entry that is already streamed into the archive
+     * is closed, so the archive stays usable; exceptions from closing it are added to the original exception.
+     * @param cause Exception thrown while writing the content
+     */
+    void discard(Exception cause) {
+      buffer = null;
+      bufferBytes = 0;
+      if (direct != null) {
+        try {
+          direct.close();
+        }
+        catch (IOException | RuntimeException ex) {
+          cause.addSuppressed(ex);
+        }
+      }
+    }
+
+  }
+
+  private static final class CompressionThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(@NotNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "content-package-compression-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+
+  }
+
+}
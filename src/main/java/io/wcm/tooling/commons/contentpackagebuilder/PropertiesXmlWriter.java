@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes Java properties in the XML format of {@link java.util.Properties#storeToXML(OutputStream, String)},
+ * without the overhead of the generic XML serialization used by the JDK.
+ * Characters that are not allowed in XML 1.0 are removed.
+ */
+final class PropertiesXmlWriter {
+
+  private static final byte[] HEADER = ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+      + "<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
+      + "<properties>\n").getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] FOOTER = "</properties>\n".getBytes(StandardCharsets.US_ASCII);
+
+  private PropertiesXmlWriter() {
+    // static methods only
+  }
+
+  /**
+   * @param properties Properties in the order they should be written
+   * @param os Output stream (is not closed)
+   * @throws IOException I/O exception
+   */
+  static void write(@NotNull Map<String, String> properties, @NotNull OutputStream os) throws IOException {
+    StringBuilder sb = new StringBuilder(properties.size() * 64);
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      sb.append("<entry key=\"").append(escape(entry.getKey(), true)).append("\">")
+          .append(escape(entry.getValue(), false)).append("</entry>\n");
+    }
+    os.write(HEADER);
+    os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    os.write(FOOTER);
+  }
+
+  /**
+   * Escapes a string for XML 1.0 element content or attribute values.
+   * @param value Value
+   * @param attribute true if the value is used as attribute value (escapes double quotes as well)
+   * @return Escaped value
+   */
+  static String escape(@NotNull String value, boolean attribute) {
+    StringBuilder sb = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String replacement;
+      switch (c) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        case '"':
+          replacement = attribute ? "&quot;" : null;
+          break;
+        default:
+          replacement = isValidXmlChar(value, i, c) ? null : "";
+      }
+      if (replacement != null && sb == null) {
+        sb = new StringBuilder(value.length() + 16);
+        sb.append(value, 0, i);
+      }
+      if (replacement != null) {
+        sb.append(replacement);
+      }
+      else if (sb != null) {
+        sb.append(c);
+      }
+    }
+    return sb != null ? sb.toString() : value;
+  }
+
+  private static boolean isValidXmlChar(String value, int index, char c) {
+    if (c < 0x20) {
+      return c == '\t' || c == '\n' || c == '\r';
+    }
+    if (c == 0xfffe || c == 0xffff) {
+      return false;
+    }
+    if (Character.isHighSurrogate(c)) {
+      return index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+    if (Character.isLowSurrogate(c)) {
+      return index > 0 && Character.isHighSurrogate(value.charAt(index - 1));
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compresses each entry on the calling thread while it is written to the ZIP archive.
+ * <p>
+ * If an entry data cache is given, entries up to {@link EntryDataCache#MAX_ENTRY_SIZE} bytes are buffered
+ * and the compressed data of byte-identical entries is reused from the cache.
+ * </p>
+ */
+final class SerialEntryWriter implements EntryWriter {
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+  private final ZipWriter zip;
+  private final WriterContext context;
+  private final Deflater deflater;
+  private final EntryDataCache cache;
+
+  /**
+   * @param zip ZIP writer
+   * @param context Writer context providing the deflater
+   */
+  SerialEntryWriter(@NotNull ZipWriter zip, @NotNull WriterContext context) {
+    this(zip, context, null);
+  }
+
+  /**
+   * @param zip ZIP writer
+   * @param context Writer context providing the deflater
+   * @param cache Cache for reusing the compressed data of identical entries, or null
+   */
+  SerialEntryWriter(@NotNull ZipWriter zip, @NotNull WriterContext context, @Nullable EntryDataCache cache) {
+    this.zip = zip;
+    this.context = context;
+    this.deflater = context.borrowDeflater();
+    this.cache = cache;
+  }
+
+  @Override
+  public void writeDirectory(@NotNull String path) throws IOException {
+    zip.putDirectory(path);
+  }
+
+  @Override
+  public void writeEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    if (cache == null) {
+      try (OutputStream os = zip.putDeflatedEntry(path, deflater)) {
+        content.writeTo(os);
+      }
+      return;
+    }
+    EntryBuffer buffer = new EntryBuffer(path);
+    try {
+      content.writeTo(buffer);
+    }
+    finally {
+      buffer.finish();
+    }
+  }
+
+  @Override
+  public void writeStoredEntry(@NotNull String path, @NotNull EntryContent content) throws IOException {
+    try (StoredEntrySpool spool = StoredEntrySpool.spool(content, StoredEntrySpool.DEFAULT_MEMORY_THRESHOLD)) {
+      zip.putStoredEntry(path, spool.getCrc(), spool.getSize(), spool::writeTo);
+    }
+  }
+
+  @Override
+  public void transferStoredEntry(@NotNull String path, long crc, long size, @NotNull ChannelContent content) throws IOException {
+    zip.transferStoredEntry(path, crc, size, content);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      zip.close();
+    }
+    finally {
+      context.returnDeflater(deflater);
+    }
+  }
+
+
+  /**
+   * Buffers the uncompressed entry data to look up its compressed data in the cache. Switches to streaming
+   * directly into the ZIP archive if the data is too large for the cache.
+   */
+  private final class EntryBuffer extends OutputStream {
+
+    private final String path;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    private OutputStream direct;
+
+    EntryBuffer(String path) {
+      this.path = path;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (direct == null && !EntryDataCache.isCacheable((long)count + len)) {
+        direct = zip.putDeflatedEntry(path, deflater);
+        direct.write(buffer, 0, count);
+        buffer = null;
+      }
+      if (direct != null) {
+        direct.write(b, off, len);
+        return;
+      }
+      if (count + len > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + len), EntryDataCache.MAX_ENTRY_SIZE));
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    void finish() throws IOException {
+      if (direct != null) {
+        direct.close();
+        return;
+      }
+      EntryDataCache.Key key = EntryDataCache.key(buffer, count);
+      Future<ZipEntryData> cached = cache.get(key);
+      ZipEntryData data;
+      if (cached != null) {
+        data = ParallelEntryWriter.await(cached);
+      }
+      else {
+        data = ZipEntryData.deflate(buffer, count, deflater);
+        cache.put(key, CompletableFuture.completedFuture(data));
+        cache.persist(key, data);
+      }
+      buffer = null;
+      zip.putEntry(path, data);
+    }
+
+  }
+
+}
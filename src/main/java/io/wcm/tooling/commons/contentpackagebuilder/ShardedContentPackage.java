@@ -0,0 +1,648 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.LazyContentElement;
+
+/**
+ * Content package that is split into multiple packages ("shards") of limited size, built by
+ * {@link ShardedContentPackageBuilder}.
+ * <p>
+ * Content is added like to a {@link ContentPackage}. Each call adds its content to the current shard; a new shard is
+ * started when the current shard reached one of the configured limits. The content of a single call is never split.
+ * The package filter of each shard contains one filter root for each content path added to it (except paths
+ * covered by another filter root of the shard), with the import mode and include/exclude rules of the most specific package filter
+ * covering the path. Full shards are closed on a background thread while the next shard is written.
+ * </p>
+ * <p>
+ * Content can be added from multiple threads if {@link ContentPackageBuilder#concurrent(boolean)} is enabled,
+ * otherwise this class is not thread-safe.
+ * </p>
+ */
+public final class ShardedContentPackage implements Closeable {
+
+  private static final String PACKAGES_ROOT = "/etc/packages/";
+  private static final String ZIP_EXTENSION = ".zip";
+
+  private final PackageMetadata metadata;
+  private final ContentPackageOptions options;
+  private final long maxNodes;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final boolean containerPackage;
+  private final File directory;
+  private final WriterContext context;
+  private final boolean ownContext;
+  private final ExecutorService closeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "content-package-shard-close");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final List<File> shardFiles = new ArrayList<>();
+  private final List<Future<Void>> closingShards = new ArrayList<>();
+  private Shard currentShard;
+  private int activeOperations;
+  private boolean closed;
+
+  /**
+   * @param metadata Package metadata
+   * @param options Options for writing the shards
+   * @param maxNodes Max. number of JCR nodes per shard, or 0
+   * @param maxEntries Max. number of ZIP entries per shard, or 0
+   * @param maxBytes Max. number of bytes per shard, or 0
+   * @param containerPackage Write a container package referencing all shards
+   * @param directory Output directory
+   * @param context Shared writer context. If null, the package uses its own context.
+   */
+  ShardedContentPackage(PackageMetadata metadata, ContentPackageOptions options,
+      long maxNodes, int maxEntries, long maxBytes, boolean containerPackage,
+      File directory, @Nullable WriterContext context) {
+    this.metadata = metadata;
+    this.options = options;
+    this.maxNodes = maxNodes;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.containerPackage = containerPackage;
+    this.directory = directory;
+    this.ownContext = context == null;
+    this.context = context != null ? context : new WriterContext();
+  }
+
+  /**
+   * Adds a page with given content. The "cq:Page/cq:PageContent envelope" is added automatically.
+   * @param path Full content path of page.
+   * @param content Hierarchy of content elements.
+   * @throws IOException I/O exception
+   */
+  public void addPage(String path, ContentElement content) throws IOException {
+    add(path, 1 + countNodes(content), contentPackage -> contentPackage.addPage(path, content));
+  }
+
+  /**
+   * Adds a page with given content. The "cq:Page/cq:PageContent envelope" is added automatically.
+   * @param path Full content path of page.
+   * @param content Map with page properties. If the map contains nested maps this builds a tree of JCR nodes.
+   *          The key of the nested map in its parent map is the node name,
+   *          the nested map contain the properties of the child node.
+   * @throws IOException I/O exception
+   */
+  public void addPage(String path, Map<String, Object> content) throws IOException {
+    add(path, 1 + countNodes(content), contentPackage -> contentPackage.addPage(path, content));
+  }
+
+  /**
+   * Adds a page with the content of a precompiled page template.
+   * @param path Full content path of page.
+   * @param template Page template
+   * @param values Values for the slots of the template, keyed by slot name.
+   * @throws IOException I/O exception
+   */
+  public void addPage(String path, PageTemplate template, Map<String, Object> values) throws IOException {
+    add(path, 1 + countNodes(template.getContent()), contentPackage -> contentPackage.addPage(path, template, values));
+  }
+
+  /**
+   * Add some JCR content structure directly to the package.
+   * @param path Full content path of content root node.
+   * @param content Hierarchy of content elements. {@link LazyContentElement} trees are counted as a single node.
+   * @throws IOException I/O exception
+   */
+  public void addContent(String path, ContentElement content) throws IOException {
+    add(path, countNodes(content), contentPackage -> contentPackage.addContent(path, content));
+  }
+
+  /**
+   * Add some JCR content structure directly to the package.
+   * @param path Full content path of content root node.
+   * @param content Map with node properties. If the map contains nested maps this builds a tree of JCR nodes.
+   *          The key of the nested map in its parent map is the node name,
+   *          the nested map contain the properties of the child node.
+   * @throws IOException I/O exception
+   */
+  public void addContent(String path, Map<String, Object> content) throws IOException {
+    add(path, countNodes(content), contentPackage -> contentPackage.addContent(path, content));
+  }
+
+  /**
+   * Add only the differences between two versions of a JCR content structure to the package.
+   * See {@link ContentPackage#addContentDelta(String, ContentElement, ContentElement)} for details.
+   * The filters of the content delta are used instead of a filter root for the content path.
+   * Requires {@link ContentPackageBuilder#contentDelta(boolean)}.
+   * @param path Full content path of content root node.
+   * @param previous Hierarchy of content elements as contained in the target instance.
+   * @param current Hierarchy of content elements to import.
+   * @throws IOException I/O exception
+   */
+  public void addContentDelta(String path, ContentElement previous, ContentElement current) throws IOException {
+    add(null, countNodes(current), contentPackage -> contentPackage.addContentDelta(path, previous, current));
+  }
+
+  /**
+   * Add only the differences between two versions of a JCR content structure to the package.
+   * See {@link ContentPackage#addContentDelta(String, ContentElement, ContentElement)} for details.
+   * The filters of the content delta are used instead of a filter root for the content path.
+   * @param path Full content path of content root node.
+   * @param previous Map with node properties as contained in the target instance.
+   * @param current Map with node properties to import.
+   * @throws IOException I/O exception
+   */
+  public void addContentDelta(String path, Map<String, Object> previous, Map<String, Object> current) throws IOException {
+    add(null, countNodes(current), contentPackage -> contentPackage.addContentDelta(path, previous, current));
+  }
+
+  /**
+   * Add some JCR content structure for a path that is already used by a binary file.
+   * The binary file has to be added to the same shard, so prefer adding file metadata together with the file.
+   * @param path Full content path of content root/file node.
+   * @param content Hierarchy of content elements.
+   * @throws IOException I/O exception
+   */
+  public void addContentForFile(String path, ContentElement content) throws IOException {
+    add(path, countNodes(content), contentPackage -> contentPackage.addContentForFile(path, content));
+  }
+
+  /**
+   * Add some JCR content structure for a path that is already used by a binary file.
+   * The binary file has to be added to the same shard, so prefer adding file metadata together with the file.
+   * @param path Full content path of content root/file node.
+   * @param content Map with node properties. If the map contains nested maps this builds a tree of JCR nodes.
+   * @throws IOException I/O exception
+   */
+  public void addContentForFile(String path, Map<String, Object> content) throws IOException {
+    add(path, countNodes(content), contentPackage -> contentPackage.addContentForFile(path, content));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param inputStream Input stream with binary data
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, InputStream inputStream) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, inputStream));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param inputStream Input stream with binary data
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, InputStream inputStream, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, inputStream, contentType));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, File file) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, file));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, File file, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, file, contentType));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, Path file) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, file));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param file File with binary data
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, Path file, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, file, contentType));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param channel File channel with binary data, read from its current position to the end
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, FileChannel channel) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, channel));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param channel File channel with binary data, read from its current position to the end
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, FileChannel channel, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, channel, contentType));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param channel Channel with binary data, read to the end
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ReadableByteChannel channel) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, channel));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param channel Channel with binary data, read to the end
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ReadableByteChannel channel, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, channel, contentType));
+  }
+
+  /**
+   * Adds a binary file.
+   * @param path Full content path and file name of file
+   * @param data Binary data, from its position to its limit
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ByteBuffer data) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, data));
+  }
+
+  /**
+   * Adds a binary file with explicit mime type.
+   * @param path Full content path and file name of file
+   * @param data Binary data, from its position to its limit
+   * @param contentType Mime type, optionally with ";charset=XYZ" extension
+   * @throws IOException I/O exception
+   */
+  public void addFile(String path, ByteBuffer data, String contentType) throws IOException {
+    addFile(path, contentPackage -> contentPackage.addFile(path, data, contentType));
+  }
+
+  private void addFile(String path, ShardOperation operation) throws IOException {
+    // nt:file node and its jcr:content node
+    add(path, 2, operation);
+  }
+
+  private void add(@Nullable String rootPath, long nodes, ShardOperation operation) throws IOException {
+    Shard shard = acquire(rootPath, nodes);
+    try {
+      operation.addTo(shard.contentPackage);
+    }
+    finally {
+      release(shard);
+    }
+  }
+
+  private synchronized Shard acquire(@Nullable String rootPath, long nodes) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Sharded content package is already closed.");
+    }
+    if (currentShard != null && isFull(currentShard, nodes)) {
+      retire(currentShard);
+      currentShard = null;
+    }
+    if (currentShard == null) {
+      currentShard = newShard();
+    }
+    currentShard.nodes += nodes;
+    currentShard.activeOperations++;
+    activeOperations++;
+    if (rootPath != null) {
+      currentShard.rootPaths.add(rootPath);
+    }
+    return currentShard;
+  }
+
+  private synchronized void release(Shard shard) {
+    shard.activeOperations--;
+    activeOperations--;
+    if (shard.retired && shard.activeOperations == 0) {
+      closeInBackground(shard);
+    }
+  }
+
+  /**
+   * Checks the limits before adding more content. The node count is known in advance, the number of entries
+   * and bytes only after the content was written, so shards may exceed these limits by the content of the last call.
+   * The size is read from the position of the file channel, which is safe to read while the shard is written.
+   * Bytes written by the compression of pending entries and bytes still buffered by the ZIP writer are not included yet.
+   */
+  private boolean isFull(Shard shard, long nodes) throws IOException {
+    if (shard.nodes == 0) {
+      return false;
+    }
+    return (maxNodes > 0 && shard.nodes + nodes > maxNodes)
+        || (maxEntries > 0 && shard.contentPackage.getEntryCount() >= maxEntries)
+        || (maxBytes > 0 && shard.outputStream.getChannel().position() >= maxBytes);
+  }
+
+  private Shard newShard() throws IOException {
+    PackageMetadata shardMetadata = metadata.copy();
+    shardMetadata.setName(getShardName(shardFiles.size() + 1));
+    File file = new File(directory, shardMetadata.getName() + ZIP_EXTENSION);
+    FileOutputStream os = new FileOutputStream(file);
+    Shard shard;
+    try {
+      shard = new Shard(shardMetadata, os, new ContentPackage(shardMetadata, options, os, context, true));
+    }
+    catch (IOException | RuntimeException ex) {
+      os.close();
+      throw ex;
+    }
+    shardFiles.add(file);
+    return shard;
+  }
+
+  private String getShardName(int index) {
+    return String.format("%s-%03d", metadata.getName(), index);
+  }
+
+  private void retire(Shard shard) {
+    shard.retired = true;
+    if (shard.activeOperations == 0) {
+      closeInBackground(shard);
+    }
+  }
+
+  private void closeInBackground(Shard shard) {
+    closingShards.add(closeExecutor.submit(() -> {
+      shard.close();
+      return null;
+    }));
+  }
+
+  /**
+   * Closes all shards and writes the container package, if enabled.
+   * @throws IOException I/O exception
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (activeOperations > 0) {
+        throw new IllegalStateException("Content is still being added to the sharded content package.");
+      }
+      closed = true;
+    }
+    try {
+      synchronized (this) {
+        if (currentShard == null) {
+          currentShard = newShard();
+        }
+        retire(currentShard);
+        currentShard = null;
+      }
+      awaitShards();
+      if (containerPackage) {
+        writeContainerPackage();
+      }
+    }
+    finally {
+      closeExecutor.shutdownNow();
+      if (ownContext) {
+        context.close();
+      }
+    }
+  }
+
+  private void awaitShards() throws IOException {
+    IOException exception = null;
+    for (Future<Void> future : closingShards) {
+      try {
+        future.get();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for shards to be closed.");
+      }
+      catch (ExecutionException ex) {
+        if (exception == null) {
+          Throwable cause = ex.getCause();
+          exception = cause instanceof IOException ? (IOException)cause
+              : new IOException("Closing shard failed: " + cause.getMessage(), cause);
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  private void writeContainerPackage() throws IOException {
+    PackageMetadata containerMetadata = metadata.copy();
+    containerMetadata.setPackageType("container");
+    List<PackageFilter> filters = new ArrayList<>();
+    for (File file : shardFiles) {
+      filters.add(new PackageFilter(getContainerPath(file)));
+    }
+    containerMetadata.setFilters(filters);
+    try (ContentPackage container = new ContentPackage(containerMetadata, options,
+        new FileOutputStream(getContainerFile()), context)) {
+      for (File file : shardFiles) {
+        container.addFile(getContainerPath(file), file, "application/zip");
+      }
+    }
+  }
+
+  private String getContainerPath(File shardFile) {
+    return PACKAGES_ROOT + metadata.getGroup() + "/" + shardFile.getName();
+  }
+
+  /**
+   * @return Package files of all shards created so far, in install order
+   */
+  public synchronized List<File> getShardFiles() {
+    return Collections.unmodifiableList(new ArrayList<>(shardFiles));
+  }
+
+  /**
+   * @return Container package file referencing all shards, or null if no container package is written
+   */
+  public @Nullable File getContainerFile() {
+    return containerPackage ? new File(directory, metadata.getName() + ZIP_EXTENSION) : null;
+  }
+
+  /**
+   * Derives the package filters of a shard from the content paths added to it. Paths below another path are
+   * covered by its filter root already.
+   */
+  List<PackageFilter> buildFilters(NavigableSet<String> rootPaths) {
+    List<PackageFilter> filters = new ArrayList<>();
+    Set<String> filterRoots = new HashSet<>();
+    for (String path : rootPaths) {
+      // ancestors always sort before their descendants
+      if (isCovered(path, filterRoots)) {
+        continue;
+      }
+      filterRoots.add(path);
+      PackageFilter filter = new PackageFilter(path);
+      PackageFilter packageFilter = getPackageFilter(path);
+      if (packageFilter != null) {
+        filter.setMode(packageFilter.getMode());
+        for (PackageFilterRule rule : packageFilter.getRules()) {
+          if (rule.isInclude()) {
+            filter.addIncludeRule(rule.getPattern());
+          }
+          else {
+            filter.addExcludeRule(rule.getPattern());
+          }
+        }
+      }
+      filters.add(filter);
+    }
+    return filters;
+  }
+
+  private static boolean isCovered(String path, Set<String> filterRoots) {
+    if (filterRoots.contains("/")) {
+      return true;
+    }
+    int index = path.lastIndexOf('/');
+    while (index > 0) {
+      if (filterRoots.contains(path.substring(0, index))) {
+        return true;
+      }
+      index = path.lastIndexOf('/', index - 1);
+    }
+    return false;
+  }
+
+  /**
+   * @return Package filter with the longest root path covering the given path, as filters for nested paths
+   *         usually define more specific modes or rules
+   */
+  private @Nullable PackageFilter getPackageFilter(String path) {
+    PackageFilter match = null;
+    for (PackageFilter filter : metadata.getFilters()) {
+      String root = filter.getRootPath();
+      if ((root.equals("/") || path.equals(root) || path.startsWith(root + "/"))
+          && (match == null || root.length() > match.getRootPath().length())) {
+        match = filter;
+      }
+    }
+    return match;
+  }
+
+  static long countNodes(@NotNull ContentElement content) {
+    if (content instanceof LazyContentElement) {
+      // counting would produce the lazy content twice
+      return 1;
+    }
+    long count = 1;
+    for (ContentElement child : content.getChildren().values()) {
+      count += countNodes(child);
+    }
+    return count;
+  }
+
+  @SuppressWarnings("unchecked")
+  static long countNodes(@NotNull Map<String, Object> content) {
+    long count = 1;
+    for (Object value : content.values()) {
+      if (value instanceof Map) {
+        count += countNodes((Map<String, Object>)value);
+      }
+    }
+    return count;
+  }
+
+
+  @FunctionalInterface
+  private interface ShardOperation {
+
+    void addTo(ContentPackage contentPackage) throws IOException;
+
+  }
+
+  private final class Shard {
+
+    private final PackageMetadata metadata;
+    // passed to the ZIP writer unwrapped, so it can write to the file channel directly
+    private final FileOutputStream outputStream;
+    private final ContentPackage contentPackage;
+    private final NavigableSet<String> rootPaths = new TreeSet<>();
+    private long nodes;
+    private int activeOperations;
+    private boolean retired;
+
+    Shard(PackageMetadata metadata, FileOutputStream outputStream, ContentPackage contentPackage) {
+      this.metadata = metadata;
+      this.outputStream = outputStream;
+      this.contentPackage = contentPackage;
+    }
+
+    void close() throws IOException {
+      // filters are written when the package is closed
+      metadata.setFilters(buildFilters(rootPaths));
+      contentPackage.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds a {@link ShardedContentPackage} that splits large content into multiple packages of limited size.
+ * <p>
+ * The metadata and options of the shards are taken from the given {@link ContentPackageBuilder}. The shards are
+ * named like the package with a 3-digit index suffix (e.g. "myName-001"), and are written to the output directory
+ * as "&lt;name&gt;.zip" files. Without any limit, all content is written to a single shard.
+ * </p>
+ * This class is not thread-safe.
+ */
+public final class ShardedContentPackageBuilder {
+
+  private final ContentPackageBuilder builder;
+  private long maxNodes;
+  private int maxEntries;
+  private long maxBytes;
+  private boolean containerPackage;
+
+  /**
+   * @param builder Builder with the package metadata and options for all shards
+   */
+  public ShardedContentPackageBuilder(ContentPackageBuilder builder) {
+    this.builder = builder;
+  }
+
+  /**
+   * Limit the number of JCR nodes per shard, counted from the content trees added to the package.
+   * A binary file counts as two nodes.
+   * @param value Max. number of nodes (default: 0 = no limit)
+   * @return this
+   */
+  public ShardedContentPackageBuilder maxNodes(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid max. nodes: " + value);
+    }
+    this.maxNodes = value;
+    return this;
+  }
+
+  /**
+   * Limit the number of ZIP entries (files and folders) per shard. A new shard is started once the limit is reached,
+   * so a shard may exceed it by the entries of the last content added.
+   * @param value Max. number of entries (default: 0 = no limit)
+   * @return this
+   */
+  public ShardedContentPackageBuilder maxEntries(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid max. entries: " + value);
+    }
+    this.maxEntries = value;
+    return this;
+  }
+
+  /**
+   * Limit the size of the package file per shard. A new shard is started once the limit is reached,
+   * so a shard may exceed it by the size of the last content added.
+   * @param value Max. number of bytes (default: 0 = no limit)
+   * @return this
+   */
+  public ShardedContentPackageBuilder maxBytes(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException("Invalid max. bytes: " + value);
+    }
+    this.maxBytes = value;
+    return this;
+  }
+
+  /**
+   * Write an additional container package with the package name that contains all shards as sub packages,
+   * in install order.
+   * @param value Write container package (default: false)
+   * @return this
+   */
+  public ShardedContentPackageBuilder containerPackage(boolean value) {
+    this.containerPackage = value;
+    return this;
+  }
+
+  /**
+   * Build {@link ShardedContentPackage} to which content can be added.
+   * Please make sure you call the {@link ShardedContentPackage#close()} method when all content was added.
+   * @param directory Output directory for the package files
+   * @return Sharded content package
+   * @throws IOException I/O exception
+   */
+  public ShardedContentPackage build(File directory) throws IOException {
+    return build(directory, null);
+  }
+
+  /**
+   * Build {@link ShardedContentPackage} to which content can be added.
+   * Please make sure you call the {@link ShardedContentPackage#close()} method when all content was added.
+   * @param directory Output directory for the package files
+   * @param context Writer context shared with other packages
+   * @return Sharded content package
+   * @throws IOException I/O exception
+   */
+  public ShardedContentPackage build(File directory, WriterContext context) throws IOException {
+    ContentPackageOptions options = builder.getOptions();
+    if (options.getManifestFile() != null || options.getPreviousManifest() != null) {
+      throw new IllegalArgumentException("Manifest files are not supported for sharded content packages.");
+    }
+    PackageMetadata metadata = builder.getMetadata().copy();
+    metadata.validate();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory: " + directory.getPath());
+    }
+    return new ShardedContentPackage(metadata, options, maxNodes, maxEntries, maxBytes, containerPackage,
+        directory, context);
+  }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides whether binary files are stored uncompressed in the ZIP archive because their content is already
+ * compressed (images, video, audio, archives, PDF, web fonts). Deflating such data again costs CPU time but
+ * does not reduce the size.
+ */
+final class StoragePolicy {
+
+  /**
+   * Number of leading bytes required by {@link #hasCompressedSignature(byte[], int)}.
+   */
+  static final int SIGNATURE_LENGTH = 12;
+
+  private static final Set<String> COMPRESSED_CONTENT_TYPES = Set.of(
+      "image/jpeg", "image/pjpeg", "image/png", "image/gif", "image/webp", "image/avif", "image/heic", "image/heif",
+      "audio/mpeg", "audio/mp4", "audio/aac", "audio/ogg", "audio/opus", "audio/flac", "audio/webm",
+      "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+      "application/zstd", "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+      "application/java-archive", "application/epub+zip", "application/pdf",
+      "font/woff", "font/woff2");
+
+  private static final String CONTENT_TYPE_PREFIX_VIDEO = "video/";
+  private static final String CONTENT_TYPE_PREFIX_OOXML = "application/vnd.openxmlformats-officedocument.";
+  private static final String CONTENT_TYPE_PREFIX_ODF = "application/vnd.oasis.opendocument.";
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+      "jpg", "jpeg", "png", "gif", "webp", "avif", "heic", "heif",
+      "mp4", "m4v", "mov", "webm", "mkv", "avi", "mp3", "m4a", "aac", "ogg", "oga", "ogv", "opus", "flac",
+      "zip", "jar", "war", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar",
+      "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "pdf", "woff", "woff2");
+
+  private StoragePolicy() {
+    // static methods only
+  }
+
+  /**
+   * Checks content type and file extension.
+   * @param path File path
+   * @param mimeType Mime type without charset (optional)
+   * @return true if the file content is known to be compressed already
+   */
+  static boolean isCompressed(@Nullable String path, @Nullable String mimeType) {
+    return isCompressedContentType(mimeType) || isCompressedExtension(path);
+  }
+
+  static boolean isCompressedContentType(@Nullable String mimeType) {
+    if (StringUtils.isEmpty(mimeType)) {
+      return false;
+    }
+    String normalizedMimeType = StringUtils.trim(mimeType).toLowerCase(Locale.ROOT);
+    return COMPRESSED_CONTENT_TYPES.contains(normalizedMimeType)
+        || normalizedMimeType.startsWith(CONTENT_TYPE_PREFIX_VIDEO)
+        || normalizedMimeType.startsWith(CONTENT_TYPE_PREFIX_OOXML)
+        || normalizedMimeType.startsWith(CONTENT_TYPE_PREFIX_ODF);
+  }
+
+  static boolean isCompressedExtension(@Nullable String path) {
+    String extension = FilenameUtils.getExtension(path);
+    return StringUtils.isNotEmpty(extension) && COMPRESSED_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Detects compressed file formats by their magic number.
+   * @param head First bytes of the file
+   * @param length Number of valid bytes in head (may be less than {@link #SIGNATURE_LENGTH} for short files)
+   * @return true if a compressed file format was detected
+   */
+  static boolean hasCompressedSignature(byte[] head, int length) {
+    return startsWith(head, length, 0, 0xFF, 0xD8, 0xFF) // JPEG
+        || startsWith(head, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A) // PNG
+        || startsWith(head, length, 0, 'G', 'I', 'F', '8') // GIF
+        || startsWith(head, length, 0, 'R', 'I', 'F', 'F') && startsWith(head, length, 8, 'W', 'E', 'B', 'P') // WebP
+        || startsWith(head, length, 4, 'f', 't', 'y', 'p') // MP4, MOV, HEIF, AVIF
+        || startsWith(head, length, 0, 0x1A, 0x45, 0xDF, 0xA3) // Matroska, WebM
+        || startsWith(head, length, 0, 'I', 'D', '3') // MP3
+        || startsWith(head, length, 0, 'O', 'g', 'g', 'S') // Ogg
+        || startsWith(head, length, 0, 'f', 'L', 'a', 'C') // FLAC
+        || startsWith(head, length, 0, 'P', 'K', 0x03, 0x04) // ZIP and ZIP-based formats
+        || startsWith(head, length, 0, 0x1F, 0x8B) // GZIP
+        || startsWith(head, length, 0, 'B', 'Z', 'h') // BZIP2
+        || startsWith(head, length, 0, 0xFD, '7', 'z', 'X', 'Z', 0x00) // XZ
+        || startsWith(head, length, 0, 0x28, 0xB5, 0x2F, 0xFD) // Zstandard
+        || startsWith(head, length, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C) // 7-Zip
+        || startsWith(head, length, 0, 'R', 'a', 'r', '!') // RAR
+        || startsWith(head, length, 0, '%', 'P', 'D', 'F') // PDF
+        || startsWith(head, length, 0, 'w', 'O', 'F', 'F') // WOFF
+        || startsWith(head, length, 0, 'w', 'O', 'F', '2'); // WOFF2
+  }
+
+  private static boolean startsWith(byte[] head, int length, int offset, int... signature) {
+    if (length < offset + signature.length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length; i++) {
+      if ((head[offset + i] & 0xFF) != signature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import io.wcm.tooling.commons.contentpackagebuilder.EntryWriter.EntryContent;
+
+/**
+ * Collects the data of an entry that is stored uncompressed.
+ * <p>
+ * Stored entries need CRC and size in the local file header in front of the data, so the data has to be
+ * read completely before the entry can be written. CRC and size are computed while spooling, the data is kept
+ * in memory up to a threshold and written to a temporary file beyond that.
+ * </p>
+ */
+final class StoredEntrySpool implements Closeable {
+
+  static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+  private static final String TEMP_FILE_PREFIX = "content-package-entry-";
+
+  private final DeferredFileOutputStream data;
+  private final long crc;
+  private final long size;
+
+  private StoredEntrySpool(DeferredFileOutputStream data, long crc, long size) {
+    this.data = data;
+    this.crc = crc;
+    this.size = size;
+  }
+
+  /**
+   * @return CRC-32 of the data
+   */
+  public long getCrc() {
+    return this.crc;
+  }
+
+  /**
+   * @return Data size
+   */
+  public long getSize() {
+    return this.size;
+  }
+
+  /**
+   * @return true if the data is held in memory
+   */
+  public boolean isInMemory() {
+    return data.isInMemory();
+  }
+
+  /**
+   * @return Entry data for an entry held in memory
+   */
+  public ZipEntryData toEntryData() {
+    if (!isInMemory()) {
+      throw new IllegalStateException("Data is not held in memory.");
+    }
+    byte[] bytes = data.getData();
+    return ZipEntryData.stored(bytes, bytes.length, crc);
+  }
+
+  /**
+   * Writes the spooled data.
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeTo(@NotNull OutputStream os) throws IOException {
+    data.writeTo(os);
+  }
+
+  /**
+   * Deletes the temporary file, if any.
+   * @throws IOException I/O exception
+   */
+  @Override
+  public void close() throws IOException {
+    File file = data.getFile();
+    if (file != null) {
+      Files.deleteIfExists(file.toPath());
+    }
+  }
+
+  /**
+   * Reads the entry data and computes CRC and size.
+   * @param content Entry content
+   * @param memoryThreshold Max. number of bytes held in memory
+   * @return Spooled data
+   * @throws IOException I/O exception
+   */
+  static StoredEntrySpool spool(@NotNull EntryContent content, int memoryThreshold) throws IOException {
+    DeferredFileOutputStream data = new DeferredFileOutputStream(memoryThreshold, TEMP_FILE_PREFIX, null, null);
+    CRC32 crc = new CRC32();
+    try (CheckedOutputStream os = new CheckedOutputStream(data, crc)) {
+      content.writeTo(os);
+    }
+    catch (IOException | RuntimeException ex) {
+      new StoredEntrySpool(data, 0, 0).close();
+      throw ex;
+    }
+    return new StoredEntrySpool(data, crc.getValue(), data.getByteCount());
+  }
+
+}
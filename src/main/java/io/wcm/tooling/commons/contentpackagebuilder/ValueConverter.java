@@ -19,38 +19,45 @@
  */
 package io.wcm.tooling.commons.contentpackagebuilder;
 
-import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Set;
 import java.util.UUID;
 
-import javax.jcr.Binary;
-import javax.jcr.Item;
-import javax.jcr.ItemVisitor;
-import javax.jcr.Node;
-import javax.jcr.Property;
 import javax.jcr.PropertyType;
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.jcr.Value;
-import javax.jcr.ValueFormatException;
-import javax.jcr.nodetype.NodeType;
-import javax.jcr.nodetype.PropertyDefinition;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.util.ISO8601;
-import org.apache.jackrabbit.vault.util.DocViewProperty;
+import org.apache.jackrabbit.util.XMLChar;
 
 /**
  * Converts an value to string for a content property in XML including type prefix.
+ * <p>
+ * The output is identical to the JCR document view property syntax produced by
+ * {@link org.apache.jackrabbit.vault.util.DocViewProperty#format(javax.jcr.Property)},
+ * but it is written directly to a reusable buffer without creating JCR property and value objects.
+ * </p>
+ * This class is not thread-safe.
  */
 final class ValueConverter {
 
   static final String PN_PRIVILEGES = "rep:privileges";
 
+  /**
+   * Properties which never get a type prefix (see DocViewProperty).
+   */
+  private static final Set<String> UNAMBIGUOUS = Set.of("jcr:primaryType", "jcr:mixinTypes");
+
+  private static final char[] HEX_TABLE = "0123456789abcdef".toCharArray();
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private StringBuilder buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+
   /**
    * Converts an object to a string representation.
    * Supported are String, Boolean, Integer, Long, Double, BigDecimal, Date, Calendar and arrays of them.
@@ -62,433 +69,250 @@ final class ValueConverter {
       return "";
     }
 
-    Value[] values;
-    boolean multiple = value.getClass().isArray();
-    if (multiple) {
-      values = new Value[Array.getLength(value)];
-      int lastPropertyType = PropertyType.UNDEFINED;
-      for (int i = 0; i < values.length; i++) {
-        values[i] = toValue(propertyName, Array.get(value, i));
-        if (lastPropertyType == PropertyType.UNDEFINED) {
-          lastPropertyType = values[i].getType();
-        }
-        else if (lastPropertyType != values[i].getType()) {
-          throw new IllegalArgumentException("Mixing different value types within array not allowed: " +
-              PropertyType.nameFromValue(lastPropertyType) + ", " + PropertyType.nameFromValue(values[i].getType())
-              + ", propertyName=" + propertyName + ", value=" + value);
-        }
-      }
-    }
-    else {
-      values = new Value[] { toValue(propertyName, value) };
-    }
-
-    Property prop = new MockProperty(propertyName, multiple, values);
-    try {
-      return DocViewProperty.format(prop);
+    StringBuilder sb = buffer;
+    sb.setLength(0);
+    if (value instanceof Object[]) {
+      appendArray(sb, propertyName, (Object[])value);
     }
-    catch (RepositoryException ex) {
-      throw new IllegalStateException("Unable to format property value (" + propertyName + "): " + value, ex);
+    else if (value instanceof int[]) {
+      appendArray(sb, propertyName, (int[])value);
     }
-  }
-
-  private Value toValue(String propertyName, Object value) {
-    if (value instanceof String) {
-      if (StringUtils.equals(propertyName, PN_PRIVILEGES)) {
-        return new MockValue(value.toString(), PropertyType.NAME);
-      }
-      else {
-        return new MockValue(value.toString(), PropertyType.STRING);
-      }
+    else if (value instanceof long[]) {
+      appendArray(sb, propertyName, (long[])value);
     }
-    if (value instanceof Boolean) {
-      return new MockValue(((Boolean)value).toString(), PropertyType.BOOLEAN);
+    else if (value instanceof double[]) {
+      appendArray(sb, propertyName, (double[])value);
     }
-    if (value instanceof Integer || value instanceof Long) {
-      return new MockValue(Long.toString(((Number)value).longValue()), PropertyType.LONG);
+    else if (value instanceof float[]) {
+      appendArray(sb, propertyName, (float[])value);
     }
-    if (value instanceof Float || value instanceof Double) {
-      return new MockValue(Double.toString(((Number)value).doubleValue()), PropertyType.DECIMAL);
+    else if (value instanceof boolean[]) {
+      appendArray(sb, propertyName, (boolean[])value);
     }
-    if (value instanceof BigDecimal) {
-      return new MockValue(((BigDecimal)value).toString(), PropertyType.DECIMAL);
+    else if (value.getClass().isArray()) {
+      appendOtherArray(sb, propertyName, value);
     }
-    if (value instanceof Date) {
-      Calendar calendar = Calendar.getInstance();
-      calendar.setTime((Date)value);
-      return new MockValue(ISO8601.format(calendar), PropertyType.DATE);
-    }
-    if (value instanceof Calendar) {
-      return new MockValue(ISO8601.format((Calendar)value), PropertyType.DATE);
-    }
-    if (value instanceof UUID) {
-      return new MockValue(((UUID)value).toString(), PropertyType.REFERENCE);
-    }
-    if (value instanceof URI) {
-      return new MockValue(((URI)value).toString(), PropertyType.URI);
-    }
-    throw new IllegalArgumentException("Type not supported: " + value.getClass().getName());
-  }
-
-
-  /**
-   * Mock implementations of JCR property and value to be handed over to {@link DocViewProperty#format(Property)}
-   * method.
-   */
-  private static class MockProperty implements Property, PropertyDefinition {
-
-    private final String name;
-    private final boolean multiple;
-    private final Value[] values;
-
-    MockProperty(String name, boolean multiple, Value[] values) {
-      this.name = name;
-      this.multiple = multiple;
-      this.values = values;
+    else {
+      int type = getType(propertyName, value);
+      appendTypePrefix(sb, propertyName, type);
+      appendValue(sb, value, false);
     }
 
-    @Override
-    public String getName() {
-      return name;
+    String result = sb.toString();
+    if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+      buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
     }
+    return result;
+  }
 
-    @Override
-    public int getType() {
-      if (values.length > 0) {
-        return values[0].getType();
+  private void appendArray(StringBuilder sb, String propertyName, Object[] values) {
+    int firstType = PropertyType.UNDEFINED;
+    for (int i = 0; i < values.length; i++) {
+      int type = getType(propertyName, values[i]);
+      if (i == 0) {
+        firstType = type;
+        appendTypePrefix(sb, propertyName, type);
+        sb.append('[');
       }
-      return PropertyType.UNDEFINED;
-    }
-
-    @Override
-    public boolean isMultiple() {
-      return multiple;
-    }
-
-    @Override
-    public Value getValue() throws ValueFormatException {
-      if (multiple) {
-        throw new ValueFormatException("Property is multiple.");
+      else if (type != firstType) {
+        throw new IllegalArgumentException("Mixing different value types within array not allowed: " +
+            PropertyType.nameFromValue(firstType) + ", " + PropertyType.nameFromValue(type)
+            + ", propertyName=" + propertyName + ", value=" + values);
       }
-      return values[0];
-    }
-
-    @Override
-    public Value[] getValues() throws ValueFormatException {
-      if (!multiple) {
-        throw new ValueFormatException("Property is not multiple.");
+      else {
+        sb.append(',');
+      }
+      int start = sb.length();
+      appendValue(sb, values[i], true);
+      if (values.length == 1 && sb.length() == start) {
+        // a single empty value is marked explicitly to distinguish it from an empty array
+        sb.append("\\0");
       }
-      return values;
-    }
-
-    @Override
-    public PropertyDefinition getDefinition() {
-      return this;
-    }
-
-
-    // -- unsupported methods --
-
-    @Override
-    public String getPath() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Item getAncestor(int depth) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Node getParent() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public int getDepth() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Session getSession() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean isNode() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean isNew() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean isModified() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean isSame(Item otherItem) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void accept(ItemVisitor visitor) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void save() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void refresh(boolean keepChanges) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void remove() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(Value value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(Value[] value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(String value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(String[] value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(InputStream value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(Binary value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(long value) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public void setValue(double value) {
-      throw new UnsupportedOperationException();
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public void setValue(BigDecimal value) {
-      throw new UnsupportedOperationException();
+  private void appendArray(StringBuilder sb, String propertyName, int[] values) {
+    startArray(sb, propertyName, PropertyType.LONG, values.length);
+    for (int i = 0; i < values.length; i++) {
+      appendSeparator(sb, i);
+      sb.append((long)values[i]);
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public void setValue(Calendar value) {
-      throw new UnsupportedOperationException();
+  private void appendArray(StringBuilder sb, String propertyName, long[] values) {
+    startArray(sb, propertyName, PropertyType.LONG, values.length);
+    for (int i = 0; i < values.length; i++) {
+      appendSeparator(sb, i);
+      sb.append(values[i]);
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public void setValue(boolean value) {
-      throw new UnsupportedOperationException();
+  private void appendArray(StringBuilder sb, String propertyName, double[] values) {
+    startArray(sb, propertyName, PropertyType.DECIMAL, values.length);
+    for (int i = 0; i < values.length; i++) {
+      appendSeparator(sb, i);
+      sb.append(values[i]);
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public void setValue(Node value) {
-      throw new UnsupportedOperationException();
+  private void appendArray(StringBuilder sb, String propertyName, float[] values) {
+    startArray(sb, propertyName, PropertyType.DECIMAL, values.length);
+    for (int i = 0; i < values.length; i++) {
+      appendSeparator(sb, i);
+      sb.append((double)values[i]);
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public String getString() {
-      throw new UnsupportedOperationException();
+  private void appendArray(StringBuilder sb, String propertyName, boolean[] values) {
+    startArray(sb, propertyName, PropertyType.BOOLEAN, values.length);
+    for (int i = 0; i < values.length; i++) {
+      appendSeparator(sb, i);
+      sb.append(values[i]);
     }
+    endArray(sb, propertyName, values.length);
+  }
 
-    @Override
-    public InputStream getStream() {
-      throw new UnsupportedOperationException();
+  /**
+   * Primitive arrays of types without direct support (byte, short, char) - the boxed values are rejected
+   * by {@link #getType(String, Object)} unless the array is empty.
+   */
+  private void appendOtherArray(StringBuilder sb, String propertyName, Object value) {
+    int length = Array.getLength(value);
+    Object[] values = new Object[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = Array.get(value, i);
     }
+    appendArray(sb, propertyName, values);
+  }
 
-    @Override
-    public Binary getBinary() {
-      throw new UnsupportedOperationException();
+  private static void startArray(StringBuilder sb, String propertyName, int type, int length) {
+    if (length > 0) {
+      appendTypePrefix(sb, propertyName, type);
+      sb.append('[');
     }
+  }
 
-    @Override
-    public long getLong() {
-      throw new UnsupportedOperationException();
+  private static void appendSeparator(StringBuilder sb, int index) {
+    if (index > 0) {
+      sb.append(',');
     }
+  }
 
-    @Override
-    public double getDouble() {
-      throw new UnsupportedOperationException();
+  private static void endArray(StringBuilder sb, String propertyName, int length) {
+    if (length == 0) {
+      appendTypePrefix(sb, propertyName, PropertyType.UNDEFINED);
+      sb.append('[');
     }
+    sb.append(']');
+  }
 
-    @Override
-    public BigDecimal getDecimal() {
-      throw new UnsupportedOperationException();
+  private static void appendTypePrefix(StringBuilder sb, String propertyName, int type) {
+    if (type != PropertyType.STRING && !UNAMBIGUOUS.contains(propertyName)) {
+      sb.append('{').append(PropertyType.nameFromValue(type)).append('}');
     }
+  }
 
-    @Override
-    public Calendar getDate() {
-      throw new UnsupportedOperationException();
+  private static int getType(String propertyName, Object value) {
+    if (value instanceof String) {
+      if (StringUtils.equals(propertyName, PN_PRIVILEGES)) {
+        return PropertyType.NAME;
+      }
+      else {
+        return PropertyType.STRING;
+      }
     }
-
-    @Override
-    public boolean getBoolean() {
-      throw new UnsupportedOperationException();
+    if (value instanceof Boolean) {
+      return PropertyType.BOOLEAN;
     }
-
-    @Override
-    public Node getNode() {
-      throw new UnsupportedOperationException();
+    if (value instanceof Integer || value instanceof Long) {
+      return PropertyType.LONG;
     }
-
-    @Override
-    public Property getProperty() {
-      throw new UnsupportedOperationException();
+    if (value instanceof Float || value instanceof Double || value instanceof BigDecimal) {
+      return PropertyType.DECIMAL;
     }
-
-    @Override
-    public long getLength() {
-      throw new UnsupportedOperationException();
+    if (value instanceof Date || value instanceof Calendar) {
+      return PropertyType.DATE;
     }
-
-    @Override
-    public long[] getLengths() {
-      throw new UnsupportedOperationException();
+    if (value instanceof UUID) {
+      return PropertyType.REFERENCE;
     }
-
-    @Override
-    public NodeType getDeclaringNodeType() {
-      throw new UnsupportedOperationException();
+    if (value instanceof URI) {
+      return PropertyType.URI;
     }
+    throw new IllegalArgumentException("Type not supported: " + value.getClass().getName());
+  }
 
-    @Override
-    public boolean isAutoCreated() {
-      throw new UnsupportedOperationException();
+  /**
+   * Appends a single value that was already accepted by {@link #getType(String, Object)}.
+   * Only string and name values may contain characters that need escaping, and only those are escaped
+   * within multi-value properties. Single values are always escaped.
+   */
+  private static void appendValue(StringBuilder sb, Object value, boolean multiple) {
+    if (value instanceof String) {
+      escape(sb, (String)value, multiple);
     }
-
-    @Override
-    public boolean isMandatory() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof Boolean) {
+      sb.append(((Boolean)value).booleanValue());
     }
-
-    @Override
-    public int getOnParentVersion() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof Integer || value instanceof Long) {
+      sb.append(((Number)value).longValue());
     }
-
-    @Override
-    public boolean isProtected() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof Float || value instanceof Double) {
+      sb.append(((Number)value).doubleValue());
     }
-
-    @Override
-    public int getRequiredType() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof BigDecimal) {
+      sb.append(((BigDecimal)value).toString());
     }
-
-    @Override
-    public String[] getValueConstraints() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof Date) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTime((Date)value);
+      sb.append(ISO8601.format(calendar));
     }
-
-    @Override
-    public Value[] getDefaultValues() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof Calendar) {
+      sb.append(ISO8601.format((Calendar)value));
     }
-
-    @Override
-    public String[] getAvailableQueryOperators() {
-      throw new UnsupportedOperationException();
+    else if (value instanceof UUID) {
+      sb.append(((UUID)value).toString());
     }
-
-    @Override
-    public boolean isFullTextSearchable() {
-      throw new UnsupportedOperationException();
+    else if (multiple) {
+      sb.append(value.toString());
     }
-
-    @Override
-    public boolean isQueryOrderable() {
-      throw new UnsupportedOperationException();
+    else {
+      escape(sb, value.toString(), false);
     }
-
   }
 
-  private static class MockValue implements Value {
-
-    private final String value;
-    private final int type;
-
-    MockValue(String value, int type) {
-      this.value = value;
-      this.type = type;
-    }
-
-    @Override
-    public String getString() {
-      return value;
-    }
-
-    @Override
-    public int getType() {
-      return type;
-    }
-
-
-    // -- unsupported methods --
-
-    @Override
-    public InputStream getStream() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Binary getBinary() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public long getLong() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public double getDouble() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public BigDecimal getDecimal() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public Calendar getDate() {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean getBoolean() {
-      throw new UnsupportedOperationException();
+  /**
+   * Escapes a value in the same way as DocViewProperty.
+   */
+  private static void escape(StringBuilder sb, String value, boolean multiple) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\') {
+        sb.append("\\\\");
+      }
+      else if (c == ',' && multiple) {
+        sb.append("\\,");
+      }
+      else if (i == 0 && !multiple && (c == '[' || c == '{')) {
+        sb.append('\\').append(c);
+      }
+      else if (XMLChar.isInvalid(c)) {
+        sb.append("\\u")
+            .append(HEX_TABLE[(c >> 12) & 15])
+            .append(HEX_TABLE[(c >> 8) & 15])
+            .append(HEX_TABLE[(c >> 4) & 15])
+            .append(HEX_TABLE[c & 15]);
+      }
+      else {
+        sb.append(c);
+      }
     }
-
   }
 
 }
@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Resources shared by content packages: the JAXP factories, pooled XML transformers and document builders,
+ * deflaters and I/O buffers, and the cached XML of shared content elements.
+ * <p>
+ * Pass a context to {@link ContentPackageBuilder#build(OutputStream, WriterContext)} or
+ * {@link ContentPackageBuilder#build(File, WriterContext)} to build many packages - one after another or in parallel -
+ * without looking up and initializing these resources for each package again. Without a context, each package
+ * creates its own.
+ * </p>
+ * <p>
+ * This class is thread-safe. The number of idle instances kept per pool is limited, surplus instances are discarded.
+ * Close the context after all packages using it are closed to release the native memory of the pooled deflaters.
+ * </p>
+ */
+public final class WriterContext implements Closeable {
+
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final TransformerFactory transformerFactory;
+  private final DocumentBuilderFactory documentBuilderFactory;
+  private final BlockingQueue<Transformer> transformers;
+  private final BlockingQueue<Transformer> compactTransformers;
+  private final BlockingQueue<DocumentBuilder> documentBuilders;
+  private final BlockingQueue<Deflater> deflaters;
+  private final BlockingQueue<byte[]> buffers;
+  private final FragmentCache fragmentCache = new FragmentCache();
+  private volatile boolean closed;
+
+  /**
+   * Creates a context keeping up to twice the number of available processors idle instances per pool.
+   */
+  public WriterContext() {
+    this(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+  }
+
+  /**
+   * @param maxPoolSize Max. number of idle instances kept per pool
+   */
+  public WriterContext(int maxPoolSize) {
+    if (maxPoolSize < 1) {
+      throw new IllegalArgumentException("Invalid max. pool size: " + maxPoolSize);
+    }
+    this.transformerFactory = createTransformerFactory();
+    this.documentBuilderFactory = createDocumentBuilderFactory();
+    this.transformers = new ArrayBlockingQueue<>(maxPoolSize);
+    this.compactTransformers = new ArrayBlockingQueue<>(maxPoolSize);
+    this.documentBuilders = new ArrayBlockingQueue<>(maxPoolSize);
+    this.deflaters = new ArrayBlockingQueue<>(maxPoolSize);
+    this.buffers = new ArrayBlockingQueue<>(maxPoolSize);
+  }
+
+  /**
+   * @param indent Write indented output, or compact output without whitespace between elements
+   * @return XML transformer
+   */
+  Transformer borrowTransformer(boolean indent) {
+    Transformer transformer = (indent ? transformers : compactTransformers).poll();
+    if (transformer == null) {
+      synchronized (transformerFactory) {
+        transformer = createTransformer(transformerFactory, indent);
+      }
+    }
+    return transformer;
+  }
+
+  void returnTransformer(@NotNull Transformer transformer, boolean indent) {
+    (indent ? transformers : compactTransformers).offer(transformer);
+  }
+
+  /**
+   * @return Namespace-aware document builder
+   */
+  DocumentBuilder borrowDocumentBuilder() {
+    DocumentBuilder documentBuilder = documentBuilders.poll();
+    if (documentBuilder == null) {
+      synchronized (documentBuilderFactory) {
+        documentBuilder = createDocumentBuilder(documentBuilderFactory);
+      }
+    }
+    return documentBuilder;
+  }
+
+  void returnDocumentBuilder(@NotNull DocumentBuilder documentBuilder) {
+    documentBuilder.reset();
+    documentBuilder.setEntityResolver(new PropertiesEntityResolver());
+    documentBuilders.offer(documentBuilder);
+  }
+
+  /**
+   * @return Deflater for raw deflate without ZLIB header
+   */
+  Deflater borrowDeflater() {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+    return deflater;
+  }
+
+  void returnDeflater(@NotNull Deflater deflater) {
+    deflater.reset();
+    if (closed || !deflaters.offer(deflater)) {
+      deflater.end();
+      return;
+    }
+    // context was closed concurrently
+    if (closed && deflaters.remove(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return I/O buffer with {@link #BUFFER_SIZE} bytes
+   */
+  byte[] borrowBuffer() {
+    byte[] buffer = buffers.poll();
+    if (buffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+    }
+    return buffer;
+  }
+
+  void returnBuffer(@NotNull byte[] buffer) {
+    buffers.offer(buffer);
+  }
+
+  /**
+   * @return Cache for the XML of shared content elements
+   */
+  FragmentCache getFragmentCache() {
+    return fragmentCache;
+  }
+
+  /**
+   * @return Number of shared content elements whose XML was taken from the cache
+   */
+  public long getFragmentCacheHitCount() {
+    return fragmentCache.getHitCount();
+  }
+
+  /**
+   * @return Number of shared content elements whose XML had to be rendered
+   */
+  public long getFragmentCacheMissCount() {
+    return fragmentCache.getMissCount();
+  }
+
+  /**
+   * Releases all pooled resources.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Deflater deflater;
+    while ((deflater = deflaters.poll()) != null) {
+      deflater.end();
+    }
+    transformers.clear();
+    compactTransformers.clear();
+    documentBuilders.clear();
+    buffers.clear();
+    fragmentCache.clear();
+  }
+
+  static TransformerFactory createTransformerFactory() {
+    TransformerFactory factory = TransformerFactory.newInstance();
+    factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+    factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
+    try {
+      factory.setAttribute("indent-number", 2);
+    }
+    catch (IllegalArgumentException ex) {
+      // Implementation does not support configuration property. Ignore.
+    }
+    return factory;
+  }
+
+  @SuppressWarnings("java:S1141") // nested try-catch
+  static Transformer createTransformer(TransformerFactory factory, boolean indent) {
+    try {
+      Transformer transformer = factory.newTransformer();
+      try {
+        transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+      }
+      catch (IllegalArgumentException ex) {
+        // Implementation does not support output property. Ignore.
+      }
+      if (indent) {
+        try {
+          transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+        }
+        catch (IllegalArgumentException ex) {
+          // Implementation does not support output property. Ignore.
+        }
+      }
+      return transformer;
+    }
+    catch (TransformerException ex) {
+      throw new IllegalStateException("Failed to set up XML transformer: " + ex.getMessage(), ex);
+    }
+  }
+
+  static DocumentBuilderFactory createDocumentBuilderFactory() {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory;
+  }
+
+  static DocumentBuilder createDocumentBuilder(DocumentBuilderFactory factory) {
+    try {
+      DocumentBuilder documentBuilder = factory.newDocumentBuilder();
+      documentBuilder.setEntityResolver(new PropertiesEntityResolver());
+      return documentBuilder;
+    }
+    catch (ParserConfigurationException ex) {
+      throw new IllegalStateException("Failed to set up XML document builder: " + ex.getMessage(), ex);
+    }
+  }
+
+}
@@ -21,19 +21,29 @@ package io.wcm.tooling.commons.contentpackagebuilder;
 
 import static io.wcm.tooling.commons.contentpackagebuilder.XmlNamespaces.NS_JCR;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.util.ISO9075;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.ContentPart;
+import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.Placement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree;
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree.NodeElement;
 import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
 
 /**
  * Builds CMS content packages.
@@ -42,7 +52,11 @@ final class XmlContentBuilder {
 
   private final DocumentBuilder documentBuilder;
   private final Map<String, String> xmlNamespaces;
+  private final boolean usedNamespacesOnly;
+  private final boolean compact;
+  private final FragmentCache fragmentCache;
   private final ValueConverter valueConverter = new ValueConverter();
+  private final Set<String> usedPrefixes = new HashSet<>();
 
   static final String PN_PRIMARY_TYPE = "jcr:primaryType";
   static final String NT_PAGE = "cq:Page";
@@ -51,17 +65,60 @@ final class XmlContentBuilder {
   static final String NT_FILE = "nt:file";
   static final String NT_RESOURCE = "nt:resource";
 
+  /**
+   * Properties with JCR name values that may reference namespace prefixes.
+   */
+  static final Set<String> NAME_PROPERTIES = Set.of(PN_PRIMARY_TYPE, "jcr:mixinTypes", ValueConverter.PN_PRIVILEGES);
+
   XmlContentBuilder(Map<String, String> xmlNamespaces) {
-    DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-    documentBuilderFactory.setNamespaceAware(true);
-    try {
-      this.documentBuilder = documentBuilderFactory.newDocumentBuilder();
-      this.documentBuilder.setEntityResolver(new PropertiesEntityResolver());
-    }
-    catch (ParserConfigurationException ex) {
-      throw new IllegalStateException("Failed to set up XML document builder: " + ex.getMessage(), ex);
-    }
+    this(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()), xmlNamespaces);
+  }
+
+  /**
+   * @param documentBuilder Namespace-aware document builder
+   * @param xmlNamespaces XML namespaces
+   */
+  XmlContentBuilder(DocumentBuilder documentBuilder, Map<String, String> xmlNamespaces) {
+    this(documentBuilder, xmlNamespaces, false);
+  }
+
+  /**
+   * @param documentBuilder Namespace-aware document builder
+   * @param xmlNamespaces XML namespaces
+   * @param usedNamespacesOnly If true, only the namespaces whose prefixes are referenced by the node names,
+   *          property names or name values of a document are declared in it
+   */
+  XmlContentBuilder(DocumentBuilder documentBuilder, Map<String, String> xmlNamespaces, boolean usedNamespacesOnly) {
+    this(documentBuilder, xmlNamespaces, usedNamespacesOnly, false);
+  }
+
+  /**
+   * @param documentBuilder Namespace-aware document builder
+   * @param xmlNamespaces XML namespaces
+   * @param usedNamespacesOnly If true, only the namespaces whose prefixes are referenced by the node names,
+   *          property names or name values of a document are declared in it
+   * @param compact If true, the streamed XML is written without indentation and line breaks
+   */
+  XmlContentBuilder(DocumentBuilder documentBuilder, Map<String, String> xmlNamespaces, boolean usedNamespacesOnly,
+      boolean compact) {
+    this(documentBuilder, xmlNamespaces, usedNamespacesOnly, compact, null);
+  }
+
+  /**
+   * @param documentBuilder Namespace-aware document builder
+   * @param xmlNamespaces XML namespaces
+   * @param usedNamespacesOnly If true, only the namespaces whose prefixes are referenced by the node names,
+   *          property names or name values of a document are declared in it
+   * @param compact If true, the streamed XML is written without indentation and line breaks
+   * @param fragmentCache Cache for the streamed XML of shared content elements, or null
+   */
+  XmlContentBuilder(DocumentBuilder documentBuilder, Map<String, String> xmlNamespaces, boolean usedNamespacesOnly,
+      boolean compact, FragmentCache fragmentCache) {
+    this.fragmentCache = fragmentCache;
+    this.documentBuilder = documentBuilder;
     this.xmlNamespaces = xmlNamespaces;
+    this.usedNamespacesOnly = usedNamespacesOnly;
+    this.compact = compact;
   }
 
   /**
@@ -70,11 +127,12 @@ final class XmlContentBuilder {
    * @return cq:Page JCR XML
    */
   public Document buildPage(ContentElement content) {
+    collectPagePrefixes(content);
     Document doc = documentBuilder.newDocument();
     Element jcrRoot = createJcrRoot(doc, NT_PAGE);
     Element jcrContent = createJcrContent(doc, jcrRoot, NT_PAGE_CONTENT);
 
-    exportPayload(doc, jcrContent, content);
+    exportPayload(doc, jcrContent, content, null);
 
     return doc;
   }
@@ -85,11 +143,12 @@ final class XmlContentBuilder {
    * @return cq:Page JCR XML
    */
   public Document buildPage(Map<String, Object> content) {
+    collectPagePrefixes(content);
     Document doc = documentBuilder.newDocument();
     Element jcrRoot = createJcrRoot(doc, NT_PAGE);
     Element jcrContent = createJcrContent(doc, jcrRoot, NT_PAGE_CONTENT);
 
-    exportPayload(doc, jcrContent, content);
+    exportPayload(doc, jcrContent, content, null);
 
     return doc;
   }
@@ -100,12 +159,17 @@ final class XmlContentBuilder {
    * @return JCR XML
    */
   public Document buildContent(ContentElement content) {
+    return buildContent(content, null);
+  }
+
+  private Document buildContent(ContentElement content, ContentPart part) {
     Document doc = documentBuilder.newDocument();
 
     String primaryType = StringUtils.defaultString((String)content.getProperties().get(PN_PRIMARY_TYPE), NT_UNSTRUCTURED);
+    collectContentPrefixes(primaryType, content, part);
     Element jcrRoot = createJcrRoot(doc, primaryType);
 
-    exportPayload(doc, jcrRoot, content);
+    exportPayload(doc, jcrRoot, content, part);
 
     return doc;
   }
@@ -116,12 +180,34 @@ final class XmlContentBuilder {
    * @return JCR XML
    */
   public Document buildContent(Map<String, Object> content) {
+    return buildContent(content, null);
+  }
+
+  /**
+   * Build XML for a chunk of JCR content, without the child nodes that belong to other chunks.
+   * @param part Content chunk
+   * @return JCR XML
+   */
+  public Document buildContent(ContentPart part) {
+    Document doc;
+    if (part.getContent() != null) {
+      doc = buildContent(part.getContent(), part);
+    }
+    else {
+      doc = buildContent(part.getElement(), part);
+    }
+    part.rendered();
+    return doc;
+  }
+
+  private Document buildContent(Map<String, Object> content, ContentPart part) {
     Document doc = documentBuilder.newDocument();
 
     String primaryType = StringUtils.defaultString((String)content.get(PN_PRIMARY_TYPE), NT_UNSTRUCTURED);
+    collectContentPrefixes(primaryType, content, part);
     Element jcrRoot = createJcrRoot(doc, primaryType);
 
-    exportPayload(doc, jcrRoot, content);
+    exportPayload(doc, jcrRoot, content, part);
 
     return doc;
   }
@@ -133,6 +219,7 @@ final class XmlContentBuilder {
    * @return nt:file XML
    */
   public Document buildNtFile(String mimeType, String encoding) {
+    collectNtFilePrefixes();
     Document doc = documentBuilder.newDocument();
     Element jcrRoot = createJcrRoot(doc, NT_FILE);
     Element jcrContent = createJcrContent(doc, jcrRoot, NT_RESOURCE);
@@ -162,6 +249,9 @@ final class XmlContentBuilder {
     for (PackageFilter filter : filters) {
       Element filterElement = doc.createElement("filter");
       filterElement.setAttribute("root", filter.getRootPath());
+      if (filter.getMode() != PackageFilterMode.REPLACE) {
+        filterElement.setAttribute("mode", filter.getMode().getMode());
+      }
       workspaceFilterElement.appendChild(filterElement);
 
       for (PackageFilterRule rule : filter.getRules()) {
@@ -174,9 +264,133 @@ final class XmlContentBuilder {
     return doc;
   }
 
+  /**
+   * Writes XML for cq:Page directly to the output stream, without building a DOM document.
+   * @param content Hierarchy of content elements.
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writePage(ContentElement content, OutputStream os) throws IOException {
+    collectPagePrefixes(content);
+    DocViewXmlWriter writer = startJcrRoot(os, NT_PAGE);
+    writer.startElement("jcr:content");
+    writePayload(writer, NT_PAGE_CONTENT, content, null);
+    writer.endElement();
+    endJcrRoot(writer);
+  }
+
+  /**
+   * Writes XML for cq:Page directly to the output stream, without building a DOM document.
+   * @param content Content with page properties and nested nodes
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writePage(Map<String, Object> content, OutputStream os) throws IOException {
+    collectPagePrefixes(content);
+    DocViewXmlWriter writer = startJcrRoot(os, NT_PAGE);
+    writer.startElement("jcr:content");
+    writePayload(writer, NT_PAGE_CONTENT, content, null);
+    writer.endElement();
+    endJcrRoot(writer);
+  }
+
+  /**
+   * Writes XML for any JCR content directly to the output stream, without building a DOM document.
+   * @param content Hierarchy of content elements.
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeContent(ContentElement content, OutputStream os) throws IOException {
+    writeContent(content, os, null);
+  }
+
+  private void writeContent(ContentElement content, OutputStream os, ContentPart part) throws IOException {
+    String primaryType = StringUtils.defaultString((String)content.getProperties().get(PN_PRIMARY_TYPE), NT_UNSTRUCTURED);
+    collectContentPrefixes(primaryType, content, part);
+    DocViewXmlWriter writer = startJcrRootElement(os);
+    writePayload(writer, primaryType, content, part);
+    endJcrRoot(writer);
+  }
+
+  /**
+   * Writes XML for any JCR content directly to the output stream, without building a DOM document.
+   * @param content Content with properties and nested nodes
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeContent(Map<String, Object> content, OutputStream os) throws IOException {
+    writeContent(content, os, null);
+  }
+
+  /**
+   * Writes XML for a chunk of JCR content directly to the output stream, without building a DOM document.
+   * The child nodes that belong to other chunks are not written.
+   * @param part Content chunk
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeContent(ContentPart part, OutputStream os) throws IOException {
+    if (part.getContent() != null) {
+      writeContent(part.getContent(), os, part);
+    }
+    else {
+      writeContent(part.getElement(), os, part);
+    }
+    part.rendered();
+  }
+
+  private void writeContent(Map<String, Object> content, OutputStream os, ContentPart part) throws IOException {
+    String primaryType = StringUtils.defaultString((String)content.get(PN_PRIMARY_TYPE), NT_UNSTRUCTURED);
+    collectContentPrefixes(primaryType, content, part);
+    DocViewXmlWriter writer = startJcrRootElement(os);
+    writePayload(writer, primaryType, content, part);
+    endJcrRoot(writer);
+  }
+
+  /**
+   * Writes XML for nt:file directly to the output stream, without building a DOM document.
+   * @param mimeType Mime type
+   * @param encoding Encoding
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeNtFile(String mimeType, String encoding, OutputStream os) throws IOException {
+    collectNtFilePrefixes();
+    DocViewXmlWriter writer = startJcrRoot(os, NT_FILE);
+    SortedMap<String, String> attributes = new TreeMap<>();
+    attributes.put(PN_PRIMARY_TYPE, NT_RESOURCE);
+    if (StringUtils.isNotEmpty(mimeType)) {
+      attributes.put("jcr:mimeType", mimeType);
+    }
+    if (StringUtils.isNotEmpty(encoding)) {
+      attributes.put("jcr:encoding", encoding);
+    }
+    writer.startElement("jcr:content");
+    writeAttributes(writer, attributes);
+    writer.endElement();
+    endJcrRoot(writer);
+  }
+
+  /**
+   * Formats a property value in JCR document view syntax.
+   * @param propertyName Property name
+   * @param value Value
+   * @return Formatted value, without XML escaping
+   */
+  String formatValue(String propertyName, Object value) {
+    return valueConverter.toString(propertyName, value);
+  }
+
+  /**
+   * @return Key identifying all settings that affect the generated XML, except the content itself
+   */
+  String getOutputKey() {
+    return compact + "|" + usedNamespacesOnly + "|" + xmlNamespaces;
+  }
+
   private Element createJcrRoot(Document doc, String primaryType) {
     Element jcrRoot = doc.createElementNS(NS_JCR, "jcr:root");
-    for (Map.Entry<String, String> namespace : xmlNamespaces.entrySet()) {
+    for (Map.Entry<String, String> namespace : getNamespaceDeclarations().entrySet()) {
       jcrRoot.setAttribute("xmlns:" + namespace.getKey(), namespace.getValue());
     }
     setAttributeNamespaceAware(jcrRoot, PN_PRIMARY_TYPE, primaryType);
@@ -191,7 +405,12 @@ final class XmlContentBuilder {
     return jcrContent;
   }
 
-  private void exportPayload(Document doc, Element element, ContentElement content) {
+  private void exportPayload(Document doc, Element element, ContentElement content, ContentPart part) {
+    if (content instanceof NodeElement) {
+      NodeElement nodeElement = (NodeElement)content;
+      exportPayload(doc, element, nodeElement.getTree(), nodeElement.getNode(), part);
+      return;
+    }
     for (Map.Entry<String, Object> entry : content.getProperties().entrySet()) {
       Object value = entry.getValue();
       if (value == null) {
@@ -204,17 +423,57 @@ final class XmlContentBuilder {
     }
     for (Map.Entry<String, ContentElement> entry : content.getChildren().entrySet()) {
       ContentElement child = entry.getValue();
-      Element subElement = doc.createElement(validateAndEncodeName(entry.getKey()));
+      Placement placement = getPlacement(part, entry.getKey(), child, child.getProperties());
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      Element subElement = doc.createElement(validateAndEncodeNodeName(entry.getKey()));
+      element.appendChild(subElement);
+      if (placement == Placement.SPLIT) {
+        continue;
+      }
       if (!hasAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE) && !child.getProperties().containsKey(PN_PRIMARY_TYPE)) {
         setAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE, NT_UNSTRUCTURED);
       }
+      int pathLength = enter(part, entry.getKey());
+      exportPayload(doc, subElement, child, part);
+      exit(part, pathLength);
+    }
+  }
+
+  private void exportPayload(Document doc, Element element, CompactContentTree tree, int node, ContentPart part) {
+    for (int property = tree.getFirstProperty(node); property != CompactContentTree.NONE; property = tree.getNextProperty(property)) {
+      Object value = tree.getPropertyValue(property);
+      if (value == null) {
+        continue;
+      }
+      String name = tree.getPropertyName(property);
+      if (!hasAttributeNamespaceAware(element, name)) {
+        setAttributeNamespaceAware(element, name, valueConverter.toString(name, value));
+      }
+    }
+    for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+      String name = tree.getName(child);
+      Placement placement = getPlacement(part, name, tree, child);
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      Element subElement = doc.createElement(validateAndEncodeNodeName(name));
       element.appendChild(subElement);
-      exportPayload(doc, subElement, child);
+      if (placement == Placement.SPLIT) {
+        continue;
+      }
+      if (!hasAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE) && !tree.hasProperty(child, PN_PRIMARY_TYPE)) {
+        setAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE, NT_UNSTRUCTURED);
+      }
+      int pathLength = enter(part, name);
+      exportPayload(doc, subElement, tree, child, part);
+      exit(part, pathLength);
     }
   }
 
   @SuppressWarnings("unchecked")
-  private void exportPayload(Document doc, Element element, Map<String, Object> content) {
+  private void exportPayload(Document doc, Element element, Map<String, Object> content, ContentPart part) {
     for (Map.Entry<String,Object> entry : content.entrySet()) {
       Object value = entry.getValue();
       if (value == null) {
@@ -222,12 +481,21 @@ final class XmlContentBuilder {
       }
       if (value instanceof Map) {
         Map<String, Object> childMap = (Map<String, Object>)value;
-        Element subElement = doc.createElement(validateAndEncodeName(entry.getKey()));
+        Placement placement = getPlacement(part, entry.getKey(), childMap, childMap);
+        if (placement == Placement.FOLDER) {
+          continue;
+        }
+        Element subElement = doc.createElement(validateAndEncodeNodeName(entry.getKey()));
+        element.appendChild(subElement);
+        if (placement == Placement.SPLIT) {
+          continue;
+        }
         if (!hasAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE) && !childMap.containsKey(PN_PRIMARY_TYPE)) {
           setAttributeNamespaceAware(subElement, PN_PRIMARY_TYPE, NT_UNSTRUCTURED);
         }
-        element.appendChild(subElement);
-        exportPayload(doc, subElement, childMap);
+        int pathLength = enter(part, entry.getKey());
+        exportPayload(doc, subElement, childMap, part);
+        exit(part, pathLength);
       }
       else if (!hasAttributeNamespaceAware(element, entry.getKey())) {
         String stringValue = valueConverter.toString(entry.getKey(), value);
@@ -236,6 +504,400 @@ final class XmlContentBuilder {
     }
   }
 
+  private DocViewXmlWriter startJcrRoot(OutputStream os, String primaryType) throws IOException {
+    DocViewXmlWriter writer = startJcrRootElement(os);
+    writer.attribute(PN_PRIMARY_TYPE, primaryType);
+    return writer;
+  }
+
+  /**
+   * Starts document and jcr:root element with namespace declarations, in the same order as the
+   * XML transformer outputs them for DOM documents: jcr namespace first, all others sorted by prefix.
+   */
+  private DocViewXmlWriter startJcrRootElement(OutputStream os) throws IOException {
+    DocViewXmlWriter writer = new DocViewXmlWriter(os, !compact);
+    writer.startDocument();
+    writer.startElement("jcr:root");
+    writer.attribute("xmlns:jcr", NS_JCR);
+    for (Map.Entry<String, String> namespace : getNamespaceDeclarations().entrySet()) {
+      if (!StringUtils.equals(namespace.getValue(), NS_JCR)) {
+        writer.attribute("xmlns:" + namespace.getKey(), namespace.getValue());
+      }
+    }
+    return writer;
+  }
+
+  /**
+   * @return Namespaces to declare in the current document, sorted by prefix
+   */
+  private SortedMap<String, String> getNamespaceDeclarations() {
+    if (!usedNamespacesOnly) {
+      return new TreeMap<>(xmlNamespaces);
+    }
+    SortedMap<String, String> namespaces = new TreeMap<>();
+    for (String prefix : usedPrefixes) {
+      String uri = xmlNamespaces.get(prefix);
+      if (uri != null) {
+        namespaces.put(prefix, uri);
+      }
+    }
+    return namespaces;
+  }
+
+  private void collectPagePrefixes(ContentElement content) {
+    if (startCollectingPrefixes(NT_PAGE)) {
+      addPrefix(NT_PAGE_CONTENT);
+      collectPrefixes(content, null);
+    }
+  }
+
+  private void collectPagePrefixes(Map<String, Object> content) {
+    if (startCollectingPrefixes(NT_PAGE)) {
+      addPrefix(NT_PAGE_CONTENT);
+      collectPrefixes(content, null);
+    }
+  }
+
+  private void collectContentPrefixes(String primaryType, ContentElement content, ContentPart part) {
+    if (startCollectingPrefixes(primaryType)) {
+      collectPrefixes(content, part);
+    }
+  }
+
+  private void collectContentPrefixes(String primaryType, Map<String, Object> content, ContentPart part) {
+    if (startCollectingPrefixes(primaryType)) {
+      collectPrefixes(content, part);
+    }
+  }
+
+  private void collectNtFilePrefixes() {
+    if (startCollectingPrefixes(NT_FILE)) {
+      addPrefix(NT_RESOURCE);
+    }
+  }
+
+  /**
+   * Resets the used prefixes to the ones of the jcr:root element.
+   * @return true if the used prefixes have to be collected
+   */
+  private boolean startCollectingPrefixes(String rootPrimaryType) {
+    if (!usedNamespacesOnly) {
+      return false;
+    }
+    usedPrefixes.clear();
+    addPrefix(PN_PRIMARY_TYPE);
+    addPrefix(rootPrimaryType);
+    return true;
+  }
+
+  private void collectPrefixes(ContentElement content, ContentPart part) {
+    if (content instanceof NodeElement) {
+      NodeElement nodeElement = (NodeElement)content;
+      collectPrefixes(nodeElement.getTree(), nodeElement.getNode(), part);
+      return;
+    }
+    collectPropertyPrefixes(content.getProperties());
+    for (Map.Entry<String, ContentElement> entry : content.getChildren().entrySet()) {
+      Map<String, Object> childProperties = entry.getValue().getProperties();
+      Placement placement = part != null ? part.getPlacement(entry.getKey(), entry.getValue(), childProperties) : Placement.INLINE;
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      addNodeNamePrefix(entry.getKey());
+      if (placement == Placement.INLINE) {
+        if (!childProperties.containsKey(PN_PRIMARY_TYPE)) {
+          addPrefix(NT_UNSTRUCTURED);
+        }
+        int pathLength = enter(part, entry.getKey());
+        collectPrefixes(entry.getValue(), part);
+        exit(part, pathLength);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void collectPrefixes(Map<String, Object> content, ContentPart part) {
+    collectPropertyPrefixes(content);
+    for (Map.Entry<String, Object> entry : content.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        Map<String, Object> childMap = (Map<String, Object>)entry.getValue();
+        Placement placement = part != null ? part.getPlacement(entry.getKey(), childMap, childMap) : Placement.INLINE;
+        if (placement == Placement.FOLDER) {
+          continue;
+        }
+        addNodeNamePrefix(entry.getKey());
+        if (placement == Placement.INLINE) {
+          if (!childMap.containsKey(PN_PRIMARY_TYPE)) {
+            addPrefix(NT_UNSTRUCTURED);
+          }
+          collectPrefixes(childMap, part);
+        }
+      }
+    }
+  }
+
+  private void collectPrefixes(CompactContentTree tree, int node, ContentPart part) {
+    for (int property = tree.getFirstProperty(node); property != CompactContentTree.NONE; property = tree.getNextProperty(property)) {
+      collectPropertyPrefixes(tree.getPropertyName(property), tree.getPropertyValue(property));
+    }
+    for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+      Placement placement = part != null ? part.getPlacement(tree, child) : Placement.INLINE;
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      addNodeNamePrefix(tree.getName(child));
+      if (placement == Placement.INLINE) {
+        if (!tree.hasProperty(child, PN_PRIMARY_TYPE)) {
+          addPrefix(NT_UNSTRUCTURED);
+        }
+        collectPrefixes(tree, child, part);
+      }
+    }
+  }
+
+  private void collectPropertyPrefixes(Map<String, Object> properties) {
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      collectPropertyPrefixes(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void collectPropertyPrefixes(String key, Object value) {
+    if (value == null || value instanceof Map) {
+      return;
+    }
+    addPrefix(key);
+    if (NAME_PROPERTIES.contains(key)) {
+      addValuePrefixes(value);
+    }
+  }
+
+  private void addValuePrefixes(Object value) {
+    if (value instanceof String) {
+      addPrefix((String)value);
+    }
+    else if (value instanceof Object[]) {
+      for (Object item : (Object[])value) {
+        if (item instanceof String) {
+          addPrefix((String)item);
+        }
+      }
+    }
+  }
+
+  private void addPrefix(String name) {
+    if (name != null) {
+      String prefix = NameCache.get(name).getPrefix();
+      if (prefix != null) {
+        usedPrefixes.add(prefix);
+      }
+    }
+  }
+
+  /**
+   * Node names without namespace are mostly unique, so they are not looked up in the name cache.
+   */
+  private void addNodeNamePrefix(String name) {
+    if (name != null && name.indexOf(':') > 0) {
+      addPrefix(name);
+    }
+  }
+
+  private void endJcrRoot(DocViewXmlWriter writer) throws IOException {
+    writer.endElement();
+    writer.endDocument();
+  }
+
+  /**
+   * Writes attributes and child elements of the current element.
+   * Only the attributes of one element are kept in memory at a time, as the children are written recursively.
+   */
+  private void writePayload(DocViewXmlWriter writer, String primaryType, ContentElement content,
+      ContentPart part) throws IOException {
+    if (content instanceof NodeElement) {
+      NodeElement nodeElement = (NodeElement)content;
+      writePayload(writer, primaryType, nodeElement.getTree(), nodeElement.getNode(), part);
+      return;
+    }
+    SortedMap<String, String> attributes = new TreeMap<>();
+    if (primaryType != null) {
+      attributes.put(PN_PRIMARY_TYPE, primaryType);
+    }
+    for (Map.Entry<String, Object> entry : content.getProperties().entrySet()) {
+      putAttribute(attributes, entry.getKey(), entry.getValue());
+    }
+    writeAttributes(writer, attributes);
+    for (Map.Entry<String, ContentElement> entry : content.getChildren().entrySet()) {
+      ContentElement child = entry.getValue();
+      Map<String, Object> childProperties = child.getProperties();
+      Placement placement = getPlacement(part, entry.getKey(), child, childProperties);
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      if (placement == Placement.INLINE && child instanceof SharedContentElement && fragmentCache != null
+          && writeFragment(writer, entry.getKey(), (SharedContentElement)child, part)) {
+        continue;
+      }
+      writer.startElement(validateAndEncodeNodeName(entry.getKey()));
+      if (placement == Placement.INLINE) {
+        int pathLength = enter(part, entry.getKey());
+        writePayload(writer, childProperties.containsKey(PN_PRIMARY_TYPE) ? null : NT_UNSTRUCTURED, child, part);
+        exit(part, pathLength);
+      }
+      writer.endElement();
+    }
+  }
+
+  private void writePayload(DocViewXmlWriter writer, String primaryType, CompactContentTree tree, int node,
+      ContentPart part) throws IOException {
+    SortedMap<String, String> attributes = new TreeMap<>();
+    if (primaryType != null) {
+      attributes.put(PN_PRIMARY_TYPE, primaryType);
+    }
+    for (int property = tree.getFirstProperty(node); property != CompactContentTree.NONE; property = tree.getNextProperty(property)) {
+      putAttribute(attributes, tree.getPropertyName(property), tree.getPropertyValue(property));
+    }
+    writeAttributes(writer, attributes);
+    for (int child = tree.getFirstChild(node); child != CompactContentTree.NONE; child = tree.getNextSibling(child)) {
+      String name = tree.getName(child);
+      Placement placement = getPlacement(part, name, tree, child);
+      if (placement == Placement.FOLDER) {
+        continue;
+      }
+      writer.startElement(validateAndEncodeNodeName(name));
+      if (placement == Placement.INLINE) {
+        int pathLength = enter(part, name);
+        writePayload(writer, tree.hasProperty(child, PN_PRIMARY_TYPE) ? null : NT_UNSTRUCTURED, tree, child, part);
+        exit(part, pathLength);
+      }
+      writer.endElement();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writePayload(DocViewXmlWriter writer, String primaryType, Map<String, Object> content,
+      ContentPart part) throws IOException {
+    SortedMap<String, String> attributes = new TreeMap<>();
+    if (primaryType != null) {
+      attributes.put(PN_PRIMARY_TYPE, primaryType);
+    }
+    for (Map.Entry<String, Object> entry : content.entrySet()) {
+      if (!(entry.getValue() instanceof Map)) {
+        putAttribute(attributes, entry.getKey(), entry.getValue());
+      }
+    }
+    writeAttributes(writer, attributes);
+    for (Map.Entry<String, Object> entry : content.entrySet()) {
+      if (entry.getValue() instanceof Map) {
+        Map<String, Object> childMap = (Map<String, Object>)entry.getValue();
+        Placement placement = getPlacement(part, entry.getKey(), childMap, childMap);
+        if (placement == Placement.FOLDER) {
+          continue;
+        }
+        writer.startElement(validateAndEncodeNodeName(entry.getKey()));
+        if (placement == Placement.INLINE) {
+          int pathLength = enter(part, entry.getKey());
+          writePayload(writer, childMap.containsKey(PN_PRIMARY_TYPE) ? null : NT_UNSTRUCTURED, childMap, part);
+          exit(part, pathLength);
+        }
+        writer.endElement();
+      }
+    }
+  }
+
+  /**
+   * Writes a shared child element from the fragment cache, rendering it on the first usage.
+   * @return false if the element cannot be cached and has to be rendered normally
+   */
+  private boolean writeFragment(DocViewXmlWriter writer, String name, SharedContentElement element,
+      ContentPart part) throws IOException {
+    int depth = writer.getDepth();
+    int flags = (compact ? 1 : 0) | (part != null ? 2 : 0);
+    byte[] fragment = fragmentCache.get(new FragmentCache.Key(element, name, depth, flags),
+        () -> renderFragment(name, element, depth, part != null));
+    if (fragment == FragmentCache.NOT_CACHEABLE) {
+      return false;
+    }
+    writer.fragment(fragment);
+    return true;
+  }
+
+  /**
+   * Renders the XML fragment of a shared element. Within a content chunk, elements containing nodes with
+   * folder node types are not cached, as these nodes have to be reported to the chunk.
+   */
+  private byte[] renderFragment(String name, SharedContentElement element, int depth, boolean contentPart)
+      throws IOException {
+    if (contentPart && containsFolderNode(element)) {
+      return FragmentCache.NOT_CACHEABLE;
+    }
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DocViewXmlWriter writer = new DocViewXmlWriter(bos, !compact, depth);
+    writer.startElement(validateAndEncodeNodeName(name));
+    writePayload(writer, element.getProperties().containsKey(PN_PRIMARY_TYPE) ? null : NT_UNSTRUCTURED, element, null);
+    writer.endElement();
+    writer.endDocument();
+    return bos.toByteArray();
+  }
+
+  private static boolean containsFolderNode(ContentElement element) {
+    for (ContentElement child : element.getChildren().values()) {
+      if (NodeTypes.hasFolderNodeType(child.getProperties()) || containsFolderNode(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Decides where a child node is rendered, and reports children that are not inlined to the content chunk.
+   * Without content chunk all children are inlined.
+   */
+  private static Placement getPlacement(ContentPart part, String name, Object child, Map<String, Object> childProperties) {
+    if (part == null) {
+      return Placement.INLINE;
+    }
+    Placement placement = part.getPlacement(name, child, childProperties);
+    if (placement != Placement.INLINE) {
+      part.detach(name, child);
+    }
+    return placement;
+  }
+
+  private static Placement getPlacement(ContentPart part, String name, CompactContentTree tree, int child) {
+    if (part == null) {
+      return Placement.INLINE;
+    }
+    Placement placement = part.getPlacement(tree, child);
+    if (placement != Placement.INLINE) {
+      part.detach(name, tree.getElement(child));
+    }
+    return placement;
+  }
+
+  private static int enter(ContentPart part, String name) {
+    return part != null ? part.enter(name) : 0;
+  }
+
+  private static void exit(ContentPart part, int pathLength) {
+    if (part != null) {
+      part.exit(pathLength);
+    }
+  }
+
+  private void putAttribute(SortedMap<String, String> attributes, String key, Object value) {
+    if (value == null) {
+      return;
+    }
+    String stringValue = valueConverter.toString(key, value);
+    attributes.put(validateAndEncodeName(key), stringValue);
+  }
+
+  private static void writeAttributes(DocViewXmlWriter writer, SortedMap<String, String> attributes) throws IOException {
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      writer.attribute(attribute.getKey(), attribute.getValue());
+    }
+  }
+
   private void setAttributeNamespaceAware(Element element, String key, String value) {
     String namespace = getNamespace(key);
     if (namespace == null) {
@@ -264,11 +926,25 @@ final class XmlContentBuilder {
     return xmlNamespaces.get(nsPrefix);
   }
 
+  /**
+   * Node names without namespace are mostly unique, so they are validated and encoded without the name cache.
+   */
+  private String validateAndEncodeNodeName(String name) {
+    if (name != null && name.indexOf(':') < 0) {
+      if (!NameUtil.isValidName(name)) {
+        throw new IllegalArgumentException("Illegal name (not following JCR standards): " + name);
+      }
+      return ISO9075.encode(name);
+    }
+    return validateAndEncodeName(name);
+  }
+
   private String validateAndEncodeName(String name) {
-    if (!NameUtil.isValidName(name)) {
+    NameCache.Name cachedName = name != null ? NameCache.get(name) : null;
+    if (cachedName == null || !cachedName.isValid()) {
       throw new IllegalArgumentException("Illegal name (not following JCR standards): " + name);
     }
-    return ISO9075.encode(name);
+    return cachedName.getXmlName();
   }
 
 }
@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Payload of a ZIP entry in its final (compressed) form, together with CRC and sizes.
+ */
+final class ZipEntryData {
+
+  /**
+   * Empty stored entry, e.g. for directories.
+   */
+  static final ZipEntryData EMPTY = new ZipEntryData(ZipEntry.STORED, 0, 0, new byte[0], 0);
+
+  private final int method;
+  private final long crc;
+  private final long size;
+  private final byte[] data;
+  private final int dataLength;
+
+  private ZipEntryData(int method, long crc, long size, byte[] data, int dataLength) {
+    this.method = method;
+    this.crc = crc;
+    this.size = size;
+    this.data = data;
+    this.dataLength = dataLength;
+  }
+
+  /**
+   * @return Compression method ({@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED})
+   */
+  public int getMethod() {
+    return this.method;
+  }
+
+  /**
+   * @return CRC-32 of uncompressed data
+   */
+  public long getCrc() {
+    return this.crc;
+  }
+
+  /**
+   * @return Uncompressed size
+   */
+  public long getSize() {
+    return this.size;
+  }
+
+  /**
+   * @return Compressed size
+   */
+  public long getCompressedSize() {
+    return this.dataLength;
+  }
+
+  /**
+   * Writes the compressed data.
+   * @param os Output stream
+   * @throws IOException I/O exception
+   */
+  public void writeTo(@NotNull OutputStream os) throws IOException {
+    os.write(data, 0, dataLength);
+  }
+
+  /**
+   * Wraps data that is stored uncompressed.
+   * @param data Data
+   * @param length Number of bytes in data array to use
+   * @param crc CRC-32 of the data
+   * @return Entry data
+   */
+  static ZipEntryData stored(byte[] data, int length, long crc) {
+    return new ZipEntryData(ZipEntry.STORED, crc, length, data, length);
+  }
+
+  /**
+   * Wraps data that was compressed before, e.g. read from a cache.
+   * @param method Compression method ({@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED})
+   * @param crc CRC-32 of uncompressed data
+   * @param size Uncompressed size
+   * @param data Compressed data
+   * @return Entry data
+   */
+  static ZipEntryData compressed(int method, long crc, long size, byte[] data) {
+    return new ZipEntryData(method, crc, size, data, data.length);
+  }
+
+  /**
+   * Compresses the given data.
+   * @param data Uncompressed data
+   * @param length Number of bytes in data array to use
+   * @param deflater Deflater instance (raw deflate without ZLIB header). It is reset afterwards.
+   * @return Entry data
+   */
+  static ZipEntryData deflate(byte[] data, int length, @NotNull Deflater deflater) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    byte[] output = new byte[Math.max(64, length / 2)];
+    int outputLength = 0;
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (outputLength == output.length) {
+          output = Arrays.copyOf(output, output.length * 2);
+        }
+        outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+      }
+    }
+    finally {
+      deflater.reset();
+    }
+    return new ZipEntryData(ZipEntry.DEFLATED, crc.getValue(), length, output, outputLength);
+  }
+
+}
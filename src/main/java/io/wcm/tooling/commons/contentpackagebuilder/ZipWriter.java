@@ -0,0 +1,623 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.jetbrains.annotations.NotNull;
+
+import io.wcm.tooling.commons.contentpackagebuilder.EntryWriter.ChannelContent;
+import io.wcm.tooling.commons.contentpackagebuilder.EntryWriter.EntryContent;
+
+/**
+ * Minimal ZIP archive writer.
+ * <p>
+ * In addition to streaming deflated entries (like {@link java.util.zip.ZipOutputStream}) it supports appending
+ * entries that were already compressed elsewhere, e.g. on a worker thread, and entries stored uncompressed. ZIP64 extensions are written when
+ * required by entry sizes, offsets or the number of entries.
+ * </p>
+ * <p>
+ * Deflated entries are buffered in memory until the compressed data exceeds 64 KB, so CRC and sizes of smaller
+ * entries are part of the local file header. Beyond that the local header is rewritten after the entry data if the
+ * archive is written to a {@link FileOutputStream}. Otherwise the entry is streamed with a data descriptor: the
+ * local header contains a ZIP64 extra field, and the data descriptor has 8-byte sizes (APPNOTE 4.3.9).
+ * {@link java.util.zip.ZipFile} reads such entries from the central directory, while
+ * {@link java.util.zip.ZipInputStream} supports them only from Java 21.
+ * </p>
+ * <p>
+ * Entry names are not checked for duplicates, this is done by {@link EntryRegistry} before entries are written.
+ * Only the UTF-8 encoded names are kept for the central directory.
+ * </p>
+ * This class is not thread-safe.
+ */
+final class ZipWriter implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+  private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final int ZIP64_LOCAL_EXTRA_LENGTH = 20;
+  private static final int LOCAL_HEADER_LENGTH = 30;
+
+  private static final int FLAG_DATA_DESCRIPTOR = 0x8;
+  private static final int FLAG_UTF8 = 0x800;
+
+  private static final int VERSION_STORED = 10;
+  private static final int VERSION_DEFLATED = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream rawOut;
+  private final OutputStream out;
+  private WritableByteChannel channel;
+  private final int dosTime;
+  private final List<CentralEntry> entries = new ArrayList<>();
+  private long position;
+  private DeflatedEntryOutputStream openEntry;
+  private boolean closed;
+
+  /**
+   * @param os Output stream
+   * @param time Last modification time used for all entries
+   */
+  ZipWriter(@NotNull OutputStream os, long time) {
+    this.rawOut = os;
+    this.out = new BufferedOutputStream(os, BUFFER_SIZE);
+    this.dosTime = toDosTime(time);
+  }
+
+  /**
+   * Adds a directory entry.
+   * @param name Entry name, ending with "/"
+   * @throws IOException I/O exception
+   */
+  public void putDirectory(@NotNull String name) throws IOException {
+    putEntry(name, ZipEntryData.EMPTY);
+  }
+
+  /**
+   * Adds an entry with pre-compressed data.
+   * @param name Entry name
+   * @param data Compressed entry data with CRC and sizes
+   * @throws IOException I/O exception
+   */
+  public void putEntry(@NotNull String name, @NotNull ZipEntryData data) throws IOException {
+    CentralEntry entry = startEntry(name, data.getMethod());
+    entry.crc = data.getCrc();
+    entry.size = data.getSize();
+    entry.compressedSize = data.getCompressedSize();
+    writeLocalHeader(entry);
+    data.writeTo(out);
+    position += data.getCompressedSize();
+  }
+
+  /**
+   * Adds an entry that is stored uncompressed, with CRC and size known in advance.
+   * @param name Entry name
+   * @param crc CRC-32 of the data
+   * @param size Data size
+   * @param content Writes the entry data, which has to match the given CRC and size
+   * @throws IOException I/O exception
+   */
+  public void putStoredEntry(@NotNull String name, long crc, long size, @NotNull EntryContent content) throws IOException {
+    putCompressedEntry(name, ZipEntry.STORED, crc, size, size, content);
+  }
+
+  /**
+   * Adds an entry with data that was compressed before, e.g. spooled to a temporary file, with CRC and sizes
+   * known in advance.
+   * @param name Entry name
+   * @param method Compression method ({@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED})
+   * @param crc CRC-32 of uncompressed data
+   * @param size Uncompressed size
+   * @param compressedSize Compressed size
+   * @param content Writes the compressed entry data, which has to match the given compressed size
+   * @throws IOException I/O exception
+   */
+  public void putCompressedEntry(@NotNull String name, int method, long crc, long size, long compressedSize,
+      @NotNull EntryContent content) throws IOException {
+    CentralEntry entry = startEntry(name, method);
+    entry.crc = crc;
+    entry.size = size;
+    entry.compressedSize = compressedSize;
+    writeLocalHeader(entry);
+    long start = position;
+    content.writeTo(new StoredEntryOutputStream());
+    if (position - start != compressedSize) {
+      throw new ZipException("Invalid size of entry " + name + ": expected " + compressedSize + ", got " + (position - start));
+    }
+  }
+
+  /**
+   * Adds an entry that is stored uncompressed, with CRC and size known in advance.
+   * The data is transferred directly to the channel of the underlying output stream. If it is a
+   * {@link FileOutputStream}, data from a {@link java.nio.channels.FileChannel} can be copied by the
+   * operating system without passing through the Java heap.
+   * @param name Entry name
+   * @param crc CRC-32 of the data
+   * @param size Data size
+   * @param content Transfers exactly the given number of bytes
+   * @throws IOException I/O exception
+   */
+  public void transferStoredEntry(@NotNull String name, long crc, long size, @NotNull ChannelContent content) throws IOException {
+    CentralEntry entry = startEntry(name, ZipEntry.STORED);
+    entry.crc = crc;
+    entry.size = size;
+    entry.compressedSize = size;
+    writeLocalHeader(entry);
+    out.flush();
+    content.transferTo(getChannel());
+    position += size;
+  }
+
+  /**
+   * Starts a new entry that is deflated while writing to the returned stream.
+   * The local header is written when the entry is finished or the compressed data exceeds the memory buffer.
+   * The entry is finished by closing the returned stream, which leaves the ZIP archive open.
+   * @param name Entry name
+   * @param deflater Deflater instance (raw deflate without ZLIB header). It is reset after the entry is finished.
+   * @return Output stream to write uncompressed entry data to
+   * @throws IOException I/O exception
+   */
+  public OutputStream putDeflatedEntry(@NotNull String name, @NotNull Deflater deflater) throws IOException {
+    CentralEntry entry = startEntry(name, ZipEntry.DEFLATED);
+    openEntry = new DeflatedEntryOutputStream(entry, deflater);
+    return openEntry;
+  }
+
+  /**
+   * Writes the central directory and closes the underlying output stream.
+   * @throws IOException I/O exception
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (openEntry != null) {
+        openEntry.close();
+      }
+      writeCentralDirectory();
+      out.flush();
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return Channel writing to the underlying output stream, bypassing the buffer. It is not closed separately.
+   */
+  private WritableByteChannel getChannel() {
+    if (channel == null) {
+      if (rawOut instanceof FileOutputStream) {
+        channel = ((FileOutputStream)rawOut).getChannel();
+      }
+      else {
+        channel = Channels.newChannel(rawOut);
+      }
+    }
+    return channel;
+  }
+
+  private CentralEntry startEntry(String name, int method) throws IOException {
+    if (closed) {
+      throw new IOException("ZIP archive already closed.");
+    }
+    if (openEntry != null) {
+      throw new IllegalStateException("Previous entry not closed: " + openEntry.entry.getName());
+    }
+    CentralEntry entry = new CentralEntry(name, method, FLAG_UTF8, position);
+    entries.add(entry);
+    return entry;
+  }
+
+  private void writeLocalHeader(CentralEntry entry) throws IOException {
+    ByteBuffer header = localHeader(entry, entry.isZip64());
+    writeBytes(header.array(), 0, header.limit());
+  }
+
+  /**
+   * Rewrites the local header of an entry that was written with {@link #localHeader(CentralEntry, boolean)}
+   * and a ZIP64 extra field before its CRC and sizes were known.
+   * @param entry Entry
+   * @param channel File channel of the underlying output stream
+   * @param filePosition File position of the local header
+   * @throws IOException I/O exception
+   */
+  private void rewriteLocalHeader(CentralEntry entry, FileChannel channel, long filePosition) throws IOException {
+    out.flush();
+    ByteBuffer header = localHeader(entry, true);
+    while (header.hasRemaining()) {
+      channel.write(header, filePosition + header.position());
+    }
+  }
+
+  /**
+   * Builds the local file header.
+   * If the entry uses a data descriptor, CRC and sizes are left zero and the sizes are marked as ZIP64.
+   * @param entry Entry
+   * @param zip64Extra Whether to include a ZIP64 extra field with the sizes. It is required if the sizes
+   *          exceed 4 GB or a data descriptor is used, but may also be present for smaller entries.
+   * @return Header data
+   */
+  private ByteBuffer localHeader(CentralEntry entry, boolean zip64Extra) {
+    boolean dataDescriptor = entry.hasDataDescriptor();
+    boolean zip64 = dataDescriptor || entry.isZip64();
+    ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_LENGTH + entry.nameBytes.length
+        + (zip64Extra ? ZIP64_LOCAL_EXTRA_LENGTH : 0)).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort((short)(zip64 ? VERSION_ZIP64 : entry.version()));
+    header.putShort((short)entry.flags);
+    header.putShort((short)entry.method);
+    header.putInt(dosTime);
+    header.putInt(dataDescriptor ? 0 : (int)entry.crc);
+    header.putInt((int)(zip64 ? ZIP64_MAGIC_VALUE : entry.compressedSize));
+    header.putInt((int)(zip64 ? ZIP64_MAGIC_VALUE : entry.size));
+    header.putShort((short)entry.nameBytes.length);
+    header.putShort((short)(zip64Extra ? ZIP64_LOCAL_EXTRA_LENGTH : 0));
+    header.put(entry.nameBytes);
+    if (zip64Extra) {
+      header.putShort((short)ZIP64_EXTRA_ID);
+      header.putShort((short)(ZIP64_LOCAL_EXTRA_LENGTH - 4));
+      header.putLong(dataDescriptor ? 0 : entry.size);
+      header.putLong(dataDescriptor ? 0 : entry.compressedSize);
+    }
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Writes the data descriptor after the data of an entry whose local header has a ZIP64 extra field.
+   * @param entry Entry
+   * @throws IOException I/O exception
+   */
+  private void writeDataDescriptor(CentralEntry entry) throws IOException {
+    writeInt(DATA_DESCRIPTOR_SIGNATURE);
+    writeInt(entry.crc);
+    writeLong(entry.compressedSize);
+    writeLong(entry.size);
+  }
+
+  private void writeCentralDirectory() throws IOException {
+    long centralDirectoryOffset = position;
+    for (CentralEntry entry : entries) {
+      writeCentralHeader(entry);
+    }
+    long centralDirectorySize = position - centralDirectoryOffset;
+    int count = entries.size();
+
+    if (count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC_VALUE
+        || centralDirectorySize >= ZIP64_MAGIC_VALUE) {
+      long zip64EndOffset = position;
+      writeInt(ZIP64_END_SIGNATURE);
+      writeLong(44);
+      writeShort(VERSION_ZIP64);
+      writeShort(VERSION_ZIP64);
+      writeInt(0);
+      writeInt(0);
+      writeLong(count);
+      writeLong(count);
+      writeLong(centralDirectorySize);
+      writeLong(centralDirectoryOffset);
+      writeInt(ZIP64_LOCATOR_SIGNATURE);
+      writeInt(0);
+      writeLong(zip64EndOffset);
+      writeInt(1);
+    }
+
+    writeInt(END_SIGNATURE);
+    writeShort(0);
+    writeShort(0);
+    writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+    writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+    writeInt(Math.min(centralDirectorySize, ZIP64_MAGIC_VALUE));
+    writeInt(Math.min(centralDirectoryOffset, ZIP64_MAGIC_VALUE));
+    writeShort(0);
+  }
+
+  private void writeCentralHeader(CentralEntry entry) throws IOException {
+    boolean zip64Size = entry.size >= ZIP64_MAGIC_VALUE;
+    boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC_VALUE;
+    boolean zip64Offset = entry.offset >= ZIP64_MAGIC_VALUE;
+    int extraLength = 0;
+    if (zip64Size) {
+      extraLength += 8;
+    }
+    if (zip64CompressedSize) {
+      extraLength += 8;
+    }
+    if (zip64Offset) {
+      extraLength += 8;
+    }
+    int version = extraLength > 0 ? VERSION_ZIP64 : entry.version();
+
+    writeInt(CENTRAL_HEADER_SIGNATURE);
+    writeShort(version);
+    writeShort(version);
+    writeShort(entry.flags);
+    writeShort(entry.method);
+    writeInt(dosTime);
+    writeInt(entry.crc);
+    writeInt(zip64CompressedSize ? ZIP64_MAGIC_VALUE : entry.compressedSize);
+    writeInt(zip64Size ? ZIP64_MAGIC_VALUE : entry.size);
+    writeShort(entry.nameBytes.length);
+    writeShort(extraLength > 0 ? extraLength + 4 : 0);
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeInt(0);
+    writeInt(zip64Offset ? ZIP64_MAGIC_VALUE : entry.offset);
+    writeBytes(entry.nameBytes, 0, entry.nameBytes.length);
+    if (extraLength > 0) {
+      writeShort(ZIP64_EXTRA_ID);
+      writeShort(extraLength);
+      if (zip64Size) {
+        writeLong(entry.size);
+      }
+      if (zip64CompressedSize) {
+        writeLong(entry.compressedSize);
+      }
+      if (zip64Offset) {
+        writeLong(entry.offset);
+      }
+    }
+  }
+
+  private void writeShort(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+    position += 2;
+  }
+
+  private void writeInt(long value) throws IOException {
+    out.write((int)(value & 0xff));
+    out.write((int)((value >>> 8) & 0xff));
+    out.write((int)((value >>> 16) & 0xff));
+    out.write((int)((value >>> 24) & 0xff));
+    position += 4;
+  }
+
+  private void writeLong(long value) throws IOException {
+    writeInt(value & ZIP64_MAGIC_VALUE);
+    writeInt(value >>> 32);
+  }
+
+  private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+    position += length;
+  }
+
+  /**
+   * Converts a Java timestamp to MS-DOS date/time format as used by ZIP entries.
+   * The date/time is expressed in the default time zone, like {@link ZipEntry#setTime(long)} does.
+   * @param time Timestamp
+   * @return DOS date/time
+   */
+  static int toDosTime(long time) {
+    LocalDateTime dateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    int year = dateTime.getYear() - 1980;
+    if (year < 0) {
+      // 1980-01-01 00:00:00 is the earliest date that can be represented
+      return (1 << 21) | (1 << 16);
+    }
+    return year << 25
+        | dateTime.getMonthValue() << 21
+        | dateTime.getDayOfMonth() << 16
+        | dateTime.getHour() << 11
+        | dateTime.getMinute() << 5
+        | dateTime.getSecond() >> 1;
+  }
+
+
+  /**
+   * Bookkeeping of an entry that is required for writing the central directory.
+   */
+  private static final class CentralEntry {
+
+    private final byte[] nameBytes;
+    private final int method;
+    private int flags;
+    private final long offset;
+    private long crc;
+    private long size;
+    private long compressedSize;
+
+    CentralEntry(String name, int method, int flags, long offset) {
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      this.method = method;
+      this.flags = flags;
+      this.offset = offset;
+    }
+
+    String getName() {
+      return new String(nameBytes, StandardCharsets.UTF_8);
+    }
+
+    boolean isZip64() {
+      return size >= ZIP64_MAGIC_VALUE || compressedSize >= ZIP64_MAGIC_VALUE;
+    }
+
+    boolean hasDataDescriptor() {
+      return (flags & FLAG_DATA_DESCRIPTOR) != 0;
+    }
+
+    int version() {
+      return method == ZipEntry.DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+    }
+
+  }
+
+  /**
+   * Writes data of a stored or pre-compressed entry unchanged to the ZIP archive.
+   */
+  private final class StoredEntryOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      writeBytes(b, off, len);
+    }
+
+  }
+
+  /**
+   * Deflates data written to it into the current ZIP entry.
+   * The compressed data is held in the buffer until the entry is finished or the buffer is full.
+   */
+  private final class DeflatedEntryOutputStream extends OutputStream {
+
+    private final CentralEntry entry;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength;
+    private long size;
+    private long compressedSize;
+    private FileChannel headerChannel;
+    private long headerPosition;
+    private boolean entryClosed;
+
+    DeflatedEntryOutputStream(CentralEntry entry, Deflater deflater) {
+      this.entry = entry;
+      this.deflater = deflater;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (entryClosed) {
+        throw new IOException("ZIP entry already closed: " + entry.getName());
+      }
+      if (len == 0) {
+        return;
+      }
+      crc.update(b, off, len);
+      size += len;
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput()) {
+        deflate();
+      }
+    }
+
+    private void deflate() throws IOException {
+      if (bufferLength == buffer.length) {
+        flushBuffer();
+      }
+      int length = deflater.deflate(buffer, bufferLength, buffer.length - bufferLength);
+      bufferLength += length;
+      compressedSize += length;
+    }
+
+    /**
+     * Writes the buffered compressed data. The first time the buffer is full the local header is written with
+     * placeholders if it can be rewritten in the file, otherwise the entry is written with a data descriptor.
+     */
+    private void flushBuffer() throws IOException {
+      if (headerChannel == null && !entry.hasDataDescriptor()) {
+        WritableByteChannel target = getChannel();
+        if (target instanceof FileChannel) {
+          out.flush();
+          headerChannel = (FileChannel)target;
+          headerPosition = headerChannel.position();
+        }
+        else {
+          entry.flags |= FLAG_DATA_DESCRIPTOR;
+        }
+        ByteBuffer header = localHeader(entry, true);
+        writeBytes(header.array(), 0, header.limit());
+      }
+      writeBytes(buffer, 0, bufferLength);
+      bufferLength = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (entryClosed) {
+        return;
+      }
+      entryClosed = true;
+      openEntry = null;
+      try {
+        deflater.finish();
+        while (!deflater.finished()) {
+          deflate();
+        }
+        entry.crc = crc.getValue();
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        if (headerChannel != null) {
+          writeBytes(buffer, 0, bufferLength);
+          rewriteLocalHeader(entry, headerChannel, headerPosition);
+        }
+        else if (entry.hasDataDescriptor()) {
+          writeBytes(buffer, 0, bufferLength);
+          writeDataDescriptor(entry);
+        }
+        else {
+          writeLocalHeader(entry);
+          writeBytes(buffer, 0, bufferLength);
+        }
+      }
+      finally {
+        deflater.reset();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,593 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compact representation of a content tree for large amounts of nodes.
+ * <p>
+ * Nodes and properties are identified by int indexes and stored in primitive arrays: each node references its
+ * name, its first child, next sibling and first property, each property its name, value and next property.
+ * Node and property names are interned per tree, so each distinct name is stored only once.
+ * Compared to {@link ContentElementImpl}, no objects are allocated per node, and only the value object per property.
+ * </p>
+ * <p>
+ * {@link #getElement(int)} returns a lightweight {@link ContentElement} view on a node. When a view is passed
+ * to the content package, the tree is written by walking the arrays directly, without creating views for the
+ * descendant nodes.
+ * </p>
+ * Child node names are not checked for uniqueness. This class is not thread-safe.
+ */
+public final class CompactContentTree {
+
+  /**
+   * Index returned if there is no such node or property.
+   */
+  public static final int NONE = -1;
+
+  private static final int ROOT = 0;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private int nodeCount;
+  private int[] nodeNames;
+  private int[] parents;
+  private int[] firstChildren;
+  private int[] lastChildren;
+  private int[] nextSiblings;
+  private int[] firstProperties;
+  private int[] lastProperties;
+
+  private int propertyCount;
+  private int[] propertyNames;
+  private int[] nextProperties;
+  private Object[] propertyValues;
+
+  private int nameCount;
+  private String[] names;
+  private final Map<String, Integer> nameIndexes = new HashMap<>();
+  private final StringPool stringPool;
+
+  /**
+   * Creates a tree with a root node without name.
+   */
+  public CompactContentTree() {
+    this(INITIAL_CAPACITY, INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates a tree with a root node without name.
+   * @param expectedNodes Expected number of nodes
+   * @param expectedProperties Expected number of properties
+   */
+  public CompactContentTree(int expectedNodes, int expectedProperties) {
+    this(expectedNodes, expectedProperties, null);
+  }
+
+  /**
+   * Creates a tree with a root node without name.
+   * @param expectedNodes Expected number of nodes
+   * @param expectedProperties Expected number of properties
+   * @param stringPool Pool for names and string values shared with other trees, or null
+   */
+  public CompactContentTree(int expectedNodes, int expectedProperties, @Nullable StringPool stringPool) {
+    this.stringPool = stringPool;
+    int nodeCapacity = Math.max(expectedNodes, 1);
+    nodeNames = new int[nodeCapacity];
+    parents = new int[nodeCapacity];
+    firstChildren = new int[nodeCapacity];
+    lastChildren = new int[nodeCapacity];
+    nextSiblings = new int[nodeCapacity];
+    firstProperties = new int[nodeCapacity];
+    lastProperties = new int[nodeCapacity];
+    int propertyCapacity = Math.max(expectedProperties, 1);
+    propertyNames = new int[propertyCapacity];
+    nextProperties = new int[propertyCapacity];
+    propertyValues = new Object[propertyCapacity];
+    names = new String[INITIAL_CAPACITY];
+    addNode(NONE, NONE);
+  }
+
+  /**
+   * @return Index of the root node
+   */
+  public int getRoot() {
+    return ROOT;
+  }
+
+  /**
+   * @return Number of nodes including the root node
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return Number of properties
+   */
+  public int getPropertyCount() {
+    return propertyCount;
+  }
+
+  /**
+   * Adds a child node after the existing children of the given node.
+   * @param parent Parent node
+   * @param name Child node name
+   * @return Index of the new child node
+   */
+  public int addChild(int parent, @NotNull String name) {
+    checkNode(parent);
+    int child = addNode(parent, intern(name));
+    if (lastChildren[parent] == NONE) {
+      firstChildren[parent] = child;
+    }
+    else {
+      nextSiblings[lastChildren[parent]] = child;
+    }
+    lastChildren[parent] = child;
+    return child;
+  }
+
+  /**
+   * Sets a property of the given node. An existing property with the same name is replaced,
+   * new properties are added after the existing ones. If the tree has a string pool, string values are pooled.
+   * @param node Node
+   * @param name Property name
+   * @param value Property value
+   */
+  public void setProperty(int node, @NotNull String name, Object value) {
+    Object pooledValue = stringPool != null ? stringPool.internValue(value) : value;
+    int property = findProperty(node, name);
+    if (property != NONE) {
+      propertyValues[property] = pooledValue;
+      return;
+    }
+    if (propertyCount == propertyNames.length) {
+      int capacity = grow(propertyCount);
+      propertyNames = Arrays.copyOf(propertyNames, capacity);
+      nextProperties = Arrays.copyOf(nextProperties, capacity);
+      propertyValues = Arrays.copyOf(propertyValues, capacity);
+    }
+    property = propertyCount++;
+    propertyNames[property] = intern(name);
+    propertyValues[property] = pooledValue;
+    nextProperties[property] = NONE;
+    if (lastProperties[node] == NONE) {
+      firstProperties[node] = property;
+    }
+    else {
+      nextProperties[lastProperties[node]] = property;
+    }
+    lastProperties[node] = property;
+  }
+
+  /**
+   * Sets all properties of the given map.
+   * @param node Node
+   * @param properties Properties
+   */
+  public void setProperties(int node, @NotNull Map<String, Object> properties) {
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      setProperty(node, entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * @param node Node
+   * @return Node name, null for the root node
+   */
+  public String getName(int node) {
+    checkNode(node);
+    int name = nodeNames[node];
+    return name != NONE ? names[name] : null;
+  }
+
+  /**
+   * @param node Node
+   * @return Parent node or {@link #NONE} for the root node
+   */
+  public int getParent(int node) {
+    checkNode(node);
+    return parents[node];
+  }
+
+  /**
+   * @param node Node
+   * @return First child node or {@link #NONE}
+   */
+  public int getFirstChild(int node) {
+    checkNode(node);
+    return firstChildren[node];
+  }
+
+  /**
+   * @param node Node
+   * @return Next sibling node or {@link #NONE}
+   */
+  public int getNextSibling(int node) {
+    checkNode(node);
+    return nextSiblings[node];
+  }
+
+  /**
+   * @param node Node
+   * @param name Child node name
+   * @return First child node with this name or {@link #NONE}
+   */
+  public int getChild(int node, String name) {
+    for (int child = getFirstChild(node); child != NONE; child = nextSiblings[child]) {
+      if (StringUtils.equals(names[nodeNames[child]], name)) {
+        return child;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * @param node Node
+   * @return First property of the node or {@link #NONE}
+   */
+  public int getFirstProperty(int node) {
+    checkNode(node);
+    return firstProperties[node];
+  }
+
+  /**
+   * @param property Property
+   * @return Next property of the same node or {@link #NONE}
+   */
+  public int getNextProperty(int property) {
+    checkProperty(property);
+    return nextProperties[property];
+  }
+
+  /**
+   * @param property Property
+   * @return Property name
+   */
+  public String getPropertyName(int property) {
+    checkProperty(property);
+    return names[propertyNames[property]];
+  }
+
+  /**
+   * @param property Property
+   * @return Property value
+   */
+  public Object getPropertyValue(int property) {
+    checkProperty(property);
+    return propertyValues[property];
+  }
+
+  /**
+   * @param node Node
+   * @param name Property name
+   * @return true if the node has a property with this name
+   */
+  public boolean hasProperty(int node, String name) {
+    return findProperty(node, name) != NONE;
+  }
+
+  /**
+   * @param node Node
+   * @param name Property name
+   * @return Property value or null
+   */
+  public Object getProperty(int node, String name) {
+    int property = findProperty(node, name);
+    return property != NONE ? propertyValues[property] : null;
+  }
+
+  /**
+   * @param node Node
+   * @return Content element view on the node
+   */
+  public @NotNull NodeElement getElement(int node) {
+    checkNode(node);
+    return new NodeElement(this, node);
+  }
+
+  private int findProperty(int node, String name) {
+    checkNode(node);
+    Integer nameIndex = nameIndexes.get(name);
+    if (nameIndex == null) {
+      return NONE;
+    }
+    for (int property = firstProperties[node]; property != NONE; property = nextProperties[property]) {
+      if (propertyNames[property] == nameIndex) {
+        return property;
+      }
+    }
+    return NONE;
+  }
+
+  private int addNode(int parent, int name) {
+    if (nodeCount == nodeNames.length) {
+      int capacity = grow(nodeCount);
+      nodeNames = Arrays.copyOf(nodeNames, capacity);
+      parents = Arrays.copyOf(parents, capacity);
+      firstChildren = Arrays.copyOf(firstChildren, capacity);
+      lastChildren = Arrays.copyOf(lastChildren, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      firstProperties = Arrays.copyOf(firstProperties, capacity);
+      lastProperties = Arrays.copyOf(lastProperties, capacity);
+    }
+    int node = nodeCount++;
+    nodeNames[node] = name;
+    parents[node] = parent;
+    firstChildren[node] = NONE;
+    lastChildren[node] = NONE;
+    nextSiblings[node] = NONE;
+    firstProperties[node] = NONE;
+    lastProperties[node] = NONE;
+    return node;
+  }
+
+  private int intern(String name) {
+    Integer index = nameIndexes.get(name);
+    if (index != null) {
+      return index;
+    }
+    if (nameCount == names.length) {
+      names = Arrays.copyOf(names, grow(nameCount));
+    }
+    names[nameCount] = stringPool != null ? stringPool.intern(name) : name;
+    nameIndexes.put(names[nameCount], nameCount);
+    return nameCount++;
+  }
+
+  private static int grow(int size) {
+    int capacity = size + (size >> 1) + 1;
+    if (capacity < 0) {
+      throw new IllegalStateException("Content tree too large.");
+    }
+    return capacity;
+  }
+
+  private void checkNode(int node) {
+    if (node < 0 || node >= nodeCount) {
+      throw new IllegalArgumentException("Invalid node: " + node);
+    }
+  }
+
+  private void checkProperty(int property) {
+    if (property < 0 || property >= propertyCount) {
+      throw new IllegalArgumentException("Invalid property: " + property);
+    }
+  }
+
+
+  /**
+   * Content element view on a node of a {@link CompactContentTree}.
+   * The properties and children maps are read-only views.
+   */
+  public static final class NodeElement implements ContentElement {
+
+    private final CompactContentTree tree;
+    private final int node;
+
+    NodeElement(CompactContentTree tree, int node) {
+      this.tree = tree;
+      this.node = node;
+    }
+
+    /**
+     * @return Tree
+     */
+    public @NotNull CompactContentTree getTree() {
+      return tree;
+    }
+
+    /**
+     * @return Node index
+     */
+    public int getNode() {
+      return node;
+    }
+
+    @Override
+    public String getName() {
+      return tree.getName(node);
+    }
+
+    @Override
+    public Map<String, Object> getProperties() {
+      return new PropertiesMap(tree, node);
+    }
+
+    @Override
+    public Map<String, ContentElement> getChildren() {
+      return new ChildrenMap(tree, node);
+    }
+
+    @Override
+    public ContentElement getChild(String path) {
+      int child = node;
+      for (String name : StringUtils.split(path, "/")) {
+        child = tree.getChild(child, name);
+        if (child == NONE) {
+          return null;
+        }
+      }
+      return child != node ? tree.getElement(child) : null;
+    }
+
+    @Override
+    public String toString() {
+      return "[node=" + node + ", name=" + getName() + "]";
+    }
+
+  }
+
+  /**
+   * Read-only map view on the properties of a node.
+   */
+  private static final class PropertiesMap extends AbstractMap<String, Object> {
+
+    private final CompactContentTree tree;
+    private final int node;
+
+    PropertiesMap(CompactContentTree tree, int node) {
+      this.tree = tree;
+      this.node = node;
+    }
+
+    @Override
+    public Object get(Object key) {
+      return key instanceof String ? tree.getProperty(node, (String)key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof String && tree.hasProperty(node, (String)key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+      return new AbstractSet<>() {
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+          return new IndexIterator<>(tree.getFirstProperty(node)) {
+            @Override
+            int next(int property) {
+              return tree.getNextProperty(property);
+            }
+            @Override
+            Map.Entry<String, Object> get(int property) {
+              return new AbstractMap.SimpleImmutableEntry<>(tree.getPropertyName(property), tree.getPropertyValue(property));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int size = 0;
+          for (int property = tree.getFirstProperty(node); property != NONE; property = tree.getNextProperty(property)) {
+            size++;
+          }
+          return size;
+        }
+
+      };
+    }
+
+  }
+
+  /**
+   * Read-only map view on the children of a node.
+   */
+  private static final class ChildrenMap extends AbstractMap<String, ContentElement> {
+
+    private final CompactContentTree tree;
+    private final int node;
+
+    ChildrenMap(CompactContentTree tree, int node) {
+      this.tree = tree;
+      this.node = node;
+    }
+
+    @Override
+    public ContentElement get(Object key) {
+      int child = key instanceof String ? tree.getChild(node, (String)key) : NONE;
+      return child != NONE ? tree.getElement(child) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key instanceof String && tree.getChild(node, (String)key) != NONE;
+    }
+
+    @Override
+    public Set<Map.Entry<String, ContentElement>> entrySet() {
+      return new AbstractSet<>() {
+
+        @Override
+        public Iterator<Map.Entry<String, ContentElement>> iterator() {
+          return new IndexIterator<>(tree.getFirstChild(node)) {
+            @Override
+            int next(int child) {
+              return tree.getNextSibling(child);
+            }
+            @Override
+            Map.Entry<String, ContentElement> get(int child) {
+              return new AbstractMap.SimpleImmutableEntry<>(tree.getName(child), tree.getElement(child));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int size = 0;
+          for (int child = tree.getFirstChild(node); child != NONE; child = tree.getNextSibling(child)) {
+            size++;
+          }
+          return size;
+        }
+
+      };
+    }
+
+  }
+
+  /**
+   * Iterates over a linked list of node or property indexes.
+   */
+  private abstract static class IndexIterator<T> implements Iterator<T> {
+
+    private int index;
+
+    IndexIterator(int first) {
+      this.index = first;
+    }
+
+    abstract int next(int current);
+
+    abstract T get(int current);
+
+    @Override
+    public boolean hasNext() {
+      return index != NONE;
+    }
+
+    @Override
+    public T next() {
+      if (index == NONE) {
+        throw new NoSuchElementException();
+      }
+      int current = index;
+      index = next(current);
+      return get(current);
+    }
+
+  }
+
+}
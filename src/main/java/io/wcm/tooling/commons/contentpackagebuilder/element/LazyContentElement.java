@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Implements {@link ContentElement} with properties and children that are produced on demand by suppliers.
+ * <p>
+ * The properties are requested from their supplier on first access and kept by the element. The children are
+ * requested from their supplier each time the children map is iterated and are not kept by the element, so
+ * a child element and its descendants can be garbage collected as soon as they are serialized. This allows
+ * to stream content trees from a database cursor or a generator that do not fit into the heap.
+ * </p>
+ * <p>
+ * The children map is a read-only view: lookups and {@link Map#size()} iterate the children, so it should only
+ * be iterated. When the package is written with streaming XML, the children of each element are iterated
+ * once - except if only the used XML namespaces are declared or the size of the .content.xml files is limited,
+ * which need an additional pass over the content each.
+ * </p>
+ * This class is not thread-safe.
+ */
+public final class LazyContentElement implements ContentElement {
+
+  private final String name;
+  private final Supplier<Map<String, Object>> propertiesSupplier;
+  private final Map<String, ContentElement> children;
+  private Map<String, Object> properties;
+
+  /**
+   * @param name Element name
+   * @param properties Supplies the properties
+   */
+  public LazyContentElement(String name, @NotNull Supplier<Map<String, Object>> properties) {
+    this(name, properties, Collections::emptyIterator);
+  }
+
+  /**
+   * @param name Element name
+   * @param properties Supplies the properties
+   * @param children Supplies an iterator over the child elements, in the order they should be written.
+   *          It is called each time the children are iterated. Each child element needs a name.
+   */
+  public LazyContentElement(String name, @NotNull Supplier<Map<String, Object>> properties,
+      @NotNull Supplier<Iterator<ContentElement>> children) {
+    this.name = name;
+    this.propertiesSupplier = properties;
+    this.children = new ChildrenMap(children);
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public Map<String, Object> getProperties() {
+    if (properties == null) {
+      properties = propertiesSupplier.get();
+    }
+    return properties;
+  }
+
+  @Override
+  public Map<String, ContentElement> getChildren() {
+    return children;
+  }
+
+  @Override
+  public ContentElement getChild(String path) {
+    String childName = StringUtils.substringBefore(path, "/");
+    ContentElement child = children.get(childName);
+    if (child == null) {
+      return null;
+    }
+    String remainingPath = StringUtils.substringAfter(path, "/");
+    if (StringUtils.isEmpty(remainingPath)) {
+      return child;
+    }
+    else {
+      return child.getChild(remainingPath);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "[name=" + this.name + "]";
+  }
+
+
+  /**
+   * Read-only map view of the children that requests them from the supplier on each iteration.
+   */
+  private static final class ChildrenMap extends AbstractMap<String, ContentElement> {
+
+    private final Supplier<Iterator<ContentElement>> supplier;
+    private final Set<Map.Entry<String, ContentElement>> entrySet = new AbstractSet<>() {
+
+      @Override
+      public Iterator<Map.Entry<String, ContentElement>> iterator() {
+        Iterator<ContentElement> elements = supplier.get();
+        return new Iterator<>() {
+
+          @Override
+          public boolean hasNext() {
+            return elements.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, ContentElement> next() {
+            ContentElement element = elements.next();
+            if (element.getName() == null) {
+              throw new IllegalStateException("Child element without name: " + element);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(element.getName(), element);
+          }
+
+        };
+      }
+
+      @Override
+      public int size() {
+        int size = 0;
+        Iterator<ContentElement> elements = supplier.get();
+        while (elements.hasNext()) {
+          elements.next();
+          size++;
+        }
+        return size;
+      }
+
+    };
+
+    ChildrenMap(Supplier<Iterator<ContentElement>> supplier) {
+      this.supplier = supplier;
+    }
+
+    @Override
+    public Set<Map.Entry<String, ContentElement>> entrySet() {
+      return entrySet;
+    }
+
+  }
+
+}
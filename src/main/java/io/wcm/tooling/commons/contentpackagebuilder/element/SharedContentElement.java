@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Marks a content element subtree as immutable and shared by many documents, e.g. a header or footer
+ * component configuration embedded in each page.
+ * <p>
+ * With streaming XML, the XML of a shared subtree is rendered only once per indentation depth and cached
+ * in the {@link io.wcm.tooling.commons.contentpackagebuilder.WriterContext}, further documents reuse the cached
+ * bytes. The wrapped subtree must not be modified afterwards, the properties and children are exposed as
+ * read-only maps. The subtree is always written to the file of its parent, it is never split by size.
+ * </p>
+ * Shared elements are cached by identity, so the same instance has to be used for all documents.
+ */
+public final class SharedContentElement implements ContentElement {
+
+  private final ContentElement content;
+
+  /**
+   * @param content Subtree to share
+   */
+  public SharedContentElement(@NotNull ContentElement content) {
+    this.content = content;
+  }
+
+  @Override
+  public String getName() {
+    return content.getName();
+  }
+
+  @Override
+  public Map<String, Object> getProperties() {
+    return Collections.unmodifiableMap(content.getProperties());
+  }
+
+  @Override
+  public Map<String, ContentElement> getChildren() {
+    return Collections.unmodifiableMap(content.getChildren());
+  }
+
+  @Override
+  public ContentElement getChild(String path) {
+    return content.getChild(path);
+  }
+
+  @Override
+  public String toString() {
+    return "[shared=" + content + "]";
+  }
+
+}
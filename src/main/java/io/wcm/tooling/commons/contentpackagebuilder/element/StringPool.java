@@ -0,0 +1,193 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Deduplicates strings that repeat across many nodes, like property names, node types and resource types,
+ * while content trees are built.
+ * <p>
+ * The pool is a fixed-size table of slots addressed by the string hash code. If a slot holds an equal string,
+ * that instance is returned; otherwise the given string replaces the content of the slot. So the pool never
+ * grows beyond its capacity, and a rarely used string is eventually replaced by a frequently used one.
+ * Strings longer than the max. length are not pooled, as long values rarely repeat.
+ * </p>
+ * <p>
+ * Unlike {@link String#intern()}, the pooled strings are ordinary heap objects that are garbage collected
+ * together with the pool. The pool can be shared by multiple threads, it does not use any locks.
+ * </p>
+ * This class is thread-safe.
+ */
+public final class StringPool {
+
+  /**
+   * Default number of slots.
+   */
+  public static final int DEFAULT_CAPACITY = 4 * 1024;
+
+  /**
+   * Default max. length of pooled strings.
+   */
+  public static final int DEFAULT_MAX_LENGTH = 256;
+
+  private final AtomicReferenceArray<String> slots;
+  private final int mask;
+  private final int maxLength;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates a pool with default capacity and max. string length.
+   */
+  public StringPool() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param capacity Number of slots, rounded up to the next power of two
+   * @param maxLength Max. length of pooled strings
+   */
+  public StringPool(int capacity, int maxLength) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Invalid max. length: " + maxLength);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * @param value String
+   * @return Pooled instance equal to the given string, or the string itself
+   */
+  public String intern(String value) {
+    if (value == null || value.length() > maxLength) {
+      return value;
+    }
+    int hash = value.hashCode();
+    int index = (hash ^ (hash >>> 16)) & mask;
+    String pooled = slots.get(index);
+    if (pooled != null && pooled.equals(value)) {
+      hits.increment();
+      return pooled;
+    }
+    misses.increment();
+    slots.lazySet(index, value);
+    return value;
+  }
+
+  /**
+   * Pools string values and the items of string arrays. Other values are returned as they are.
+   * @param value Property value
+   * @return Property value with pooled strings. String arrays are copied if any item was replaced.
+   */
+  public Object internValue(Object value) {
+    if (value instanceof String) {
+      return intern((String)value);
+    }
+    if (value instanceof String[]) {
+      String[] items = (String[])value;
+      String[] result = items;
+      for (int i = 0; i < items.length; i++) {
+        String item = intern(items[i]);
+        if (item != items[i]) {
+          if (result == items) {
+            result = items.clone();
+          }
+          result[i] = item;
+        }
+      }
+      return result;
+    }
+    return value;
+  }
+
+  /**
+   * Copies the properties with pooled names and string values.
+   * @param properties Properties
+   * @return New map with the same order
+   */
+  public @NotNull Map<String, Object> internProperties(@NotNull Map<String, Object> properties) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      result.put(intern(entry.getKey()), internValue(entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Creates a content element with pooled name, property names and string values.
+   * @param name Element name
+   * @param properties Properties (are copied)
+   * @return Content element
+   */
+  public @NotNull ContentElement createElement(String name, @NotNull Map<String, Object> properties) {
+    return new ContentElementImpl(intern(name), internProperties(properties));
+  }
+
+  /**
+   * @return Number of slots
+   */
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  /**
+   * @return Number of lookups that returned a pooled instance
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return Number of lookups of strings that were not in the pool
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return Ratio of hits to all lookups of strings within the max. length, 0 if there were none
+   */
+  public double getHitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total > 0 ? (double)hitCount / total : 0;
+  }
+
+  @Override
+  public String toString() {
+    return "StringPool[capacity=" + getCapacity() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+  }
+
+}
@@ -20,5 +20,5 @@
 /**
  * Content representation.
  */
-@org.osgi.annotation.versioning.Version("1.0.0")
+@org.osgi.annotation.versioning.Version("1.1.0")
 package io.wcm.tooling.commons.contentpackagebuilder.element;
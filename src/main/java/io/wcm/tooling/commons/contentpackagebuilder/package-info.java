@@ -20,5 +20,5 @@
 /**
  * AEM Content Package Builder
  */
-@org.osgi.annotation.versioning.Version("1.10")
+@org.osgi.annotation.versioning.Version("1.11")
 package io.wcm.tooling.commons.contentpackagebuilder;
@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+
+class ChannelUtilTest {
+
+  @Test
+  void testFileChannel() throws Exception {
+    byte[] data = new byte[300 * 1024];
+    new Random(0).nextBytes(data);
+    File dir = new File("target/test-" + getClass().getSimpleName());
+    dir.mkdirs();
+    Path file = Files.write(new File(dir, "data.bin").toPath(), data);
+
+    try (FileChannel channel = FileChannel.open(file)) {
+      // memory-mapped
+      assertEquals(crc(data, 100, data.length - 100), ChannelUtil.crc(channel, 100, data.length - 100));
+      // small region
+      assertEquals(crc(data, 10, 1000), ChannelUtil.crc(channel, 10, 1000));
+
+      byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+      assertEquals(head.length, ChannelUtil.readHead(channel, 5, head));
+      assertArrayEquals(Arrays.copyOfRange(data, 5, 5 + head.length), head);
+      assertEquals(3, ChannelUtil.readHead(channel, data.length - 3, head));
+
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ChannelUtil.transferTo(channel, 200, 5000, Channels.newChannel(bos));
+      assertArrayEquals(Arrays.copyOfRange(data, 200, 5200), bos.toByteArray());
+      assertEquals(0, channel.position());
+    }
+  }
+
+  @Test
+  void testByteBuffer() throws Exception {
+    byte[] data = new byte[20 * 1024];
+    new Random(0).nextBytes(data);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data).position(100);
+
+    assertEquals(crc(data, 100, data.length - 100), ChannelUtil.crc(buffer));
+
+    byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+    assertEquals(head.length, ChannelUtil.readHead(buffer, head));
+    assertArrayEquals(Arrays.copyOfRange(data, 100, 100 + head.length), head);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ChannelUtil.copy(buffer, bos);
+    assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), bos.toByteArray());
+
+    bos = new ByteArrayOutputStream();
+    ChannelUtil.transferTo(buffer, Channels.newChannel(bos));
+    assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), bos.toByteArray());
+
+    assertEquals(100, buffer.position());
+  }
+
+  private static long crc(byte[] data, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    return crc.getValue();
+  }
+
+}
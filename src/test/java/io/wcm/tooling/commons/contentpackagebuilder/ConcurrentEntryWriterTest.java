@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class ConcurrentEntryWriterTest {
+
+  private static final int MAX_BUFFER_SIZE = 1024;
+
+  @Test
+  void testConcurrentEntries() throws Exception {
+    int threads = 8;
+    int entriesPerThread = 50;
+    byte[] largeData = new byte[10 * MAX_BUFFER_SIZE];
+    new Random(0).nextBytes(largeData);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (WriterContext context = new WriterContext();
+        ConcurrentEntryWriter underTest = new ConcurrentEntryWriter(new ZipWriter(bos, System.currentTimeMillis()), MAX_BUFFER_SIZE, context)) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        tasks.add(() -> {
+          underTest.writeDirectory("folder" + thread + "/");
+          for (int i = 0; i < entriesPerThread; i++) {
+            byte[] data = entryData(thread, i);
+            underTest.writeEntry("folder" + thread + "/file" + i + ".txt", os -> os.write(data));
+          }
+          // larger than buffer - streamed directly
+          underTest.writeEntry("folder" + thread + "/large.bin", os -> os.write(largeData));
+          return null;
+        });
+      }
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    Map<String, byte[]> entries = new HashMap<>();
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        entries.put(entry.getName(), IOUtils.toByteArray(zis));
+      }
+    }
+    assertEquals(threads * (entriesPerThread + 2), entries.size());
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < entriesPerThread; i++) {
+        assertArrayEquals(entryData(t, i), entries.get("folder" + t + "/file" + i + ".txt"));
+      }
+      assertArrayEquals(largeData, entries.get("folder" + t + "/large.bin"));
+    }
+  }
+
+  @Test
+  void testLargeEntryDoesNotBlockOtherThreads() throws Exception {
+    byte[] largeData = new byte[10 * MAX_BUFFER_SIZE];
+    new Random(0).nextBytes(largeData);
+    byte[] data = entryData(0, 0);
+    CompletableFuture<Void> largeEntryStarted = new CompletableFuture<>();
+    CompletableFuture<Void> otherEntryWritten = new CompletableFuture<>();
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (WriterContext context = new WriterContext();
+        ConcurrentEntryWriter underTest = new ConcurrentEntryWriter(new ZipWriter(bos, System.currentTimeMillis()), MAX_BUFFER_SIZE, context)) {
+      Future<Void> large = executor.submit(() -> {
+        underTest.writeEntry("large.bin", os -> {
+          os.write(largeData, 0, largeData.length / 2);
+          largeEntryStarted.complete(null);
+          // the other entry is written while this one is still in progress
+          otherEntryWritten.orTimeout(10, TimeUnit.SECONDS).join();
+          os.write(largeData, largeData.length / 2, largeData.length - largeData.length / 2);
+        });
+        return null;
+      });
+      largeEntryStarted.get(10, TimeUnit.SECONDS);
+      underTest.writeEntry("file.txt", os -> os.write(data));
+      otherEntryWritten.complete(null);
+      large.get();
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals("file.txt", zis.getNextEntry().getName());
+      assertArrayEquals(data, IOUtils.toByteArray(zis));
+      assertEquals("large.bin", zis.getNextEntry().getName());
+      assertArrayEquals(largeData, IOUtils.toByteArray(zis));
+    }
+  }
+
+  @Test
+  void testFailedEntry() throws Exception {
+    byte[] data = entryData(0, 0);
+    byte[] largeData = new byte[10 * MAX_BUFFER_SIZE];
+    new Random(0).nextBytes(largeData);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (WriterContext context = new WriterContext();
+        ConcurrentEntryWriter underTest = new ConcurrentEntryWriter(new ZipWriter(bos, System.currentTimeMillis()), MAX_BUFFER_SIZE, context)) {
+      IOException buffered = assertThrows(IOException.class, () -> underTest.writeEntry("failed.txt", os -> {
+        os.write(data);
+        throw new IOException("buffered");
+      }));
+      assertEquals("buffered", buffered.getMessage());
+
+      // larger than the buffer: already spooled
+      IOException spooled = assertThrows(IOException.class, () -> underTest.writeEntry("failed-large.bin", os -> {
+        os.write(largeData);
+        throw new IOException("spooled");
+      }));
+      assertEquals("spooled", spooled.getMessage());
+
+      underTest.writeEntry("file.txt", os -> os.write(data));
+    }
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals("file.txt", zis.getNextEntry().getName());
+      assertArrayEquals(data, IOUtils.toByteArray(zis));
+      assertNull(zis.getNextEntry());
+    }
+  }
+
+  private static byte[] entryData(int thread, int index) {
+    return ("content-" + thread + "-" + index + "-content-content").getBytes(StandardCharsets.UTF_8);
+  }
+
+}
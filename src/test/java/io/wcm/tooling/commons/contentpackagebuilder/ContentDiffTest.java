@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+
+class ContentDiffTest {
+
+  @Test
+  void testUnchanged() {
+    Map<String, Object> content = Map.of("jcr:primaryType", "nt:unstructured", "prop1", "value1",
+        "node1", Map.of("prop2", new String[] { "a", "b" }));
+
+    ContentDiff underTest = ContentDiff.diff(content, Map.of("jcr:primaryType", "nt:unstructured", "prop1", "value1",
+        "node1", Map.of("prop2", new String[] { "a", "b" })));
+
+    assertNull(underTest.getContent());
+    assertTrue(underTest.getRemovedPaths().isEmpty());
+    assertTrue(underTest.getReplacedPaths().isEmpty());
+    assertFalse(underTest.isPropertiesUpdated());
+  }
+
+  @Test
+  void testAddedProperties() {
+    ContentDiff underTest = ContentDiff.diff(
+        Map.of("jcr:primaryType", "nt:unstructured", "prop1", "value1",
+            "node1", Map.of("jcr:primaryType", "nt:folder", "prop2", "value2"),
+            "node2", Map.of("prop3", "value3")),
+        Map.of("jcr:primaryType", "nt:unstructured", "prop1", "value1",
+            "node1", Map.of("jcr:primaryType", "nt:folder", "prop2", "value2", "prop4", "value4"),
+            "node2", Map.of("prop3", "value3"),
+            "node3", Map.of("prop5", "value5")));
+
+    ContentElement content = underTest.getContent();
+    assertEquals(Map.of("jcr:primaryType", "nt:unstructured"), content.getProperties());
+    assertEquals(Set.of("node1", "node3"), content.getChildren().keySet());
+    assertEquals(Map.of("jcr:primaryType", "nt:folder", "prop4", "value4"), content.getChild("node1").getProperties());
+    assertEquals(Map.of("prop5", "value5"), content.getChild("node3").getProperties());
+    assertFalse(underTest.isPropertiesUpdated());
+  }
+
+  @Test
+  void testChangedProperties() {
+    ContentDiff underTest = ContentDiff.diff(
+        Map.of("prop1", "value1", "prop2", "value2"),
+        Map.of("prop1", "value1", "prop2", "value2 changed"));
+
+    assertEquals(Map.of("prop2", "value2 changed"), underTest.getContent().getProperties());
+    assertTrue(underTest.isPropertiesUpdated());
+  }
+
+  @Test
+  void testRemovedPropertiesAndNodes() {
+    ContentDiff underTest = ContentDiff.diff(
+        Map.of("prop1", "value1",
+            "node1", Map.of("prop2", "value2", "prop3", "value3"),
+            "node2", Map.of("jcr:primaryType", "nt:unstructured"),
+            "node3", Map.of("prop4", "value4")),
+        Map.of("prop1", "value1",
+            "node1", Map.of("prop2", "value2"),
+            "node2", Map.of("jcr:primaryType", "nt:folder")));
+
+    assertEquals(List.of("/node3"), underTest.getRemovedPaths());
+    assertEquals(List.of("/node1", "/node2"), underTest.getReplacedPaths().stream().sorted().collect(Collectors.toList()));
+    ContentElement content = underTest.getContent();
+    assertEquals(Map.of("prop2", "value2"), content.getChild("node1").getProperties());
+    assertEquals(Map.of("jcr:primaryType", "nt:folder"), content.getChild("node2").getProperties());
+  }
+
+}
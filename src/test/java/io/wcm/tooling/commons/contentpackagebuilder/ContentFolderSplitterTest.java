@@ -23,16 +23,27 @@ import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.JcrConstants.NT_FOLDER;
 import static org.apache.jackrabbit.JcrConstants.NT_UNSTRUCTURED;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 
 import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.ContentPart;
+import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.Placement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
 
+@SuppressWarnings("java:S5778") // assert throws
 class ContentFolderSplitterTest {
 
   @Test
@@ -40,7 +51,7 @@ class ContentFolderSplitterTest {
     Map<String, Object> input = Map.of("k1", "v1", "o1", Map.of(
         "k11", "v11", "k12", "v12", "o13", Map.of(
             "k131", "v131", "k132", "v132")));
-    List<ContentPart> result = ContentFolderSplitter.split(input);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input));
     assertResult(result, "", input);
   }
 
@@ -49,48 +60,164 @@ class ContentFolderSplitterTest {
     Map<String, Object> input = Map.of(JCR_PRIMARYTYPE, NT_UNSTRUCTURED, "k1", "v1", "o1", Map.of(
         JCR_PRIMARYTYPE, NT_UNSTRUCTURED, "k11", "v11", "k12", "v12", "o13", Map.of(
             JCR_PRIMARYTYPE, NT_UNSTRUCTURED, "k131", "v131", "k132", "v132")));
-    List<ContentPart> result = ContentFolderSplitter.split(input);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input));
     assertResult(result, "", input);
   }
 
   @Test
   void testSplitMap_Folder() {
-    Map<String, Object> input = Map.of(JCR_PRIMARYTYPE, NT_FOLDER, "k1", "v1", "o1", Map.of(
-        JCR_PRIMARYTYPE, "sling:Folder", "k11", "v11", "k12", "v12", "o13", Map.of(
-            JCR_PRIMARYTYPE, "sling:OrderedFolder", "k131", "v131", "k132", "v132")));
-    List<ContentPart> result = ContentFolderSplitter.split(input);
+    Map<String, Object> o13 = Map.of(JCR_PRIMARYTYPE, "sling:OrderedFolder", "k131", "v131", "k132", "v132");
+    Map<String, Object> o1 = Map.of(JCR_PRIMARYTYPE, "sling:Folder", "k11", "v11", "k12", "v12", "o13", o13);
+    Map<String, Object> input = Map.of(JCR_PRIMARYTYPE, NT_FOLDER, "k1", "v1", "o1", o1);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input));
     assertResult(result,
-        "", Map.of(JCR_PRIMARYTYPE, NT_FOLDER, "k1", "v1"),
-        "/o1", Map.of(JCR_PRIMARYTYPE, "sling:Folder", "k11", "v11", "k12", "v12"),
-        "/o1/o13", Map.of(JCR_PRIMARYTYPE, "sling:OrderedFolder", "k131", "v131", "k132", "v132"));
+        "", input,
+        "/o1", o1,
+        "/o1/o13", o13);
+    assertEquals(Placement.FOLDER, result.get(0).getPlacement("o1", o1, o1));
   }
 
   @Test
   void testSplitMap_Page() {
-    Map<String, Object> page1Content = Map.of("k1a", "v1a", "k1b", "v1b");
-    Map<String, Object> page11Content = Map.of("k11a", "v11a", "k11b", "v11b");
-    Map<String, Object> page111Content = Map.of("k111a", "v111a", "k111b", "v111b");
-    Map<String, Object> page12Content = Map.of("k12a", "v12a", "k12b", "v12b");
-    Map<String, Object> input = new TreeMap<>(Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page1Content,
-        "page11", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page11Content,
-            "page111", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page111Content)),
-        "page12", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page12Content)));
-
-    List<ContentPart> result = ContentFolderSplitter.split(input);
+    Map<String, Object> page111 = Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", Map.of("k111a", "v111a"));
+    Map<String, Object> page11 = Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", Map.of("k11a", "v11a"),
+        "page111", page111);
+    Map<String, Object> page12 = Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", Map.of("k12a", "v12a"));
+    Map<String, Object> input = new TreeMap<>(Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", Map.of("k1a", "v1a"),
+        "page11", page11,
+        "page12", page12));
+
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input));
+    assertResult(result,
+        "", input,
+        "/page11", page11,
+        "/page11/page111", page111,
+        "/page12", page12);
+  }
+
+  @Test
+  void testSplitMap_NestedFolder() {
+    Map<String, Object> folder = Map.of(JCR_PRIMARYTYPE, "sling:Folder", "k", "v");
+    Map<String, Object> input = new LinkedHashMap<>();
+    input.put("o1", Map.of("o11", Map.of("folder1", folder)));
+    input.put("folder2", folder);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input));
+    assertResult(result,
+        "", input,
+        "/o1/o11/folder1", folder,
+        "/folder2", folder);
+  }
+
+  @Test
+  void testSplitContentElement() {
+    ContentElement root = new ContentElementImpl(null, Map.of("k1", "v1"));
+    ContentElement o1 = new ContentElementImpl("o1", Map.of("k11", "v11"));
+    ContentElement folder1 = new ContentElementImpl("folder1", Map.of(JCR_PRIMARYTYPE, "sling:Folder"));
+    ContentElement folder2 = new ContentElementImpl("folder2", Map.of(JCR_PRIMARYTYPE, "sling:Folder"));
+    root.getChildren().put("o1", o1);
+    root.getChildren().put("folder2", folder2);
+    o1.getChildren().put("folder1", folder1);
+
+    List<ContentPart> result = toList(ContentFolderSplitter.split(root, 0, 0));
+    assertEquals(List.of("", "/o1/folder1", "/folder2"), paths(result));
+    assertSame(root, result.get(0).getElement());
+    assertSame(folder1, result.get(1).getElement());
+    assertSame(folder2, result.get(2).getElement());
+  }
+
+  @Test
+  void testSplitMap_MaxNodes() {
+    Map<String, Object> o2 = Map.of("k2", "v2", "o21", Map.of("k21", "v21"), "o22", Map.of("k22", "v22"));
+    Map<String, Object> input = new LinkedHashMap<>();
+    input.put("k1", "v1");
+    input.put("o1", Map.of("k11", "v11"));
+    input.put("o2", o2);
+    input.put("o3", Map.of("k31", "v31"));
+
+    // o2 subtree with 3 nodes is moved
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input, 4, 0));
+    assertResult(result,
+        "", input,
+        "/o2", o2);
+    assertEquals(Placement.SPLIT, result.get(0).getPlacement("o2", o2, o2));
+    assertEquals(Placement.INLINE, result.get(0).getPlacement("o1", input.get("o1"), Map.of()));
+
+    // nested subtrees are split as well
+    Map<String, Object> o21 = Map.of("o211", Map.of("k211", "v211"));
+    Map<String, Object> o22 = Map.of("o221", Map.of("k221", "v221"));
+    Map<String, Object> nestedO2 = new LinkedHashMap<>();
+    nestedO2.put("o21", o21);
+    nestedO2.put("o22", o22);
+    input = Map.of("k1", "v1", "o2", nestedO2);
+    result = toList(ContentFolderSplitter.split(input, 3, 0));
+    assertResult(result,
+        "", input,
+        "/o2", nestedO2,
+        "/o2/o21", o21,
+        "/o2/o22", o22);
+  }
+
+  @Test
+  void testSplitMap_MaxBytes() {
+    Map<String, Object> large = Map.of("k2", StringUtils.repeat('x', 500));
+    Map<String, Object> input = Map.of(JCR_PRIMARYTYPE, NT_UNSTRUCTURED,
+        "small", Map.of("k1", "v1"),
+        "large", large);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input, 0, 200));
     assertResult(result,
-        "", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page1Content),
-        "/page11", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page11Content),
-        "/page11/page111", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page111Content),
-        "/page12", Map.of(JCR_PRIMARYTYPE, "cq:Page", "jcr:content", page12Content));
+        "", input,
+        "/large", large);
   }
 
-  @SuppressWarnings("unchecked")
-  private void assertResult(List<ContentPart> actual, Object... expectedNameMaps) {
-    List<ContentPart> expected = new ArrayList<>();
-    for (int i = 0; i < expectedNameMaps.length - 1; i = i + 2) {
-      expected.add(new ContentPart((String)expectedNameMaps[i], (Map<String, Object>)expectedNameMaps[i + 1]));
+  @Test
+  void testSplitMap_MaxNodesWithFolder() {
+    Map<String, Object> o1 = Map.of("o11", Map.of("k", "v"));
+    Map<String, Object> folderContent = Map.of(JCR_PRIMARYTYPE, "sling:Folder", "o1", o1, "o2", Map.of("k", "v"));
+    Map<String, Object> input = Map.of("k1", "v1", "folder", folderContent);
+    List<ContentPart> result = toList(ContentFolderSplitter.split(input, 2, 0));
+    assertResult(result,
+        "", input,
+        "/folder", folderContent,
+        "/folder/o1", o1);
+  }
+
+  @Test
+  void testLazyIteration() {
+    Map<String, Object> folder = Map.of(JCR_PRIMARYTYPE, "sling:Folder");
+    Iterator<ContentPart> parts = ContentFolderSplitter.split(Map.of("folder", folder));
+    ContentPart root = parts.next();
+
+    // detached children reported while rendering are not discovered again
+    root.detach("folder", folder);
+    root.rendered();
+    assertEquals("/folder", parts.next().getPath());
+    assertFalse(parts.hasNext());
+    assertThrows(NoSuchElementException.class, parts::next);
+  }
+
+  private static List<ContentPart> toList(Iterator<ContentPart> parts) {
+    List<ContentPart> result = new ArrayList<>();
+    parts.forEachRemaining(result::add);
+    return result;
+  }
+
+  private static List<String> paths(List<ContentPart> parts) {
+    List<String> result = new ArrayList<>();
+    for (ContentPart part : parts) {
+      result.add(part.getPath());
+    }
+    return result;
+  }
+
+  private static void assertResult(List<ContentPart> actual, Object... expectedPathMaps) {
+    List<String> expectedPaths = new ArrayList<>();
+    for (int i = 0; i < expectedPathMaps.length - 1; i = i + 2) {
+      expectedPaths.add((String)expectedPathMaps[i]);
+    }
+    assertEquals(expectedPaths, paths(actual));
+    for (int i = 0; i < actual.size(); i++) {
+      assertSame(expectedPathMaps[i * 2 + 1], actual.get(i).getContent(), actual.get(i).getPath());
     }
-    assertEquals(expected, actual);
   }
 
 }
@@ -21,28 +21,64 @@ package io.wcm.tooling.commons.contentpackagebuilder;
 
 import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathEvaluatesTo;
 import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathExists;
+import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathNotExists;
 import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.w3c.dom.Document;
 import org.zeroturnaround.zip.ZipUtil;
 
+import io.wcm.tooling.commons.contentpackagebuilder.element.CompactContentTree;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
 import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+import io.wcm.tooling.commons.contentpackagebuilder.element.LazyContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
 
 @SuppressWarnings("java:S5778") // assert throws
 class ContentPackageBuilderTest {
@@ -290,6 +326,35 @@ class ContentPackageBuilderTest {
     });
   }
 
+  @Test
+  void testIllegalParallelCompressionOptions() {
+    assertThrows(IllegalArgumentException.class, () -> underTest.parallelCompressionThreads(-1));
+    assertThrows(IllegalArgumentException.class, () -> underTest.parallelCompressionMaxInFlightBytes(0));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "serial", "parallel", "concurrent" })
+  void testInvalidMetadataClosesWriter(String mode) throws Exception {
+    boolean[] closed = new boolean[1];
+    OutputStream os = new ByteArrayOutputStream() {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+        super.close();
+      }
+    };
+    ContentPackageBuilder builder = underTest.name("myName").rootPath("/test");
+    if ("parallel".equals(mode)) {
+      builder.parallelCompressionThreads(2);
+    }
+    else if ("concurrent".equals(mode)) {
+      builder.concurrent(true);
+    }
+    // no group set
+    assertThrows(IllegalArgumentException.class, () -> builder.build(os));
+    assertTrue(closed[0], "output stream closed");
+  }
+
   @Test
   void testAddBinaries() throws Exception {
 
@@ -321,6 +386,764 @@ class ContentPackageBuilderTest {
     assertArrayEquals(data2, getDataFromZip("jcr_root/content/file2.bin"));
   }
 
+  @Test
+  void testParallelCompression() throws Exception {
+    Date created = new Date();
+    byte[] largeData = new byte[256 * 1024];
+    new Random(0).nextBytes(largeData);
+
+    File serialFile = new File(destDir, "serial.zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).build(serialFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .parallelCompressionThreads(4)
+        .parallelCompressionMaxInFlightBytes(64 * 1024);
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    List<String> serialEntries = ContentPackageTestUtil.getEntries(serialFile);
+    assertEquals(serialEntries, ContentPackageTestUtil.getEntries(testFile));
+    for (String entry : serialEntries) {
+      assertArrayEquals(ContentPackageTestUtil.getDataFromZip(serialFile, entry), getDataFromZip(entry), entry);
+    }
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/large.bin"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "serial", "parallel", "concurrent" })
+  void testDeduplicateEntries(String mode) throws Exception {
+    Date created = new Date();
+    byte[] largeData = new byte[256 * 1024];
+    new Random(0).nextBytes(largeData);
+
+    File plainFile = new File(destDir, "plain-" + mode + ".zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).build(plainFile)) {
+      addDuplicateContent(contentPackage, largeData);
+    }
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .deduplicateEntries(true)
+        .parallelCompressionThreads("parallel".equals(mode) ? 2 : 0)
+        .concurrent("concurrent".equals(mode));
+    EntryDataCache cache;
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      addDuplicateContent(contentPackage, largeData);
+      cache = contentPackage.getEntryDataCache();
+    }
+
+    List<String> plainEntries = ContentPackageTestUtil.getEntries(plainFile);
+    assertEquals(plainEntries, ContentPackageTestUtil.getEntries(testFile));
+    for (String entry : plainEntries) {
+      assertArrayEquals(ContentPackageTestUtil.getDataFromZip(plainFile, entry), getDataFromZip(entry), entry);
+    }
+    // 2 copies of page, 2 copies of binary, 3 copies of nt:file metadata
+    assertTrue(cache.getHitCount() >= 5, "hits: " + cache.getHitCount());
+  }
+
+  @Test
+  void testEntryCacheDirectory() throws Exception {
+    Date created = new Date(1700000000000L);
+    byte[] largeData = new byte[256 * 1024];
+    new Random(0).nextBytes(largeData);
+    Path cacheDir = destDir.toPath().resolve("cache");
+    FileUtils.deleteDirectory(cacheDir.toFile());
+    File firstFile = new File(destDir, "first.zip");
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .storeCompressedBinaries(true)
+        .entryCacheDirectory(cacheDir);
+    try (ContentPackage contentPackage = builder.build(firstFile)) {
+      addSampleContent(contentPackage, largeData);
+      assertEquals(0, contentPackage.getEntryDataCache().getStoreHitCount());
+    }
+    EntryDataCache cache;
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      addSampleContent(contentPackage, largeData);
+      cache = contentPackage.getEntryDataCache();
+    }
+
+    assertTrue(cache.getStoreHitCount() > 0);
+    assertEquals(0, cache.getMissCount());
+    // fixed creation date and identical content result in an identical package file
+    assertArrayEquals(Files.readAllBytes(firstFile.toPath()), Files.readAllBytes(testFile.toPath()));
+  }
+
+  @Test
+  void testDeltaPackage() throws Exception {
+    byte[] imageData;
+    try (InputStream is = getClass().getResourceAsStream("/thumbnail.png")) {
+      imageData = IOUtils.toByteArray(is);
+    }
+    Path previousManifest = destDir.toPath().resolve("previous-manifest.txt");
+    Path manifest = destDir.toPath().resolve("manifest.txt");
+    Path fullManifest = destDir.toPath().resolve("full-manifest.txt");
+
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/content")
+        .manifestFile(previousManifest).build(new File(destDir, "previous.zip"))) {
+      contentPackage.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+      contentPackage.addPage("/content/page2", Map.of("jcr:title", "Page 2"));
+      contentPackage.addPage("/content/page3", Map.of("jcr:title", "Page 3"));
+      contentPackage.addFile("/content/dam/image.png", new ByteArrayInputStream(imageData), "image/png");
+      contentPackage.addFile("/content/dam/text.txt", new ByteArrayInputStream("text1".getBytes(StandardCharsets.UTF_8)), "text/plain");
+    }
+
+    // full build of the current content, for comparing the manifest
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/content")
+        .manifestFile(fullManifest).build(new File(destDir, "full.zip"))) {
+      addDeltaContent(contentPackage, imageData);
+    }
+
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/content")
+        .previousManifest(previousManifest).manifestFile(manifest).build(testFile)) {
+      addDeltaContent(contentPackage, imageData);
+    }
+
+    List<String> entries = ContentPackageTestUtil.getEntries(testFile);
+    assertTrue(entries.contains("jcr_root/content/page2/.content.xml"));
+    assertTrue(entries.contains("jcr_root/content/page4/.content.xml"));
+    assertTrue(entries.contains("jcr_root/content/dam/text.txt"));
+    assertTrue(entries.contains("jcr_root/content/dam/text.txt.dir/.content.xml"));
+    assertFalse(entries.contains("jcr_root/content/page1/.content.xml"));
+    assertFalse(entries.contains("jcr_root/content/dam/image.png"));
+    assertFalse(entries.contains("jcr_root/content/dam/image.png.dir/.content.xml"));
+    assertTrue(entries.contains("META-INF/vault/properties.xml"));
+
+    Document filterXml = getXmlFromZip("META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("4", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/content/dam/text.txt", "/workspaceFilter/filter[1]/@root", filterXml);
+    assertXpathEvaluatesTo("/content/page2", "/workspaceFilter/filter[2]/@root", filterXml);
+    assertXpathEvaluatesTo("/content/page3", "/workspaceFilter/filter[3]/@root", filterXml);
+    assertXpathEvaluatesTo("/content/page4", "/workspaceFilter/filter[4]/@root", filterXml);
+
+    // manifest covers all entries, including the unchanged ones
+    assertEquals(Files.readAllLines(fullManifest), Files.readAllLines(manifest));
+  }
+
+  private static void addDeltaContent(ContentPackage contentPackage, byte[] imageData) throws IOException {
+    contentPackage.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+    contentPackage.addPage("/content/page2", Map.of("jcr:title", "Page 2 changed"));
+    contentPackage.addPage("/content/page4", Map.of("jcr:title", "Page 4"));
+    contentPackage.addFile("/content/dam/image.png", new ByteArrayInputStream(imageData), "image/png");
+    contentPackage.addFile("/content/dam/text.txt", new ByteArrayInputStream("text1".getBytes(StandardCharsets.UTF_8)),
+        "text/plain;charset=UTF-8");
+  }
+
+  @Test
+  void testContentDelta() throws Exception {
+    Map<String, Object> previous = Map.of("jcr:primaryType", "cq:Page",
+        "jcr:content", Map.of("jcr:primaryType", "cq:PageContent", "jcr:title", "Title", "prop1", "value1"),
+        "child1", Map.of("jcr:primaryType", "cq:Page"),
+        "child2", Map.of("jcr:primaryType", "cq:Page"));
+    Map<String, Object> current = Map.of("jcr:primaryType", "cq:Page",
+        "jcr:content", Map.of("jcr:primaryType", "cq:PageContent", "jcr:title", "Title changed", "prop1", "value1"),
+        "child1", Map.of("jcr:primaryType", "cq:Page"));
+
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/content")
+        .contentDelta(true).build(testFile)) {
+      contentPackage.addContentDelta("/content/page1", previous, current);
+    }
+
+    Document filterXml = getXmlFromZip("META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("3", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/content/page1/child2", "/workspaceFilter/filter[1]/@root", filterXml);
+    assertXpathNotExists("/workspaceFilter/filter[1]/@mode", filterXml);
+    assertXpathEvaluatesTo("/content/page1", "/workspaceFilter/filter[2]/@root", filterXml);
+    assertXpathEvaluatesTo("update_properties", "/workspaceFilter/filter[2]/@mode", filterXml);
+    assertXpathEvaluatesTo("/content", "/workspaceFilter/filter[3]/@root", filterXml);
+
+    Document contentXml = getXmlFromZip("jcr_root/content/page1/.content.xml");
+    assertXpathEvaluatesTo("Title changed", "/jcr:root/jcr:content/@jcr:title", contentXml);
+    assertXpathNotExists("/jcr:root/jcr:content/@prop1", contentXml);
+    assertXpathNotExists("/jcr:root/child1", contentXml);
+  }
+
+  @Test
+  void testContentDeltaNotEnabled() throws Exception {
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/content").build(testFile)) {
+      assertThrows(IllegalStateException.class, () -> contentPackage.addContentDelta("/content/page1",
+          Map.of("prop1", "value1"), Map.of("prop1", "value2")));
+    }
+  }
+
+  @Test
+  void testContentDeltaWithoutChanges() throws Exception {
+    ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/content")
+        .contentDelta(true).build(testFile);
+    contentPackage.addContentDelta("/content/page1", Map.of("prop1", "value1"), Map.of("prop1", "value1"));
+    assertThrows(IllegalStateException.class, contentPackage::close);
+  }
+
+  @Test
+  void testFilterWrittenWithMetadata() throws Exception {
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/content").build(testFile)) {
+      contentPackage.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+    }
+    List<String> entries = ContentPackageTestUtil.getEntries(testFile);
+    assertTrue(entries.indexOf("META-INF/vault/filter.xml") < entries.indexOf("jcr_root/content/page1/.content.xml"));
+  }
+
+  private static void addDuplicateContent(ContentPackage contentPackage, byte[] data) throws IOException {
+    for (String language : List.of("en", "de", "fr")) {
+      contentPackage.addPage("/content/site/" + language + "/page", Map.of("jcr:title", "Page"));
+      contentPackage.addFile("/content/dam/" + language + "/file.bin", new ByteArrayInputStream(data), "application/octet-stream");
+    }
+  }
+
+  @Test
+  void testStreamingXml() throws Exception {
+    Date created = new Date();
+    byte[] largeData = new byte[1024];
+
+    File domFile = new File(destDir, "dom.zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).build(domFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .streamingXml(true);
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    List<String> domEntries = ContentPackageTestUtil.getEntries(domFile);
+    assertEquals(domEntries, ContentPackageTestUtil.getEntries(testFile));
+    for (String entry : domEntries) {
+      assertEquals(new String(ContentPackageTestUtil.getDataFromZip(domFile, entry), StandardCharsets.UTF_8),
+          new String(getDataFromZip(entry), StandardCharsets.UTF_8), entry);
+    }
+  }
+
+  @Test
+  void testCompactXml() throws Exception {
+    Date created = new Date();
+    byte[] largeData = new byte[1024];
+
+    File domFile = new File(destDir, "dom-compact.zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).compactXml(true).build(domFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .streamingXml(true)
+        .compactXml(true);
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      addSampleContent(contentPackage, largeData);
+    }
+
+    String pageXml = new String(getDataFromZip("jcr_root/content/page1/.content.xml"), StandardCharsets.UTF_8);
+    assertFalse(pageXml.contains("\n"), pageXml);
+    assertXpathEvaluatesTo("v1", "/jcr:root/jcr:content/@var1", getXmlFromZip("jcr_root/content/page1/.content.xml"));
+    assertFalse(new String(getDataFromZip("META-INF/vault/filter.xml"), StandardCharsets.UTF_8).contains("\n"));
+
+    List<String> domEntries = ContentPackageTestUtil.getEntries(domFile);
+    assertEquals(domEntries, ContentPackageTestUtil.getEntries(testFile));
+    for (String entry : domEntries) {
+      assertEquals(new String(ContentPackageTestUtil.getDataFromZip(domFile, entry), StandardCharsets.UTF_8),
+          new String(getDataFromZip(entry), StandardCharsets.UTF_8), entry);
+    }
+  }
+
+  @Test
+  void testMaxContentXmlNodes() throws Exception {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put(JCR_PRIMARYTYPE, "nt:unstructured");
+    for (int i = 0; i < 10; i++) {
+      Map<String, Object> child = new LinkedHashMap<>();
+      for (int j = 0; j < 20; j++) {
+        child.put("item" + j, Map.of("var1", "v" + j));
+      }
+      content.put("child" + i, child);
+    }
+    content.put("jcr:content", Map.of("var2", "v2", "node1", Map.of("var3", "v3")));
+
+    for (boolean streamingXml : new boolean[] { false, true }) {
+      try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+          .streamingXml(streamingXml).maxContentXmlNodes(50).build(testFile)) {
+        contentPackage.addContent("/content/tree", content);
+      }
+
+      Document doc = getXmlFromZip("jcr_root/content/tree/.content.xml");
+      assertXpathEvaluatesTo("0", "count(/jcr:root/child0/@*)", doc);
+      assertXpathEvaluatesTo("child1", "name(/jcr:root/*[2])", doc);
+      assertXpathEvaluatesTo("v2", "/jcr:root/jcr:content/@var2", doc);
+
+      doc = getXmlFromZip("jcr_root/content/tree/child0/.content.xml");
+      assertXpathEvaluatesTo("nt:unstructured", "/jcr:root/@jcr:primaryType", doc);
+      assertXpathEvaluatesTo("v19", "/jcr:root/item19/@var1", doc);
+      assertFalse(ZipUtil.containsEntry(testFile, "jcr_root/content/tree/_jcr_content/.content.xml"));
+    }
+  }
+
+  @Test
+  void testLazyContentElement() throws Exception {
+    Date created = new Date();
+    AtomicInteger childrenCalls = new AtomicInteger();
+    File domFile = new File(destDir, "dom-lazy.zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).build(domFile)) {
+      contentPackage.addContent("/content/lazy", lazyTree(0, childrenCalls));
+    }
+
+    childrenCalls.set(0);
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created).streamingXml(true).build(testFile)) {
+      contentPackage.addContent("/content/lazy", lazyTree(0, childrenCalls));
+    }
+    // children of each element are requested only once: 1 + 3 + 3*3 + 3*3*3 elements
+    assertEquals(40, childrenCalls.get());
+
+    Document doc = getXmlFromZip("jcr_root/content/lazy/.content.xml");
+    assertXpathEvaluatesTo("v0", "/jcr:root/@var1", doc);
+    assertXpathEvaluatesTo("v3", "/jcr:root/node1/node2/node3/@var1", doc);
+    assertXpathNotExists("/jcr:root/folder0", doc);
+    doc = getXmlFromZip("jcr_root/content/lazy/node1/node2/folder0/.content.xml");
+    assertXpathEvaluatesTo("sling:Folder", "/jcr:root/@jcr:primaryType", doc);
+
+    List<String> domEntries = ContentPackageTestUtil.getEntries(domFile);
+    assertEquals(domEntries, ContentPackageTestUtil.getEntries(testFile));
+    for (String entry : domEntries) {
+      assertEquals(new String(ContentPackageTestUtil.getDataFromZip(domFile, entry), StandardCharsets.UTF_8),
+          new String(getDataFromZip(entry), StandardCharsets.UTF_8), entry);
+    }
+  }
+
+  @Test
+  void testLazyContentElementMaxContentXmlNodes() throws Exception {
+    Date created = new Date();
+    AtomicInteger childrenCalls = new AtomicInteger();
+    for (boolean streamingXml : new boolean[] { false, true }) {
+      File elementFile = new File(destDir, "element-lazy.zip");
+      try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+          .created(created).streamingXml(streamingXml).maxContentXmlNodes(50).build(elementFile)) {
+        contentPackage.addContent("/content/tree", wideTree(0));
+      }
+      childrenCalls.set(0);
+      try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+          .created(created).streamingXml(streamingXml).maxContentXmlNodes(50).build(testFile)) {
+        contentPackage.addContent("/content/tree", wideLazyTree(0, childrenCalls));
+      }
+      if (streamingXml) {
+        // children of each of the 1111 elements are requested once for the size limits and once for rendering
+        assertEquals(2 * 1111, childrenCalls.get());
+      }
+
+      List<String> elementEntries = ContentPackageTestUtil.getEntries(elementFile);
+      assertTrue(elementEntries.stream().filter(entry -> entry.endsWith("/.content.xml")).count() > 20);
+      assertEquals(elementEntries, ContentPackageTestUtil.getEntries(testFile));
+      for (String entry : elementEntries) {
+        assertEquals(new String(ContentPackageTestUtil.getDataFromZip(elementFile, entry), StandardCharsets.UTF_8),
+            new String(getDataFromZip(entry), StandardCharsets.UTF_8), entry);
+      }
+    }
+  }
+
+  private static ContentElement wideTree(int depth) {
+    return wideTree(null, depth);
+  }
+
+  private static ContentElement wideTree(String name, int depth) {
+    ContentElement element = new ContentElementImpl(name, Map.of("var1", "v" + depth));
+    if (depth < 3) {
+      for (int i = 0; i < 10; i++) {
+        element.getChildren().put("node" + i, wideTree("node" + i, depth + 1));
+      }
+    }
+    return element;
+  }
+
+  private static ContentElement wideLazyTree(int depth, AtomicInteger childrenCalls) {
+    return new LazyContentElement(null, () -> Map.of("var1", "v" + depth), () -> wideLazyChildren(depth + 1, childrenCalls));
+  }
+
+  private static Iterator<ContentElement> wideLazyChildren(int depth, AtomicInteger childrenCalls) {
+    childrenCalls.incrementAndGet();
+    if (depth > 3) {
+      return Collections.emptyIterator();
+    }
+    return IntStream.range(0, 10)
+        .<ContentElement>mapToObj(i -> new LazyContentElement("node" + i, () -> Map.of("var1", "v" + depth),
+            () -> wideLazyChildren(depth + 1, childrenCalls)))
+        .iterator();
+  }
+
+  private static ContentElement lazyTree(int depth, AtomicInteger childrenCalls) {
+    return new LazyContentElement(null, () -> Map.of("var1", "v" + depth), () -> lazyChildren(depth + 1, childrenCalls));
+  }
+
+  private static Iterator<ContentElement> lazyChildren(int depth, AtomicInteger childrenCalls) {
+    childrenCalls.incrementAndGet();
+    if (depth > 3) {
+      return Collections.emptyIterator();
+    }
+    return IntStream.range(0, 3)
+        .<ContentElement>mapToObj(i -> new LazyContentElement(i == 1 ? "node" + depth : "folder" + i,
+            () -> i == 1 ? Map.of("var1", "v" + depth) : Map.of(JCR_PRIMARYTYPE, "sling:Folder", "var1", "v" + depth),
+            () -> lazyChildren(depth + 1, childrenCalls)))
+        .iterator();
+  }
+
+  @Test
+  void testCompactContentTree() throws Exception {
+    Date created = new Date();
+    CompactContentTree tree = new CompactContentTree();
+    ContentElement element = new ContentElementImpl(null, new LinkedHashMap<>());
+    fillTrees(tree, tree.getRoot(), element, 0);
+
+    for (boolean streamingXml : new boolean[] { false, true }) {
+      File elementFile = new File(destDir, "element-tree.zip");
+      try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+          .created(created).streamingXml(streamingXml).maxContentXmlNodes(3).build(elementFile)) {
+        contentPackage.addContent("/content/tree", element);
+        contentPackage.addPage("/content/page", element);
+      }
+      try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+          .created(created).streamingXml(streamingXml).maxContentXmlNodes(3).build(testFile)) {
+        contentPackage.addContent("/content/tree", tree.getElement(tree.getRoot()));
+        contentPackage.addPage("/content/page", tree.getElement(tree.getRoot()));
+      }
+
+      Document doc = getXmlFromZip("jcr_root/content/tree/.content.xml");
+      assertXpathEvaluatesTo("v0", "/jcr:root/@var1", doc);
+      assertXpathNotExists("/jcr:root/folder0", doc);
+      doc = getXmlFromZip("jcr_root/content/tree/folder0/.content.xml");
+      assertXpathEvaluatesTo("sling:Folder", "/jcr:root/@jcr:primaryType", doc);
+      assertTrue(ZipUtil.containsEntry(testFile, "jcr_root/content/tree/folder0/node1/.content.xml"));
+
+      List<String> elementEntries = ContentPackageTestUtil.getEntries(elementFile);
+      assertEquals(elementEntries, ContentPackageTestUtil.getEntries(testFile));
+      for (String entry : elementEntries) {
+        assertEquals(new String(ContentPackageTestUtil.getDataFromZip(elementFile, entry), StandardCharsets.UTF_8),
+            new String(getDataFromZip(entry), StandardCharsets.UTF_8), entry);
+      }
+    }
+  }
+
+  private static void fillTrees(CompactContentTree tree, int node, ContentElement element, int depth) {
+    tree.setProperty(node, "var1", "v" + depth);
+    element.getProperties().put("var1", "v" + depth);
+    if (depth > 3) {
+      return;
+    }
+    for (int i = 0; i < 3; i++) {
+      String name = i == 1 ? "node" + depth : "folder" + i;
+      int child = tree.addChild(node, name);
+      ContentElement childElement = new ContentElementImpl(name, new LinkedHashMap<>());
+      element.getChildren().put(name, childElement);
+      if (i != 1) {
+        tree.setProperty(child, JCR_PRIMARYTYPE, "sling:Folder");
+        childElement.getProperties().put(JCR_PRIMARYTYPE, "sling:Folder");
+      }
+      fillTrees(tree, child, childElement, depth + 1);
+    }
+  }
+
+  @Test
+  void testAddPagesTemplate() throws Exception {
+    PageTemplate template = new PageTemplate(Map.of("jcr:title", PageTemplate.slot("title", String.class),
+        "sling:resourceType", "app/components/page",
+        "par", Map.of("count", PageTemplate.slot("count", Long.class))));
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test").build(testFile)) {
+      for (int i = 0; i < 3; i++) {
+        contentPackage.addPage("/content/page" + i, template, Map.of("title", "Page " + i, "count", (long)i));
+      }
+      contentPackage.addPage("/content/page-dom", Map.of("jcr:title", "Page 2",
+          "sling:resourceType", "app/components/page",
+          "par", Map.of("count", 2L)));
+    }
+
+    Document doc = getXmlFromZip("jcr_root/content/page1/.content.xml");
+    assertXpathEvaluatesTo("cq:Page", "/jcr:root/@jcr:primaryType", doc);
+    assertXpathEvaluatesTo("Page 1", "/jcr:root/jcr:content/@jcr:title", doc);
+    assertXpathEvaluatesTo("{Long}1", "/jcr:root/jcr:content/par/@count", doc);
+    assertEquals(new String(getDataFromZip("jcr_root/content/page-dom/.content.xml"), StandardCharsets.UTF_8),
+        new String(getDataFromZip("jcr_root/content/page2/.content.xml"), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testSharedContentElement() throws Exception {
+    ContentElement footer = new ContentElementImpl(null, Map.of("sling:resourceType", "app/components/footer"));
+    footer.getChildren().put("links", new ContentElementImpl("links", Map.of("items", new String[] { "/content/a", "/content/b" })));
+    ContentElement shared = new SharedContentElement(footer);
+
+    try (WriterContext context = new WriterContext()) {
+      try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+          .streamingXml(true).build(testFile, context)) {
+        for (int i = 0; i < 3; i++) {
+          ContentElement page = new ContentElementImpl(null, Map.of("jcr:title", "Page " + i));
+          page.getChildren().put("footer", shared);
+          contentPackage.addPage("/content/page" + i, page);
+        }
+      }
+      assertEquals(1, context.getFragmentCacheMissCount());
+      assertEquals(2, context.getFragmentCacheHitCount());
+    }
+
+    Document doc = getXmlFromZip("jcr_root/content/page2/.content.xml");
+    assertXpathEvaluatesTo("Page 2", "/jcr:root/jcr:content/@jcr:title", doc);
+    assertXpathEvaluatesTo("app/components/footer", "/jcr:root/jcr:content/footer/@sling:resourceType", doc);
+    assertXpathEvaluatesTo("[/content/a,/content/b]", "/jcr:root/jcr:content/footer/links/@items", doc);
+  }
+
+  @Test
+  void testStoreCompressedBinaries() throws Exception {
+    byte[] pngData;
+    try (InputStream is = getClass().getResourceAsStream("/thumbnail.png")) {
+      pngData = IOUtils.toByteArray(is);
+    }
+    byte[] textData = "text,text,text,text,text,text".getBytes(StandardCharsets.UTF_8);
+    try (InputStream is = new ByteArrayInputStream(pngData)) {
+      underTest.thumbnailImage(is);
+    }
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+        .storeCompressedBinaries(true).build(testFile)) {
+      contentPackage.addFile("/content/dam/image1", new ByteArrayInputStream(pngData), "image/png");
+      contentPackage.addFile("/content/dam/image2.png", new ByteArrayInputStream(pngData));
+      contentPackage.addFile("/content/dam/image3", new ByteArrayInputStream(pngData));
+      contentPackage.addFile("/content/dam/text.txt", new ByteArrayInputStream(textData), "text/plain");
+      contentPackage.addFile("/content/dam/empty", new ByteArrayInputStream(new byte[0]));
+    }
+
+    try (ZipFile zipFile = new ZipFile(testFile)) {
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("META-INF/vault/definition/thumbnail.png").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/image1").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/image2.png").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/image3").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("jcr_root/content/dam/text.txt").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("jcr_root/content/dam/empty").getMethod());
+    }
+    assertArrayEquals(pngData, getDataFromZip("META-INF/vault/definition/thumbnail.png"));
+    assertArrayEquals(pngData, getDataFromZip("jcr_root/content/dam/image1"));
+    assertArrayEquals(pngData, getDataFromZip("jcr_root/content/dam/image3"));
+    assertArrayEquals(textData, getDataFromZip("jcr_root/content/dam/text.txt"));
+    assertArrayEquals(new byte[0], getDataFromZip("jcr_root/content/dam/empty"));
+  }
+
+  @Test
+  void testStoreCompressedBinariesDefault() throws Exception {
+    byte[] pngData;
+    try (InputStream is = getClass().getResourceAsStream("/thumbnail.png")) {
+      pngData = IOUtils.toByteArray(is);
+    }
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test").build(testFile)) {
+      contentPackage.addFile("/content/dam/image1.png", new ByteArrayInputStream(pngData), "image/png");
+    }
+    try (ZipFile zipFile = new ZipFile(testFile)) {
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("jcr_root/content/dam/image1.png").getMethod());
+    }
+    assertArrayEquals(pngData, getDataFromZip("jcr_root/content/dam/image1.png"));
+  }
+
+  @Test
+  void testAddFileChannels() throws Exception {
+    byte[] largeData = new byte[200 * 1024];
+    new Random(0).nextBytes(largeData);
+    byte[] textData = "text,text,text,text,text,text".getBytes(StandardCharsets.UTF_8);
+    Path largeFile = Files.write(new File(destDir, "large.jpg").toPath(), largeData);
+    Path textFile = Files.write(new File(destDir, "text.txt").toPath(), textData);
+
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+        .storeCompressedBinaries(true).build(testFile)) {
+      contentPackage.addFile("/content/dam/path.jpg", largeFile);
+      contentPackage.addFile("/content/dam/path.txt", textFile, "text/plain");
+      try (FileChannel channel = FileChannel.open(largeFile)) {
+        channel.position(1024);
+        contentPackage.addFile("/content/dam/channel.jpg", channel);
+        assertEquals(largeData.length, channel.position());
+      }
+      contentPackage.addFile("/content/dam/readable-channel.jpg", Channels.newChannel(new ByteArrayInputStream(largeData)));
+      ByteBuffer directBuffer = ByteBuffer.allocateDirect(largeData.length);
+      directBuffer.put(largeData).flip();
+      contentPackage.addFile("/content/dam/direct-buffer.jpg", directBuffer);
+      assertEquals(0, directBuffer.position());
+      contentPackage.addFile("/content/dam/heap-buffer.txt", ByteBuffer.wrap(textData));
+    }
+
+    try (ZipFile zipFile = new ZipFile(testFile)) {
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/path.jpg").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("jcr_root/content/dam/path.txt").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/channel.jpg").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/readable-channel.jpg").getMethod());
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("jcr_root/content/dam/direct-buffer.jpg").getMethod());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("jcr_root/content/dam/heap-buffer.txt").getMethod());
+    }
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/dam/path.jpg"));
+    assertArrayEquals(textData, getDataFromZip("jcr_root/content/dam/path.txt"));
+    assertArrayEquals(Arrays.copyOfRange(largeData, 1024, largeData.length), getDataFromZip("jcr_root/content/dam/channel.jpg"));
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/dam/readable-channel.jpg"));
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/dam/direct-buffer.jpg"));
+    assertArrayEquals(textData, getDataFromZip("jcr_root/content/dam/heap-buffer.txt"));
+    assertXpathEvaluatesTo("text/plain", "/jcr:root/jcr:content/@jcr:mimeType",
+        getXmlFromZip("jcr_root/content/dam/path.txt.dir/.content.xml"));
+  }
+
+  @Test
+  void testAddFileChannelsToOutputStream() throws Exception {
+    byte[] largeData = new byte[200 * 1024];
+    new Random(0).nextBytes(largeData);
+    Path largeFile = Files.write(new File(destDir, "large.jpg").toPath(), largeData);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+        .parallelCompressionThreads(2).build(bos)) {
+      contentPackage.addFile("/content/dam/path1.jpg", largeFile);
+      contentPackage.addPage("/content/page1", Map.of("var1", "v1"));
+      contentPackage.addFile("/content/dam/path2.jpg", largeFile);
+    }
+    Files.write(testFile.toPath(), bos.toByteArray());
+
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/dam/path1.jpg"));
+    assertArrayEquals(largeData, getDataFromZip("jcr_root/content/dam/path2.jpg"));
+    assertXpathEvaluatesTo("v1", "/jcr:root/jcr:content/@var1", getXmlFromZip("jcr_root/content/page1/.content.xml"));
+  }
+
+  @Test
+  void testSharedWriterContext() throws Exception {
+    int packages = 6;
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try (WriterContext context = new WriterContext(2)) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int p = 0; p < packages; p++) {
+        int index = p;
+        tasks.add(() -> {
+          ContentPackageBuilder builder = new ContentPackageBuilder().group("myGroup").name("myName" + index)
+              .rootPath("/test").parallelCompressionThreads(index % 2);
+          try (ContentPackage contentPackage = builder.build(new File(destDir, "shared" + index + ".zip"), context)) {
+            addThreadContent(contentPackage, index);
+          }
+          return null;
+        });
+      }
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    for (int p = 0; p < packages; p++) {
+      File file = new File(destDir, "shared" + p + ".zip");
+      Document page = ContentPackageTestUtil.getXmlFromZip(file, "jcr_root/content/folder1/page" + p + "-1/.content.xml");
+      assertXpathEvaluatesTo("v1", "/jcr:root/jcr:content/@var1", page);
+      assertXpathEvaluatesTo("{Long}" + p, "/jcr:root/jcr:content/node1/@var2", page);
+      assertArrayEquals(("content" + p + "-1").getBytes(StandardCharsets.UTF_8),
+          ContentPackageTestUtil.getDataFromZip(file, "jcr_root/content/folder1/files/file" + p + "-1.txt"));
+    }
+  }
+
+  @Test
+  void testDuplicateFile() throws Exception {
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test").build(testFile)) {
+      contentPackage.addFile("/content/file1.txt", new ByteArrayInputStream(new byte[] { 1 }));
+      assertThrows(ZipException.class, () -> contentPackage.addFile("/content/file1.txt", new ByteArrayInputStream(new byte[] { 2 })));
+      contentPackage.addPage("/content/page1", Map.of("var1", "v1"));
+      assertThrows(ZipException.class, () -> contentPackage.addPage("/content/page1", Map.of("var1", "v2")));
+    }
+
+    assertArrayEquals(new byte[] { 1 }, getDataFromZip("jcr_root/content/file1.txt"));
+    assertXpathEvaluatesTo("v1", "/jcr:root/jcr:content/@var1", getXmlFromZip("jcr_root/content/page1/.content.xml"));
+  }
+
+  @Test
+  void testDeclareUsedXmlNamespacesOnly() throws Exception {
+    try (ContentPackage contentPackage = underTest.group("myGroup").name("myName").rootPath("/test")
+        .declareUsedXmlNamespacesOnly(true).build(testFile)) {
+      contentPackage.addPage("/content/page1", Map.of("sling:resourceType", "my/resource"));
+      contentPackage.addFile("/content/file1.txt", new ByteArrayInputStream(new byte[] { 1 }), "text/plain");
+    }
+
+    String pageXml = new String(getDataFromZip("jcr_root/content/page1/.content.xml"), StandardCharsets.UTF_8);
+    assertTrue(pageXml.contains("xmlns:sling="), pageXml);
+    assertTrue(pageXml.contains("xmlns:cq="), pageXml);
+    assertFalse(pageXml.contains("xmlns:dam="), pageXml);
+    assertXpathEvaluatesTo("my/resource", "/jcr:root/jcr:content/@sling:resourceType",
+        getXmlFromZip("jcr_root/content/page1/.content.xml"));
+
+    String fileXml = new String(getDataFromZip("jcr_root/content/file1.txt.dir/.content.xml"), StandardCharsets.UTF_8);
+    assertFalse(fileXml.contains("xmlns:cq="), fileXml);
+    assertXpathEvaluatesTo("text/plain", "/jcr:root/jcr:content/@jcr:mimeType",
+        getXmlFromZip("jcr_root/content/file1.txt.dir/.content.xml"));
+  }
+
+  @Test
+  void testConcurrent() throws Exception {
+    Date created = new Date();
+    int threads = 8;
+
+    File serialFile = new File(destDir, "serial.zip");
+    try (ContentPackage contentPackage = new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/test")
+        .created(created).build(serialFile)) {
+      for (int t = 0; t < threads; t++) {
+        addThreadContent(contentPackage, t);
+      }
+    }
+
+    ContentPackageBuilder builder = underTest.group("myGroup").name("myName").rootPath("/test")
+        .created(created)
+        .concurrent(true);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (ContentPackage contentPackage = builder.build(testFile)) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        tasks.add(() -> {
+          addThreadContent(contentPackage, thread);
+          return null;
+        });
+      }
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    List<String> serialEntries = ContentPackageTestUtil.getEntries(serialFile);
+    List<String> concurrentEntries = ContentPackageTestUtil.getEntries(testFile);
+    assertEquals(serialEntries.size(), concurrentEntries.size());
+    assertEquals(new HashSet<>(serialEntries), new HashSet<>(concurrentEntries));
+    for (String entry : serialEntries) {
+      assertArrayEquals(ContentPackageTestUtil.getDataFromZip(serialFile, entry), getDataFromZip(entry), entry);
+    }
+  }
+
+  private static void addThreadContent(ContentPackage contentPackage, int thread) throws Exception {
+    for (int i = 0; i < 25; i++) {
+      // all threads share the same folders
+      contentPackage.addPage("/content/folder" + (i % 5) + "/page" + thread + "-" + i, Map.of("var1", "v" + i,
+          "node1", Map.of("var2", thread, "var3", new String[] { "a", "b" })));
+      contentPackage.addFile("/content/folder" + (i % 5) + "/files/file" + thread + "-" + i + ".txt",
+          new ByteArrayInputStream(("content" + thread + "-" + i).getBytes(StandardCharsets.UTF_8)), "text/plain");
+    }
+  }
+
+  private static void addSampleContent(ContentPackage contentPackage, byte[] largeData) throws Exception {
+    for (int i = 0; i < 50; i++) {
+      contentPackage.addPage("/content/page" + i, Map.of("var1", "v" + i, "jcr:title", "a<b>&\"c'\n",
+          "node1", Map.of("var2", i, "var3", new String[] { "a", "b" }, "node11", Map.of())));
+    }
+    contentPackage.addFile("/content/large.bin", new ByteArrayInputStream(largeData));
+    contentPackage.addFile("/content/large.jpg", new ByteArrayInputStream(largeData), "image/jpeg");
+    contentPackage.addFile("/content/small.zip", new ByteArrayInputStream(new byte[] { 'P', 'K', 3, 4, 1, 2, 3 }));
+    contentPackage.addContent("/content/node1", Map.of(JCR_PRIMARYTYPE, "sling:Folder", "var1", "v1",
+        "node11", Map.of(JCR_PRIMARYTYPE, "sling:Folder", "var11", "v11")));
+    contentPackage.addFile("/content/file1.txt", new ByteArrayInputStream("content1".getBytes(StandardCharsets.UTF_8)),
+        "text/plain;charset=UTF-8");
+  }
+
   private byte[] getDataFromZip(String path) throws Exception {
     return ContentPackageTestUtil.getDataFromZip(testFile, path);
   }
@@ -21,7 +21,12 @@ package io.wcm.tooling.commons.contentpackagebuilder;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -48,6 +53,17 @@ public final class ContentPackageTestUtil {
     return data;
   }
 
+  public static List<String> getEntries(File file) throws Exception {
+    List<String> entries = new ArrayList<>();
+    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(file))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        entries.add(entry.getName());
+      }
+    }
+    return entries;
+  }
+
   public static Document getXmlFromZip(File file, String path) throws Exception {
     byte[] data = getDataFromZip(file, path);
     DocumentBuilder documentBuilder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
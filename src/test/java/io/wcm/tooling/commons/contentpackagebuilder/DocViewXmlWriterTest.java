@@ -0,0 +1,58 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class DocViewXmlWriterTest {
+
+  @Test
+  void testEncoding() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    DocViewXmlWriter underTest = new DocViewXmlWriter(os, false);
+    underTest.startElement("root");
+    underTest.attribute("attr", "a<b>&\"c\td äöü€ \uD83D\uDE00");
+    underTest.endElement();
+    underTest.endDocument();
+    assertEquals("<root attr=\"a&lt;b&gt;&amp;&quot;c&#9;d äöü€ \uD83D\uDE00\"/>", os.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testUnpairedHighSurrogate() throws Exception {
+    DocViewXmlWriter underTest = new DocViewXmlWriter(new ByteArrayOutputStream(), false);
+    underTest.startElement("root");
+    assertThrows(IOException.class, () -> underTest.attribute("attr", "a\uD83Db"));
+  }
+
+  @Test
+  void testUnpairedLowSurrogate() throws Exception {
+    DocViewXmlWriter underTest = new DocViewXmlWriter(new ByteArrayOutputStream(), false);
+    assertThrows(IOException.class, () -> underTest.startElement("a\uDE00"));
+  }
+
+}
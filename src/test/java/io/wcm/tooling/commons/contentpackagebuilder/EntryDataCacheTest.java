@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class EntryDataCacheTest {
+
+  private static final byte[] DATA1 = "content1-content1-content1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DATA2 = "content2-content2-content2".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  void testKey() {
+    assertEquals(EntryDataCache.key(DATA1, DATA1.length), EntryDataCache.key(DATA1.clone(), DATA1.length));
+    assertEquals(EntryDataCache.key(DATA1, DATA1.length).hashCode(), EntryDataCache.key(DATA1.clone(), DATA1.length).hashCode());
+    assertNotEquals(EntryDataCache.key(DATA1, DATA1.length), EntryDataCache.key(DATA2, DATA2.length));
+    assertNotEquals(EntryDataCache.key(DATA1, DATA1.length), EntryDataCache.key(DATA1, DATA1.length - 1));
+  }
+
+  @Test
+  void testGetPut() {
+    EntryDataCache underTest = new EntryDataCache();
+    EntryDataCache.Key key = EntryDataCache.key(DATA1, DATA1.length);
+    Future<ZipEntryData> data = CompletableFuture.completedFuture(ZipEntryData.EMPTY);
+
+    assertNull(underTest.get(key));
+    underTest.put(key, data);
+    assertSame(data, underTest.get(EntryDataCache.key(DATA1.clone(), DATA1.length)));
+    assertNull(underTest.get(EntryDataCache.key(DATA2, DATA2.length)));
+
+    assertEquals(1, underTest.getHitCount());
+    assertEquals(2, underTest.getMissCount());
+  }
+
+  @Test
+  void testClearWhenFull() {
+    EntryDataCache underTest = new EntryDataCache(DATA1.length + 10);
+    EntryDataCache.Key key1 = EntryDataCache.key(DATA1, DATA1.length);
+    EntryDataCache.Key key2 = EntryDataCache.key(DATA2, DATA2.length);
+    Future<ZipEntryData> data = CompletableFuture.completedFuture(ZipEntryData.EMPTY);
+
+    underTest.put(key1, data);
+    assertEquals(1, underTest.size());
+    underTest.put(key2, data);
+    assertEquals(1, underTest.size());
+    assertNull(underTest.get(key1));
+    assertSame(data, underTest.get(key2));
+  }
+
+  @Test
+  void testTooLarge() {
+    EntryDataCache underTest = new EntryDataCache(DATA1.length - 1);
+    underTest.put(EntryDataCache.key(DATA1, DATA1.length), CompletableFuture.completedFuture(ZipEntryData.EMPTY));
+    assertEquals(0, underTest.size());
+  }
+
+  @Test
+  void testIsCacheable() {
+    assertTrue(EntryDataCache.isCacheable(EntryDataCache.MAX_ENTRY_SIZE));
+    assertFalse(EntryDataCache.isCacheable(EntryDataCache.MAX_ENTRY_SIZE + 1L));
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EntryDataStoreTest {
+
+  private static final byte[] DATA1 = "content1-content1-content1".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir
+  Path directory;
+
+  private Deflater deflater;
+
+  @BeforeEach
+  void setUp() {
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    deflater.end();
+  }
+
+  @Test
+  void testStoreLoad() throws Exception {
+    EntryDataStore underTest = new EntryDataStore(directory, 1024 * 1024);
+    EntryDataCache.Key key = EntryDataCache.key(DATA1, DATA1.length);
+    assertNull(underTest.load(key));
+
+    ZipEntryData data = ZipEntryData.deflate(DATA1, DATA1.length, deflater);
+    underTest.store(key, data);
+    assertTrue(underTest.getSize() > data.getCompressedSize());
+
+    // reopen
+    underTest = new EntryDataStore(directory, 1024 * 1024);
+    ZipEntryData loaded = underTest.load(key);
+    assertNotNull(loaded);
+    assertEquals(data.getMethod(), loaded.getMethod());
+    assertEquals(data.getCrc(), loaded.getCrc());
+    assertEquals(data.getSize(), loaded.getSize());
+    assertArrayEquals(toBytes(data), toBytes(loaded));
+  }
+
+  @Test
+  void testEvictLeastRecentlyUsed() throws Exception {
+    byte[][] entries = new byte[10][];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = ("entry" + i).getBytes(StandardCharsets.UTF_8);
+    }
+    EntryDataStore underTest = new EntryDataStore(directory, Long.MAX_VALUE);
+    underTest.store(key(entries[0]), ZipEntryData.deflate(entries[0], entries[0].length, deflater));
+    long fileSize = underTest.getSize();
+
+    underTest = new EntryDataStore(directory, fileSize * 4);
+    long time = System.currentTimeMillis() - 100000;
+    setLastModified(time);
+    for (int i = 1; i < entries.length; i++) {
+      underTest.store(key(entries[i]), ZipEntryData.deflate(entries[i], entries[i].length, deflater));
+      setLastModified(time + i * 1000L);
+    }
+
+    assertTrue(underTest.getSize() <= fileSize * 4);
+    assertNull(underTest.load(key(entries[0])));
+    assertNotNull(underTest.load(key(entries[entries.length - 1])));
+  }
+
+  private static EntryDataCache.Key key(byte[] data) {
+    return EntryDataCache.key(data, data.length);
+  }
+
+  /**
+   * Sets the modification time of all files that do not have an older one yet, to get a stable LRU order.
+   */
+  private void setLastModified(long time) throws Exception {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>)files.filter(Files::isRegularFile)::iterator) {
+        if (Files.getLastModifiedTime(file).toMillis() > time) {
+          Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+        }
+      }
+    }
+  }
+
+  private static byte[] toBytes(ZipEntryData data) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    data.writeTo(bos);
+    return bos.toByteArray();
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class EntryRegistryTest {
+
+  private final EntryRegistry underTest = new EntryRegistry();
+  private final List<String> folders = new ArrayList<>();
+
+  @Test
+  void testRegisterFile() throws Exception {
+    underTest.registerFile("jcr_root/content/page1/.content.xml", folders::add);
+    underTest.registerFile("jcr_root/content/page2/.content.xml", folders::add);
+    underTest.registerFile("jcr_root/content/page1/child/.content.xml", folders::add);
+    underTest.registerFile("file.txt", folders::add);
+
+    assertEquals(List.of("jcr_root/", "jcr_root/content/", "jcr_root/content/page1/",
+        "jcr_root/content/page2/", "jcr_root/content/page1/child/"), folders);
+    assertEquals(5, underTest.getFolderCount());
+    assertEquals(4, underTest.getFileCount());
+  }
+
+  @Test
+  void testRegisterFolder() throws Exception {
+    underTest.registerFolder("jcr_root/content/", folders::add);
+    underTest.registerFolder("jcr_root/content/folder1", folders::add);
+    underTest.registerFolder("", folders::add);
+    underTest.registerFolder("/", folders::add);
+    underTest.registerFile("jcr_root/content/folder1/file.txt", folders::add);
+
+    assertEquals(List.of("jcr_root/", "jcr_root/content/", "jcr_root/content/folder1/"), folders);
+  }
+
+  @Test
+  void testManyChildren() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      underTest.registerFile("jcr_root/folder" + (i % 100) + "/file" + i + ".txt", folders::add);
+    }
+    assertEquals(101, underTest.getFolderCount());
+    assertEquals(1000, underTest.getFileCount());
+    for (int i = 0; i < 1000; i++) {
+      String path = "jcr_root/folder" + (i % 100) + "/file" + i + ".txt";
+      assertThrows(ZipException.class, () -> underTest.registerFile(path, folders::add));
+    }
+  }
+
+  @Test
+  void testDuplicateFile() throws Exception {
+    underTest.registerFile("jcr_root/content/file.txt", folders::add);
+    assertThrows(ZipException.class, () -> underTest.registerFile("jcr_root/content/file.txt", folders::add));
+    // folder with same name as file is a different entry
+    underTest.registerFile("jcr_root/content/file.txt/child.txt", folders::add);
+    assertEquals(List.of("jcr_root/", "jcr_root/content/", "jcr_root/content/file.txt/"), folders);
+  }
+
+  @Test
+  void testFolderWriteFailure() throws Exception {
+    assertThrows(IOException.class, () -> underTest.registerFile("jcr_root/file.txt", path -> {
+      throw new IOException("failure");
+    }));
+    // folder entry is created on next attempt
+    underTest.registerFile("jcr_root/file2.txt", folders::add);
+    assertEquals(List.of("jcr_root/"), folders);
+  }
+
+  @Test
+  void testConcurrentRegistration() throws Exception {
+    List<String> concurrentFolders = Collections.synchronizedList(new ArrayList<>());
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int threadIndex = thread;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < 1000; i++) {
+            underTest.registerFile("jcr_root/folder" + (i % 50) + "/sub" + (i % 7) + "/file" + threadIndex + "-" + i,
+                concurrentFolders::add);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    // each folder is written exactly once
+    assertEquals(1 + 50 + 350, concurrentFolders.size());
+    assertEquals(concurrentFolders.size(), new HashSet<>(concurrentFolders).size());
+    assertEquals(8000, underTest.getFileCount());
+  }
+
+  @Test
+  void testFolderWriterNotBlockingOtherFolders() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> blocked = executor.submit(() -> {
+        underTest.registerFile("jcr_root/slow/file.txt", path -> {
+          writing.countDown();
+          try {
+            release.await();
+          }
+          catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        });
+        return null;
+      });
+      assertTrue(writing.await(10, TimeUnit.SECONDS));
+      // registers other folders while a folder entry is being written
+      underTest.registerFile("other/file.txt", folders::add);
+      assertEquals(List.of("other/"), folders);
+      release.countDown();
+      blocked.get();
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testInvalidFilePath() {
+    assertThrows(IllegalArgumentException.class, () -> underTest.registerFile("jcr_root/", folders::add));
+  }
+
+}
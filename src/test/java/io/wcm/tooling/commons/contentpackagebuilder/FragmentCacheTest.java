@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.wcm.tooling.commons.contentpackagebuilder.FragmentCache.Key;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
+
+class FragmentCacheTest {
+
+  private static final SharedContentElement ELEMENT1 = new SharedContentElement(new ContentElementImpl(null, Map.of()));
+  private static final SharedContentElement ELEMENT2 = new SharedContentElement(new ContentElementImpl(null, Map.of()));
+
+  @Test
+  void testGet() throws Exception {
+    FragmentCache underTest = new FragmentCache();
+    AtomicInteger renderCalls = new AtomicInteger();
+    FragmentCache.FragmentRenderer renderer = () -> new byte[] { (byte)renderCalls.incrementAndGet() };
+
+    byte[] fragment = underTest.get(new Key(ELEMENT1, "node", 1, 0), renderer);
+    assertSame(fragment, underTest.get(new Key(ELEMENT1, "node", 1, 0), renderer));
+    assertArrayEquals(new byte[] { 2 }, underTest.get(new Key(ELEMENT1, "node", 2, 0), renderer));
+    assertArrayEquals(new byte[] { 3 }, underTest.get(new Key(ELEMENT1, "other", 1, 0), renderer));
+    assertArrayEquals(new byte[] { 4 }, underTest.get(new Key(ELEMENT1, "node", 1, 1), renderer));
+    assertArrayEquals(new byte[] { 5 }, underTest.get(new Key(ELEMENT2, "node", 1, 0), renderer));
+
+    assertEquals(1, underTest.getHitCount());
+    assertEquals(5, underTest.getMissCount());
+    assertEquals(5, underTest.size());
+  }
+
+  @Test
+  void testNotCacheable() throws Exception {
+    FragmentCache underTest = new FragmentCache();
+    assertSame(FragmentCache.NOT_CACHEABLE, underTest.get(new Key(ELEMENT1, "node", 1, 0), () -> FragmentCache.NOT_CACHEABLE));
+    assertSame(FragmentCache.NOT_CACHEABLE, underTest.get(new Key(ELEMENT1, "node", 1, 0), () -> new byte[1]));
+    assertEquals(1, underTest.getHitCount());
+  }
+
+  @Test
+  void testBounded() throws Exception {
+    FragmentCache underTest = new FragmentCache(10, 100);
+    for (int i = 0; i < 25; i++) {
+      underTest.get(new Key(ELEMENT1, "node", i, 0), () -> new byte[1]);
+    }
+    assertEquals(5, underTest.size());
+
+    for (int i = 0; i < 5; i++) {
+      underTest.get(new Key(ELEMENT2, "node", i, 0), () -> new byte[40]);
+    }
+    assertEquals(1, underTest.size());
+
+    // fragments larger than the cache are not cached
+    underTest.get(new Key(ELEMENT2, "large", 0, 0), () -> new byte[200]);
+    assertEquals(1, underTest.size());
+  }
+
+}
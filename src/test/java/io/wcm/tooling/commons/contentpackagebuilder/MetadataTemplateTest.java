@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.apache.jackrabbit.vault.util.Constants.CONFIG_XML;
+import static org.apache.jackrabbit.vault.util.Constants.META_DIR;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class MetadataTemplateTest {
+
+  @Test
+  void testPlaceholders() {
+    MetadataTemplate underTest = new MetadataTemplate("<root name=\"{{name}}\" group=\"{{group}}\">{{unknown}}</root>");
+    assertFalse(underTest.isStatic());
+    assertEquals("<root name=\"a&amp;&quot;b\" group=\"g\">{{unknown}}</root>",
+        render(underTest, Map.of("name", "a&\"b", "group", "g")));
+  }
+
+  @Test
+  void testUnclosedPlaceholder() {
+    MetadataTemplate underTest = new MetadataTemplate("<root>{{name}}{{name</root>");
+    assertEquals("<root>value{{name</root>", render(underTest, Map.of("name", "value")));
+  }
+
+  @Test
+  void testStatic() throws Exception {
+    MetadataTemplate underTest = MetadataTemplate.get(META_DIR + "/" + CONFIG_XML);
+    assertTrue(underTest.isStatic());
+    assertSame(underTest, MetadataTemplate.get(META_DIR + "/" + CONFIG_XML));
+    assertSame(underTest.render(Map.of()), underTest.render(Map.of("name", "value")));
+
+    try (InputStream is = getClass().getResourceAsStream(MetadataTemplate.CLASSPATH_PREFIX + META_DIR + "/" + CONFIG_XML)) {
+      assertArrayEquals(is.readAllBytes(), underTest.render(Map.of()));
+    }
+  }
+
+  @Test
+  void testNotFound() {
+    assertThrows(IllegalArgumentException.class, () -> MetadataTemplate.get("META-INF/vault/unknown.xml"));
+  }
+
+  private static String render(MetadataTemplate template, Map<String, Object> vars) {
+    return new String(template.render(vars), StandardCharsets.UTF_8);
+  }
+
+}
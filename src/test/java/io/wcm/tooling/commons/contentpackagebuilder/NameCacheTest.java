@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class NameCacheTest {
+
+  @Test
+  void testValidName() {
+    NameCache.Name name = NameCache.get("jcr:content");
+    assertTrue(name.isValid());
+    assertEquals("jcr:content", name.getXmlName());
+    assertEquals("_jcr_content", name.getPlatformName());
+    assertSame(name, NameCache.get("jcr:content"));
+  }
+
+  @Test
+  void testEncodedName() {
+    NameCache.Name name = NameCache.get("1 name");
+    assertTrue(name.isValid());
+    assertEquals("_x0031__x0020_name", name.getXmlName());
+    assertEquals("1 name", name.getPlatformName());
+  }
+
+  @Test
+  void testInvalidName() {
+    NameCache.Name name = NameCache.get("a:b:c");
+    assertFalse(name.isValid());
+    assertNull(name.getXmlName());
+    assertNull(name.getPlatformName());
+  }
+
+  @Test
+  void testMaxSize() {
+    for (int i = 0; i < NameCache.MAX_SIZE + 10; i++) {
+      NameCache.get("name" + i);
+    }
+    assertTrue(NameCache.size() <= NameCache.MAX_SIZE);
+    // only the slot of a name is replaced, the cache is never cleared
+    NameCache.Name name = NameCache.get("jcr:content");
+    NameCache.get("name" + NameCache.MAX_SIZE + 20);
+    assertTrue(NameCache.size() > NameCache.MAX_SIZE / 2);
+    assertEquals("_jcr_content", name.getPlatformName());
+  }
+
+}
@@ -20,10 +20,16 @@
 package io.wcm.tooling.commons.contentpackagebuilder;
 
 import static io.wcm.tooling.commons.contentpackagebuilder.NameUtil.isValidName;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import org.apache.jackrabbit.vault.util.PlatformNameFormat;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 
 class NameUtilTest {
 
@@ -43,6 +49,53 @@ class NameUtilTest {
     assertFalse(isValidName("my/name"));
     assertFalse(isValidName("my[name]"));
     assertFalse(isValidName("jcr:primary:Type"));
+    assertFalse(isValidName("my%name"));
+    assertFalse(isValidName("my|name"));
+    assertFalse(isValidName("my\tname"));
+    assertFalse(isValidName("my\nname"));
+  }
+
+  @Test
+  void testValidNameRange() {
+    assertTrue(isValidName("/content/jcr:content/", 9, 20));
+    assertFalse(isValidName("/content/jcr:content/", 0, 9));
+    assertFalse(isValidName("/content/", 9, 9));
+  }
+
+  @Test
+  @SuppressWarnings("java:S5778") // assert throws
+  void testEnsureValidPath() {
+    assertDoesNotThrow(() -> NameUtil.ensureValidPath("/content/jcr:content/node1"));
+    assertDoesNotThrow(() -> NameUtil.ensureValidPath("content//node1/"));
+    assertDoesNotThrow(() -> NameUtil.ensureValidPath("/"));
+    assertThrows(IllegalArgumentException.class, () -> NameUtil.ensureValidPath("/content/node*"));
+    assertThrows(IllegalArgumentException.class, () -> NameUtil.ensureValidPath("/content/a:b:c/node1"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "/", "/content", "/content/", "//content//page", "/content/jcr:content/oak:index",
+      "/content/_jcr_content/_x", "/content/my page/äöü€?", "/content/<a>/\"b\"", "/content/a\\b", "/content/..",
+      "/content/page-1.html", "/content/page_1/a_b_c", "/content/1.2.3", "/content/x_", "/content/a__b" })
+  void testGetPlatformPath(String path) {
+    assertEquals(PlatformNameFormat.getPlatformPath(path), NameUtil.getPlatformPath(path));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "page1", "page-1.html", "a_b", "1.2", "X9" })
+  void testIsPlainName(String name) {
+    assertTrue(NameUtil.isPlainName(name, 0, name.length()));
+    assertEquals(PlatformNameFormat.getPlatformName(name), name);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = { "_a", ".a", "-a", "jcr:content", "a b", "äöü", "a%b" })
+  void testIsNotPlainName(String name) {
+    assertFalse(NameUtil.isPlainName(name, 0, name.length()));
+  }
+
+  @Test
+  void testGetPlatformPathInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> NameUtil.getPlatformPath("/content/node*"));
   }
 
 }
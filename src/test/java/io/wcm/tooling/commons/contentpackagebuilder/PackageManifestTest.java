@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+@SuppressWarnings("java:S5778") // assert throws
+class PackageManifestTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testReadWrite() throws Exception {
+    PackageManifest manifest = new PackageManifest();
+    manifest.put("jcr_root/content/b/.content.xml", "bb");
+    manifest.put("jcr_root/content/a/.content.xml", "aa");
+    Path file = directory.resolve("manifest.txt");
+    manifest.write(file);
+
+    PackageManifest underTest = PackageManifest.read(file);
+    assertEquals(2, underTest.size());
+    assertEquals("aa", underTest.get("jcr_root/content/a/.content.xml"));
+    assertEquals("bb", underTest.get("jcr_root/content/b/.content.xml"));
+  }
+
+  @Test
+  void testDuplicateEntry() throws Exception {
+    PackageManifest underTest = new PackageManifest();
+    underTest.put("jcr_root/content/a/.content.xml", "aa");
+    assertThrows(ZipException.class, () -> underTest.put("jcr_root/content/a/.content.xml", "aa"));
+  }
+
+  @Test
+  void testIsTracked() {
+    assertEquals(true, PackageManifest.isTracked("jcr_root/content/a/.content.xml"));
+    assertEquals(false, PackageManifest.isTracked("META-INF/vault/filter.xml"));
+  }
+
+  @Test
+  void testGetNodePlatformPath() {
+    assertEquals("/content/a", PackageManifest.getNodePlatformPath("jcr_root/content/a/.content.xml"));
+    assertEquals("/content/dam/file.png", PackageManifest.getNodePlatformPath("jcr_root/content/dam/file.png"));
+    assertEquals("/content/dam/file.png", PackageManifest.getNodePlatformPath("jcr_root/content/dam/file.png.dir/.content.xml"));
+  }
+
+  @Test
+  void testGetDeltaFilters() throws Exception {
+    PackageManifest previous = new PackageManifest();
+    previous.put("jcr_root/content/site/.content.xml", "1");
+    previous.put("jcr_root/content/site/page1/.content.xml", "1");
+    previous.put("jcr_root/content/site/page1/_jcr_content/image/file.png", "1");
+    previous.put("jcr_root/content/site/page2/.content.xml", "1");
+    previous.put("jcr_root/content/site/page3/.content.xml", "1");
+    previous.put("jcr_root/content/site/page3/child/.content.xml", "1");
+    previous.put("jcr_root/content/dam/file.png", "1");
+    previous.put("jcr_root/content/dam/file.png.dir/.content.xml", "1");
+
+    PackageManifest current = new PackageManifest();
+    // unchanged
+    current.put("jcr_root/content/site/page1/_jcr_content/image/file.png", "1");
+    current.put("jcr_root/content/site/page2/.content.xml", "1");
+    current.put("jcr_root/content/site/page3/child/.content.xml", "1");
+    // changed
+    current.put("jcr_root/content/site/.content.xml", "2");
+    current.put("jcr_root/content/site/page1/.content.xml", "2");
+    current.put("jcr_root/content/dam/file.png", "2");
+    current.put("jcr_root/content/dam/file.png.dir/.content.xml", "2");
+    // new
+    current.put("jcr_root/content/site/page4/.content.xml", "1");
+    // removed: page3/.content.xml (has remaining child), dam/file.png: changed
+
+    List<PackageFilter> filters = current.getDeltaFilters(previous);
+    assertEquals(List.of("/content/dam/file.png", "/content/site", "/content/site/page1", "/content/site/page4"),
+        filters.stream().map(PackageFilter::getRootPath).collect(Collectors.toList()));
+
+    assertEquals(List.of("/content/site/page1(/.*)?", "/content/site/page2(/.*)?", "/content/site/page3(/.*)?",
+        "/content/site/page4(/.*)?"), patterns(filters.get(1)));
+    assertEquals(List.of("/content/site/page1/jcr:content(/.*)?"), patterns(filters.get(2)));
+    assertEquals(List.of(), patterns(filters.get(0)));
+  }
+
+  @Test
+  void testGetDeltaFiltersRemoved() throws Exception {
+    PackageManifest previous = new PackageManifest();
+    previous.put("jcr_root/content/site/page1/.content.xml", "1");
+    previous.put("jcr_root/content/site/page2/.content.xml", "1");
+    previous.put("jcr_root/content/dam/file.png", "1");
+    previous.put("jcr_root/content/dam/file.png.dir/.content.xml", "1");
+
+    PackageManifest current = new PackageManifest();
+    current.put("jcr_root/content/site/page1/.content.xml", "1");
+
+    List<PackageFilter> filters = current.getDeltaFilters(previous);
+    assertEquals(List.of("/content/dam/file.png", "/content/site/page2"),
+        filters.stream().map(PackageFilter::getRootPath).collect(Collectors.toList()));
+  }
+
+  @Test
+  void testEscapePattern() throws Exception {
+    PackageManifest previous = new PackageManifest();
+    PackageManifest current = new PackageManifest();
+    current.put("jcr_root/content/a.b/.content.xml", "1");
+    current.put("jcr_root/content/a.b/c(1)/.content.xml", "1");
+    previous.put("jcr_root/content/a.b/c(1)/.content.xml", "1");
+
+    List<PackageFilter> filters = current.getDeltaFilters(previous);
+    assertEquals(1, filters.size());
+    assertEquals(List.of("/content/a\\.b/c\\(1\\)(/.*)?"), patterns(filters.get(0)));
+  }
+
+  private static List<String> patterns(PackageFilter filter) {
+    return filter.getRules().stream().map(PackageFilterRule::getPattern).collect(Collectors.toList());
+  }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static io.wcm.tooling.commons.contentpackagebuilder.PageTemplate.slot;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
+import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+
+@SuppressWarnings("java:S5778") // assert throws
+class PageTemplateTest {
+
+  private static final Date DATE = new Date(1700000000000L);
+
+  @Test
+  void testWrite() throws Exception {
+    PageTemplate underTest = new PageTemplate(content(slot("title", String.class), slot("count", Long.class),
+        slot("date", Date.class), slot("tags", String[].class)));
+    assertEquals(List.of("title", "count", "date", "tags"), List.copyOf(underTest.getSlots().keySet()));
+
+    for (XmlContentBuilder builder : List.of(new XmlContentBuilder(XmlNamespaces.DEFAULT_NAMESPACES),
+        new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+            XmlNamespaces.DEFAULT_NAMESPACES, true, true))) {
+      for (String title : List.of("Title 1", "{Title} & <\"2\">")) {
+        Map<String, Object> values = Map.of("title", title, "count", 5L, "date", DATE,
+            "tags", new String[] { "tag1", "tag,2" });
+        underTest.validate(values);
+        assertEquals(writePage(builder, content(title, 5L, DATE, new String[] { "tag1", "tag,2" })),
+            writeTemplate(builder, underTest, values));
+      }
+    }
+  }
+
+  @Test
+  void testContentElement() throws Exception {
+    ContentElement content = new ContentElementImpl(null, Map.of("jcr:title", slot("title", String.class)));
+    ContentElement child = new ContentElementImpl("child", Map.of("sling:resourceType", "app/components/text",
+        "text", slot("title", String.class)));
+    content.getChildren().put("child", child);
+    PageTemplate underTest = new PageTemplate(content);
+
+    XmlContentBuilder builder = new XmlContentBuilder(XmlNamespaces.DEFAULT_NAMESPACES);
+    Map<String, Object> expected = new LinkedHashMap<>();
+    expected.put("jcr:title", "Title 1");
+    expected.put("child", Map.of("sling:resourceType", "app/components/text", "text", "Title 1"));
+    assertEquals(writePage(builder, expected), writeTemplate(builder, underTest, Map.of("title", "Title 1")));
+  }
+
+  @Test
+  void testInvalidValues() {
+    PageTemplate underTest = new PageTemplate(Map.of("jcr:title", slot("title", String.class)));
+    assertThrows(IllegalArgumentException.class, () -> underTest.validate(Map.of()));
+    assertThrows(IllegalArgumentException.class, () -> underTest.validate(Map.of("title", 5L)));
+    assertThrows(IllegalArgumentException.class, () -> underTest.validate(Map.of("title", "t1", "other", "t2")));
+  }
+
+  @Test
+  void testInvalidSlots() {
+    assertThrows(IllegalArgumentException.class, () -> new PageTemplate(Map.of("jcr:primaryType", slot("type", String.class))));
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("prop1", slot("value", String.class));
+    content.put("prop2", slot("value", Long.class));
+    assertThrows(IllegalArgumentException.class, () -> new PageTemplate(content));
+  }
+
+  private static Map<String, Object> content(Object title, Object count, Object date, Object tags) {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("sling:resourceType", "app/components/page");
+    content.put("jcr:title", title);
+    content.put("count", count);
+    Map<String, Object> child = new LinkedHashMap<>();
+    child.put("sling:resourceType", "app/components/text");
+    child.put("text", title);
+    child.put("cq:lastModified", date);
+    content.put("child", child);
+    content.put("cq:tags", tags);
+    return content;
+  }
+
+  private static String writePage(XmlContentBuilder builder, Map<String, Object> content) throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    builder.writePage(content, bos);
+    return bos.toString(StandardCharsets.UTF_8);
+  }
+
+  private static String writeTemplate(XmlContentBuilder builder, PageTemplate template, Map<String, Object> values)
+      throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    template.write(builder, values, bos);
+    return bos.toString(StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class ParallelEntryWriterTest {
+
+  private static final long MAX_IN_FLIGHT_BYTES = 64 * 1024;
+
+  @Test
+  void testInFlightBytesIncludeCurrentEntry() throws Exception {
+    byte[] data = new byte[20 * 1024];
+    new Random(0).nextBytes(data);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    long[] maxInFlightBytes = new long[1];
+    try (WriterContext context = new WriterContext();
+        ParallelEntryWriter underTest = new ParallelEntryWriter(new ZipWriter(bos, 0), 2, MAX_IN_FLIGHT_BYTES, context)) {
+      for (int i = 0; i < 20; i++) {
+        underTest.writeEntry("file" + i + ".bin", os -> {
+          for (int offset = 0; offset < data.length; offset += 1024) {
+            os.write(data, offset, 1024);
+            maxInFlightBytes[0] = Math.max(maxInFlightBytes[0], underTest.getInFlightBytes());
+          }
+        });
+      }
+      // larger than the limit: streamed directly
+      underTest.writeEntry("large.bin", os -> {
+        for (int i = 0; i < 5; i++) {
+          os.write(data);
+          maxInFlightBytes[0] = Math.max(maxInFlightBytes[0], underTest.getInFlightBytes());
+        }
+      });
+    }
+    assertTrue(maxInFlightBytes[0] <= MAX_IN_FLIGHT_BYTES, "max. in-flight bytes: " + maxInFlightBytes[0]);
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      for (int i = 0; i < 20; i++) {
+        ZipEntry entry = zis.getNextEntry();
+        assertEquals("file" + i + ".bin", entry.getName());
+        assertArrayEquals(data, IOUtils.toByteArray(zis));
+      }
+      assertEquals("large.bin", zis.getNextEntry().getName());
+      assertEquals(5L * data.length, IOUtils.toByteArray(zis).length);
+    }
+  }
+
+  @Test
+  void testFailedEntry() throws Exception {
+    byte[] data = new byte[20 * 1024];
+    new Random(0).nextBytes(data);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (WriterContext context = new WriterContext();
+        ParallelEntryWriter underTest = new ParallelEntryWriter(new ZipWriter(bos, 0), 2, MAX_IN_FLIGHT_BYTES, context)) {
+      IOException buffered = assertThrows(IOException.class, () -> underTest.writeEntry("failed.bin", os -> {
+        os.write(data);
+        throw new IOException("buffered");
+      }));
+      assertEquals("buffered", buffered.getMessage());
+      assertEquals(0, underTest.getInFlightBytes());
+
+      // larger than the limit: already streamed directly
+      IOException direct = assertThrows(IOException.class, () -> underTest.writeEntry("failed-large.bin", os -> {
+        for (int i = 0; i < 5; i++) {
+          os.write(data);
+        }
+        throw new IOException("direct");
+      }));
+      assertEquals("direct", direct.getMessage());
+
+      underTest.writeEntry("file.bin", os -> os.write(data));
+    }
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals("failed-large.bin", zis.getNextEntry().getName());
+      IOUtils.toByteArray(zis);
+      assertEquals("file.bin", zis.getNextEntry().getName());
+      assertArrayEquals(data, IOUtils.toByteArray(zis));
+      assertNull(zis.getNextEntry());
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class PropertiesXmlWriterTest {
+
+  @Test
+  void testWrite() throws Exception {
+    Map<String, String> properties = new TreeMap<>();
+    properties.put("name", "myName");
+    properties.put("description", "<a href=\"x\">Tom & Jerry</a>\n\tline2 äöüß€");
+    properties.put("key\"<&>", "value");
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    PropertiesXmlWriter.write(properties, bos);
+
+    Properties result = new Properties();
+    result.loadFromXML(new ByteArrayInputStream(bos.toByteArray()));
+    assertEquals(properties, result);
+  }
+
+  @Test
+  void testEscape() {
+    assertEquals("plain", PropertiesXmlWriter.escape("plain", true));
+    assertEquals("&lt;&amp;&gt;\"", PropertiesXmlWriter.escape("<&>\"", false));
+    assertEquals("&quot;", PropertiesXmlWriter.escape("\"", true));
+    assertEquals("ab\tc", PropertiesXmlWriter.escape("a\u0001b\tc￾", false));
+    assertEquals("x", PropertiesXmlWriter.escape("x\uD800", false));
+    assertEquals("😀", PropertiesXmlWriter.escape("😀", false));
+  }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static io.wcm.tooling.commons.contentpackagebuilder.ContentPackageTestUtil.getDataFromZip;
+import static io.wcm.tooling.commons.contentpackagebuilder.ContentPackageTestUtil.getEntries;
+import static io.wcm.tooling.commons.contentpackagebuilder.ContentPackageTestUtil.getXmlFromZip;
+import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathEvaluatesTo;
+import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathNotExists;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+
+@SuppressWarnings("java:S5778") // assert throws
+class ShardedContentPackageTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testMaxNodes() throws Exception {
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(newBuilder()).maxNodes(4)
+        .build(directory.toFile());
+    try (underTest) {
+      for (int i = 1; i <= 5; i++) {
+        // page and jcr:content node
+        underTest.addPage("/content/page" + i, Map.of("jcr:title", "Page " + i));
+      }
+    }
+
+    List<File> shards = underTest.getShardFiles();
+    assertEquals(List.of("myName-001.zip", "myName-002.zip", "myName-003.zip"),
+        List.of(shards.get(0).getName(), shards.get(1).getName(), shards.get(2).getName()));
+    assertNull(underTest.getContainerFile());
+
+    assertTrue(getEntries(shards.get(0)).contains("jcr_root/content/page2/.content.xml"));
+    assertTrue(getEntries(shards.get(2)).contains("jcr_root/content/page5/.content.xml"));
+
+    Document filterXml = getXmlFromZip(shards.get(1), "META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("2", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/content/page3", "/workspaceFilter/filter[1]/@root", filterXml);
+    assertXpathEvaluatesTo("/content/page4", "/workspaceFilter/filter[2]/@root", filterXml);
+
+    assertTrue(getPropertiesXml(shards.get(1)).contains("<entry key=\"name\">myName-002</entry>"));
+  }
+
+  @Test
+  void testMaxEntries() throws Exception {
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(newBuilder()).maxEntries(1)
+        .build(directory.toFile());
+    try (underTest) {
+      underTest.addFile("/content/dam/file1.txt", new ByteArrayInputStream("text1".getBytes(StandardCharsets.UTF_8)));
+      underTest.addFile("/content/dam/file2.txt", new ByteArrayInputStream("text2".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    List<File> shards = underTest.getShardFiles();
+    assertEquals(2, shards.size());
+    assertTrue(getEntries(shards.get(0)).contains("jcr_root/content/dam/file1.txt"));
+    assertTrue(getEntries(shards.get(1)).contains("jcr_root/content/dam/file2.txt"));
+  }
+
+  @Test
+  void testFilters() throws Exception {
+    ContentPackageBuilder builder = newBuilder();
+    builder.filter(new PackageFilter("/apps").setMode(PackageFilterMode.MERGE).addExcludeRule("/apps/.*/install"));
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(builder).build(directory.toFile());
+    try (underTest) {
+      underTest.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+      underTest.addPage("/content/page1/child1", Map.of("jcr:title", "Child 1"));
+      underTest.addPage("/content/page1-1", Map.of("jcr:title", "Page 1-1"));
+      underTest.addContent("/apps/app1", Map.of("jcr:primaryType", "nt:folder"));
+      underTest.addContent("/var/data", Map.of("jcr:primaryType", "nt:folder"));
+    }
+
+    Document filterXml = getXmlFromZip(underTest.getShardFiles().get(0), "META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("4", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/apps/app1", "/workspaceFilter/filter[1]/@root", filterXml);
+    assertXpathEvaluatesTo("merge", "/workspaceFilter/filter[1]/@mode", filterXml);
+    assertXpathEvaluatesTo("/apps/.*/install", "/workspaceFilter/filter[1]/exclude/@pattern", filterXml);
+    assertXpathEvaluatesTo("/content/page1", "/workspaceFilter/filter[2]/@root", filterXml);
+    assertXpathEvaluatesTo("/content/page1-1", "/workspaceFilter/filter[3]/@root", filterXml);
+    assertXpathEvaluatesTo("/var/data", "/workspaceFilter/filter[4]/@root", filterXml);
+    assertXpathNotExists("/workspaceFilter/filter[4]/@mode", filterXml);
+  }
+
+  @Test
+  void testFiltersMostSpecificRoot() throws Exception {
+    ContentPackageBuilder builder = newBuilder();
+    builder.filter(new PackageFilter("/content"));
+    builder.filter(new PackageFilter("/content/dam").setMode(PackageFilterMode.MERGE).addIncludeRule("/content/dam/.*"));
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(builder).build(directory.toFile());
+    try (underTest) {
+      underTest.addContent("/content/dam/asset1", Map.of("jcr:primaryType", "sling:Folder"));
+      underTest.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+    }
+
+    Document filterXml = getXmlFromZip(underTest.getShardFiles().get(0), "META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("2", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/content/dam/asset1", "/workspaceFilter/filter[1]/@root", filterXml);
+    assertXpathEvaluatesTo("merge", "/workspaceFilter/filter[1]/@mode", filterXml);
+    assertXpathEvaluatesTo("/content/dam/.*", "/workspaceFilter/filter[1]/include/@pattern", filterXml);
+    assertXpathEvaluatesTo("/content/page1", "/workspaceFilter/filter[2]/@root", filterXml);
+    assertXpathNotExists("/workspaceFilter/filter[2]/@mode", filterXml);
+  }
+
+  @Test
+  void testMaxBytes() throws Exception {
+    byte[] data = new byte[256 * 1024];
+    new Random(0).nextBytes(data);
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(newBuilder()).maxBytes(400 * 1024)
+        .build(directory.toFile());
+    try (underTest) {
+      for (int i = 0; i < 4; i++) {
+        underTest.addFile("/content/dam/file" + i + ".bin", new ByteArrayInputStream(data));
+      }
+    }
+
+    // bytes still buffered by the ZIP writer are not counted, so the exact split may vary
+    List<File> shardFiles = underTest.getShardFiles();
+    assertTrue(shardFiles.size() >= 2, "shards: " + shardFiles.size());
+    assertTrue(shardFiles.get(0).length() >= 400 * 1024, "size: " + shardFiles.get(0).length());
+  }
+
+  @Test
+  void testContainerPackage() throws Exception {
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(newBuilder()).maxNodes(2).containerPackage(true)
+        .build(directory.toFile());
+    try (underTest) {
+      underTest.addPage("/content/page1", Map.of("jcr:title", "Page 1"));
+      underTest.addPage("/content/page2", Map.of("jcr:title", "Page 2"));
+    }
+
+    File container = underTest.getContainerFile();
+    assertEquals("myName.zip", container.getName());
+    List<String> entries = getEntries(container);
+    assertTrue(entries.contains("jcr_root/etc/packages/myGroup/myName-001.zip"));
+    assertTrue(entries.contains("jcr_root/etc/packages/myGroup/myName-002.zip"));
+
+    Document filterXml = getXmlFromZip(container, "META-INF/vault/filter.xml");
+    assertXpathEvaluatesTo("2", "count(/workspaceFilter/filter)", filterXml);
+    assertXpathEvaluatesTo("/etc/packages/myGroup/myName-001.zip", "/workspaceFilter/filter[1]/@root", filterXml);
+
+    assertTrue(getPropertiesXml(container).contains("<entry key=\"packageType\">container</entry>"));
+  }
+
+  @Test
+  void testConcurrent() throws Exception {
+    int threads = 4;
+    int pagesPerThread = 50;
+    ShardedContentPackage underTest = new ShardedContentPackageBuilder(newBuilder().concurrent(true)).maxNodes(20)
+        .build(directory.toFile());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (underTest) {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int thread = 0; thread < threads; thread++) {
+        int threadIndex = thread;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < pagesPerThread; i++) {
+            underTest.addPage("/content/thread" + threadIndex + "/page" + i, Map.of("jcr:title", "Page " + i));
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    List<File> shards = underTest.getShardFiles();
+    assertEquals(threads * pagesPerThread * 2 / 20, shards.size());
+    int pages = 0;
+    for (File shard : shards) {
+      pages += (int)getEntries(shard).stream().filter(entry -> entry.startsWith("jcr_root/") && entry.endsWith("/.content.xml")).count();
+    }
+    assertEquals(threads * pagesPerThread, pages);
+  }
+
+  @Test
+  void testManifestNotSupported() {
+    ShardedContentPackageBuilder underTest = new ShardedContentPackageBuilder(
+        newBuilder().manifestFile(directory.resolve("manifest.txt")));
+    assertThrows(IllegalArgumentException.class, () -> underTest.build(directory.toFile()));
+  }
+
+  @Test
+  void testCountNodes() {
+    assertEquals(3, ShardedContentPackage.countNodes(Map.of("prop1", "value1",
+        "node1", Map.of("node2", Map.of()))));
+  }
+
+  private static String getPropertiesXml(File file) throws Exception {
+    return new String(getDataFromZip(file, "META-INF/vault/properties.xml"), StandardCharsets.UTF_8);
+  }
+
+  private static ContentPackageBuilder newBuilder() {
+    return new ContentPackageBuilder().group("myGroup").name("myName").rootPath("/content");
+  }
+
+}
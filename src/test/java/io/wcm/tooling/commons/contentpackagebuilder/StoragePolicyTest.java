@@ -0,0 +1,77 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class StoragePolicyTest {
+
+  @Test
+  void testIsCompressedContentType() {
+    assertTrue(StoragePolicy.isCompressed(null, "image/jpeg"));
+    assertTrue(StoragePolicy.isCompressed(null, "IMAGE/PNG"));
+    assertTrue(StoragePolicy.isCompressed(null, "video/mp4"));
+    assertTrue(StoragePolicy.isCompressed(null, "application/pdf"));
+    assertTrue(StoragePolicy.isCompressed(null, "application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+    assertFalse(StoragePolicy.isCompressed(null, "image/svg+xml"));
+    assertFalse(StoragePolicy.isCompressed(null, "text/plain"));
+    assertFalse(StoragePolicy.isCompressed(null, null));
+  }
+
+  @Test
+  void testIsCompressedExtension() {
+    assertTrue(StoragePolicy.isCompressed("/content/dam/image.jpg", null));
+    assertTrue(StoragePolicy.isCompressed("/content/dam/IMAGE.JPEG", null));
+    assertTrue(StoragePolicy.isCompressed("/content/dam/archive.zip", "application/octet-stream"));
+    assertFalse(StoragePolicy.isCompressed("/content/dam/file.txt", null));
+    assertFalse(StoragePolicy.isCompressed("/content/dam/file", null));
+  }
+
+  @Test
+  void testHasCompressedSignature() {
+    assertTrue(hasCompressedSignature(0xFF, 0xD8, 0xFF, 0xE0));
+    assertTrue(hasCompressedSignature(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0x00));
+    assertTrue(hasCompressedSignature('G', 'I', 'F', '8', '9', 'a'));
+    assertTrue(hasCompressedSignature('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'));
+    assertTrue(hasCompressedSignature(0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2'));
+    assertTrue(hasCompressedSignature('P', 'K', 0x03, 0x04));
+    assertTrue(hasCompressedSignature(0x1F, 0x8B));
+    assertTrue(hasCompressedSignature('%', 'P', 'D', 'F', '-'));
+    assertFalse(hasCompressedSignature('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'));
+    assertFalse(hasCompressedSignature(0xFF, 0xD8));
+    assertFalse(hasCompressedSignature());
+    byte[] text = "<?xml version=\"1.0\"?>".getBytes(StandardCharsets.UTF_8);
+    assertFalse(StoragePolicy.hasCompressedSignature(text, text.length));
+  }
+
+  private static boolean hasCompressedSignature(int... bytes) {
+    byte[] head = new byte[StoragePolicy.SIGNATURE_LENGTH];
+    for (int i = 0; i < bytes.length; i++) {
+      head[i] = (byte)bytes[i];
+    }
+    return StoragePolicy.hasCompressedSignature(head, bytes.length);
+  }
+
+}
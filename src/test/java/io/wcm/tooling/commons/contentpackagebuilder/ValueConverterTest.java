@@ -25,13 +25,19 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.math.BigDecimal;
 import java.net.URI;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 
 @SuppressWarnings("java:S5778") // assert throws
 class ValueConverterTest {
@@ -182,4 +188,80 @@ class ValueConverterTest {
     assertEquals("{URI}" + uri.toString(), underTest.toString("prop", uri));
   }
 
+  @Test
+  void testEmptyArray() {
+    assertEquals("{undefined}[]", underTest.toString("prop", new String[0]));
+    assertEquals("[]", underTest.toString("jcr:mixinTypes", new String[0]));
+  }
+
+  @Test
+  void testSingleEmptyValueArray() {
+    assertEquals("[\\0]", underTest.toString("prop", new String[] { "" }));
+  }
+
+  @Test
+  void testMixedArray() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      underTest.toString("prop", new Object[] { "myString", 1L });
+    });
+  }
+
+  @ParameterizedTest
+  @MethodSource("referenceValues")
+  void testMatchesDocViewPropertyFormat(String propertyName, Object value) {
+    String expected = new DocViewPropertyValueConverter().toString(propertyName, value);
+    assertEquals(expected, underTest.toString(propertyName, value));
+  }
+
+  static Stream<Arguments> referenceValues() throws Exception {
+    Date date = DateUtils.parseDate("05.09.2010 15:10:20", "dd.MM.yyyy HH:mm:ss");
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+05:30"));
+    calendar.setTime(date);
+    UUID uuid = UUID.fromString("8d2e4a63-2f1b-4b8e-9a4c-6b2f0f6d1e3a");
+    URI uri = new URI("http://localhost/path?a=1&b=2,3");
+    return Stream.of(
+        Arguments.of("prop", "myString"),
+        Arguments.of("prop", ""),
+        Arguments.of("prop", "[myString]"),
+        Arguments.of("prop", "{myString}"),
+        Arguments.of("prop", "a,b\\c [ ] { }"),
+        Arguments.of("prop", "äöüß€ \uD83D\uDE00"),
+        Arguments.of("prop", "control\u0001\u0008\ttab\nline\uFFFE"),
+        Arguments.of("jcr:primaryType", "nt:unstructured"),
+        Arguments.of("prop", new String[] { "myString1,[]\\äöüß€", "", "[myString3]", "{myString4}", "\u0002" }),
+        Arguments.of("prop", new String[] { "" }),
+        Arguments.of("prop", new String[0]),
+        Arguments.of("jcr:mixinTypes", new String[] { "mix:versionable", "mix:title" }),
+        Arguments.of("jcr:mixinTypes", new String[0]),
+        Arguments.of("rep:privileges", "jcr:read"),
+        Arguments.of("rep:privileges", new String[] { "rep:write", "crx:replicate", "jcr:read" }),
+        Arguments.of("prop", true),
+        Arguments.of("prop", new boolean[] { true, false }),
+        Arguments.of("prop", new Boolean[] { Boolean.FALSE }),
+        Arguments.of("prop", Integer.MIN_VALUE),
+        Arguments.of("prop", new int[] { 1, -2 }),
+        Arguments.of("prop", new int[0]),
+        Arguments.of("prop", new Integer[] { 1, 2 }),
+        Arguments.of("prop", Long.MAX_VALUE),
+        Arguments.of("prop", new long[] { 10000000000L, -1L }),
+        Arguments.of("prop", new Object[] { 1, 2L }),
+        Arguments.of("prop", 1.5f),
+        Arguments.of("prop", new float[] { 0.1f, -3.25f }),
+        Arguments.of("prop", 1.234d),
+        Arguments.of("prop", Double.NaN),
+        Arguments.of("prop", 1.0E-10d),
+        Arguments.of("prop", new double[] { 1.234d, Double.NEGATIVE_INFINITY }),
+        Arguments.of("prop", new Object[] { 1.5f, 2.5d, new BigDecimal("3.5") }),
+        Arguments.of("prop", new BigDecimal("-2.345E+12")),
+        Arguments.of("prop", new BigDecimal[] { new BigDecimal("1.234"), new BigDecimal("2.345") }),
+        Arguments.of("prop", date),
+        Arguments.of("prop", calendar),
+        Arguments.of("prop", new Object[] { date, calendar }),
+        Arguments.of("prop", uuid),
+        Arguments.of("prop", new UUID[] { uuid, uuid }),
+        Arguments.of("prop", uri),
+        Arguments.of("prop", new URI[] { uri, new URI("") }),
+        Arguments.of("prop", new URI[] { new URI("") }));
+  }
+
 }
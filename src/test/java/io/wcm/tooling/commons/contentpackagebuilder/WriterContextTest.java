@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.zip.Deflater;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class WriterContextTest {
+
+  @Test
+  void testPooling() {
+    try (WriterContext underTest = new WriterContext(1)) {
+      Transformer transformer = underTest.borrowTransformer(true);
+      assertEquals("yes", transformer.getOutputProperty(OutputKeys.INDENT));
+      underTest.returnTransformer(transformer, true);
+      assertSame(transformer, underTest.borrowTransformer(true));
+
+      Transformer compactTransformer = underTest.borrowTransformer(false);
+      assertEquals("no", compactTransformer.getOutputProperty(OutputKeys.INDENT));
+      underTest.returnTransformer(compactTransformer, false);
+      assertSame(compactTransformer, underTest.borrowTransformer(false));
+
+      DocumentBuilder documentBuilder = underTest.borrowDocumentBuilder();
+      assertTrue(documentBuilder.isNamespaceAware());
+      underTest.returnDocumentBuilder(documentBuilder);
+      assertSame(documentBuilder, underTest.borrowDocumentBuilder());
+
+      byte[] buffer = underTest.borrowBuffer();
+      assertEquals(WriterContext.BUFFER_SIZE, buffer.length);
+      underTest.returnBuffer(buffer);
+      assertSame(buffer, underTest.borrowBuffer());
+
+      Deflater deflater = underTest.borrowDeflater();
+      underTest.returnDeflater(deflater);
+      assertSame(deflater, underTest.borrowDeflater());
+    }
+  }
+
+  @Test
+  void testMaxPoolSize() {
+    try (WriterContext underTest = new WriterContext(1)) {
+      Deflater deflater1 = underTest.borrowDeflater();
+      Deflater deflater2 = underTest.borrowDeflater();
+      assertNotSame(deflater1, deflater2);
+      underTest.returnDeflater(deflater1);
+      underTest.returnDeflater(deflater2);
+
+      // surplus deflater is released
+      assertThrows(NullPointerException.class, deflater2::getBytesRead);
+      assertSame(deflater1, underTest.borrowDeflater());
+    }
+  }
+
+  @Test
+  void testClose() {
+    WriterContext underTest = new WriterContext();
+    Deflater pooled = underTest.borrowDeflater();
+    underTest.returnDeflater(pooled);
+    Deflater borrowed = underTest.borrowDeflater();
+    Deflater borrowed2 = underTest.borrowDeflater();
+    underTest.returnDeflater(borrowed2);
+    underTest.close();
+    assertThrows(NullPointerException.class, borrowed2::getBytesRead);
+
+    // returned after close
+    underTest.returnDeflater(borrowed);
+    assertThrows(NullPointerException.class, borrowed::getBytesRead);
+  }
+
+  @Test
+  void testInvalidMaxPoolSize() {
+    assertThrows(IllegalArgumentException.class, () -> new WriterContext(0));
+  }
+
+}
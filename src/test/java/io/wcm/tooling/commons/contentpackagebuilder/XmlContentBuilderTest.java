@@ -21,18 +21,44 @@ package io.wcm.tooling.commons.contentpackagebuilder;
 
 import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathEvaluatesTo;
 import static io.wcm.tooling.commons.contentpackagebuilder.XmlUnitUtil.assertXpathNotExists;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.apache.jackrabbit.util.ISO9075;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.xmlunit.builder.DiffBuilder;
+import org.xmlunit.builder.Input;
+import org.xmlunit.diff.Diff;
 
+import io.wcm.tooling.commons.contentpackagebuilder.ContentFolderSplitter.ContentPart;
 import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElement;
 import io.wcm.tooling.commons.contentpackagebuilder.element.ContentElementImpl;
+import io.wcm.tooling.commons.contentpackagebuilder.element.SharedContentElement;
 
 @SuppressWarnings("java:S5778") // assert throws
 class XmlContentBuilderTest {
@@ -102,6 +128,34 @@ class XmlContentBuilderTest {
     assertXpathEvaluatesTo("[v1,v2,v3]", "/jcr:root/@var3", doc);
   }
 
+  @Test
+  void testContentPart() throws Exception {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("node1", Map.of("var1", "v1"));
+    content.put("node2", Map.of("var2", "v2", "node21", Map.of("node211", Map.of())));
+    content.put("node3", Map.of("var3", "v3"));
+    content.put("folder4", Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "sling:Folder"));
+
+    Iterator<ContentPart> parts = ContentFolderSplitter.split(content, 5, 0);
+    Document doc = underTest.buildContent(parts.next());
+    assertXpathEvaluatesTo("0", "count(/jcr:root/node2/@*)", doc);
+    assertXpathEvaluatesTo("node2", "name(/jcr:root/*[2])", doc);
+    assertXpathEvaluatesTo("nt:unstructured", "/jcr:root/node3/@jcr:primaryType", doc);
+    assertXpathNotExists("/jcr:root/folder4", doc);
+    assertEquals("/node2", parts.next().getPath());
+    assertEquals("/folder4", parts.next().getPath());
+
+    parts = ContentFolderSplitter.split(content, 5, 0);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeContent(parts.next(), os);
+    assertSameXml(doc, os.toByteArray());
+    Document node2Doc = underTest.buildContent(parts.next());
+    assertXpathEvaluatesTo("v2", "/jcr:root/@var2", node2Doc);
+    assertXpathEvaluatesTo("nt:unstructured", "/jcr:root/node21/node211/@jcr:primaryType", node2Doc);
+    assertEquals("/folder4", parts.next().getPath());
+    assertFalse(parts.hasNext());
+  }
+
   @Test
   void testContentWithSpecialElementNames() throws Exception {
     Document doc = underTest.buildContent(Map.of(
@@ -207,6 +261,18 @@ class XmlContentBuilderTest {
     assertXpathEvaluatesTo("/pattern3", "/workspaceFilter/filter[2]/*[3]/@pattern", doc);
   }
 
+  @Test
+  void testBuildFilterMode() throws Exception {
+    List<PackageFilter> filters = List.of(
+        new PackageFilter("/path1").setMode(PackageFilterMode.MERGE_PROPERTIES),
+        new PackageFilter("/path2").setMode(PackageFilterMode.REPLACE));
+
+    Document doc = underTest.buildFilter(filters);
+
+    assertXpathEvaluatesTo("merge_properties", "/workspaceFilter/filter[1]/@mode", doc);
+    assertXpathNotExists("/workspaceFilter/filter[2]/@mode", doc);
+  }
+
   @Test
   void testMapInvalidNodeName() throws Exception {
     assertThrows(IllegalArgumentException.class, () -> {
@@ -251,4 +317,283 @@ class XmlContentBuilderTest {
     });
   }
 
+  @Test
+  void testWritePageMatchesDom() throws Exception {
+    Map<String, Object> content = sampleContent();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writePage(content, os);
+    assertSameXml(underTest.buildPage(content), os.toByteArray());
+    assertSameBytes(underTest.buildPage(content), os.toByteArray());
+  }
+
+  @Test
+  void testWriteContentMatchesDom() throws Exception {
+    Map<String, Object> content = sampleContent();
+    content.put(XmlContentBuilder.PN_PRIMARY_TYPE, "myPrimaryType");
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeContent(content, os);
+    assertSameXml(underTest.buildContent(content), os.toByteArray());
+    assertSameBytes(underTest.buildContent(content), os.toByteArray());
+  }
+
+  @Test
+  void testWriteContentElementHierarchyMatchesDom() throws Exception {
+    ContentElement root = new ContentElementImpl(null, Map.of("var1", "v1", "var2", 55));
+    ContentElement node1 = new ContentElementImpl("node1", Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "myNodeType", "var3", "v3"));
+    ContentElement node2 = new ContentElementImpl("node2", Map.of("var4", "v4", "jcr:title", "a<b>&\"c"));
+    ContentElement node21 = new ContentElementImpl("node21", Map.of("var5", new String[] { "v5a", "v5b" }));
+    root.getChildren().put("node1", node1);
+    root.getChildren().put("node2", node2);
+    node2.getChildren().put("node21", node21);
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeContent(root, os);
+    assertSameXml(underTest.buildContent(root), os.toByteArray());
+    assertSameBytes(underTest.buildContent(root), os.toByteArray());
+
+    os = new ByteArrayOutputStream();
+    underTest.writePage(root, os);
+    assertSameXml(underTest.buildPage(root), os.toByteArray());
+    assertSameBytes(underTest.buildPage(root), os.toByteArray());
+  }
+
+  @Test
+  void testWriteNtFileMatchesDom() throws Exception {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeNtFile("myMime", "myEncoding", os);
+    assertSameXml(underTest.buildNtFile("myMime", "myEncoding"), os.toByteArray());
+    assertSameBytes(underTest.buildNtFile("myMime", "myEncoding"), os.toByteArray());
+
+    os = new ByteArrayOutputStream();
+    underTest.writeNtFile(null, null, os);
+    assertSameXml(underTest.buildNtFile(null, null), os.toByteArray());
+    assertSameBytes(underTest.buildNtFile(null, null), os.toByteArray());
+  }
+
+  @Test
+  void testWriteTypedValuesMatchesDom() throws Exception {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("Europe/Berlin"));
+    calendar.setTimeInMillis(1700000000000L);
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put(XmlContentBuilder.PN_PRIMARY_TYPE, "nt:unstructured");
+    content.put("boolean", true);
+    content.put("long", 12345678901L);
+    content.put("double", 1.25d);
+    content.put("date", calendar);
+    content.put("dates", new Calendar[] { calendar, calendar });
+    content.put("reference", UUID.fromString("c1b1e9c2-3b53-4e5a-9a0b-0f7a1c5d2e41"));
+    content.put("references", new UUID[] { UUID.fromString("c1b1e9c2-3b53-4e5a-9a0b-0f7a1c5d2e41"),
+        UUID.fromString("0c6d4f59-8a7e-4b1c-b7d2-5e3f0a9c8d17") });
+    content.put("uri", URI.create("https://example.com/a?b=c&d=e"));
+    content.put("escaped", new String[] { "a,b", "c\\d", "{Name}e", "" });
+    content.put("empty", new String[0]);
+    content.put("cq:tags", new String[] { "ns:tag1", "ns:tag2" });
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeContent(content, os);
+    assertSameBytes(underTest.buildContent(content), os.toByteArray());
+
+    os = new ByteArrayOutputStream();
+    underTest.writePage(content, os);
+    assertSameBytes(underTest.buildPage(content), os.toByteArray());
+  }
+
+  @Test
+  void testWriteUnpairedSurrogateValueMatchesDom() throws Exception {
+    // property values escape characters that are invalid in XML, so unpaired surrogates never reach the XML writer
+    Map<String, Object> content = Map.of("var1", "a\uD83Db", "var2", new String[] { "\uDE00", "c" });
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    underTest.writeContent(content, os);
+    assertSameBytes(underTest.buildContent(content), os.toByteArray());
+  }
+
+  @Test
+  void testWriteInvalidNodeName() throws Exception {
+    assertThrows(IllegalArgumentException.class, () -> {
+      underTest.writeContent(Map.of("*", Map.of("var1", "v1")), new ByteArrayOutputStream());
+    });
+  }
+
+  @Test
+  void testUsedNamespacesOnly() throws Exception {
+    XmlContentBuilder usedNamespacesOnly = newUsedNamespacesOnlyBuilder();
+    Map<String, Object> content = sampleContent();
+
+    Document doc = usedNamespacesOnly.buildPage(content);
+    assertDeclaredNamespaces(doc, "cq", "jcr", "nt", "rep", "sling");
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    usedNamespacesOnly.writePage(content, os);
+    assertSameXml(doc, os.toByteArray());
+    assertSameBytes(doc, os.toByteArray());
+
+    content = Map.of("jcr:mixinTypes", new String[] { "cq:ReplicationStatus" }, "node1", Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "sling:Folder"));
+    doc = usedNamespacesOnly.buildContent(content);
+    assertDeclaredNamespaces(doc, "cq", "jcr", "nt", "sling");
+    os = new ByteArrayOutputStream();
+    usedNamespacesOnly.writeContent(content, os);
+    assertSameXml(doc, os.toByteArray());
+    assertSameBytes(doc, os.toByteArray());
+
+    doc = usedNamespacesOnly.buildNtFile("myMime", null);
+    assertDeclaredNamespaces(doc, "jcr", "nt");
+    os = new ByteArrayOutputStream();
+    usedNamespacesOnly.writeNtFile("myMime", null, os);
+    assertSameXml(doc, os.toByteArray());
+    assertSameBytes(doc, os.toByteArray());
+  }
+
+  @Test
+  void testUsedNamespacesOnlyContentElement() throws Exception {
+    XmlContentBuilder usedNamespacesOnly = newUsedNamespacesOnlyBuilder();
+    ContentElement root = new ContentElementImpl(null, Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "sling:Folder"));
+    ContentElement node1 = new ContentElementImpl("cq:dialog", Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "oak:Unstructured",
+        "granite:class", "x"));
+    root.getChildren().put("cq:dialog", node1);
+
+    Document doc = usedNamespacesOnly.buildContent(root);
+    assertDeclaredNamespaces(doc, "cq", "granite", "jcr", "oak", "sling");
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    usedNamespacesOnly.writeContent(root, os);
+    assertSameXml(doc, os.toByteArray());
+    assertSameBytes(doc, os.toByteArray());
+  }
+
+  @Test
+  void testCompact() throws Exception {
+    XmlContentBuilder compact = new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+        XmlNamespaces.DEFAULT_NAMESPACES, false, true);
+    Transformer transformer = WriterContext.createTransformer(WriterContext.createTransformerFactory(), false);
+    Map<String, Object> content = sampleContent();
+    content.remove("special");
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    compact.writePage(content, os);
+    String xml = os.toString(StandardCharsets.UTF_8);
+    assertFalse(xml.contains("\n"), xml);
+    assertSameXml(compact.buildPage(content), os.toByteArray());
+
+    // streamed XML is identical to the DOM document serialized without indentation
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    transformer.transform(new DOMSource(compact.buildPage(content)), new StreamResult(expected));
+    assertEquals(expected.toString(StandardCharsets.UTF_8), xml);
+  }
+
+  @Test
+  void testSharedContentElement() throws Exception {
+    ContentElement header = new ContentElementImpl("header", Map.of("sling:resourceType", "app/components/header"));
+    header.getChildren().put("logo", new ContentElementImpl("logo", Map.of("fileReference", "/content/dam/logo.png")));
+    ContentElement shared = new SharedContentElement(header);
+
+    for (boolean compact : new boolean[] { false, true }) {
+      FragmentCache fragmentCache = new FragmentCache();
+      XmlContentBuilder cached = new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+          XmlNamespaces.DEFAULT_NAMESPACES, false, compact, fragmentCache);
+      XmlContentBuilder uncached = new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+          XmlNamespaces.DEFAULT_NAMESPACES, false, compact);
+
+      for (int i = 0; i < 3; i++) {
+        // shared element at two different depths
+        ContentElement page = new ContentElementImpl(null, Map.of("jcr:title", "Page " + i));
+        page.getChildren().put("header", shared);
+        ContentElement par = new ContentElementImpl("par", new LinkedHashMap<>());
+        par.getChildren().put("header", shared);
+        page.getChildren().put("par", par);
+
+        ContentElement plainPage = new ContentElementImpl(null, Map.of("jcr:title", "Page " + i));
+        plainPage.getChildren().put("header", header);
+        ContentElement plainPar = new ContentElementImpl("par", new LinkedHashMap<>());
+        plainPar.getChildren().put("header", header);
+        plainPage.getChildren().put("par", plainPar);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        uncached.writePage(plainPage, expected);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        cached.writePage(page, actual);
+        assertEquals(expected.toString(StandardCharsets.UTF_8), actual.toString(StandardCharsets.UTF_8));
+      }
+      assertEquals(2, fragmentCache.getMissCount());
+      assertEquals(4, fragmentCache.getHitCount());
+    }
+  }
+
+  @Test
+  void testSharedContentElementWithFolder() throws Exception {
+    ContentElement folder = new ContentElementImpl(null, Map.of("jcr:primaryType", "sling:Folder"));
+    ContentElement group = new ContentElementImpl("group", new LinkedHashMap<>());
+    group.getChildren().put("folder1", new ContentElementImpl("folder1", Map.of("jcr:primaryType", "sling:Folder")));
+    folder.getChildren().put("group", new SharedContentElement(group));
+
+    FragmentCache fragmentCache = new FragmentCache();
+    XmlContentBuilder cached = new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+        XmlNamespaces.DEFAULT_NAMESPACES, false, false, fragmentCache);
+    Iterator<ContentPart> parts = ContentFolderSplitter.split(folder, 0, 0);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    cached.writeContent(parts.next(), os);
+    assertFalse(os.toString(StandardCharsets.UTF_8).contains("folder1"));
+    assertEquals("/group/folder1", parts.next().getPath());
+    assertFalse(parts.hasNext());
+  }
+
+  private static XmlContentBuilder newUsedNamespacesOnlyBuilder() {
+    return new XmlContentBuilder(WriterContext.createDocumentBuilder(WriterContext.createDocumentBuilderFactory()),
+        XmlNamespaces.DEFAULT_NAMESPACES, true);
+  }
+
+  private static void assertDeclaredNamespaces(Document doc, String... prefixes) {
+    NamedNodeMap attributes = doc.getDocumentElement().getAttributes();
+    Set<String> declared = new TreeSet<>();
+    for (int i = 0; i < attributes.getLength(); i++) {
+      String name = attributes.item(i).getNodeName();
+      if (name.startsWith("xmlns:")) {
+        declared.add(name.substring("xmlns:".length()));
+      }
+    }
+    assertEquals(new TreeSet<>(Arrays.asList(prefixes)), declared);
+  }
+
+  private static Map<String, Object> sampleContent() {
+    Map<String, Object> content = new LinkedHashMap<>();
+    content.put("var1", "v1");
+    content.put("var2", 55);
+    content.put("var3", new String[] { "v1", "v2,", "[v3]" });
+    content.put("var4", new BigDecimal("1.5"));
+    content.put("var5", null);
+    content.put("special", "a<b>&\"c'\n\td\r äöü€ \uD83D\uDE00");
+    content.put("jcr:title", "Title");
+    content.put("sling:resourceType", "my/resource");
+    content.put("0abc", "v6");
+    content.put("rep:privileges", new String[] { "jcr:read", "rep:write" });
+    content.put("node1", Map.of(XmlContentBuilder.PN_PRIMARY_TYPE, "myNodeType", "var3", "v3"));
+    content.put("abc#def", Map.of("var4", "v4",
+        "node21", Map.of("var5", "v5"),
+        "node22", Map.of()));
+    content.put("jcr:content", Map.of("var6", "v6"));
+    return content;
+  }
+
+  private static void assertSameXml(Document expected, byte[] actual) throws Exception {
+    // serialize DOM document to get namespace declarations handled the same way as in the streamed XML
+    ByteArrayOutputStream expectedXml = new ByteArrayOutputStream();
+    TransformerFactory.newInstance().newTransformer().transform(new DOMSource(expected), new StreamResult(expectedXml));
+    Diff diff = DiffBuilder.compare(Input.fromByteArray(expectedXml.toByteArray()))
+        .withTest(Input.fromByteArray(actual))
+        .ignoreWhitespace()
+        .checkForIdentical()
+        .build();
+    assertFalse(diff.hasDifferences(), diff.toString());
+  }
+
+
+  /**
+   * Compares the streamed XML byte-for-byte with the DOM document serialized by the indenting transformer
+   * that is used for writing DOM documents to the package.
+   */
+  private static void assertSameBytes(Document expected, byte[] actual) throws Exception {
+    Transformer transformer = WriterContext.createTransformer(WriterContext.createTransformerFactory(), true);
+    ByteArrayOutputStream expectedXml = new ByteArrayOutputStream();
+    transformer.transform(new DOMSource(expected), new StreamResult(expectedXml));
+    assertEquals(expectedXml.toString(StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8));
+    assertArrayEquals(expectedXml.toByteArray(), actual);
+  }
+
 }
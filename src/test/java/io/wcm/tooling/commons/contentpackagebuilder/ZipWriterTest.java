@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class ZipWriterTest {
+
+  private static final byte[] DATA1 = "content1-content1-content1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DATA2 = "äöüß€ content2".getBytes(StandardCharsets.UTF_8);
+  private static final long ZIP64_SIZE = 0xFFFFFFFFL;
+
+  @Test
+  void testEntries() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try (ZipWriter underTest = new ZipWriter(bos, System.currentTimeMillis())) {
+      underTest.putDirectory("folder/");
+      try (OutputStream os = underTest.putDeflatedEntry("folder/file1.txt", deflater)) {
+        os.write(DATA1);
+      }
+      underTest.putEntry("folder/file2.txt", ZipEntryData.deflate(DATA2, DATA2.length, deflater));
+    }
+    finally {
+      deflater.end();
+    }
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      ZipEntry entry = zis.getNextEntry();
+      assertEquals("folder/", entry.getName());
+      assertTrue(entry.isDirectory());
+
+      entry = zis.getNextEntry();
+      assertEquals("folder/file1.txt", entry.getName());
+      assertArrayEquals(DATA1, IOUtils.toByteArray(zis));
+
+      entry = zis.getNextEntry();
+      assertEquals("folder/file2.txt", entry.getName());
+      assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+      assertEquals(DATA2.length, entry.getSize());
+      assertArrayEquals(DATA2, IOUtils.toByteArray(zis));
+
+      assertNull(zis.getNextEntry());
+    }
+  }
+
+  @Test
+  void testStoredEntry() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipWriter underTest = new ZipWriter(bos, System.currentTimeMillis())) {
+      underTest.putStoredEntry("file1.txt", crc(DATA2), DATA2.length, os -> os.write(DATA2));
+      underTest.putEntry("file2.txt", ZipEntryData.stored(DATA1, DATA1.length, crc(DATA1)));
+    }
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      ZipEntry entry = zis.getNextEntry();
+      assertEquals("file1.txt", entry.getName());
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(DATA2, IOUtils.toByteArray(zis));
+
+      entry = zis.getNextEntry();
+      assertEquals("file2.txt", entry.getName());
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(DATA1, IOUtils.toByteArray(zis));
+    }
+  }
+
+  @Test
+  void testTransferStoredEntry() throws Exception {
+    File file = new File("target/test-" + getClass().getSimpleName() + "-transfer.zip");
+    try (ZipWriter underTest = new ZipWriter(new FileOutputStream(file), System.currentTimeMillis())) {
+      underTest.putDirectory("folder/");
+      underTest.transferStoredEntry("folder/file1.txt", crc(DATA1), DATA1.length,
+          target -> ChannelUtil.transferTo(ByteBuffer.wrap(DATA1), target));
+      try (OutputStream os = underTest.putDeflatedEntry("folder/file2.txt", new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+        os.write(DATA2);
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(file)) {
+      ZipEntry entry = zipFile.getEntry("folder/file1.txt");
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertArrayEquals(DATA1, IOUtils.toByteArray(zipFile.getInputStream(entry)));
+      assertArrayEquals(DATA2, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("folder/file2.txt"))));
+    }
+  }
+
+  @Test
+  void testStoredEntrySizeMismatch() throws Exception {
+    try (ZipWriter underTest = new ZipWriter(new ByteArrayOutputStream(), System.currentTimeMillis())) {
+      assertThrows(ZipException.class, () -> underTest.putStoredEntry("file1.txt", crc(DATA1), DATA1.length + 1, os -> os.write(DATA1)));
+    }
+  }
+
+  @Test
+  void testZip64EntryCount() throws Exception {
+    File file = new File("target/test-" + getClass().getSimpleName() + "-zip64.zip");
+    int count = 70000;
+    try (ZipWriter underTest = new ZipWriter(new FileOutputStream(file), System.currentTimeMillis())) {
+      for (int i = 0; i < count; i++) {
+        underTest.putDirectory("folder" + i + "/");
+      }
+    }
+    try (ZipFile zipFile = new ZipFile(file)) {
+      assertEquals(count, zipFile.size());
+      assertTrue(zipFile.getEntry("folder" + (count - 1) + "/").isDirectory());
+    }
+  }
+
+  @Test
+  void testDeflatedEntryLocalHeader() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipWriter underTest = new ZipWriter(bos, System.currentTimeMillis())) {
+      try (OutputStream os = underTest.putDeflatedEntry("file1.txt", new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+        os.write(DATA1);
+      }
+    }
+    ByteBuffer header = ByteBuffer.wrap(bos.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    assertLocalHeader(header, DATA1.length, false);
+
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals("file1.txt", zis.getNextEntry().getName());
+      assertArrayEquals(DATA1, IOUtils.toByteArray(zis));
+    }
+  }
+
+  @Test
+  void testLargeDeflatedEntryDataDescriptor() throws Exception {
+    byte[] data = randomData(256 * 1024);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipWriter underTest = new ZipWriter(bos, System.currentTimeMillis())) {
+      try (OutputStream os = underTest.putDeflatedEntry("file1.bin", new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+        os.write(data);
+      }
+      underTest.putDirectory("folder/");
+    }
+    File file = new File("target/test-" + getClass().getSimpleName() + "-descriptor.zip");
+    FileUtils.writeByteArrayToFile(file, bos.toByteArray());
+
+    try (ZipFile zipFile = new ZipFile(file)) {
+      ZipEntry entry = zipFile.getEntry("file1.bin");
+      assertArrayEquals(data, IOUtils.toByteArray(zipFile.getInputStream(entry)));
+      assertEquals("folder/", zipFile.stream().skip(1).findFirst().get().getName());
+
+      ByteBuffer header = ByteBuffer.wrap(bos.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+      assertEquals(0x04034b50, header.getInt(0));
+      assertEquals(0x08, header.getShort(6) & 0x08, "data descriptor flag");
+      assertEquals(0, header.getInt(14));
+      assertEquals(0xFFFFFFFF, header.getInt(18));
+      assertEquals(0xFFFFFFFF, header.getInt(22));
+      assertEquals(20, header.getShort(28));
+      int extra = 30 + header.getShort(26);
+      assertEquals(1, header.getShort(extra));
+      assertEquals(0, header.getLong(extra + 4));
+      assertEquals(0, header.getLong(extra + 12));
+
+      int descriptor = extra + 20 + (int)entry.getCompressedSize();
+      assertEquals(0x08074b50, header.getInt(descriptor));
+      assertEquals(entry.getCrc(), Integer.toUnsignedLong(header.getInt(descriptor + 4)));
+      assertEquals(entry.getCompressedSize(), header.getLong(descriptor + 8));
+      assertEquals(data.length, header.getLong(descriptor + 16));
+    }
+  }
+
+  @Test
+  void testLargeDeflatedEntryHeaderRewritten() throws Exception {
+    byte[] data = randomData(256 * 1024);
+    File file = new File("target/test-" + getClass().getSimpleName() + "-large.zip");
+    try (ZipWriter underTest = new ZipWriter(new FileOutputStream(file), System.currentTimeMillis())) {
+      try (OutputStream os = underTest.putDeflatedEntry("file1.bin", new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+        os.write(data);
+      }
+      underTest.putDirectory("folder/");
+    }
+    assertLocalHeader(readLocalHeader(file), data.length, true);
+
+    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(file))) {
+      assertEquals("file1.bin", zis.getNextEntry().getName());
+      assertArrayEquals(data, IOUtils.toByteArray(zis));
+      assertEquals("folder/", zis.getNextEntry().getName());
+    }
+    try (ZipFile zipFile = new ZipFile(file)) {
+      assertArrayEquals(data, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("file1.bin"))));
+    }
+  }
+
+  @Test
+  void testZip64EntryLocalHeader() throws Exception {
+    // only the header layout is checked, the entry claims a size beyond 4 GB for its compressed data
+    long size = ZIP64_SIZE + 1;
+    ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+    ZipEntryData.deflate(DATA1, DATA1.length, new Deflater(Deflater.DEFAULT_COMPRESSION, true)).writeTo(compressedData);
+    byte[] compressed = compressedData.toByteArray();
+    File file = new File("target/test-" + getClass().getSimpleName() + "-zip64-entry.zip");
+    try (ZipWriter underTest = new ZipWriter(new FileOutputStream(file), System.currentTimeMillis())) {
+      underTest.putEntry("file1.bin", ZipEntryData.compressed(ZipEntry.DEFLATED, crc(DATA1), size, compressed));
+      underTest.putEntry("file2.txt", ZipEntryData.stored(DATA1, DATA1.length, crc(DATA1)));
+    }
+
+    ByteBuffer header = readLocalHeader(file);
+    assertEquals(45, header.getShort(4));
+    assertEquals(ZIP64_SIZE, Integer.toUnsignedLong(header.getInt(18)));
+    assertEquals(ZIP64_SIZE, Integer.toUnsignedLong(header.getInt(22)));
+    assertEquals(20, header.getShort(28));
+    int extra = 30 + header.getShort(26);
+    assertEquals(1, header.getShort(extra));
+    assertEquals(16, header.getShort(extra + 2));
+    assertEquals(size, header.getLong(extra + 4));
+    assertEquals(compressed.length, header.getLong(extra + 12));
+
+    try (ZipFile zipFile = new ZipFile(file)) {
+      assertEquals(size, zipFile.getEntry("file1.bin").getSize());
+      assertArrayEquals(DATA1, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("file2.txt"))));
+    }
+  }
+
+  @Test
+  void testToDosTime() throws Exception {
+    assertEquals((1 << 21) | (1 << 16), ZipWriter.toDosTime(0));
+    long time = LocalDateTime.of(2023, 11, 14, 22, 13, 20).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    assertEquals(43 << 25 | 11 << 21 | 14 << 16 | 22 << 11 | 13 << 5 | 10, ZipWriter.toDosTime(time));
+
+    // local time as read by java.util.zip
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipWriter underTest = new ZipWriter(bos, time)) {
+      underTest.putDirectory("folder/");
+    }
+    try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      assertEquals(time, zis.getNextEntry().getTime());
+    }
+  }
+
+  /**
+   * Checks that the local header has no data descriptor and contains the sizes.
+   */
+  private static void assertLocalHeader(ByteBuffer header, long size, boolean zip64Extra) {
+    assertEquals(0x04034b50, header.getInt(0));
+    assertEquals(0, header.getShort(6) & 0x08, "data descriptor flag");
+    assertEquals(size, Integer.toUnsignedLong(header.getInt(22)));
+    long compressedSize = Integer.toUnsignedLong(header.getInt(18));
+    assertTrue(compressedSize > 0);
+    if (zip64Extra) {
+      assertEquals(20, header.getShort(28));
+      int extra = 30 + header.getShort(26);
+      assertEquals(1, header.getShort(extra));
+      assertEquals(size, header.getLong(extra + 4));
+      assertEquals(compressedSize, header.getLong(extra + 12));
+    }
+    else {
+      assertEquals(0, header.getShort(28));
+    }
+  }
+
+  private static ByteBuffer readLocalHeader(File file) throws Exception {
+    byte[] bytes;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      bytes = new byte[(int)Math.min(raf.length(), 1024)];
+      raf.readFully(bytes);
+    }
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static byte[] randomData(int size) {
+    byte[] data = new byte[size];
+    new Random(0).nextBytes(data);
+    return data;
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+}
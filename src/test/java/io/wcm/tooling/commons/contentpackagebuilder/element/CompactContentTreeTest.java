@@ -0,0 +1,135 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class CompactContentTreeTest {
+
+  @Test
+  void testNodes() {
+    CompactContentTree underTest = new CompactContentTree(1, 1);
+    int root = underTest.getRoot();
+    int child1 = underTest.addChild(root, "child1");
+    int child2 = underTest.addChild(root, "child2");
+    int child11 = underTest.addChild(child1, "child11");
+
+    assertEquals(4, underTest.getNodeCount());
+    assertNull(underTest.getName(root));
+    assertEquals("child11", underTest.getName(child11));
+    assertEquals(child1, underTest.getParent(child11));
+    assertEquals(CompactContentTree.NONE, underTest.getParent(root));
+    assertEquals(child1, underTest.getFirstChild(root));
+    assertEquals(child2, underTest.getNextSibling(child1));
+    assertEquals(CompactContentTree.NONE, underTest.getNextSibling(child2));
+    assertEquals(CompactContentTree.NONE, underTest.getFirstChild(child2));
+    assertEquals(child2, underTest.getChild(root, "child2"));
+    assertEquals(CompactContentTree.NONE, underTest.getChild(root, "child3"));
+    assertThrows(IllegalArgumentException.class, () -> underTest.addChild(10, "child3"));
+  }
+
+  @Test
+  void testProperties() {
+    CompactContentTree underTest = new CompactContentTree();
+    int child1 = underTest.addChild(underTest.getRoot(), "child1");
+    underTest.setProperty(child1, "prop1", "value1");
+    underTest.setProperties(child1, Map.of("prop2", 5L));
+    underTest.setProperty(child1, "prop1", "value2");
+
+    assertEquals(2, underTest.getPropertyCount());
+    int property = underTest.getFirstProperty(child1);
+    assertEquals("prop1", underTest.getPropertyName(property));
+    assertEquals("value2", underTest.getPropertyValue(property));
+    property = underTest.getNextProperty(property);
+    assertEquals("prop2", underTest.getPropertyName(property));
+    assertEquals(CompactContentTree.NONE, underTest.getNextProperty(property));
+
+    assertEquals(5L, underTest.getProperty(child1, "prop2"));
+    assertTrue(underTest.hasProperty(child1, "prop2"));
+    assertFalse(underTest.hasProperty(underTest.getRoot(), "prop2"));
+    assertNull(underTest.getProperty(child1, "prop3"));
+    assertEquals(CompactContentTree.NONE, underTest.getFirstProperty(underTest.getRoot()));
+  }
+
+  @Test
+  void testNamesInterned() {
+    CompactContentTree underTest = new CompactContentTree();
+    int child1 = underTest.addChild(underTest.getRoot(), new String("node"));
+    int child2 = underTest.addChild(underTest.getRoot(), new String("node"));
+    underTest.setProperty(child1, new String("prop"), "value1");
+    underTest.setProperty(child2, new String("prop"), "value2");
+
+    assertSame(underTest.getName(child1), underTest.getName(child2));
+    assertSame(underTest.getPropertyName(underTest.getFirstProperty(child1)),
+        underTest.getPropertyName(underTest.getFirstProperty(child2)));
+  }
+
+  @Test
+  void testGrow() {
+    CompactContentTree underTest = new CompactContentTree(1, 1);
+    for (int i = 0; i < 1000; i++) {
+      int node = underTest.addChild(underTest.getRoot(), "node" + i);
+      underTest.setProperty(node, "prop" + (i % 10), i);
+    }
+
+    assertEquals(1001, underTest.getNodeCount());
+    assertEquals(1000, underTest.getPropertyCount());
+    assertEquals(999, underTest.getProperty(underTest.getChild(underTest.getRoot(), "node999"), "prop9"));
+  }
+
+  @Test
+  void testElement() {
+    CompactContentTree underTest = new CompactContentTree();
+    underTest.setProperty(underTest.getRoot(), "prop1", "value1");
+    int child1 = underTest.addChild(underTest.getRoot(), "child1");
+    underTest.setProperty(child1, "prop1", "value2");
+    int child11 = underTest.addChild(child1, "child11");
+    underTest.setProperty(child11, "prop1", "value3");
+    underTest.addChild(underTest.getRoot(), "child2");
+
+    ContentElement root = underTest.getElement(underTest.getRoot());
+    assertNull(root.getName());
+    assertEquals(Map.of("prop1", "value1"), root.getProperties());
+    assertEquals(List.of("child1", "child2"), List.copyOf(root.getChildren().keySet()));
+    assertEquals("value2", root.getChildren().get("child1").getProperties().get("prop1"));
+    assertEquals("value3", root.getChild("child1/child11").getProperties().get("prop1"));
+    assertEquals("child11", root.getChild("child1/child11").getName());
+    assertNull(root.getChild("child2/child21"));
+    assertTrue(root.getChildren().containsKey("child2"));
+    assertEquals(0, root.getChildren().get("child2").getChildren().size());
+
+    CompactContentTree.NodeElement element = underTest.getElement(child11);
+    assertSame(underTest, element.getTree());
+    assertEquals(child11, element.getNode());
+    assertThrows(UnsupportedOperationException.class, () -> root.getProperties().put("prop2", "value"));
+  }
+
+}
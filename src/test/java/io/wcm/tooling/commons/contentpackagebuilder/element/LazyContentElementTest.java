@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class LazyContentElementTest {
+
+  @Test
+  void testProperties() {
+    AtomicInteger calls = new AtomicInteger();
+    ContentElement underTest = new LazyContentElement("name1", () -> {
+      calls.incrementAndGet();
+      return Map.of("prop1", "value1");
+    });
+
+    assertEquals(0, calls.get());
+    assertEquals("name1", underTest.getName());
+    assertEquals("value1", underTest.getProperties().get("prop1"));
+    assertEquals("value1", underTest.getProperties().get("prop1"));
+    assertEquals(1, calls.get());
+    assertEquals(0, underTest.getChildren().size());
+  }
+
+  @Test
+  void testChildren() {
+    AtomicInteger calls = new AtomicInteger();
+    ContentElement underTest = new LazyContentElement(null, () -> Map.of("prop1", "value1"), () -> {
+      calls.incrementAndGet();
+      return List.<ContentElement>of(
+          new LazyContentElement("child1", () -> Map.of("prop1", "value2"),
+              () -> List.<ContentElement>of(new ContentElementImpl("child11", Map.of("prop1", "value3"))).iterator()),
+          new LazyContentElement("child2", () -> Map.of("prop1", "value4"))).iterator();
+    });
+
+    assertEquals(List.of("child1", "child2"), names(underTest.getChildren()));
+    assertEquals(1, calls.get());
+    assertEquals(List.of("child1", "child2"), names(underTest.getChildren()));
+    assertEquals(2, calls.get());
+
+    assertEquals(2, underTest.getChildren().size());
+    assertEquals("value2", underTest.getChild("child1").getProperties().get("prop1"));
+    assertEquals("value3", underTest.getChild("child1/child11").getProperties().get("prop1"));
+    assertNull(underTest.getChild("child3"));
+    assertNull(underTest.getChild("child2/child21"));
+  }
+
+  private static List<String> names(Map<String, ContentElement> children) {
+    List<String> names = new ArrayList<>();
+    for (Map.Entry<String, ContentElement> entry : children.entrySet()) {
+      names.add(entry.getKey());
+    }
+    return names;
+  }
+
+  @Test
+  void testChildrenReadOnly() {
+    ContentElement underTest = new LazyContentElement(null, Map::of);
+    ContentElement child = new ContentElementImpl("child1", Map.of());
+    Map<String, ContentElement> children = underTest.getChildren();
+    assertThrows(UnsupportedOperationException.class, () -> children.put("child1", child));
+  }
+
+  @Test
+  void testChildWithoutName() {
+    ContentElement underTest = new LazyContentElement(null, Map::of,
+        () -> List.<ContentElement>of(new ContentElementImpl(null, Map.of())).iterator());
+    Map<String, ContentElement> children = underTest.getChildren();
+    assertThrows(IllegalStateException.class, () -> children.keySet().iterator().next());
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * wcm.io
+ * %%
+ * Copyright (C) 2024 wcm.io
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.wcm.tooling.commons.contentpackagebuilder.element;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("java:S5778") // assert throws
+class StringPoolTest {
+
+  @Test
+  void testIntern() {
+    StringPool underTest = new StringPool();
+    String value1 = new String("sling:resourceType");
+    String value2 = new String("sling:resourceType");
+
+    assertSame(value1, underTest.intern(value1));
+    assertSame(value1, underTest.intern(value2));
+    assertNull(underTest.intern(null));
+
+    assertEquals(1, underTest.getHitCount());
+    assertEquals(1, underTest.getMissCount());
+    assertEquals(0.5d, underTest.getHitRate());
+  }
+
+  @Test
+  void testMaxLength() {
+    StringPool underTest = new StringPool(16, 3);
+    String value1 = new String("abcd");
+    assertSame(value1, underTest.intern(value1));
+    assertNotSame(value1, underTest.intern(new String("abcd")));
+    assertEquals(0, underTest.getMissCount());
+    assertEquals(0d, underTest.getHitRate());
+  }
+
+  @Test
+  void testBounded() {
+    StringPool underTest = new StringPool(10, StringPool.DEFAULT_MAX_LENGTH);
+    assertEquals(16, underTest.getCapacity());
+    for (int i = 0; i < 1000; i++) {
+      underTest.intern("value" + i);
+    }
+    assertEquals(1000, underTest.getMissCount());
+    assertThrows(IllegalArgumentException.class, () -> new StringPool(0, 10));
+    assertThrows(IllegalArgumentException.class, () -> new StringPool(10, -1));
+  }
+
+  @Test
+  void testInternValue() {
+    StringPool underTest = new StringPool();
+    String value1 = underTest.intern(new String("value1"));
+
+    String[] array = new String[] { new String("value1"), "value2" };
+    String[] result = (String[])underTest.internValue(array);
+    assertNotSame(array, result);
+    assertArrayEquals(array, result);
+    assertSame(value1, result[0]);
+    assertSame(result, underTest.internValue(result));
+    assertEquals(5L, underTest.internValue(5L));
+  }
+
+  @Test
+  void testCreateElement() {
+    StringPool underTest = new StringPool();
+    Map<String, Object> properties = new LinkedHashMap<>();
+    properties.put(new String("jcr:primaryType"), new String("nt:unstructured"));
+    properties.put(new String("prop1"), 5L);
+
+    ContentElement element1 = underTest.createElement(new String("node"), properties);
+    ContentElement element2 = underTest.createElement(new String("node"), properties);
+    assertSame(element1.getName(), element2.getName());
+    assertSame(element1.getProperties().get("jcr:primaryType"), element2.getProperties().get("jcr:primaryType"));
+    assertEquals(List.of("jcr:primaryType", "prop1"), List.copyOf(element2.getProperties().keySet()));
+    assertNotSame(properties, element1.getProperties());
+  }
+
+  @Test
+  void testCompactContentTree() {
+    StringPool stringPool = new StringPool();
+    CompactContentTree tree1 = new CompactContentTree(1, 1, stringPool);
+    CompactContentTree tree2 = new CompactContentTree(1, 1, stringPool);
+    int node1 = tree1.addChild(tree1.getRoot(), new String("node"));
+    int node2 = tree2.addChild(tree2.getRoot(), new String("node"));
+    tree1.setProperty(node1, "prop1", new String("value1"));
+    tree2.setProperty(node2, "prop1", new String("value1"));
+
+    assertSame(tree1.getName(node1), tree2.getName(node2));
+    assertSame(tree1.getProperty(node1, "prop1"), tree2.getProperty(node2, "prop1"));
+  }
+
+  @Test
+  void testConcurrent() {
+    StringPool underTest = new StringPool(64, StringPool.DEFAULT_MAX_LENGTH);
+    List<CompletableFuture<Void>> futures = IntStream.range(0, 4)
+        .mapToObj(thread -> CompletableFuture.runAsync(() -> {
+          for (int i = 0; i < 10000; i++) {
+            String value = "value" + (i % 20);
+            assertEquals(value, underTest.intern(value));
+          }
+        }))
+        .collect(Collectors.toList());
+    futures.forEach(CompletableFuture::join);
+    assertEquals(40000, underTest.getHitCount() + underTest.getMissCount());
+  }
+
+}